@@ -0,0 +1,211 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Helpers shared by the JMH benchmarks and the timing programs of this
+ * module
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ */
+public final class Benchmarks {
+    /**
+     * The bytes of a line of <code>writeLines()</code>, with its line
+     * break
+     */
+    public static final int LINE_SIZE = 81;
+
+    /**
+     * The <code>process.packages</code> of the managers of this module,
+     * whose processes are started by name
+     */
+    public static final String PROCESS_PACKAGES = "edu.cmu.courses.ds.process,edu.cmu.courses.ds.benchmarks.process";
+
+    /**
+     * A stream which drops everything, to silence the console output
+     * of the managers while they are measured
+     */
+    public static final PrintStream NULL = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private Benchmarks() {
+    }
+
+    /**
+     * Let the managers of this JVM start the processes of this module
+     * by name. Call it before the first manager is created, the
+     * process classes are scanned once.
+     */
+    public static void scanProcesses() {
+        System.setProperty("process.packages", PROCESS_PACKAGES);
+    }
+
+    /**
+     * Create a temporary directory
+     *
+     * @param name the name prefix
+     * @return the directory
+     * @throws IOException if it can't be created
+     */
+    public static File createDirectory(String name) throws IOException {
+        return Files.createTempDirectory("mprocess-" + name + "-").toFile();
+    }
+
+    /**
+     * Write a file of random 80 character lines
+     *
+     * @param file   the file
+     * @param size   the approximate file size in bytes
+     * @param random the random source
+     * @return the file
+     * @throws IOException if it can't be written
+     */
+    public static File writeLines(File file, int size, Random random) throws IOException {
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        char[] line = new char[LINE_SIZE - 1];
+        for (int written = 0; written < size; written += LINE_SIZE) {
+            for (int i = 0; i < line.length; i++) {
+                line[i] = (char) ('a' + random.nextInt(26));
+            }
+            writer.println(new String(line));
+        }
+        writer.close();
+        return file;
+    }
+
+    /**
+     * Read a line byte by byte, so nothing past its end is read ahead,
+     * which a process that may be split or migrated at any line needs
+     *
+     * @param in the input
+     * @return the line without its terminator, <code>null</code> at
+     *         the end of the input
+     * @throws IOException if the input can't be read
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Start a <code>ProcessServer</code> without a manager in a daemon
+     * thread
+     *
+     * @return the server, its port is bound
+     * @throws IOException if the port can't be bound
+     */
+    public static ProcessServer startServer() throws IOException {
+        ProcessServer server = new ProcessServer(0);
+        server.bind();
+        Thread thread = new Thread(server, "process-server");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    /**
+     * Run a process in a new thread for a while, then suspend it
+     *
+     * @param process the process
+     * @param millis  how long it runs
+     * @return the suspended process
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static MigratableProcess runFor(MigratableProcess process, long millis) throws InterruptedException {
+        Thread thread = new Thread(process);
+        thread.start();
+        Thread.sleep(millis);
+        process.suspend();
+        thread.join();
+        return process;
+    }
+
+    /**
+     * Get a percentile of sorted samples by the nearest rank
+     *
+     * @param sorted  the samples in ascending order
+     * @param percent the percentile
+     * @return the sample, 0 without samples
+     */
+    public static double percentile(List<? extends Number> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))).doubleValue();
+    }
+
+    /**
+     * Print the header of the rows of <code>printLatencies()</code>
+     *
+     * @param title the title of the first column
+     */
+    public static void printLatencyHeader(String title) {
+        System.out.printf("%-14s %9s %9s %9s %9s%n", title, "p50", "p90", "p99", "max");
+    }
+
+    /**
+     * Print the percentiles of latencies in milliseconds
+     *
+     * @param name    the name of the row
+     * @param samples the latencies in nanoseconds, nothing is printed
+     *                without samples
+     */
+    public static void printLatencies(String name, List<Long> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        List<Long> sorted = new ArrayList<Long>(samples);
+        Collections.sort(sorted);
+        System.out.printf("%-14s %9.2f %9.2f %9.2f %9.2f%n", name, percentile(sorted, 50) / 1e6,
+                percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6, percentile(sorted, 100) / 1e6);
+    }
+
+    /**
+     * Delete a directory tree
+     *
+     * @param file the root
+     */
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,60 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A process of the benchmarks, with a state of a given size and a pair
+ * of transactional streams like the example processes, which sleeps
+ * until it is suspended, or finishes at once if it has no state
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ */
+public class IdleProcess extends MigratableProcess {
+    private static final long serialVersionUID = 1L;
+
+    protected byte[] state;
+    protected TransactionalFileInputStream input;
+    protected TransactionalFileOutputStream output;
+    protected boolean idle;
+
+    public IdleProcess(String[] arguments) {
+        super(arguments);
+        state = new byte[0];
+    }
+
+    /**
+     * Constructor of a process with state and streams
+     *
+     * @param size  the state size in bytes
+     * @param in    the input file
+     * @param out   the output file
+     * @param idle  sleep until suspended instead of finishing
+     */
+    public IdleProcess(int size, File in, File out, boolean idle) {
+        super(new String[]{in.getPath(), out.getPath()});
+        state = new byte[size];
+        for (int i = 0; i < size; i++) {
+            state[i] = (byte) (i * 31);
+        }
+        input = new TransactionalFileInputStream(in);
+        output = new TransactionalFileOutputStream(out);
+        this.idle = idle;
+    }
+
+    @Override
+    public void processing() throws IOException {
+        while (idle && !suspending) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
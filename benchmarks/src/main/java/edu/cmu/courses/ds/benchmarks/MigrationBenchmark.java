@@ -0,0 +1,94 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a running process between two managers of this JVM
+ * over localhost: each operation migrates it to the second manager and
+ * back. With <code>handoff</code> the managers pass the process in
+ * memory, without it the process is serialized and sent over the
+ * migration session like a migration between machines.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager#migrate(java.util.List, String, int, int, boolean, boolean)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MigrationBenchmark {
+    @Param({"false", "true"})
+    public boolean handoff;
+
+    @Param({"0", "1048576"})
+    public int stateSize;
+
+    private File directory;
+    private ProcessManager first;
+    private ProcessManager second;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("migration.local.handoff", Boolean.toString(handoff));
+        directory = Benchmarks.createDirectory("migration");
+        first = new ProcessManager("localhost", 0, new File(directory, "checkpoint0"));
+        second = new ProcessManager("localhost", 0, new File(directory, "checkpoint1"));
+        first.startServer();
+        second.startServer();
+        first.startProcess(new IdleProcess(stateSize, new File(directory, "input"),
+                new File(directory, "output"), true));
+        console = System.out;
+        System.setOut(Benchmarks.NULL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        System.setOut(console);
+        for (MigratableProcess process : first.getProcesses()) {
+            process.suspend();
+        }
+        first.shutdown();
+        second.shutdown();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        return move(first, second) + move(second, first);
+    }
+
+    private static int move(ProcessManager from, ProcessManager to) throws IOException {
+        MigratableProcess process = from.getProcesses().iterator().next();
+        int migrated = from.migrate(Collections.singletonList(process), "localhost", to.getServerPort(),
+                1, false, false).getDowntimes().size();
+        if (migrated != 1) {
+            throw new IOException("migration of " + process + " failed");
+        }
+        return migrated;
+    }
+}
@@ -0,0 +1,73 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of <code>DataInputStream.readLine()</code> over a transactional
+ * input stream, the way the example processes read their input. Each
+ * operation reads every line of a file of 80 character lines.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.SortProcess#processing()
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadLineBenchmark {
+    @Param({"1048576"})
+    public int size;
+
+    private File directory;
+    private File input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("readline");
+        input = Benchmarks.writeLines(new File(directory, "input"), size, new Random(size));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public int readLine() throws IOException {
+        TransactionalFileInputStream in = new TransactionalFileInputStream(input);
+        DataInputStream reader = new DataInputStream(in);
+        int lines = 0;
+        try {
+            while (reader.readLine() != null) {
+                lines++;
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,78 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.codec.MigrationCodec;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and size of the serialization of a suspended process with each
+ * codec. The encoded size in bytes is reported as the
+ * <code>encodedBytes</code> secondary result of <code>encode</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationCodecs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"java", "binary"})
+    public String codecName;
+
+    @Param({"0", "65536", "1048576"})
+    public int stateSize;
+
+    private MigrationCodec codec;
+    private MigratableProcess process;
+    private byte[] payload;
+
+    /**
+     * The size of the last encoded process
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long encodedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = MigrationCodecs.get(codecName);
+        process = new IdleProcess(stateSize, new File("input"), new File("output"), false);
+        payload = MigrationCodecs.encode(codec, process);
+    }
+
+    @Benchmark
+    public byte[] encode(Size size) throws IOException {
+        byte[] bytes = MigrationCodecs.encode(codec, process);
+        size.encodedBytes = bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public MigratableProcess decode() throws IOException, ClassNotFoundException {
+        return MigrationCodecs.decode(codec.getId(), payload);
+    }
+}
@@ -0,0 +1,79 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of submitting a process to a manager: <code>submit</code>
+ * measures <code>startProcess()</code> alone and
+ * <code>startAndFinish</code> until the process has run.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager#startProcess(MigratableProcess)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartProcessBenchmark {
+    private static final String[] NO_ARGUMENTS = new String[0];
+
+    private File directory;
+    private ProcessManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("start");
+        manager = new ProcessManager("localhost", 0, new File(directory, "checkpoint"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        while (!manager.getProcesses().isEmpty()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.shutdown();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public MigratableProcess submit() {
+        MigratableProcess process = new IdleProcess(NO_ARGUMENTS);
+        manager.startProcess(process);
+        return process;
+    }
+
+    @Benchmark
+    public MigratableProcess startAndFinish() {
+        MigratableProcess process = new IdleProcess(NO_ARGUMENTS);
+        manager.startProcess(process);
+        while (!process.isFinished()) {
+            Thread.yield();
+        }
+        return process;
+    }
+}
@@ -0,0 +1,118 @@
+package edu.cmu.courses.ds.benchmarks;
+
+import edu.cmu.courses.ds.io.IOCounters;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the transactional file streams
+ * Each operation reads or writes a whole file through a transactional
+ * stream, in chunks of <code>chunk</code> bytes; a chunk of 1 uses the
+ * single byte <code>read()</code> and <code>write(int)</code>, which is
+ * what an unbuffered <code>DataInputStream</code> or
+ * <code>PrintStream</code> costs. With <code>counted</code> the
+ * streams count their I/O in process counters, as they do in a running
+ * process.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.TransactionalFileInputStream
+ * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionalStreamBenchmark {
+    @Param({"1048576"})
+    public int size;
+
+    @Param({"1", "4096", "65536"})
+    public int chunk;
+
+    @Param({"false", "true"})
+    public boolean counted;
+
+    private File directory;
+    private File input;
+    private File output;
+    private byte[] buffer;
+    private IOCounters counters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Benchmarks.createDirectory("stream");
+        input = Benchmarks.writeLines(new File(directory, "input"), size, new Random(size));
+        output = new File(directory, "output");
+        buffer = new byte[chunk];
+        counters = counted ? new IOCounters() : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        TransactionalFileInputStream in = new TransactionalFileInputStream(input);
+        in.setCounters(counters);
+        long total = 0;
+        try {
+            if (chunk == 1) {
+                while (in.read() >= 0) {
+                    total++;
+                }
+            } else {
+                int n;
+                while ((n = in.read(buffer, 0, chunk)) > 0) {
+                    total += n;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        TransactionalFileOutputStream out = new TransactionalFileOutputStream(output);
+        out.setCounters(counters);
+        try {
+            if (chunk == 1) {
+                for (int i = 0; i < size; i++) {
+                    out.write(i);
+                }
+            } else {
+                for (int i = 0; i < size; i += chunk) {
+                    out.write(buffer, 0, Math.min(chunk, size - i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return out.getOffset();
+    }
+}
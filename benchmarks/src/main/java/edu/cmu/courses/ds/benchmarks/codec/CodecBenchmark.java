@@ -0,0 +1,79 @@
+package edu.cmu.courses.ds.benchmarks.codec;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.MigrationCodec;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.process.ExternalSortProcess;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.SortProcess;
+import edu.cmu.courses.ds.process.TailProcess;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of the migration codecs
+ * Print the payload size, encode time and decode time of every codec
+ * for a few sample processes. Run its <code>main()</code> with the jar
+ * of the <code>benchmarks</code> module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationCodecs
+ */
+public class CodecBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Benchmarks.createDirectory("codec");
+        File input = Benchmarks.writeLines(new File(directory, "input"), 16 * 1024 * 1024, new Random(15440));
+        File output = new File(directory, "output");
+
+        List<MigratableProcess> samples = new ArrayList<MigratableProcess>();
+        samples.add(new SortProcess(new String[]{input.getPath(), output.getPath()}));
+        samples.add(new TailProcess(new String[]{"10", input.getPath(), output.getPath()}));
+        samples.add(new ExternalSortProcess(new String[]{input.getPath(), output.getPath()}));
+        samples.add(Benchmarks.runFor(new ExternalSortProcess(
+                new String[]{input.getPath(), output.getPath(), "10000000", "1"}), 20));
+
+        System.out.printf("%-28s %-8s %10s %12s %12s%n",
+                "process", "codec", "bytes", "encode(us)", "decode(us)");
+        for (MigratableProcess process : samples) {
+            for (MigrationCodec codec : MigrationCodecs.getAll()) {
+                bench(process, codec);
+            }
+        }
+        Benchmarks.delete(directory);
+        System.exit(0);
+    }
+
+    private static void bench(MigratableProcess process, MigrationCodec codec) throws Exception {
+        byte[] payload = MigrationCodecs.encode(codec, process);
+        int rounds = payload.length > 1024 * 1024 ? ROUNDS / 100 : ROUNDS;
+        int warmup = payload.length > 1024 * 1024 ? WARMUP / 100 : WARMUP;
+        for (int i = 0; i < warmup; i++) {
+            MigrationCodecs.decode(codec.getId(), MigrationCodecs.encode(codec, process));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            MigrationCodecs.encode(codec, process);
+        }
+        long encode = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        MigratableProcess decoded = null;
+        for (int i = 0; i < rounds; i++) {
+            decoded = MigrationCodecs.decode(codec.getId(), payload);
+        }
+        long decode = (System.nanoTime() - start) / rounds;
+        if (!decoded.toString().equals(process.toString())) {
+            throw new IllegalStateException(codec.getName() + " changed " + process);
+        }
+        String name = process.getClass().getSimpleName() +
+                (payload.length > 1024 * 1024 ? "(chunk)" : "");
+        System.out.printf("%-28s %-8s %10d %12.1f %12.1f%n",
+                name, codec.getName(), payload.length, encode / 1000.0, decode / 1000.0);
+    }
+}
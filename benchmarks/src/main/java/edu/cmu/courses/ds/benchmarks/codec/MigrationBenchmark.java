@@ -0,0 +1,161 @@
+package edu.cmu.courses.ds.benchmarks.codec;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.ExternalSortProcess;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationHandshake;
+import edu.cmu.courses.ds.process.SortProcess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * End-to-end benchmark of migration frames over localhost
+ * Each round opens a connection, runs the handshake, sends one frame
+ * and waits for the acknowledgement, exactly like
+ * <code>ProcessManager</code> does, but the receiver only decodes the
+ * process instead of starting it. Every compression is measured for
+ * a small and a large process. The optional argument limits the
+ * sending rate in bytes per second, to emulate a busy network.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationFrame
+ */
+public class MigrationBenchmark {
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        long bandwidth = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        File directory = Benchmarks.createDirectory("migration");
+        File input = Benchmarks.writeLines(new File(directory, "input"), 16 * 1024 * 1024, new Random(15440));
+        File output = new File(directory, "output");
+
+        MigratableProcess small = new SortProcess(new String[]{input.getPath(), output.getPath()});
+        MigratableProcess large = Benchmarks.runFor(new ExternalSortProcess(
+                new String[]{input.getPath(), output.getPath(), "10000000", "1"}), 20);
+
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receive(server);
+            }
+        });
+        receiver.setDaemon(true);
+        receiver.start();
+
+        System.out.printf("bandwidth=%s%n", bandwidth > 0 ? bandwidth + "B/s" : "unlimited");
+        System.out.printf("%-8s %-14s %10s %10s %10s%n", "process", "compression", "raw", "wire", "time(ms)");
+        for (MigratableProcess process : new MigratableProcess[]{small, large}) {
+            for (Compression compression : Compression.values()) {
+                System.setProperty("migration.compression", compression.getValue());
+                bench(server.getLocalPort(), process, compression, bandwidth,
+                        process == small ? "small" : "large");
+            }
+        }
+        Benchmarks.delete(directory);
+        System.exit(0);
+    }
+
+    private static void bench(int port, MigratableProcess process, Compression compression,
+                              long bandwidth, String name) throws Exception {
+        MigrationFrame frame = null;
+        int rounds = name.equals("small") ? ROUNDS * 10 : ROUNDS;
+        for (int i = 0; i < rounds / 2; i++) {
+            frame = migrate(port, process, bandwidth);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            frame = migrate(port, process, bandwidth);
+        }
+        double millis = (System.nanoTime() - start) / 1000000.0 / rounds;
+        System.out.printf("%-8s %-14s %10d %10d %10.2f%n", name, compression.getValue(),
+                frame.getRawLength(), frame.getBytes().length, millis);
+    }
+
+    private static MigrationFrame migrate(int port, MigratableProcess process, long bandwidth) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream raw = socket.getOutputStream();
+            if (bandwidth > 0) {
+                raw = new ThrottledOutputStream(raw, bandwidth);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Set<Compression> accepted = MigrationHandshake.offer(in, out);
+            MigrationFrame frame = MigrationFrame.build(MigrationCodecs.getDefault(), process, accepted);
+            out.write(frame.getBytes());
+            out.flush();
+            if (!in.readBoolean()) {
+                throw new IOException("migration failed");
+            }
+            return frame;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void receive(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                MigrationHandshake.accept(in, out);
+                MigrationFrame.read(in);
+                out.writeBoolean(true);
+                out.flush();
+                socket.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Output stream which sends at most <code>bandwidth</code> bytes
+     * per second
+     */
+    static class ThrottledOutputStream extends FilterOutputStream {
+        private long bandwidth;
+        private long start;
+        private long sent;
+
+        ThrottledOutputStream(OutputStream out, long bandwidth) {
+            super(out);
+            this.bandwidth = bandwidth;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            sent += len;
+            long wait = start + sent * 1000000000L / bandwidth - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted", e);
+                }
+            }
+        }
+    }
+}
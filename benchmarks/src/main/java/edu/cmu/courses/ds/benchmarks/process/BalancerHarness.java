@@ -0,0 +1,77 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.process.LoadBalancer;
+
+import java.io.File;
+
+/**
+ * A scenario of the automatic migration balancer
+ * All processes start on node 0 of an in-JVM <code>ClusterHarness</code>
+ * whose balancers know each other, with short intervals and cooldowns.
+ * The process count of each node is printed every second until the
+ * cluster settles, then the number of balancer decisions and
+ * migrations. The arguments are the node count, the process count and
+ * the run time in seconds.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LoadBalancer
+ */
+public class BalancerHarness {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int processCount = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+        System.setProperty("balancer.interval", "200");
+        System.setProperty("balancer.sustain", "2");
+        System.setProperty("balancer.max", "4");
+        System.setProperty("balancer.cooldown", "500");
+        System.setProperty("balancer.process.cooldown", "1000");
+        File log = File.createTempFile("balancer-", ".log");
+        log.deleteOnExit();
+        System.setProperty("balancer.log", log.getPath());
+
+        ClusterHarness cluster = new ClusterHarness(nodeCount, false);
+        cluster.start();
+        for (int i = 0; i < nodeCount; i++) {
+            LoadBalancer balancer = cluster.getNode(i).getManager().getBalancer();
+            for (int j = 0; j < nodeCount; j++) {
+                if (j != i) {
+                    balancer.addPeer("localhost:" + cluster.getNode(j).getPort());
+                }
+            }
+        }
+        for (int i = 0; i < processCount; i++) {
+            cluster.execute(0, "run SpinProcess");
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            cluster.getNode(i).getManager().getBalancer().start();
+        }
+
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            StringBuilder line = new StringBuilder(String.format("%3ds", second));
+            for (int i = 0; i < nodeCount; i++) {
+                line.append(String.format(" node%d=%-3d", i, cluster.getNode(i).getManager().getProcesses().size()));
+            }
+            System.out.println(line);
+        }
+
+        int decisions = 0;
+        int migrations = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            for (String decision : cluster.getNode(i).getManager().getBalancer().getDecisions()) {
+                decisions++;
+                if (decision.contains(" migrate: ")) {
+                    migrations++;
+                }
+                System.out.println("node" + i + " " + decision);
+            }
+        }
+        cluster.stop();
+        System.out.printf("decisions=%d migration rounds=%d, log in %s%n", decisions, migrations, log);
+        System.exit(0);
+    }
+}
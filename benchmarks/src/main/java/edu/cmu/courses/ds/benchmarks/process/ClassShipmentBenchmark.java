@@ -0,0 +1,132 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.JobClassLoader;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Benchmark of shipping the bytecode of new jobs
+ * A job of two classes is compiled into a directory which is not on
+ * the classpath, and its process migrates between two managers of this
+ * JVM, so the target has to get the classes from the source. The
+ * first migration ships the job, a second process of the same job
+ * ships nothing, and a second version of the job with one changed
+ * class ships only that class. The bytes shipped and the time of each
+ * migration are printed.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath, with a JDK.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ClassCache
+ */
+public class ClassShipmentBenchmark {
+    private static final String PROCESS =
+            "package job;\n" +
+            "public class CountProcess extends edu.cmu.courses.ds.process.MigratableProcess {\n" +
+            "    private static final long serialVersionUID = 1L;\n" +
+            "    private Step step = new Step();\n" +
+            "    private long count;\n" +
+            "    public void processing() throws java.io.IOException {\n" +
+            "        while (!suspending) {\n" +
+            "            count = step.next(count);\n" +
+            "            try {\n" +
+            "                Thread.sleep(1);\n" +
+            "            } catch (InterruptedException e) {\n" +
+            "                return;\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "    public String toString() {\n" +
+            "        return super.toString() + \" count=\" + count + \" step=\" + step.next(0);\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String STEP =
+            "package job;\n" +
+            "public class Step implements java.io.Serializable {\n" +
+            "    private static final long serialVersionUID = 1L;\n" +
+            "    public long next(long count) {\n" +
+            "        return count + %d;\n" +
+            "    }\n" +
+            "}\n";
+
+    public static void main(String[] args) throws Exception {
+        File directory = Benchmarks.createDirectory("classes");
+        System.setProperty("migration.local.handoff", "false");
+        ClassLoader v1 = compile(new File(directory, "v1"), 1);
+        ClassLoader v2 = compile(new File(directory, "v2"), 2);
+
+        ProcessManager source = new ProcessManager("localhost", 0, new File(directory, "ckpt0"),
+                new File(directory, "cache0"));
+        ProcessManager target = new ProcessManager("localhost", 0, new File(directory, "ckpt1"),
+                new File(directory, "cache1"));
+        source.startServer();
+        target.startServer();
+
+        migrate("first", source, target, v1);
+        migrate("same job", source, target, v1);
+        migrate("changed class", source, target, v2);
+        Thread.sleep(100);
+        for (MigratableProcess process : target.getProcesses()) {
+            System.out.println(process + " loaded by " + process.getClass().getClassLoader());
+        }
+        for (JobClassLoader job : target.getClassCache().getLoaders()) {
+            System.out.println(job);
+        }
+        System.exit(0);
+    }
+
+    private static ClassLoader compile(File directory, int step) throws Exception {
+        File sources = new File(directory, "job");
+        if (!sources.mkdirs()) {
+            throw new IllegalStateException("can't create " + sources);
+        }
+        File process = write(new File(sources, "CountProcess.java"), PROCESS);
+        File next = write(new File(sources, "Step.java"), String.format(STEP, step));
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("no Java compiler, run with a JDK");
+        }
+        int status = compiler.run(null, null, null, "-classpath", System.getProperty("java.class.path"),
+                "-d", directory.getPath(), process.getPath(), next.getPath());
+        if (status != 0) {
+            throw new IllegalStateException("compile job failed");
+        }
+        return new URLClassLoader(new URL[]{directory.toURI().toURL()},
+                ClassShipmentBenchmark.class.getClassLoader());
+    }
+
+    private static File write(File file, String source) throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(source);
+        writer.close();
+        return file;
+    }
+
+    private static void migrate(String name, ProcessManager source, ProcessManager target,
+                                ClassLoader job) throws Exception {
+        MigratableProcess process = (MigratableProcess) job.loadClass("job.CountProcess").getDeclaredConstructor().newInstance();
+        source.startProcess(process);
+        Thread.sleep(50);
+        long before = target.getClassCache().getReceived();
+        List<MigratableProcess> selected = new ArrayList<MigratableProcess>(Collections.singletonList(process));
+        long start = System.nanoTime();
+        source.migrate(selected, "localhost", target.getServerPort(), 1, false, false);
+        System.out.printf("%s: bytecode=%dB time=%.1fms%n", name, target.getClassCache().getReceived() - before,
+                (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,407 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.process.Configuration;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationBatch;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cluster of <code>ProcessManager</code> nodes on localhost
+ * The nodes run in this JVM, each with its own port and checkpoint
+ * directory, or with <code>-fork</code> in child JVMs which are
+ * driven through their consoles. Its <code>main()</code> scripts a
+ * migration storm: <code>-processes</code> processes are started on
+ * node 0 and all of them migrate to the next node in every round, for
+ * <code>-rounds</code> rounds, then the throughput and the downtime
+ * percentiles are printed.
+ *
+ * <pre>
+ * ClusterHarness [-fork] [-nodes N] [-processes P] [-rounds R]
+ *                [-size BYTES] [-j J] [-p] [-l]
+ * </pre>
+ *
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager
+ */
+public class ClusterHarness {
+    /**
+     * Per-process result line and end-of-batch line of the
+     * <code>mg</code> command
+     */
+    private static final Pattern DOWNTIME = Pattern.compile("^Successfully migrated .* downtime=([0-9.]+)ms");
+    private static final String BATCH_END = "Migrated ";
+
+    /**
+     * How long to wait for a node to answer, in milliseconds
+     */
+    private static final long TIMEOUT = 120000;
+
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final boolean fork;
+
+    /**
+     * Constructor of <code>ClusterHarness</code>
+     *
+     * @param count the number of nodes
+     * @param fork  run the nodes in child JVMs
+     */
+    public ClusterHarness(int count, boolean fork) {
+        this.fork = fork;
+        Benchmarks.scanProcesses();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node(i));
+        }
+    }
+
+    /**
+     * Start all nodes
+     *
+     * @throws IOException if a node can't start
+     */
+    public void start() throws IOException {
+        for (Node node : nodes) {
+            node.start();
+        }
+    }
+
+    /**
+     * Stop all nodes
+     */
+    public void stop() {
+        for (Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    /**
+     * Get a node
+     *
+     * @param index the node index
+     * @return the node
+     */
+    public Node getNode(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * Run a console command on a node
+     *
+     * @param index   the node index
+     * @param command the command line
+     * @throws IOException if a child JVM is gone
+     */
+    public void execute(int index, String command) throws IOException {
+        nodes.get(index).execute(command);
+    }
+
+    /**
+     * Migrate all processes of a node to another node
+     *
+     * @param from    the source node index
+     * @param to      the target node index
+     * @param options options of the <code>mg</code> command
+     * @return the downtime of each migrated process in milliseconds
+     * @throws IOException if the migration can't run
+     */
+    public List<Double> migrateAll(int from, int to, String options) throws IOException {
+        Node source = nodes.get(from);
+        String command = "mg " + options + " all localhost:" + nodes.get(to).port;
+        List<Double> downtimes = new ArrayList<Double>();
+        if (!fork) {
+            List<String> args = new ArrayList<String>();
+            for (String arg : command.trim().split("\\s+")) {
+                args.add(arg);
+            }
+            int concurrency = Configuration.getInt("migration.parallel", 4);
+            int j = args.indexOf("-j");
+            if (j >= 0) {
+                concurrency = Integer.parseInt(args.get(j + 1));
+            }
+            MigrationBatch batch = source.manager.migrate(
+                    new ArrayList<MigratableProcess>(source.manager.getProcesses()), "localhost",
+                    nodes.get(to).port, concurrency, args.contains("-p"), args.contains("-l"));
+            for (long downtime : batch.getDowntimes()) {
+                downtimes.add(downtime / 1000000.0);
+            }
+            return downtimes;
+        }
+        source.output.clear();
+        source.execute(command);
+        while (true) {
+            String line = source.await(TIMEOUT);
+            if (line.startsWith(BATCH_END)) {
+                return downtimes;
+            }
+            Matcher m = DOWNTIME.matcher(line);
+            if (m.find()) {
+                downtimes.add(Double.parseDouble(m.group(1)));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean fork = false;
+        int nodeCount = 3;
+        int processCount = 50;
+        int rounds = 10;
+        int size = 0;
+        StringBuilder options = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-fork")) {
+                fork = true;
+            } else if (args[i].equals("-nodes")) {
+                nodeCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-processes")) {
+                processCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rounds")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-j")) {
+                options.append(" -j ").append(args[++i]);
+            } else if (args[i].equals("-p") || args[i].equals("-l")) {
+                options.append(' ').append(args[i]);
+            } else {
+                System.out.println("usage: ClusterHarness [-fork] [-nodes N] [-processes P] [-rounds R] " +
+                        "[-size BYTES] [-j J] [-p] [-l]");
+                return;
+            }
+        }
+        if (nodeCount < 2) {
+            System.out.println("at least 2 nodes");
+            return;
+        }
+
+        ClusterHarness cluster = new ClusterHarness(nodeCount, fork);
+        cluster.start();
+        for (int i = 0; i < processCount; i++) {
+            cluster.execute(0, "run SpinProcess " + size);
+        }
+        Thread.sleep(200);
+
+        List<Double> downtimes = new ArrayList<Double>();
+        List<Double> roundTimes = new ArrayList<Double>();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            long roundStart = System.nanoTime();
+            List<Double> result = cluster.migrateAll(round % nodeCount, (round + 1) % nodeCount,
+                    options.toString().trim());
+            roundTimes.add((System.nanoTime() - roundStart) / 1000000.0);
+            downtimes.addAll(result);
+            if (result.size() != processCount) {
+                System.out.println("round " + round + ": only " + result.size() + " processes migrated");
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        cluster.stop();
+
+        Collections.sort(downtimes);
+        Collections.sort(roundTimes);
+        System.out.println();
+        System.out.printf("nodes=%d (%s) processes=%d rounds=%d size=%dB options='%s'%n",
+                nodeCount, fork ? "child JVMs" : "in-JVM", processCount, rounds, size, options.toString().trim());
+        System.out.printf("migrations=%d time=%.2fs throughput=%.1f migrations/s%n",
+                downtimes.size(), seconds, downtimes.size() / seconds);
+        System.out.printf("round time ms: p50=%.1f max=%.1f%n",
+                Benchmarks.percentile(roundTimes, 50), Benchmarks.percentile(roundTimes, 100));
+        System.out.printf("downtime ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                Benchmarks.percentile(downtimes, 50), Benchmarks.percentile(downtimes, 90),
+                Benchmarks.percentile(downtimes, 99), Benchmarks.percentile(downtimes, 100));
+        System.exit(0);
+    }
+
+    /**
+     * Get a free port of localhost
+     */
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * One manager of the cluster
+     */
+    public class Node {
+        private final int index;
+        private int port;
+        private File checkpointDir;
+
+        /**
+         * The manager, in this JVM
+         */
+        private ProcessManager manager;
+
+        /**
+         * The child JVM, its console input and output lines
+         */
+        private Process child;
+        private Writer input;
+        private final BlockingQueue<String> output = new LinkedBlockingQueue<String>();
+
+        Node(int index) {
+            this.index = index;
+        }
+
+        void start() throws IOException {
+            checkpointDir = Benchmarks.createDirectory("node-" + index);
+            checkpointDir.deleteOnExit();
+            if (!fork) {
+                manager = new ProcessManager("localhost", 0, checkpointDir);
+                manager.startServer();
+                port = manager.getServerPort();
+                return;
+            }
+            port = freePort();
+            ProcessBuilder builder = new ProcessBuilder(
+                    new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dserver.address=localhost",
+                    "-Dserver.port=" + port,
+                    "-Dcheckpoint.dir=" + checkpointDir.getPath(),
+                    "-Dprocess.packages=" + Benchmarks.PROCESS_PACKAGES,
+                    ProcessManager.class.getName());
+            builder.redirectErrorStream(true);
+            child = builder.start();
+            input = new OutputStreamWriter(child.getOutputStream(), "UTF-8");
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), "UTF-8"));
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            while (line.startsWith("> ")) {
+                                line = line.substring(2);
+                            }
+                            output.offer(line);
+                        }
+                    } catch (IOException e) {
+                        output.offer("EOF " + e.getMessage());
+                    }
+                }
+            }, "node-" + index + "-output");
+            thread.setDaemon(true);
+            thread.start();
+            while (!await(TIMEOUT).startsWith("Welcome")) {
+                continue;
+            }
+        }
+
+        void execute(String command) throws IOException {
+            if (manager != null) {
+                manager.execute(command);
+            } else {
+                input.write(command + "\n");
+                input.flush();
+            }
+        }
+
+        /**
+         * Wait for the next console line of a child JVM
+         */
+        String await(long timeout) throws IOException {
+            try {
+                String line = output.poll(timeout, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    throw new IOException("node " + index + " doesn't answer");
+                }
+                return line;
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted", e);
+            }
+        }
+
+        void stop() {
+            if (manager != null) {
+                for (MigratableProcess process : manager.getProcesses()) {
+                    try {
+                        process.suspend();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                manager.shutdown();
+            } else if (child != null) {
+                try {
+                    execute("quit");
+                    if (!child.waitFor(10, TimeUnit.SECONDS)) {
+                        child.destroy();
+                    }
+                } catch (IOException e) {
+                    child.destroy();
+                } catch (InterruptedException e) {
+                    child.destroy();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Get the migration port of the node
+         *
+         * @return the port
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Get the manager of an in-JVM node
+         *
+         * @return the manager, <code>null</code> for a child JVM
+         */
+        public ProcessManager getManager() {
+            return manager;
+        }
+    }
+
+    /**
+     * A process which idles until it is suspended, holding a payload
+     * of the size given by its first argument
+     */
+    public static class SpinProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        private byte[] payload;
+
+        public SpinProcess(String[] args) {
+            super(args);
+            payload = new byte[arguments.isEmpty() ? 0 : Integer.parseInt(arguments.get(0))];
+        }
+
+        @Override
+        public void processing() throws IOException {
+            while (!suspending) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Benchmark of the local control endpoint
+ * A client pipelines requests to a manager in this JVM over one
+ * connection: pings, runs of a process which finishes at once, and
+ * process listings, then a migration to a second manager. The rate of
+ * each kind of request is printed, and every reply is checked. The
+ * optional argument is the number of requests of each kind.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ControlServer
+ */
+public class ControlBenchmark {
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File directory = Benchmarks.createDirectory("control");
+        System.setProperty("migration.local.handoff", "false");
+        Benchmarks.scanProcesses();
+        ProcessManager manager = new ProcessManager("localhost", 0, new File(directory, "ckpt0"));
+        ProcessManager other = new ProcessManager("localhost", 0, new File(directory, "ckpt1"));
+        manager.startServer();
+        other.startServer();
+        int port = manager.startControl(0);
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        boolean good = true;
+        good &= pipeline("ping", requests, out, in);
+        good &= pipeline("run NoopProcess", requests, out, in);
+        good &= pipeline("ps", requests, out, in);
+
+        ReplicationBenchmark.StateProcess process = new ReplicationBenchmark.StateProcess(1024);
+        manager.startProcess(process);
+        out.write("mg " + process.getId() + " localhost:" + other.getServerPort() + "\n");
+        out.write("stats 0.1\n");
+        out.flush();
+        String migrated = in.readLine();
+        System.out.println(migrated);
+        System.out.println(in.readLine());
+        good &= migrated.contains("\"migrated\":1");
+        out.write("bogus\n");
+        out.flush();
+        String error = in.readLine();
+        System.out.println(error);
+        good &= error.contains("\"ok\":false");
+        socket.close();
+        manager.shutdown();
+        other.shutdown();
+        System.exit(good ? 0 : 1);
+    }
+
+    /**
+     * Send the same request many times without waiting, then read and
+     * check every reply
+     */
+    private static boolean pipeline(String request, int count, Writer out, BufferedReader in) throws Exception {
+        long start = System.nanoTime();
+        final Throwable[] error = new Throwable[1];
+        final Writer writer = out;
+        final String line = request + "\n";
+        final int n = count;
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < n; i++) {
+                        writer.write(line);
+                    }
+                    writer.flush();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        });
+        sender.start();
+        int ok = 0;
+        for (int i = 0; i < count; i++) {
+            if (in.readLine().contains("\"ok\":true")) {
+                ok++;
+            }
+        }
+        sender.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-16s %7d requests in %6.3fs = %8.0f/s, %d ok%n",
+                request, count, seconds, count / seconds, ok);
+        return error[0] == null && ok == count;
+    }
+}
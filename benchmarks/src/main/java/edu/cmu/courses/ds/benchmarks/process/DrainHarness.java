@@ -0,0 +1,73 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.process.ProcessManager;
+
+/**
+ * A scenario of the <code>drain</code> command
+ * Processes start on node 0 of an in-JVM <code>ClusterHarness</code>,
+ * and some more on node 1 so the targets are uneven. Node 0 is then
+ * drained to all other nodes while a thread keeps submitting processes
+ * to it, and the drain time, the refused submissions and the process
+ * count of each node are printed. The arguments are the node count
+ * and the process count.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.NodeDrain
+ */
+public class DrainHarness {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int processCount = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        final ClusterHarness cluster = new ClusterHarness(nodeCount, false);
+        cluster.start();
+        for (int i = 0; i < processCount; i++) {
+            cluster.execute(0, "run SpinProcess");
+        }
+        for (int i = 0; i < processCount / 4; i++) {
+            cluster.execute(1, "run SpinProcess");
+        }
+        Thread.sleep(200);
+
+        final ProcessManager source = cluster.getNode(0).getManager();
+        final int[] refused = new int[1];
+        Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (source.isDraining()) {
+                        try {
+                            source.startProcess("SpinProcess", new String[0]);
+                        } catch (IllegalStateException e) {
+                            refused[0]++;
+                        } catch (Exception e) {
+                            return;
+                        }
+                    }
+                    Thread.yield();
+                }
+            }
+        }, "submitter");
+        submitter.start();
+
+        StringBuilder command = new StringBuilder("drain");
+        for (int i = 1; i < nodeCount; i++) {
+            command.append(" localhost:").append(cluster.getNode(i).getPort());
+        }
+        long start = System.nanoTime();
+        cluster.execute(0, command.toString());
+        double millis = (System.nanoTime() - start) / 1000000.0;
+        submitter.interrupt();
+        submitter.join();
+
+        System.out.println();
+        System.out.printf("drain of %d processes to %d nodes: %.1fms, refused submissions=%d%n",
+                processCount, nodeCount - 1, millis, refused[0]);
+        for (int i = 0; i < nodeCount; i++) {
+            System.out.printf("node%d=%d%n", i, cluster.getNode(i).getManager().getProcesses().size());
+        }
+        cluster.stop();
+        System.exit(0);
+    }
+}
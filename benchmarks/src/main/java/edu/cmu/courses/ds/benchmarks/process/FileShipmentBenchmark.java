@@ -0,0 +1,118 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationBatch;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of shipping input files with migrated processes
+ * Two managers run in this JVM. A process reading a dataset migrates
+ * from the first to the second with its file, then a second process
+ * reading the same dataset, then a third one reading a copy with one
+ * byte changed. The bytes shipped and the time of each migration are
+ * printed; only the first one should pay for the dataset, and the
+ * last one for one chunk. The optional argument is the dataset size in
+ * MB.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.FileShipment
+ * @see edu.cmu.courses.ds.process.FileCache
+ */
+public class FileShipmentBenchmark {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        File directory = Benchmarks.createDirectory("files");
+        System.setProperty("migration.local.handoff", "false");
+
+        File dataset = new File(directory, "dataset");
+        byte[] buffer = new byte[1024 * 1024];
+        Random random = new Random(megabytes);
+        FileOutputStream out = new FileOutputStream(dataset);
+        for (int i = 0; i < megabytes; i++) {
+            random.nextBytes(buffer);
+            out.write(buffer);
+        }
+        out.close();
+        File changed = new File(directory, "changed");
+        Files.copy(dataset.toPath(), changed.toPath());
+        RandomAccessFile file = new RandomAccessFile(changed, "rw");
+        file.seek(file.length() / 2);
+        file.write(~file.read());
+        file.close();
+
+        ProcessManager source = new ProcessManager("localhost", 0, new File(directory, "ckpt0"),
+                new File(directory, "cache0"));
+        ProcessManager target = new ProcessManager("localhost", 0, new File(directory, "ckpt1"),
+                new File(directory, "cache1"));
+        source.startServer();
+        target.startServer();
+
+        System.out.printf("dataset=%dMB%n", megabytes);
+        migrate("first", source, target, dataset);
+        migrate("repeat", source, target, dataset);
+        migrate("one byte changed", source, target, changed);
+        for (MigratableProcess process : target.getProcesses()) {
+            System.out.println(process + " reads " + ((ReadProcess) process).input.getSourceFile());
+        }
+        System.out.println(target.getFileCache());
+        System.exit(0);
+    }
+
+    private static void migrate(String name, ProcessManager source, ProcessManager target,
+                                File file) throws Exception {
+        ReadProcess process = new ReadProcess(file);
+        source.startProcess(process);
+        Thread.sleep(100);
+        List<MigratableProcess> selected = new ArrayList<MigratableProcess>(Collections.singletonList(process));
+        long start = System.nanoTime();
+        MigrationBatch batch = source.migrate(selected, "localhost", target.getServerPort(), 1, false, false,
+                false, true);
+        System.out.printf("%s: shipped=%.1fMB time=%.1fms%n", name, batch.getShipped() / 1048576.0,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * A process which reads its input file slowly
+     */
+    public static class ReadProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        protected TransactionalFileInputStream input;
+        protected long sum;
+
+        public ReadProcess(File file) {
+            super();
+            input = new TransactionalFileInputStream(file);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            while (!suspending) {
+                int b = input.read();
+                if (b >= 0) {
+                    sum += b;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
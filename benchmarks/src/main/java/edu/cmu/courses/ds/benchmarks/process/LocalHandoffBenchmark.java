@@ -0,0 +1,69 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.PeerConnection;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark of the same-host fast path
+ * Frames of growing sizes are migrated to a local
+ * <code>ProcessServer</code> over a loopback session and over a session
+ * which hands them off through files. Each frame is built once and
+ * sent many times, so only the transport is measured. The optional
+ * argument is the number of migrations per size.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LocalHandoff
+ */
+public class LocalHandoffBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        System.setProperty("migration.local.threshold", "0");
+        ProcessServer server = Benchmarks.startServer();
+        System.setProperty("migration.local.handoff", "false");
+        PeerConnection loopback = new PeerConnection("localhost", server.getLocalPort());
+        System.setProperty("migration.local.handoff", "true");
+        PeerConnection handoff = new PeerConnection("localhost", server.getLocalPort());
+        if (loopback.isHandoff() || !handoff.isHandoff()) {
+            throw new IOException("handoff detection failed");
+        }
+
+        System.out.printf("%-8s %-9s %14s %12s%n", "frame", "transport", "per mg(ms)", "MB/s");
+        for (int kilobytes = 16; kilobytes <= 64 * 1024; kilobytes *= 8) {
+            PreCopyBenchmark.BufferProcess process = new PreCopyBenchmark.BufferProcess(1);
+            process.buffer = new byte[kilobytes * 1024];
+            new Random(kilobytes).nextBytes(process.buffer);
+            bench(loopback, process, kilobytes, count, "loopback");
+            bench(handoff, process, kilobytes, count, "handoff");
+        }
+        loopback.close(null);
+        handoff.close(null);
+        server.stop();
+        System.exit(0);
+    }
+
+    private static void bench(PeerConnection peer, MigratableProcess process, int kilobytes,
+                              int count, String name) throws Exception {
+        MigrationFrame frame = peer.build(process);
+        for (int i = 0; i < Math.min(count, 5); i++) {
+            peer.migrate(frame);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (!peer.migrate(frame)) {
+                throw new IOException("migration failed");
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1000000.0 / count;
+        System.out.printf("%-8s %-9s %14.2f %12.1f%n", kilobytes + "KB", name, millis,
+                frame.getBytes().length / 1048576.0 / (millis / 1000));
+    }
+}
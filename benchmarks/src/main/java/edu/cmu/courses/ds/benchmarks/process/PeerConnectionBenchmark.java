@@ -0,0 +1,136 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodec;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationHandshake;
+import edu.cmu.courses.ds.process.PeerConnection;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark of migration sessions against one connection per migration
+ * The same trivial process is migrated to a local <code>ProcessServer</code>
+ * over a new connection each time, then over one
+ * <code>PeerConnection</code> one at a time, then over the same session
+ * from several threads at once. The average time and the average frame
+ * size are printed for every codec. The optional arguments are the
+ * number of migrations and the number of concurrent threads.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ */
+public class PeerConnectionBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        ProcessServer server = Benchmarks.startServer();
+        int port = server.getLocalPort();
+        MigratableProcess process = new ProcessServerBenchmark.NoopProcess(new String[]{"input.txt", "output.txt"});
+
+        System.out.printf("%-8s %-14s %12s %12s%n", "codec", "mode", "time(us)", "frame(B)");
+        for (MigrationCodec codec : MigrationCodecs.getAll()) {
+            System.setProperty("migration.codec", codec.getName());
+            long bytes = 0;
+            perConnection(port, process, count / 10);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                bytes += perConnection(port, process, 1);
+            }
+            print(codec, "connection", start, count, bytes);
+
+            PeerConnection peer = new PeerConnection("localhost", port);
+            session(peer, process, count / 10);
+            start = System.nanoTime();
+            bytes = session(peer, process, count);
+            print(codec, "session", start, count, bytes);
+
+            start = System.nanoTime();
+            bytes = concurrent(peer, process, count, threads);
+            print(codec, "session x" + threads, start, count, bytes);
+            peer.close(null);
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static long perConnection(int port, MigratableProcess process, int count) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Set<Compression> accepted = MigrationHandshake.offer(in, out);
+                MigrationFrame frame = MigrationFrame.build(MigrationCodecs.getDefault(), process, accepted);
+                out.write(frame.getBytes());
+                out.flush();
+                if (!in.readBoolean()) {
+                    throw new IOException("migration failed");
+                }
+                bytes += frame.getBytes().length;
+            } finally {
+                socket.close();
+            }
+        }
+        return bytes;
+    }
+
+    private static long session(PeerConnection peer, MigratableProcess process, int count) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            MigrationFrame frame = peer.build(process);
+            if (!peer.migrate(frame)) {
+                throw new IOException("migration failed");
+            }
+            bytes += frame.getBytes().length;
+        }
+        return bytes;
+    }
+
+    private static long concurrent(final PeerConnection peer, final MigratableProcess process,
+                                   int count, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < threads; i++) {
+            final int share = count / threads + (i < count % threads ? 1 : 0);
+            futures.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return session(peer, process, share);
+                }
+            }));
+        }
+        long bytes = 0;
+        for (Future<Long> future : futures) {
+            bytes += future.get();
+        }
+        executor.shutdown();
+        return bytes;
+    }
+
+    private static void print(MigrationCodec codec, String mode, long start, int count, long bytes) {
+        System.out.printf("%-8s %-14s %12.1f %12d%n", codec.getName(), mode,
+                (System.nanoTime() - start) / 1000.0 / count, bytes / count);
+    }
+}
@@ -0,0 +1,124 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.LazyState;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.PeerConnection;
+import edu.cmu.courses.ds.process.PostCopy;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downtime benchmark of post-copy migration
+ * A process holding a large buffer in a <code>LazyState</code> is
+ * migrated to a local <code>ProcessServer</code> with a plain
+ * stop-and-copy and with post-copy, for growing buffer sizes. The
+ * downtime is the time from the suspend to the acknowledgement, when
+ * the process runs on the host; the complete time is when the migrated
+ * copy has its whole buffer. The optional argument is the largest
+ * buffer size in MB.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath, with a heap of a few times the largest
+ * buffer.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PostCopy
+ */
+public class PostCopyBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        // The largest buffer exceeds the default frame limit
+        System.setProperty("server.frame.max", String.valueOf((maxMegabytes + 16) * 1024 * 1024));
+        ProcessServer server = Benchmarks.startServer();
+        PeerConnection peer = new PeerConnection("localhost", server.getLocalPort());
+
+        System.out.printf("%-6s %-10s %12s %12s %12s%n",
+                "state", "mode", "downtime(ms)", "complete(ms)", "core(B)");
+        for (int megabytes = 8; megabytes <= maxMegabytes; megabytes *= 4) {
+            bench(peer, server.getLocalPort(), megabytes, false);
+            bench(peer, server.getLocalPort(), megabytes, true);
+        }
+        peer.close(null);
+        server.stop();
+        System.exit(0);
+    }
+
+    private static void bench(PeerConnection peer, int port, int megabytes, boolean postcopy)
+            throws Exception {
+        LazyBufferProcess process = new LazyBufferProcess(megabytes);
+        LazyBufferProcess.loaded = new CountDownLatch(1);
+        Thread thread = new Thread(process);
+        thread.start();
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        process.suspend();
+        thread.join();
+        MigrationFrame frame;
+        if (postcopy) {
+            PostCopy.beginExport(peer.getLocalAddress(), port);
+        }
+        try {
+            frame = peer.build(process);
+        } finally {
+            PostCopy.endExport();
+        }
+        if (!peer.migrate(frame)) {
+            throw new IOException("migration failed");
+        }
+        long resumed = System.nanoTime();
+        if (!LazyBufferProcess.loaded.await(60, TimeUnit.SECONDS)) {
+            throw new IOException("state never arrived");
+        }
+        System.out.printf("%-6s %-10s %12.1f %12.1f %12d%n",
+                megabytes + "MB", postcopy ? "post-copy" : "stop-copy",
+                (resumed - start) / 1000000.0, (LazyBufferProcess.loadedTime - start) / 1000000.0,
+                frame.getBytes().length);
+        System.gc();
+    }
+
+    /**
+     * A process whose large buffer is a <code>LazyState</code>. The
+     * migrated copy reads the buffer once, records when it had it, and
+     * stops.
+     */
+    public static class LazyBufferProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        static volatile CountDownLatch loaded;
+        static volatile long loadedTime;
+
+        private LazyState<byte[]> buffer;
+        private boolean moved;
+
+        public LazyBufferProcess(int megabytes) {
+            super();
+            byte[] bytes = new byte[megabytes * 1024 * 1024];
+            new Random(15440).nextBytes(bytes);
+            buffer = new LazyState<byte[]>(bytes);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            if (moved) {
+                buffer.get();
+                loadedTime = System.nanoTime();
+                loaded.countDown();
+                return;
+            }
+            moved = true;
+            while (!suspending) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
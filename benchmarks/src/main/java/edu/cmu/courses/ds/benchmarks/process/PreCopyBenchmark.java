@@ -0,0 +1,148 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.PeerConnection;
+import edu.cmu.courses.ds.process.PreCopyHook;
+import edu.cmu.courses.ds.process.PreCopyMigration;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Downtime benchmark of pre-copy migration
+ * A process holding a large buffer, which keeps rewriting a few KB of
+ * it every millisecond, is migrated to a local <code>ProcessServer</code>
+ * with a plain stop-and-copy and with pre-copy, for growing buffer
+ * sizes. The downtime is the time from the suspend to the
+ * acknowledgement. An idle process implementing
+ * <code>PreCopyHook</code> is measured as well. The optional argument
+ * is the largest buffer size in MB.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath, with a heap of a few times the largest
+ * buffer.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PreCopyMigration
+ */
+public class PreCopyBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        // The largest buffer exceeds the default frame limit
+        System.setProperty("server.frame.max", String.valueOf((maxMegabytes + 16) * 1024 * 1024));
+        ProcessServer server = Benchmarks.startServer();
+        PeerConnection peer = new PeerConnection("localhost", server.getLocalPort());
+
+        System.out.printf("%-6s %-6s %-12s %12s %8s %14s %12s%n",
+                "state", "hook", "mode", "downtime(ms)", "rounds", "precopied(B)", "final(B)");
+        for (int megabytes = 8; megabytes <= maxMegabytes; megabytes *= 4) {
+            for (boolean idle : new boolean[]{false, true}) {
+                bench(peer, megabytes, idle, false);
+                bench(peer, megabytes, idle, true);
+            }
+        }
+        peer.close(null);
+        server.stop();
+        System.exit(0);
+    }
+
+    private static void bench(PeerConnection peer, int megabytes, boolean idle, boolean precopy)
+            throws Exception {
+        BufferProcess process = idle ? new IdleBufferProcess(megabytes) : new BufferProcess(megabytes);
+        Thread thread = new Thread(process);
+        thread.start();
+        Thread.sleep(50);
+        PreCopyMigration migration = null;
+        if (precopy) {
+            migration = new PreCopyMigration(peer, process);
+            migration.precopy();
+        }
+        long start = System.nanoTime();
+        process.suspend();
+        thread.join();
+        boolean started;
+        long finalBytes;
+        if (precopy) {
+            started = migration.commit().isStarted();
+            finalBytes = migration.getFinalBytes();
+        } else {
+            MigrationFrame frame = peer.build(process);
+            finalBytes = frame.getBytes().length;
+            started = peer.migrate(frame);
+        }
+        long end = System.nanoTime();
+        if (!started) {
+            throw new IOException("migration failed");
+        }
+        System.out.printf("%-6s %-6s %-12s %12.1f %8d %14d %12d%n",
+                megabytes + "MB", idle ? "yes" : "no", precopy ? "pre-copy" : "stop-copy",
+                (end - start) / 1000000.0, precopy ? migration.getRounds() : 0,
+                precopy ? migration.getPrecopiedBytes() : 0, finalBytes);
+        System.gc();
+    }
+
+    /**
+     * A process which keeps rewriting parts of a large buffer. The
+     * migrated copy stops at once, since its deadline is transient.
+     */
+    public static class BufferProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        protected byte[] buffer;
+        protected long writes;
+        protected transient long deadline;
+
+        public BufferProcess(int megabytes) {
+            super();
+            buffer = new byte[megabytes * 1024 * 1024];
+            new Random(15440).nextBytes(buffer);
+            deadline = System.currentTimeMillis() + 60000;
+        }
+
+        @Override
+        public void processing() throws IOException {
+            Random random = new Random();
+            byte[] update = new byte[4096];
+            while (!suspending && System.currentTimeMillis() < deadline) {
+                random.nextBytes(update);
+                System.arraycopy(update, 0, buffer, random.nextInt(buffer.length - update.length), update.length);
+                writes++;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A process which holds a large buffer but doesn't change it, and
+     * says so through <code>PreCopyHook</code>
+     */
+    public static class IdleBufferProcess extends BufferProcess implements PreCopyHook {
+        private static final long serialVersionUID = 1L;
+
+        public IdleBufferProcess(int megabytes) {
+            super(megabytes);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            while (!suspending && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public boolean takeDirty() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationHandshake;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Concurrent migration benchmark of <code>ProcessServer</code>
+ * Many clients migrate a trivial process to one server at the same
+ * time, each over its own connection, and measure the time to connect
+ * and the time to finish the handshake. Latency percentiles of the
+ * clients are printed together with the server side handshake
+ * statistics. The optional arguments are the number of clients and
+ * the number of migrations of each client.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessServer
+ */
+public class ProcessServerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final ProcessServer server = Benchmarks.startServer();
+
+        final NoopProcess process = new NoopProcess();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<long[][]>> futures = new ArrayList<Future<long[][]>>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(new Callable<long[][]>() {
+                public long[][] call() throws Exception {
+                    start.await();
+                    long[][] samples = new long[rounds][];
+                    for (int j = 0; j < rounds; j++) {
+                        samples[j] = migrate(server.getLocalPort(), process);
+                    }
+                    return samples;
+                }
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        List<Long> connects = new ArrayList<Long>();
+        List<Long> handshakes = new ArrayList<Long>();
+        List<Long> totals = new ArrayList<Long>();
+        for (Future<long[][]> future : futures) {
+            for (long[] sample : future.get()) {
+                connects.add(sample[0]);
+                handshakes.add(sample[1]);
+                totals.add(sample[2]);
+            }
+        }
+        double seconds = (System.nanoTime() - begin) / 1000000000.0;
+        executor.shutdown();
+
+        System.out.printf("clients=%d migrations=%d time=%.2fs rate=%.0f/s%n",
+                clients, totals.size(), seconds, totals.size() / seconds);
+        Benchmarks.printLatencyHeader("client(ms)");
+        Benchmarks.printLatencies("connect", connects);
+        Benchmarks.printLatencies("handshake", handshakes);
+        Benchmarks.printLatencies("migration", totals);
+        System.out.printf("server: accepted=%d handshakes=%d avg=%.2fms max=%.2fms%n",
+                server.getAcceptedCount(), server.getHandshakeCount(),
+                server.getAverageHandshakeMillis(), server.getMaxHandshakeMillis());
+        server.stop();
+        System.exit(0);
+    }
+
+    /**
+     * Migrate the process once
+     *
+     * @return the nanoseconds to connect, to finish the handshake and
+     *         to receive the acknowledgement, from the start
+     */
+    private static long[] migrate(int port, MigratableProcess process) throws Exception {
+        long start = System.nanoTime();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            long connected = System.nanoTime();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Set<Compression> accepted = MigrationHandshake.offer(in, out);
+            long handshaken = System.nanoTime();
+            MigrationFrame frame = MigrationFrame.build(MigrationCodecs.getDefault(), process, accepted);
+            out.write(frame.getBytes());
+            out.flush();
+            if (!in.readBoolean()) {
+                throw new IOException("migration failed");
+            }
+            return new long[]{connected - start, handshaken - start, System.nanoTime() - start};
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A process which finishes as soon as it starts
+     */
+    public static class NoopProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        public NoopProcess() {
+            super();
+        }
+
+        public NoopProcess(String[] arguments) {
+            super(arguments);
+        }
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.process.Configuration;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark of warm-standby replication
+ * Two managers run in this JVM. A process with a large state, of which
+ * it changes a few bytes of a hot megabyte every millisecond, is
+ * replicated from the first to the second for a few seconds, then the
+ * first manager dies: its server and heartbeats stop and its process
+ * is killed. The replication lag and the bytes shipped before, and the failover time
+ * and the progress lost after are printed. The optional arguments are
+ * the state size in MB and the replication time in seconds.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessReplicator
+ * @see edu.cmu.courses.ds.process.ProcessStandby
+ */
+public class ReplicationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File directory = Benchmarks.createDirectory("replication");
+        System.setProperty("migration.local.handoff", "false");
+
+        ProcessManager source = new ProcessManager("localhost", 0, new File(directory, "ckpt0"));
+        ProcessManager target = new ProcessManager("localhost", 0, new File(directory, "ckpt1"));
+        source.startServer();
+        target.startServer();
+
+        StateProcess process = new StateProcess(megabytes * 1024 * 1024);
+        source.startProcess(process);
+        source.getReplicator().replicate(process, "localhost", target.getServerPort());
+        Thread.sleep(seconds * 1000L);
+        source.getReplicator().printStatus();
+        long state = megabytes * 1024L * 1024;
+        long shipped = source.getReplicator().getShipped();
+        System.out.printf("state=%dMB shipped=%.1fMB in %ds (%.1f%% of full snapshots)%n", megabytes,
+                shipped / 1048576.0, seconds, 100.0 * shipped / (state * seconds * 1000 /
+                        Configuration.getLong("replication.interval", 200)));
+
+        long killed = System.currentTimeMillis();
+        source.shutdown();
+        process.suspend();
+        long steps = process.steps;
+        while (target.getProcesses().isEmpty()) {
+            Thread.sleep(1);
+        }
+        long restarted = System.currentTimeMillis() - killed;
+        StateProcess replica = (StateProcess) target.getProcesses().iterator().next();
+        System.out.printf("failover: running again %dms after the kill, restore=%dms, lost %d of %d steps%n",
+                restarted, target.getStandby().getFailoverTime(), steps - replica.steps, steps);
+        target.getStandby().printStatus();
+        System.exit(0);
+    }
+
+    /**
+     * A process which changes a few bytes of the first megabyte of a
+     * large state every millisecond
+     */
+    public static class StateProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        protected byte[] state;
+        protected volatile long steps;
+
+        public StateProcess(int size) {
+            super();
+            state = new byte[size];
+            new Random(size).nextBytes(state);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            Random random = new Random(steps);
+            while (!suspending) {
+                state[random.nextInt(Math.min(state.length, 1024 * 1024))]++;
+                steps++;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.process.ProcessManager;
+import edu.cmu.courses.ds.process.SortProcess;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of the result cache
+ * A <code>SortProcess</code> is run by name three times on one manager
+ * with the result cache enabled: once to fill the cache, once more on
+ * the same input into another output, which should be materialized
+ * from the cache, and once after the input changed, which should run
+ * again. The time of each run is printed, and the outputs of the first
+ * two runs are compared. The optional argument is the number of lines.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ResultCache
+ */
+public class ResultCacheBenchmark {
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        File directory = Benchmarks.createDirectory("results");
+        System.setProperty("results.cache", "true");
+
+        File input = new File(directory, "input");
+        Benchmarks.writeLines(input, lines * Benchmarks.LINE_SIZE, new Random(lines));
+        ProcessManager manager = new ProcessManager("localhost", 0, new File(directory, "ckpt"),
+                new File(directory, "cache"));
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        File third = new File(directory, "third");
+        double miss = run(manager, input, first);
+        double hit = run(manager, input, second);
+        Benchmarks.writeLines(input, lines * Benchmarks.LINE_SIZE, new Random(-lines));
+        double changed = run(manager, input, third);
+
+        boolean same = Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+        System.out.printf("lines=%d miss=%.1fms hit=%.1fms changed input=%.1fms, outputs %s%n",
+                lines, miss, hit, changed, same ? "match" : "DIFFER");
+        System.out.println(manager.getResultCache());
+        System.exit(same && manager.getResultCache().getHits() == 1 ? 0 : 1);
+    }
+
+    private static double run(ProcessManager manager, File input, File output) throws Exception {
+        long start = System.nanoTime();
+        manager.startProcess("SortProcess", new String[]{input.getPath(), output.getPath()});
+        while (!manager.getProcesses().isEmpty()) {
+            Thread.sleep(1);
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,159 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.ProcessManager;
+import edu.cmu.courses.ds.process.SplittableProcess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of splitting a process across managers
+ * A process which sorts the characters of each line of a file, taking
+ * a millisecond per line, runs once alone on one manager, then once on
+ * a manager with idle peers in this JVM, which steal parts of it
+ * through their balancers. The time of both runs is printed, and the
+ * merged output is checked against the output of the single run. The
+ * optional arguments are the number of lines and of idle peers.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessSplitter
+ */
+public class SplitBenchmark {
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int idle = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File directory = Benchmarks.createDirectory("split");
+        System.setProperty("migration.local.handoff", "false");
+        System.setProperty("split.min", "16384");
+        System.setProperty("balancer.interval", "100");
+        System.setProperty("balancer.steal", "true");
+
+        File input = Benchmarks.writeLines(new File(directory, "input"), lines * Benchmarks.LINE_SIZE, new Random(lines));
+
+        ProcessManager busy = new ProcessManager("localhost", 0, new File(directory, "ckpt0"));
+        busy.startServer();
+        File single = new File(directory, "single");
+        long start = System.nanoTime();
+        LineProcess process = new LineProcess(input, single);
+        busy.startProcess(process);
+        while (!process.isFinished()) {
+            Thread.sleep(5);
+        }
+        double alone = (System.nanoTime() - start) / 1e6;
+
+        ProcessManager[] peers = new ProcessManager[idle];
+        for (int i = 0; i < idle; i++) {
+            peers[i] = new ProcessManager("localhost", 0, new File(directory, "ckpt" + (i + 1)));
+            peers[i].startServer();
+        }
+        for (ProcessManager peer : peers) {
+            peer.getBalancer().addPeer("localhost:" + busy.getServerPort());
+            for (ProcessManager other : peers) {
+                if (other != peer) {
+                    peer.getBalancer().addPeer("localhost:" + other.getServerPort());
+                }
+            }
+            peer.getBalancer().start();
+        }
+        File split = new File(directory, "split");
+        start = System.nanoTime();
+        busy.startProcess(new LineProcess(input, split));
+        while (!busy.getProcesses().isEmpty() || running(peers) || !Arrays.equals(
+                Files.readAllBytes(single.toPath()), Files.readAllBytes(split.toPath()))) {
+            if (System.nanoTime() - start > 10 * alone * 1e6) {
+                System.out.println("merged output doesn't match the single run");
+                busy.getSplitter().printStatus();
+                System.exit(1);
+            }
+            Thread.sleep(5);
+        }
+        double parallel = (System.nanoTime() - start) / 1e6;
+        System.out.printf("lines=%d alone=%.0fms with %d idle peers=%.0fms speedup=%.2f, output matches%n",
+                lines, alone, idle, parallel, alone / parallel);
+        busy.getSplitter().printStatus();
+        for (ProcessManager peer : peers) {
+            peer.getBalancer().printStatus();
+        }
+        System.exit(0);
+    }
+
+    private static boolean running(ProcessManager[] managers) {
+        for (ProcessManager manager : managers) {
+            if (!manager.getProcesses().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A process which sorts the characters of each line, a millisecond
+     * per line
+     */
+    public static class LineProcess extends MigratableProcess implements SplittableProcess {
+        private static final long serialVersionUID = 1L;
+
+        protected TransactionalFileInputStream input;
+        protected TransactionalFileOutputStream output;
+
+        public LineProcess(File in, File out) {
+            this(new TransactionalFileInputStream(in), out);
+        }
+
+        private LineProcess(TransactionalFileInputStream in, File out) {
+            super();
+            input = in;
+            output = new TransactionalFileOutputStream(out);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            PrintStream writer = new PrintStream(output);
+            while (!suspending) {
+                String line = Benchmarks.readLine(input);
+                if (line == null) {
+                    break;
+                }
+                char[] chars = line.toCharArray();
+                Arrays.sort(chars);
+                writer.println(new String(chars));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public long getRemaining() {
+            return input.getRemaining();
+        }
+
+        public TransactionalFileOutputStream getOutput() {
+            return output;
+        }
+
+        public MigratableProcess split(File out) throws IOException {
+            long offset = input.getOffset();
+            long end = offset + input.getRemaining();
+            long point = input.findLineStart(offset + (end - offset) / 2);
+            if (point <= offset || point >= end) {
+                return null;
+            }
+            LineProcess half = new LineProcess(new TransactionalFileInputStream(input.getSourceFile(), point, end), out);
+            input.setLimit(point);
+            return half;
+        }
+    }
+}
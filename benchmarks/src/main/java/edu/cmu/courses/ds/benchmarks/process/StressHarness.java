@@ -0,0 +1,303 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+import edu.cmu.courses.ds.process.MigrationBatch;
+import edu.cmu.courses.ds.process.ProcessManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress and soak harness of process churn and migration storms
+ * Several managers run in this JVM. Short and long processes which
+ * reverse the lines of a file are started by name on random managers,
+ * while migrator threads move random processes between random
+ * managers. A share of the migrations goes to a manager which refuses
+ * every process, as a drained manager does, so the sender restarts the
+ * process with <code>restartProcess()</code>. When every process
+ * finished, each output file is compared byte for byte with the
+ * expected one, the lines each process wrote show whether a
+ * migration left a second copy running, and the process and migration
+ * rates, latency percentiles, and the threads and file descriptors left
+ * after the managers shut down are printed. The same seed gives the same
+ * workload. The optional arguments are the number of processes, of
+ * managers, of migrator threads, the share of failed migrations and
+ * the seed.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager
+ * @see edu.cmu.courses.ds.process.MigrationBatch
+ */
+public class StressHarness {
+    private static final int SHORT_LINES = 20;
+    private static final int LONG_LINES = 200;
+
+    /**
+     * When each process finished, by token
+     */
+    static final Map<String, Long> finishTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Lines written by each process, by token, over all its copies. A
+     * copy left running by a migration writes lines twice.
+     */
+    static final Map<String, AtomicInteger> written = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int managerCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int migrators = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final double failures = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 440;
+        File directory = Benchmarks.createDirectory("stress");
+        System.setProperty("migration.local.handoff", "false");
+        Benchmarks.scanProcesses();
+        PrintStream console = System.out;
+
+        // NIO opens a socket of its own the first time a channel closes
+        SocketChannel.open().close();
+        Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+        Set<String> descriptorsBefore = openDescriptors();
+
+        Random random = new Random(seed);
+        File shortInput = Benchmarks.writeLines(new File(directory, "short"), SHORT_LINES * Benchmarks.LINE_SIZE, random);
+        File longInput = Benchmarks.writeLines(new File(directory, "long"), LONG_LINES * Benchmarks.LINE_SIZE, random);
+        byte[] shortExpected = expected(shortInput);
+        byte[] longExpected = expected(longInput);
+
+        final ProcessManager[] managers = new ProcessManager[managerCount];
+        for (int i = 0; i < managerCount; i++) {
+            managers[i] = new ProcessManager("localhost", 0, new File(directory, "ckpt" + i));
+            managers[i].startServer();
+        }
+        final ProcessManager refusing = new ProcessManager("localhost", 0, new File(directory, "ckpt-refusing"));
+        refusing.startServer();
+        refusing.setDraining(true);
+
+        final List<Long> migrationLatencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger migrated = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final boolean[] done = new boolean[1];
+        System.setOut(Benchmarks.NULL);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < migrators; t++) {
+            final Random local = new Random(seed + t + 1);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    while (!done[0]) {
+                        try {
+                            Thread.sleep(local.nextInt(5));
+                            ProcessManager from = managers[local.nextInt(managers.length)];
+                            List<MigratableProcess> running = new ArrayList<MigratableProcess>(from.getProcesses());
+                            if (running.isEmpty()) {
+                                continue;
+                            }
+                            MigratableProcess process = running.get(local.nextInt(running.size()));
+                            boolean refuse = local.nextDouble() < failures;
+                            ProcessManager to = refuse ? refusing : managers[local.nextInt(managers.length)];
+                            if (to == from) {
+                                continue;
+                            }
+                            long start = System.nanoTime();
+                            MigrationBatch batch = from.migrate(Collections.singletonList(process), "localhost",
+                                    to.getServerPort(), 1, false, false);
+                            if (!batch.getDowntimes().isEmpty()) {
+                                migrationLatencies.add(System.nanoTime() - start);
+                                migrated.incrementAndGet();
+                            } else if (refuse) {
+                                refused.incrementAndGet();
+                            } else {
+                                skipped.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }, "stress-migrator-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+
+        Map<String, Long> submitted = new ConcurrentHashMap<String, Long>();
+        Map<String, File> outputs = new TreeMap<String, File>();
+        Set<String> longOnes = new HashSet<String>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            boolean isLong = random.nextInt(5) == 0;
+            String token = "p" + i;
+            File output = new File(directory, token + ".out");
+            outputs.put(token, output);
+            if (isLong) {
+                longOnes.add(token);
+            }
+            ProcessManager manager = managers[random.nextInt(managers.length)];
+            written.put(token, new AtomicInteger());
+            submitted.put(token, System.nanoTime());
+            manager.startProcess("ChurnProcess", new String[]{token, (isLong ? longInput : shortInput).getPath(),
+                    output.getPath(), isLong ? "2" : "0"});
+            Thread.sleep(random.nextInt(3));
+        }
+        while (finishTimes.size() < count) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        done[0] = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.setOut(console);
+
+        int bad = 0;
+        int duplicated = 0;
+        for (Map.Entry<String, File> entry : outputs.entrySet()) {
+            boolean isLong = longOnes.contains(entry.getKey());
+            byte[] expected = isLong ? longExpected : shortExpected;
+            if (!Arrays.equals(expected, Files.readAllBytes(entry.getValue().toPath()))) {
+                bad++;
+                System.out.println("Output of " + entry.getKey() + " differs");
+            }
+            if (written.get(entry.getKey()).get() > (isLong ? LONG_LINES : SHORT_LINES)) {
+                duplicated++;
+                System.out.println("Process " + entry.getKey() + " ran twice");
+            }
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        for (Map.Entry<String, Long> entry : submitted.entrySet()) {
+            latencies.add(finishTimes.get(entry.getKey()) - entry.getValue());
+        }
+
+        for (ProcessManager manager : managers) {
+            manager.shutdown();
+        }
+        refusing.shutdown();
+        System.gc();
+        Thread.sleep(1000);
+        Set<String> descriptorsAfter = openDescriptors();
+        descriptorsAfter.removeAll(descriptorsBefore);
+        Map<String, Integer> leaked = new TreeMap<String, Integer>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!threadsBefore.contains(thread) && thread.isAlive()) {
+                String name = thread.getName().replaceAll("[-#]?\\d+$", "");
+                leaked.put(name, leaked.containsKey(name) ? leaked.get(name) + 1 : 1);
+            }
+        }
+
+        System.out.printf("processes=%d (%d long) managers=%d migrators=%d seed=%d in %.2fs: %.0f processes/s%n",
+                count, longOnes.size(), managerCount, migrators, seed, seconds, count / seconds);
+        System.out.printf("migrations=%d (%.0f/s) refused and restarted=%d not moved=%d%n",
+                migrated.get(), migrated.get() / seconds, refused.get(), skipped.get());
+        Benchmarks.printLatencyHeader("latency(ms)");
+        Benchmarks.printLatencies("process", latencies);
+        Benchmarks.printLatencies("migration", migrationLatencies);
+        System.out.println("outputs: " + (count - bad) + "/" + count + " byte-exact, " +
+                duplicated + " processes ran twice");
+        System.out.println("file descriptors left after shutdown: " +
+                (descriptorsAfter.isEmpty() ? "none" : descriptorsAfter));
+        System.out.println("threads left after shutdown: " + (leaked.isEmpty() ? "none" : leaked));
+        System.exit(bad == 0 && duplicated == 0 ? 0 : 1);
+    }
+
+    /**
+     * The output of a churn process of an input
+     */
+    private static byte[] expected(File input) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : Files.readAllLines(input.toPath())) {
+            sb.append(new StringBuilder(line).reverse()).append(System.lineSeparator());
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * The targets of the open file descriptors of this JVM, read from
+     * <code>/proc/self/fd</code>, leaving out the jars which the class
+     * loader opens and keeps open
+     */
+    private static Set<String> openDescriptors() {
+        Set<String> targets = new TreeSet<String>();
+        File[] descriptors = new File("/proc/self/fd").listFiles();
+        if (descriptors == null) {
+            return targets;
+        }
+        for (File descriptor : descriptors) {
+            try {
+                String target = Files.readSymbolicLink(descriptor.toPath()).toString();
+                if (!target.endsWith(".jar")) {
+                    targets.add(descriptor.getName() + "->" + target);
+                }
+            } catch (IOException e) {
+                // closed while listing
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * A process which writes every line of its input reversed, sleeping
+     * after each line, and closes its streams when it finishes. The
+     * arguments are its token, the input, the output and the sleep in
+     * milliseconds.
+     */
+    public static class ChurnProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        protected String token;
+        protected TransactionalFileInputStream input;
+        protected TransactionalFileOutputStream output;
+        protected int sleep;
+
+        public ChurnProcess(String[] args) {
+            super(args);
+            token = args[0];
+            input = new TransactionalFileInputStream(new File(args[1]));
+            output = new TransactionalFileOutputStream(new File(args[2]));
+            sleep = Integer.parseInt(args[3]);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            PrintStream writer = new PrintStream(output);
+            while (!suspending) {
+                String line = Benchmarks.readLine(input);
+                if (line == null) {
+                    input.close();
+                    output.close();
+                    finishTimes.putIfAbsent(token, System.nanoTime());
+                    return;
+                }
+                writer.println(new StringBuilder(line).reverse());
+                written.get(token).incrementAndGet();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package edu.cmu.courses.ds.benchmarks.process;
+
+import edu.cmu.courses.ds.benchmarks.Benchmarks;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.process.MigrationThrottle;
+import edu.cmu.courses.ds.process.PeerConnection;
+import edu.cmu.courses.ds.process.ProcessServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of migration bandwidth throttling
+ * Two threads migrate large frames to a local <code>ProcessServer</code>
+ * in a loop under a global limit, while small frames are migrated
+ * once in a while, first in the normal lane behind the bulk traffic
+ * and then in the urgent lane. The rate of the large frames and the
+ * latency of the small ones are printed. The optional arguments are
+ * the limit in MB/s and the large frame size in KB.
+ * Run its <code>main()</code> with the jar of the <code>benchmarks</code>
+ * module on the classpath.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationThrottle
+ */
+public class ThrottleBenchmark {
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        System.setProperty("migration.local.handoff", "false");
+        ProcessServer server = Benchmarks.startServer();
+        final PeerConnection peer = new PeerConnection("localhost", server.getLocalPort());
+        peer.getThrottle().setGlobalRate(megabytes * 1024L * 1024);
+
+        PreCopyBenchmark.BufferProcess large = new PreCopyBenchmark.BufferProcess(1);
+        large.buffer = new byte[kilobytes * 1024];
+        new Random(kilobytes).nextBytes(large.buffer);
+        final MigrationFrame bulk = peer.build(large);
+        PreCopyBenchmark.BufferProcess small = new PreCopyBenchmark.BufferProcess(1);
+        small.buffer = new byte[4096];
+        final MigrationFrame frame = peer.build(small);
+
+        final long[] sent = new long[1];
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (running) {
+                            peer.migrate(Collections.singletonList(bulk), MigrationThrottle.Lane.NORMAL);
+                            synchronized (sent) {
+                                sent[0] += bulk.getBytes().length;
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "bulk-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+
+        Thread.sleep(1000);
+        long start = System.nanoTime();
+        long before;
+        synchronized (sent) {
+            before = sent[0];
+        }
+        List<Double> normal = latencies(peer, frame, MigrationThrottle.Lane.NORMAL, 10);
+        List<Double> urgent = latencies(peer, frame, MigrationThrottle.Lane.URGENT, 10);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long after;
+        synchronized (sent) {
+            after = sent[0];
+        }
+        running = false;
+        peer.getThrottle().setGlobalRate(0);
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        System.out.printf("limit=%dMB/s large=%dKB small=%dB%n", megabytes, kilobytes, frame.getBytes().length);
+        System.out.printf("large frames: %.1fMB/s%n", (after - before) / 1048576.0 / seconds);
+        System.out.printf("small frames, normal lane: p50=%.1fms max=%.1fms%n",
+                Benchmarks.percentile(normal, 50), Benchmarks.percentile(normal, 100));
+        System.out.printf("small frames, urgent lane: p50=%.1fms max=%.1fms%n",
+                Benchmarks.percentile(urgent, 50), Benchmarks.percentile(urgent, 100));
+        peer.getThrottle().printStatus();
+        peer.close(null);
+        server.stop();
+        System.exit(0);
+    }
+
+    private static List<Double> latencies(PeerConnection peer, MigrationFrame frame,
+                                          MigrationThrottle.Lane lane, int count) throws Exception {
+        List<Double> result = new ArrayList<Double>();
+        for (int i = 0; i < count; i++) {
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            peer.migrate(Collections.singletonList(frame), lane);
+            result.add((System.nanoTime() - start) / 1000000.0);
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
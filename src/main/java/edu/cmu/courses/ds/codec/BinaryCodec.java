@@ -0,0 +1,685 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.io.FileManifest;
+import edu.cmu.courses.ds.io.FileShipment;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Externalizable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The compact binary codec
+ *
+ * The schema of a process class is the list of its serializable
+ * fields, from <code>MigratableProcess</code> down to the class itself.
+ * Both sides derive the schema by reflection, so only the class name
+ * and a CRC32 fingerprint of the schema are sent, never field names or
+ * class descriptors. Field values follow in schema order: primitives
+ * as raw or variable length numbers, and strings, string lists, files,
+ * primitive arrays and transactional streams in compact tagged forms.
+ * An input stream whose file is shipped carries the
+ * <code>FileManifest</code> of the file, and reads the local copy on
+ * the other side. Input streams limited to a range of their file, the
+ * halves of split processes, go with the fallback values.
+ *
+ * Values of any other type are collected and sent together as one Java
+ * serialized <code>Object[]</code> after the known fields, so every
+ * serializable process still migrates, and aliasing between those
+ * values is kept. A process whose classes have their own serialization
+ * methods, or whose known values are shared with each other or with
+ * the fallback values, is serialized whole by
+ * <code>JavaSerializationCodec</code> instead, so its methods run and
+ * its shared objects stay shared. A mode byte after the class tells
+ * which form follows.
+ *
+ * Instances are created like Java serialization creates them, without
+ * running any process constructor: each schema keeps a serialized
+ * stream of the class with no field values, and reads it back.
+ *
+ * On a migration session the class name and fingerprint are replaced
+ * by the index of the class in the session's <code>ClassTable</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.JavaSerializationCodec
+ */
+public class BinaryCodec implements SessionCodec {
+    /**
+     * The codec ID
+     */
+    public static final byte ID = 1;
+
+    /**
+     * Value tags of object fields
+     */
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int FILE = 2;
+    private static final int INPUT_STREAM = 3;
+    private static final int OUTPUT_STREAM = 4;
+    private static final int STRING_LIST = 5;
+    private static final int BYTES = 6;
+    private static final int CHARS = 7;
+    private static final int INTS = 8;
+    private static final int LONGS = 9;
+    private static final int FALLBACK = 10;
+    private static final int SHIPPED_INPUT_STREAM = 11;
+
+    /**
+     * Modes of the process after its class
+     */
+    private static final int FIELDS = 0;
+    private static final int SERIALIZED = 1;
+
+    /**
+     * The codec of serialized processes
+     */
+    private static final JavaSerializationCodec JAVA = new JavaSerializationCodec();
+
+    /**
+     * The charset of strings
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Schemas of known process classes
+     */
+    private final ConcurrentHashMap<Class<?>, Schema> schemas =
+            new ConcurrentHashMap<Class<?>, Schema>();
+
+    public byte getId() {
+        return ID;
+    }
+
+    public String getName() {
+        return "binary";
+    }
+
+    public void encode(MigratableProcess process, OutputStream out) throws IOException {
+        encode(process, out, null);
+    }
+
+    public void encode(MigratableProcess process, OutputStream out, ClassTable classes) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        Schema schema = getSchema(process.getClass());
+        if (classes == null) {
+            writeString(data, process.getClass().getName());
+            data.writeInt(schema.fingerprint);
+        } else {
+            writeVarLong(data, classes.indexOf(process.getClass().getName(), schema.fingerprint));
+        }
+        List<Object> fallback = new ArrayList<Object>();
+        byte[] serializedFallback = schema.serialized ? null : collect(schema, process, fallback);
+        if (serializedFallback == null) {
+            data.writeByte(SERIALIZED);
+            JAVA.encode(process, data, classes);
+            data.flush();
+            return;
+        }
+        data.writeByte(FIELDS);
+        fallback.clear();
+        try {
+            for (Field field : schema.fields) {
+                writeField(data, field, process, fallback);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("encode " + process.getClass().getName() + " error", e);
+        }
+        writeVarLong(data, fallback.size());
+        data.write(serializedFallback);
+        data.flush();
+    }
+
+    /**
+     * Collect the fallback values of a process and serialize them
+     *
+     * @return the serialized values, empty if there are none, or
+     * <code>null</code> if a known value is shared
+     */
+    private static byte[] collect(Schema schema, MigratableProcess process,
+                                  List<Object> fallback) throws IOException {
+        final Map<Object, Boolean> known = new IdentityHashMap<Object, Boolean>();
+        try {
+            for (Field field : schema.fields) {
+                if (field.getType().isPrimitive()) {
+                    continue;
+                }
+                Object value = field.get(process);
+                if (!isKnown(value)) {
+                    fallback.add(value);
+                } else if (value != null && !(value instanceof String) && value.getClass() != File.class &&
+                        known.put(value, Boolean.TRUE) != null) {
+                    return null;
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("encode " + process.getClass().getName() + " error", e);
+        }
+        if (fallback.isEmpty()) {
+            return new byte[0];
+        }
+        final boolean[] shared = new boolean[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes) {
+            {
+                enableReplaceObject(!known.isEmpty());
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) {
+                shared[0] |= known.containsKey(obj);
+                return obj;
+            }
+        };
+        oos.writeObject(fallback.toArray());
+        oos.flush();
+        return shared[0] ? null : bytes.toByteArray();
+    }
+
+    public MigratableProcess decode(InputStream in) throws IOException, ClassNotFoundException {
+        return decode(in, null);
+    }
+
+    public MigratableProcess decode(InputStream in, ClassTable classes) throws IOException, ClassNotFoundException {
+        DataInputStream data = new DataInputStream(in);
+        String name;
+        long fingerprint;
+        if (classes == null) {
+            name = readString(data);
+            fingerprint = data.readInt();
+        } else {
+            ClassTable.Entry entry = classes.get((int) readVarLong(data));
+            name = entry.name;
+            fingerprint = entry.fingerprint;
+        }
+        Class<?> clazz = Class.forName(name, false, classLoader());
+        if (!MigratableProcess.class.isAssignableFrom(clazz)) {
+            throw new IOException("unexpected class " + clazz.getName());
+        }
+        Schema schema = getSchema(clazz);
+        if (fingerprint != schema.fingerprint) {
+            throw new IOException("incompatible schema of " + clazz.getName());
+        }
+        int mode = data.readUnsignedByte();
+        if (mode == SERIALIZED) {
+            MigratableProcess process = JAVA.decode(data, classes);
+            if (process.getClass() != clazz) {
+                throw new IOException("unexpected class " + process.getClass().getName());
+            }
+            return process;
+        } else if (mode != FIELDS) {
+            throw new IOException("unknown mode " + mode + " of " + clazz.getName());
+        }
+        MigratableProcess process = schema.newInstance();
+        List<Field> fallbackFields = new ArrayList<Field>();
+        try {
+            for (Field field : schema.fields) {
+                readField(data, field, process, fallbackFields);
+            }
+            int count = (int) readVarLong(data);
+            if (count != fallbackFields.size()) {
+                throw new IOException("bad fallback count of " + clazz.getName());
+            }
+            if (count > 0) {
+                Object[] values = (Object[]) new ContextObjectInputStream(data).readObject();
+                for (int i = 0; i < count; i++) {
+                    fallbackFields.get(i).set(process, values[i]);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("decode " + clazz.getName() + " error", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("decode " + clazz.getName() + " error", e);
+        }
+        return process;
+    }
+
+    /**
+     * Get or build the schema of a class
+     */
+    private Schema getSchema(Class<?> clazz) throws IOException {
+        Schema schema = schemas.get(clazz);
+        if (schema == null) {
+            schema = new Schema(clazz);
+            schemas.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * Write a field of the process
+     */
+    private static void writeField(DataOutputStream out, Field field, Object object,
+                                   List<Object> fallback) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            writeVarLong(out, zigzag(field.getInt(object)));
+        } else if (type == long.class) {
+            writeVarLong(out, zigzag(field.getLong(object)));
+        } else if (type == boolean.class) {
+            out.writeBoolean(field.getBoolean(object));
+        } else if (type == byte.class) {
+            out.writeByte(field.getByte(object));
+        } else if (type == short.class) {
+            out.writeShort(field.getShort(object));
+        } else if (type == char.class) {
+            out.writeChar(field.getChar(object));
+        } else if (type == float.class) {
+            out.writeFloat(field.getFloat(object));
+        } else if (type == double.class) {
+            out.writeDouble(field.getDouble(object));
+        } else {
+            writeValue(out, field.get(object), fallback);
+        }
+    }
+
+    /**
+     * Read a field of the process
+     */
+    private static void readField(DataInputStream in, Field field, Object object,
+                                  List<Field> fallback) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            field.setInt(object, (int) unzigzag(readVarLong(in)));
+        } else if (type == long.class) {
+            field.setLong(object, unzigzag(readVarLong(in)));
+        } else if (type == boolean.class) {
+            field.setBoolean(object, in.readBoolean());
+        } else if (type == byte.class) {
+            field.setByte(object, in.readByte());
+        } else if (type == short.class) {
+            field.setShort(object, in.readShort());
+        } else if (type == char.class) {
+            field.setChar(object, in.readChar());
+        } else if (type == float.class) {
+            field.setFloat(object, in.readFloat());
+        } else if (type == double.class) {
+            field.setDouble(object, in.readDouble());
+        } else {
+            int tag = in.readUnsignedByte();
+            if (tag == FALLBACK) {
+                fallback.add(field);
+            } else {
+                field.set(object, readValue(in, tag));
+            }
+        }
+    }
+
+    /**
+     * Write an object value with its tag. Values of unknown types are
+     * appended to <code>fallback</code>.
+     */
+    private static void writeValue(DataOutputStream out, Object value,
+                                   List<Object> fallback) throws IOException {
+        if (!isKnown(value)) {
+            out.writeByte(FALLBACK);
+            fallback.add(value);
+        } else if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value.getClass() == File.class) {
+            out.writeByte(FILE);
+            writeString(out, ((File) value).getPath());
+        } else if (value.getClass() == TransactionalFileInputStream.class) {
+            TransactionalFileInputStream stream = (TransactionalFileInputStream) value;
+            FileManifest manifest = FileShipment.export(stream.getSourceFile());
+            out.writeByte(manifest == null ? INPUT_STREAM : SHIPPED_INPUT_STREAM);
+            writeString(out, stream.getSourceFile().getPath());
+            writeVarLong(out, stream.getOffset());
+            if (manifest != null) {
+                writeVarLong(out, manifest.getLength());
+                writeVarLong(out, manifest.getChunkSize());
+                writeVarLong(out, manifest.getHashes().length);
+                for (String hash : manifest.getHashes()) {
+                    writeString(out, hash);
+                }
+            }
+        } else if (value.getClass() == TransactionalFileOutputStream.class) {
+            TransactionalFileOutputStream stream = (TransactionalFileOutputStream) value;
+            out.writeByte(OUTPUT_STREAM);
+            writeString(out, stream.GetTargetFile().getPath());
+            writeVarLong(out, stream.getOffset());
+        } else if (isStringList(value)) {
+            List<?> list = (List<?>) value;
+            out.writeByte(STRING_LIST);
+            writeVarLong(out, list.size());
+            for (Object element : list) {
+                writeString(out, (String) element);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] array = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarLong(out, array.length);
+            out.write(array);
+        } else if (value instanceof char[]) {
+            out.writeByte(CHARS);
+            writeString(out, new String((char[]) value));
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(INTS);
+            writeVarLong(out, array.length);
+            for (int element : array) {
+                writeVarLong(out, zigzag(element));
+            }
+        } else {
+            long[] array = (long[]) value;
+            out.writeByte(LONGS);
+            writeVarLong(out, array.length);
+            for (long element : array) {
+                writeVarLong(out, zigzag(element));
+            }
+        }
+    }
+
+    /**
+     * Check if a value has a compact form
+     */
+    private static boolean isKnown(Object value) {
+        if (value == null || value instanceof String || value.getClass() == File.class) {
+            return true;
+        }
+        if (value.getClass() == TransactionalFileInputStream.class) {
+            return ((TransactionalFileInputStream) value).getLimit() < 0;
+        }
+        return value.getClass() == TransactionalFileOutputStream.class || isStringList(value) ||
+                value instanceof byte[] || value instanceof char[] ||
+                value instanceof int[] || value instanceof long[];
+    }
+
+    /**
+     * Read an object value of a known tag
+     */
+    private static Object readValue(DataInputStream in, int tag) throws IOException {
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case FILE:
+                return new File(readString(in));
+            case INPUT_STREAM:
+                return new TransactionalFileInputStream(new File(readString(in)), readVarLong(in));
+            case SHIPPED_INPUT_STREAM: {
+                String path = readString(in);
+                long offset = readVarLong(in);
+                long length = readVarLong(in);
+                int chunkSize = (int) readVarLong(in);
+                String[] hashes = new String[readLength(in)];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = readString(in);
+                }
+                FileManifest manifest = new FileManifest(path, length, chunkSize, hashes);
+                return new TransactionalFileInputStream(FileShipment.resolve(manifest), offset);
+            }
+            case OUTPUT_STREAM:
+                return new TransactionalFileOutputStream(new File(readString(in)), readVarLong(in));
+            case STRING_LIST: {
+                int size = readLength(in);
+                ArrayList<String> list = new ArrayList<String>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readString(in));
+                }
+                return list;
+            }
+            case BYTES: {
+                byte[] array = new byte[readLength(in)];
+                in.readFully(array);
+                return array;
+            }
+            case CHARS:
+                return readString(in).toCharArray();
+            case INTS: {
+                int[] array = new int[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (int) unzigzag(readVarLong(in));
+                }
+                return array;
+            }
+            case LONGS: {
+                long[] array = new long[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = unzigzag(readVarLong(in));
+                }
+                return array;
+            }
+            default:
+                throw new IOException("unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Check if a value is an <code>ArrayList</code> of non-null strings
+     */
+    private static boolean isStringList(Object value) {
+        if (value.getClass() != ArrayList.class) {
+            return false;
+        }
+        for (Object element : (List<?>) value) {
+            if (!(element instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a string as its UTF-8 length and bytes
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by <code>writeString()</code>
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Read a length and check that it is sane
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("bad length " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Write an unsigned variable length number, 7 bits per byte
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read an unsigned variable length number
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable length number");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The class loader which resolves process classes
+     */
+    static ClassLoader classLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : BinaryCodec.class.getClassLoader();
+    }
+
+    /**
+     * The schema of a process class
+     */
+    static class Schema {
+        /**
+         * Serializable fields, super class fields first
+         */
+        final List<Field> fields;
+
+        /**
+         * CRC32 of the field names and types
+         */
+        final int fingerprint;
+
+        /**
+         * Whether a class of the process has its own serialization
+         * methods, so the process is always serialized whole
+         */
+        final boolean serialized;
+
+        /**
+         * The serialized stream of an instance without field values,
+         * which creates instances without running any process
+         * constructor, like Java serialization does
+         */
+        final byte[] blank;
+
+        /**
+         * The process class
+         */
+        final Class<?> clazz;
+
+        Schema(Class<?> clazz) throws IOException {
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(c);
+            }
+            Collections.reverse(hierarchy);
+            List<Field> list = new ArrayList<Field>();
+            CRC32 crc = new CRC32();
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                    crc.update((c.getName() + "." + field.getName() + ":" +
+                            field.getType().getName() + ";").getBytes(UTF8));
+                }
+            }
+            this.fields = Collections.unmodifiableList(list);
+            this.fingerprint = (int) crc.getValue();
+            this.clazz = clazz;
+            boolean hooks = Externalizable.class.isAssignableFrom(clazz);
+            for (Class<?> c : hierarchy) {
+                hooks |= hasHooks(c);
+            }
+            this.serialized = hooks;
+            this.blank = hooks ? null : blank(clazz);
+        }
+
+        MigratableProcess newInstance() throws IOException {
+            try {
+                ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(blank));
+                return (MigratableProcess) in.readObject();
+            } catch (Exception e) {
+                throw new IOException("can't instantiate " + clazz.getName(), e);
+            }
+        }
+
+        /**
+         * Check if a class has its own serialization methods
+         */
+        private static boolean hasHooks(Class<?> c) {
+            try {
+                c.getDeclaredField("serialPersistentFields");
+                return true;
+            } catch (NoSuchFieldException e) {
+                // default fields
+            }
+            Class<?>[][] signatures = {{ObjectOutputStream.class}, {ObjectInputStream.class}, {}, {}, {}};
+            String[] names = {"writeObject", "readObject", "readObjectNoData", "writeReplace", "readResolve"};
+            for (int i = 0; i < names.length; i++) {
+                try {
+                    c.getDeclaredMethod(names[i], signatures[i]);
+                    return true;
+                } catch (NoSuchMethodException e) {
+                    // not declared
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Build the serialized stream of an instance of a class whose
+         * classes declare no fields
+         */
+        private static byte[] blank(Class<?> clazz) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ObjectStreamConstants.STREAM_MAGIC);
+            out.writeShort(ObjectStreamConstants.STREAM_VERSION);
+            out.writeByte(ObjectStreamConstants.TC_OBJECT);
+            for (Class<?> c = clazz; c != null && Serializable.class.isAssignableFrom(c); c = c.getSuperclass()) {
+                ObjectStreamClass desc = ObjectStreamClass.lookup(c);
+                out.writeByte(ObjectStreamConstants.TC_CLASSDESC);
+                out.writeUTF(c.getName());
+                out.writeLong(desc.getSerialVersionUID());
+                out.writeByte(ObjectStreamConstants.SC_SERIALIZABLE);
+                out.writeShort(0);
+                out.writeByte(ObjectStreamConstants.TC_ENDBLOCKDATA);
+            }
+            out.writeByte(ObjectStreamConstants.TC_NULL);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
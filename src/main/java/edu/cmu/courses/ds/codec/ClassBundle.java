@@ -0,0 +1,392 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * The bytecode of a job: a process class and the classes it needs
+ * The bundle of a process class holds every class of the same code
+ * location (the directory or jar of the class, or the
+ * <code>JobClassLoader</code> which defined it) reachable from the
+ * process class through the constant pools of the class files. Classes
+ * of the framework, the JDK and other libraries are not part of a job;
+ * the destination must have them.
+ *
+ * Each class is identified by the SHA-1 of its bytecode, and the
+ * bundle by the SHA-1 of its names and hashes, so the same job has the
+ * same ID on every node. Bundles are built once per class and only
+ * hold the bytecode on the node which built them.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.JobClassLoader
+ * @see edu.cmu.courses.ds.process.ClassCache
+ */
+public class ClassBundle {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Largest number of classes in a bundle
+     */
+    public static final int MAX_CLASSES = 4096;
+
+    /**
+     * Built bundles by process class, <code>NONE</code> for classes of
+     * the framework
+     */
+    private static final Map<Class<?>, ClassBundle> bundles =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, ClassBundle>());
+    private static final ClassBundle NONE = new ClassBundle(new String[0], new String[0], null);
+
+    /**
+     * The bundle ID
+     */
+    private final String id;
+
+    /**
+     * Class names, sorted, and the hex SHA-1 of each class file
+     */
+    private final String[] names;
+    private final String[] hashes;
+
+    /**
+     * The class files, <code>null</code> on the receiving side
+     */
+    private final byte[][] code;
+
+    /**
+     * Constructor of <code>ClassBundle</code>
+     *
+     * @param names  the class names, sorted
+     * @param hashes the hash of each class file
+     * @param code   the class files, or <code>null</code>
+     */
+    public ClassBundle(String[] names, String[] hashes, byte[][] code) {
+        this.names = names;
+        this.hashes = hashes;
+        this.code = code;
+        MessageDigest digest = newDigest();
+        for (int i = 0; i < names.length; i++) {
+            digest.update(names[i].getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(hashes[i].getBytes(UTF8));
+        }
+        this.id = toHex(digest.digest());
+    }
+
+    /**
+     * Get the bundle of a process class
+     *
+     * @param clazz the process class
+     * @return the bundle, <code>null</code> if the class is part of the
+     *         framework
+     * @throws IOException if a class file can't be read
+     */
+    public static ClassBundle of(Class<?> clazz) throws IOException {
+        ClassBundle bundle = bundles.get(clazz);
+        if (bundle == null) {
+            bundle = build(clazz);
+            bundles.put(clazz, bundle);
+        }
+        return bundle == NONE ? null : bundle;
+    }
+
+    /**
+     * Collect the classes of the job of a process class
+     */
+    private static ClassBundle build(Class<?> clazz) throws IOException {
+        ClassLoader loader = clazz.getClassLoader();
+        String location = null;
+        if (loader == null) {
+            return NONE;
+        }
+        if (!(loader instanceof JobClassLoader)) {
+            location = locationOf(clazz);
+            if (location == null || location.equals(locationOf(MigratableProcess.class))) {
+                return NONE;
+            }
+        }
+        TreeMap<String, byte[]> classes = new TreeMap<String, byte[]>();
+        Deque<String> queue = new ArrayDeque<String>();
+        Set<String> seen = new HashSet<String>();
+        queue.add(clazz.getName());
+        seen.add(clazz.getName());
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            byte[] bytes = read(loader, name, location);
+            if (bytes == null) {
+                continue;
+            }
+            if (classes.size() >= MAX_CLASSES) {
+                throw new IOException("job of " + clazz.getName() + " has too many classes");
+            }
+            classes.put(name, bytes);
+            for (String reference : references(bytes)) {
+                if (seen.add(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+        String[] names = classes.keySet().toArray(new String[classes.size()]);
+        String[] hashes = new String[names.length];
+        byte[][] code = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            code[i] = classes.get(names[i]);
+            hashes[i] = hash(code[i]);
+        }
+        return new ClassBundle(names, hashes, code);
+    }
+
+    /**
+     * Read a class file of the job
+     *
+     * @return the bytecode, <code>null</code> if the class is not part
+     *         of the job
+     */
+    private static byte[] read(ClassLoader loader, String name, String location) throws IOException {
+        String path = name.replace('.', '/') + ".class";
+        InputStream in;
+        if (loader instanceof JobClassLoader) {
+            JobClassLoader job = (JobClassLoader) loader;
+            if (!job.contains(name)) {
+                return null;
+            }
+            in = job.getResourceAsStream(path);
+        } else {
+            URL url = loader.getResource(path);
+            if (url == null || !stripJar(url.toString()).startsWith(location)) {
+                return null;
+            }
+            in = url.openStream();
+        }
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String locationOf(Class<?> clazz) {
+        CodeSource source = clazz.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return null;
+        }
+        return stripJar(source.getLocation().toString());
+    }
+
+    private static String stripJar(String url) {
+        return url.startsWith("jar:") ? url.substring(4) : url;
+    }
+
+    /**
+     * Get the names of the classes a class file refers to
+     *
+     * @param bytes the class file
+     * @return the class names, without arrays
+     * @throws IOException if the class file is malformed
+     */
+    public static List<String> references(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != 0xcafebabe) {
+            throw new IOException("not a class file");
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+        String[] strings = new String[count];
+        List<Integer> classes = new ArrayList<Integer>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    strings[i] = in.readUTF();
+                    break;
+                case 7:
+                    classes.add(in.readUnsignedShort());
+                    break;
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    in.skipBytes(2);
+                    break;
+                case 15:
+                    in.skipBytes(3);
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    in.skipBytes(4);
+                    break;
+                case 5:
+                case 6:
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("bad constant pool tag " + tag);
+            }
+        }
+        List<String> result = new ArrayList<String>();
+        for (int index : classes) {
+            String name = index < count ? strings[index] : null;
+            if (name == null) {
+                continue;
+            }
+            int start = name.lastIndexOf('[') + 1;
+            if (start > 0) {
+                if (name.charAt(start) != 'L') {
+                    continue;
+                }
+                name = name.substring(start + 1, name.length() - 1);
+            }
+            result.add(name.replace('/', '.'));
+        }
+        return result;
+    }
+
+    /**
+     * Encode the names and hashes of the bundle
+     *
+     * @return the bytes
+     */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                out.writeUTF(names[i]);
+                out.writeUTF(hashes[i]);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parse the names and hashes of a bundle
+     *
+     * @param bytes the encoded bundle
+     * @return the bundle, without bytecode
+     * @throws IOException if the bytes are malformed
+     */
+    public static ClassBundle parse(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = in.readInt();
+        if (count < 0 || count > MAX_CLASSES) {
+            throw new IOException("bad class count " + count);
+        }
+        String[] names = new String[count];
+        String[] hashes = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            hashes[i] = in.readUTF();
+        }
+        return new ClassBundle(names, hashes, null);
+    }
+
+    /**
+     * Get the bundle ID
+     *
+     * @return the hex SHA-1 of the names and hashes
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the class names
+     *
+     * @return the names, sorted
+     */
+    public String[] getNames() {
+        return names;
+    }
+
+    /**
+     * Get the class hashes
+     *
+     * @return the hex SHA-1 of each class file, in the order of the
+     *         names
+     */
+    public String[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Get a class file
+     *
+     * @param index the class index
+     * @return the bytecode
+     */
+    public byte[] getCode(int index) {
+        return code[index];
+    }
+
+    /**
+     * Get the hex SHA-1 of a class file
+     *
+     * @param bytes the class file
+     * @return the hash
+     */
+    public static String hash(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
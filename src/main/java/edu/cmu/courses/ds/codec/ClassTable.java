@@ -0,0 +1,119 @@
+package edu.cmu.courses.ds.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class dictionary of one direction of a migration session
+ *
+ * A long-lived connection sends the name and fingerprint of each class
+ * only once. The sender assigns the next index to a class the first
+ * time a frame refers to it, and session codecs write the index
+ * instead of the class metadata. The definitions are sent on the
+ * connection before the first frame which uses them, and the receiver
+ * defines them in the same order, so both tables always agree.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.SessionCodec
+ */
+public class ClassTable {
+    /**
+     * Indexes of the defined classes by name and fingerprint
+     */
+    private Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    /**
+     * The defined classes in index order
+     */
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Number of entries which are already sent, sender side only
+     */
+    private int sent;
+
+    /**
+     * Get the index of a class, defining it if it is new. Sender side.
+     *
+     * @param name        the class name
+     * @param fingerprint the codec specific fingerprint of the class
+     * @return the index
+     */
+    public synchronized int indexOf(String name, long fingerprint) {
+        String key = name + "#" + fingerprint;
+        Integer index = indexes.get(key);
+        if (index == null) {
+            index = entries.size();
+            entries.add(new Entry(index, name, fingerprint));
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Take the definitions which are not sent yet. Sender side, the
+     * caller must send them before any frame encoded after this call.
+     *
+     * @return the new definitions in index order
+     */
+    public synchronized List<Entry> takeUnsent() {
+        List<Entry> result = new ArrayList<Entry>(entries.subList(sent, entries.size()));
+        sent = entries.size();
+        return result;
+    }
+
+    /**
+     * Define a class received from the sender. Receiver side.
+     *
+     * @param entry the definition
+     * @throws IOException if the definition is out of order
+     */
+    public synchronized void define(Entry entry) throws IOException {
+        if (entry.index != entries.size()) {
+            throw new IOException("class definition " + entry.index + " out of order");
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Get a defined class. Receiver side.
+     *
+     * @param index the index
+     * @return the definition
+     * @throws IOException if the index is not defined
+     */
+    public synchronized Entry get(int index) throws IOException {
+        if (index < 0 || index >= entries.size()) {
+            throw new IOException("undefined class " + index);
+        }
+        return entries.get(index);
+    }
+
+    /**
+     * Get the number of defined classes
+     *
+     * @return the count
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * A class definition
+     */
+    public static class Entry {
+        public final int index;
+        public final String name;
+        public final long fingerprint;
+
+        public Entry(int index, String name, long fingerprint) {
+            this.index = index;
+            this.name = name;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
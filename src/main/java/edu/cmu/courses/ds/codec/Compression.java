@@ -0,0 +1,193 @@
+package edu.cmu.courses.ds.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The enum of migration frame compressions
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see java.util.zip.Deflater
+ */
+public enum Compression {
+    /**
+     * No compression
+     */
+    NONE((byte) 0, "none", 0),
+
+    /**
+     * Deflate at the fastest level, for busy links where CPU is cheap
+     * compared with bandwidth but latency still matters
+     */
+    DEFLATE_FAST((byte) 1, "deflate-fast", Deflater.BEST_SPEED),
+
+    /**
+     * Deflate at the default level, for the slowest links
+     */
+    DEFLATE((byte) 2, "deflate", Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * The ID sent on the wire
+     */
+    private byte id;
+
+    /**
+     * The name used in the configuration
+     */
+    private String value;
+
+    /**
+     * The deflate level
+     */
+    private int level;
+
+    /**
+     * Constructor of the enum
+     *
+     * @param id    the wire ID
+     * @param value the name
+     * @param level the deflate level
+     */
+    private Compression(byte id, String value, int level) {
+        this.id = id;
+        this.value = value;
+        this.level = level;
+    }
+
+    /**
+     * Get the wire ID of the enum
+     * @return id
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Get the value of enum
+     * @return value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Compress a byte range
+     *
+     * @param data   the data
+     * @param offset the start offset
+     * @param length the number of bytes
+     * @return the compressed bytes
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        if (this == NONE) {
+            byte[] result = new byte[length];
+            System.arraycopy(data, offset, result, 0, length);
+            return result;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress data of a known uncompressed length. The length comes
+     * from the sender, so the output grows as it is inflated instead
+     * of being allocated up front, and never beyond the limit.
+     *
+     * @param data      the compressed bytes
+     * @param rawLength the uncompressed length
+     * @param maxLength the largest uncompressed length accepted
+     * @return the uncompressed bytes
+     * @throws IOException if the data is corrupted, or the length is
+     *                     negative or above the limit
+     */
+    public byte[] decompress(byte[] data, int rawLength, int maxLength) throws IOException {
+        if (rawLength < 0 || rawLength > maxLength) {
+            throw new IOException("bad " + value + " frame length " + rawLength);
+        }
+        if (this == NONE) {
+            if (data.length != rawLength) {
+                throw new IOException("bad " + value + " frame length " + rawLength);
+            }
+            return data;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[(int) Math.min(rawLength, Math.max(64 * 1024, data.length * 4L))];
+            byte[] probe = new byte[1];
+            int n = 0;
+            while (!inflater.finished()) {
+                int read;
+                if (n < result.length) {
+                    read = inflater.inflate(result, n, result.length - n);
+                } else if (n < rawLength) {
+                    result = Arrays.copyOf(result, (int) Math.min(rawLength, n * 2L));
+                    continue;
+                } else if (inflater.inflate(probe) > 0) {
+                    throw new IOException(value + " frame is longer than its length");
+                } else {
+                    read = 0;
+                }
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength || !inflater.finished()) {
+                throw new IOException("truncated " + value + " frame");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted " + value + " frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Get the enum instance by wire ID
+     *
+     * @param id the wire ID
+     * @return the compression, or <code>null</code> if unknown
+     */
+    public static Compression getInstance(byte id) {
+        for (Compression instance : Compression.values()) {
+            if (instance.getId() == id) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the enum instance by name
+     *
+     * @param value the name
+     * @return the compression, or <code>null</code> if unknown
+     */
+    public static Compression getInstance(String value) {
+        for (Compression instance : Compression.values()) {
+            if (instance.getValue().equals(value)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+}
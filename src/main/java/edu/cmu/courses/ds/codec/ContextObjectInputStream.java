@@ -0,0 +1,38 @@
+package edu.cmu.courses.ds.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * An <code>ObjectInputStream</code> which resolves classes with the
+ * context class loader of the reading thread
+ * The receiver of a migration session makes the loader of the jobs
+ * received on the session the context loader while it decodes, so
+ * serialized values of shipped classes can be read.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.JobClassLoader
+ */
+public class ContextObjectInputStream extends ObjectInputStream {
+    /**
+     * Constructor of <code>ContextObjectInputStream</code>
+     *
+     * @param in the input
+     * @throws IOException if the stream header can't be read
+     */
+    public ContextObjectInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        try {
+            return Class.forName(desc.getName(), false, BinaryCodec.classLoader());
+        } catch (ClassNotFoundException e) {
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * The Java serialization codec
+ * Encode the process with <code>ObjectOutputStream</code>, which is
+ * how processes were always migrated. It handles any serializable
+ * process, at the cost of sending all class descriptors every time.
+ *
+ * On a migration session each class descriptor is replaced by the
+ * index of the class in the session's <code>ClassTable</code>, and the
+ * receiver uses its local descriptor of the same class. A matching
+ * serial version UID alone doesn't make the local descriptor safe to
+ * use, since it reads the stream by its own fields, so the fingerprint
+ * covers the UID, the serialization kind of the class and the name and
+ * type of every serializable field, and any difference is refused.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see java.io.ObjectOutputStream
+ */
+public class JavaSerializationCodec implements SessionCodec {
+    /**
+     * The codec ID
+     */
+    public static final byte ID = 0;
+
+    public byte getId() {
+        return ID;
+    }
+
+    public String getName() {
+        return "java";
+    }
+
+    public void encode(MigratableProcess process, OutputStream out) throws IOException {
+        encode(process, out, null);
+    }
+
+    public void encode(MigratableProcess process, OutputStream out, final ClassTable classes) throws IOException {
+        ObjectOutputStream oos;
+        if (classes == null) {
+            oos = new ObjectOutputStream(out);
+        } else {
+            oos = new ObjectOutputStream(out) {
+                @Override
+                protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+                    writeInt(classes.indexOf(desc.getName(), fingerprint(desc)));
+                }
+            };
+        }
+        oos.writeObject(process);
+        oos.flush();
+    }
+
+    public MigratableProcess decode(InputStream in) throws IOException, ClassNotFoundException {
+        return decode(in, null);
+    }
+
+    public MigratableProcess decode(InputStream in, final ClassTable classes) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois;
+        if (classes == null) {
+            ois = new ContextObjectInputStream(in);
+        } else {
+            ois = new ContextObjectInputStream(in) {
+                @Override
+                protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                    ClassTable.Entry entry = classes.get(readInt());
+                    ObjectStreamClass desc = ObjectStreamClass.lookup(Class.forName(entry.name, false,
+                            BinaryCodec.classLoader()));
+                    if (desc == null || fingerprint(desc) != entry.fingerprint) {
+                        throw new InvalidClassException(entry.name, "incompatible local class");
+                    }
+                    return desc;
+                }
+            };
+        }
+        Object object = ois.readObject();
+        if (!(object instanceof MigratableProcess)) {
+            throw new IOException("unexpected object " + object.getClass().getName());
+        }
+        return (MigratableProcess) object;
+    }
+
+    /**
+     * The fingerprint of a local class descriptor
+     * Two descriptors with the same fingerprint read and write the same
+     * stream for their class.
+     *
+     * @param desc the local class descriptor
+     * @return the serial version UID combined with a CRC32 of the
+     *         serialization kind and the field signatures
+     */
+    static long fingerprint(ObjectStreamClass desc) {
+        CRC32 crc = new CRC32();
+        Class<?> clazz = desc.forClass();
+        StringBuilder signature = new StringBuilder();
+        if (clazz != null) {
+            signature.append(Externalizable.class.isAssignableFrom(clazz) ? 'E' : 'S');
+            signature.append(hasWriteObject(clazz) ? 'W' : '-');
+            signature.append(clazz.isEnum() ? 'N' : '-');
+        }
+        for (ObjectStreamField field : desc.getFields()) {
+            signature.append(field.getName()).append(':');
+            signature.append(field.isPrimitive() ? String.valueOf(field.getTypeCode()) : field.getTypeString());
+            signature.append(';');
+        }
+        crc.update(signature.toString().getBytes(StandardCharsets.UTF_8));
+        return desc.getSerialVersionUID() * 31 + crc.getValue();
+    }
+
+    private static boolean hasWriteObject(Class<?> clazz) {
+        try {
+            Method method = clazz.getDeclaredMethod("writeObject", ObjectOutputStream.class);
+            return Modifier.isPrivate(method.getModifiers()) && !Modifier.isStatic(method.getModifiers());
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package edu.cmu.courses.ds.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The class loader of one shipped job
+ * The classes of the job which the node doesn't have, or has in a
+ * different version, are defined from their shipped bytecode, even if
+ * the parent knows a class of the same name. The other classes of the
+ * job and everything else come from the parent. A job and its classes
+ * are unloaded once the loader is dropped and no process of the job
+ * runs any more.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.ClassBundle
+ * @see edu.cmu.courses.ds.process.ClassCache
+ */
+public class JobClassLoader extends ClassLoader {
+    /**
+     * The job ID
+     */
+    private final String id;
+
+    /**
+     * All class names of the job
+     */
+    private final Set<String> names;
+
+    /**
+     * Bytecode of the classes defined by this loader, by name
+     */
+    private final Map<String, byte[]> code;
+
+    /**
+     * Constructor of <code>JobClassLoader</code>
+     *
+     * @param parent the loader of the framework
+     * @param bundle the job
+     * @param code   bytecode of the classes to define here, by name
+     */
+    public JobClassLoader(ClassLoader parent, ClassBundle bundle, Map<String, byte[]> code) {
+        super(parent);
+        this.id = bundle.getId();
+        Set<String> all = new HashSet<String>();
+        Collections.addAll(all, bundle.getNames());
+        this.names = all;
+        this.code = new HashMap<String, byte[]>(code);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                byte[] bytes = code.get(name);
+                if (bytes == null) {
+                    return super.loadClass(name, resolve);
+                }
+                clazz = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(clazz);
+            }
+            return clazz;
+        }
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        if (name.endsWith(".class")) {
+            byte[] bytes = code.get(name.substring(0, name.length() - 6).replace('/', '.'));
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            }
+        }
+        return super.getResourceAsStream(name);
+    }
+
+    /**
+     * Check if a class is part of the job
+     *
+     * @param name the class name
+     * @return <code>true</code> if it is
+     */
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Get the number of classes defined from shipped bytecode
+     *
+     * @return the count
+     */
+    public int getDefinedCount() {
+        return code.size();
+    }
+
+    /**
+     * Get the job ID
+     *
+     * @return the ID of the bundle
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + id.substring(0, 8) + " (" + names.size() + " classes, " + code.size() + " defined here)";
+    }
+}
@@ -0,0 +1,58 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The codec of migrating processes
+ *
+ * A codec turns a <code>MigratableProcess</code> into bytes on the
+ * sending <code>ProcessManager</code>, and back into a process on the
+ * receiving one. Each codec has a unique ID which is sent in front of
+ * every payload, so the receiver can decode any known codec whatever
+ * codec it sends with. Additional codecs are found by
+ * <code>ServiceLoader</code> from
+ * <code>META-INF/services/edu.cmu.courses.ds.codec.MigrationCodec</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationCodecs
+ * @see java.util.ServiceLoader
+ */
+public interface MigrationCodec {
+    /**
+     * Get the unique ID of the codec, which is sent on the wire
+     *
+     * @return the codec ID
+     */
+    byte getId();
+
+    /**
+     * Get the name of the codec, which is used in the configuration
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Encode a suspended process
+     *
+     * @param process the process object
+     * @param out     the output stream
+     * @throws IOException if the process can't be encoded
+     */
+    void encode(MigratableProcess process, OutputStream out) throws IOException;
+
+    /**
+     * Decode a process
+     *
+     * @param in the input stream
+     * @return the process object
+     * @throws IOException            if the payload is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    MigratableProcess decode(InputStream in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,214 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.process.Configuration;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The registry of migration codecs
+ * The built-in codecs are <code>java</code> and <code>binary</code>,
+ * others are loaded by <code>ServiceLoader</code>. The codec used to
+ * send processes is chosen by the <code>migration.codec</code>
+ * configuration key.
+ *
+ * Payloads are framed by <code>MigrationFrame</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationCodec
+ * @see edu.cmu.courses.ds.codec.MigrationFrame
+ */
+public class MigrationCodecs {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(MigrationCodecs.class);
+
+    /**
+     * All known codecs by ID
+     */
+    private static Map<Byte, MigrationCodec> codecs = load();
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private MigrationCodecs() {
+    }
+
+    /**
+     * Get a codec by ID
+     *
+     * @param id the codec ID
+     * @return the codec, or <code>null</code> if unknown
+     */
+    public static MigrationCodec get(byte id) {
+        return codecs.get(id);
+    }
+
+    /**
+     * Get a codec by name
+     *
+     * @param name the codec name
+     * @return the codec, or <code>null</code> if unknown
+     */
+    public static MigrationCodec get(String name) {
+        for (MigrationCodec codec : codecs.values()) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get all known codecs
+     *
+     * @return the codecs
+     */
+    public static Collection<MigrationCodec> getAll() {
+        return Collections.unmodifiableCollection(codecs.values());
+    }
+
+    /**
+     * Get the configured codec, the binary codec by default.
+     *
+     * @return the codec used to send processes
+     */
+    public static MigrationCodec getDefault() {
+        String name = Configuration.get("migration.codec", "binary");
+        MigrationCodec codec = get(name);
+        if (codec == null) {
+            LOG.error("unknown migration codec '" + name + "', use binary");
+            codec = get(BinaryCodec.ID);
+        }
+        return codec;
+    }
+
+    /**
+     * Encode a process into a payload
+     *
+     * @param codec   the codec
+     * @param process the process object
+     * @return the payload bytes
+     * @throws IOException if the process can't be encoded
+     */
+    public static byte[] encode(MigrationCodec codec, MigratableProcess process) throws IOException {
+        return encode(codec, process, null);
+    }
+
+    /**
+     * Encode a process into a payload of a migration session
+     *
+     * @param codec   the codec
+     * @param process the process object
+     * @param classes the sender's class table of the session, or
+     *                <code>null</code> outside a session
+     * @return the payload bytes
+     * @throws IOException if the process can't be encoded
+     */
+    public static byte[] encode(MigrationCodec codec, MigratableProcess process,
+                                ClassTable classes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (classes != null && codec instanceof SessionCodec) {
+            ((SessionCodec) codec).encode(process, bytes, classes);
+        } else {
+            codec.encode(process, bytes);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a payload with the codec of the given ID
+     *
+     * @param id      the codec ID
+     * @param payload the encoded process
+     * @return the process object
+     * @throws IOException            if the codec is unknown or the
+     *                                payload is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(byte id, byte[] payload) throws IOException, ClassNotFoundException {
+        return decode(id, payload, null);
+    }
+
+    /**
+     * Decode a payload of a migration session with the codec of the
+     * given ID
+     *
+     * @param id      the codec ID
+     * @param payload the encoded process
+     * @param classes the receiver's class table of the session, or
+     *                <code>null</code> outside a session
+     * @return the process object
+     * @throws IOException            if the codec is unknown or the
+     *                                payload is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(byte id, byte[] payload, ClassTable classes)
+            throws IOException, ClassNotFoundException {
+        return decode(id, new ByteArrayInputStream(payload), classes);
+    }
+
+    /**
+     * Decode a payload read from a stream with the codec of the given ID
+     *
+     * @param id      the codec ID
+     * @param in      the encoded process
+     * @param classes the receiver's class table of the session, or
+     *                <code>null</code> outside a session
+     * @return the process object
+     * @throws IOException            if the codec is unknown or the
+     *                                payload is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(byte id, InputStream in, ClassTable classes)
+            throws IOException, ClassNotFoundException {
+        MigrationCodec codec = get(id);
+        if (codec == null) {
+            throw new IOException("unknown migration codec " + id);
+        }
+        if (classes != null && codec instanceof SessionCodec) {
+            return ((SessionCodec) codec).decode(in, classes);
+        }
+        return codec.decode(in);
+    }
+
+    /**
+     * Register the built-in codecs and the codecs found by
+     * <code>ServiceLoader</code>.
+     */
+    private static Map<Byte, MigrationCodec> load() {
+        Map<Byte, MigrationCodec> result = new LinkedHashMap<Byte, MigrationCodec>();
+        register(result, new JavaSerializationCodec());
+        register(result, new BinaryCodec());
+        Iterator<MigrationCodec> it = ServiceLoader.load(MigrationCodec.class).iterator();
+        while (it.hasNext()) {
+            register(result, it.next());
+        }
+        return result;
+    }
+
+    private static void register(Map<Byte, MigrationCodec> codecs, MigrationCodec codec) {
+        MigrationCodec previous = codecs.get(codec.getId());
+        if (previous != null) {
+            LOG.error("codec " + codec.getName() + " has the same ID as " + previous.getName());
+            return;
+        }
+        codecs.put(codec.getId(), codec);
+    }
+}
@@ -0,0 +1,270 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.io.ByteBufferInputStream;
+import edu.cmu.courses.ds.process.Configuration;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * The wire frame of a migrating process
+ *
+ * A frame is the codec ID byte, the compression ID byte, the
+ * uncompressed payload length, the wire payload length, then the
+ * possibly compressed payload. Small payloads are never compressed,
+ * and a compressed payload which doesn't shrink enough is sent raw,
+ * so compression only costs time where it saves bandwidth. Both
+ * lengths come from the sender, so a frame is refused if either is
+ * above <code>server.frame.max</code>, and a compressed payload is
+ * inflated into a buffer which grows up to that limit.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationCodec
+ * @see edu.cmu.courses.ds.codec.Compression
+ */
+public class MigrationFrame {
+    /**
+     * Size of the frame header in bytes
+     */
+    public static final int HEADER_SIZE = 10;
+
+    /**
+     * Default of <code>server.frame.max</code>, 64MB
+     */
+    public static final int DEFAULT_MAX_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The codec of the payload
+     */
+    private MigrationCodec codec;
+
+    /**
+     * The compression of the payload
+     */
+    private Compression compression;
+
+    /**
+     * The uncompressed payload length
+     */
+    private int rawLength;
+
+    /**
+     * The whole frame, header included
+     */
+    private byte[] bytes;
+
+    private MigrationFrame(MigrationCodec codec, Compression compression, int rawLength, byte[] bytes) {
+        this.codec = codec;
+        this.compression = compression;
+        this.rawLength = rawLength;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encode a process into a frame. The configured
+     * <code>migration.compression</code> is used if the receiver
+     * accepts it, the payload is at least
+     * <code>migration.compression.threshold</code> bytes, and the
+     * compressed payload is at most <code>migration.compression.ratio</code>
+     * percent of the raw one.
+     *
+     * @param codec    the codec
+     * @param process  the process object
+     * @param accepted the compressions accepted by the receiver
+     * @return the frame
+     * @throws IOException if the process can't be encoded
+     */
+    public static MigrationFrame build(MigrationCodec codec, MigratableProcess process,
+                                       Set<Compression> accepted) throws IOException {
+        return build(codec, process, accepted, null);
+    }
+
+    /**
+     * Encode a process into a frame of a migration session
+     *
+     * @param codec    the codec
+     * @param process  the process object
+     * @param accepted the compressions accepted by the receiver
+     * @param classes  the sender's class table of the session, or
+     *                 <code>null</code> outside a session
+     * @return the frame
+     * @throws IOException if the process can't be encoded
+     * @see edu.cmu.courses.ds.codec.MigrationFrame#build(MigrationCodec, MigratableProcess, Set)
+     */
+    public static MigrationFrame build(MigrationCodec codec, MigratableProcess process,
+                                       Set<Compression> accepted, ClassTable classes) throws IOException {
+        byte[] payload = MigrationCodecs.encode(codec, process, classes);
+        Compression compression = getDefaultCompression();
+        byte[] wire = null;
+        if (compression != Compression.NONE && accepted.contains(compression) &&
+                payload.length >= Configuration.getInt("migration.compression.threshold", 16 * 1024)) {
+            wire = compression.compress(payload, 0, payload.length);
+            long ratio = Configuration.getLong("migration.compression.ratio", 90);
+            if (wire.length * 100L > payload.length * ratio) {
+                wire = null;
+            }
+        }
+        if (wire == null) {
+            compression = Compression.NONE;
+            wire = payload;
+        }
+        byte[] bytes = new byte[HEADER_SIZE + wire.length];
+        bytes[0] = codec.getId();
+        bytes[1] = compression.getId();
+        putInt(bytes, 2, payload.length);
+        putInt(bytes, 6, wire.length);
+        System.arraycopy(wire, 0, bytes, HEADER_SIZE, wire.length);
+        return new MigrationFrame(codec, compression, payload.length, bytes);
+    }
+
+    /**
+     * Read a frame and decode the process in it
+     *
+     * @param in the input stream
+     * @return the process object
+     * @throws IOException            if the frame is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess read(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte codecId = in.readByte();
+        byte compressionId = in.readByte();
+        int rawLength = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > getMaxLength()) {
+            throw new IOException("bad frame header");
+        }
+        byte[] wire = new byte[length];
+        in.readFully(wire);
+        return decode(codecId, compressionId, rawLength, wire);
+    }
+
+    /**
+     * Decode the process of a frame whose header is already parsed
+     *
+     * @param codecId       the codec ID
+     * @param compressionId the compression ID
+     * @param rawLength     the uncompressed payload length
+     * @param wire          the wire payload
+     * @return the process object
+     * @throws IOException            if the frame is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(byte codecId, byte compressionId, int rawLength,
+                                           byte[] wire) throws IOException, ClassNotFoundException {
+        return decode(codecId, compressionId, rawLength, wire, null);
+    }
+
+    /**
+     * Decode the process of a whole frame of a migration session
+     *
+     * @param frame   the frame, header included
+     * @param classes the receiver's class table of the session
+     * @return the process object
+     * @throws IOException            if the frame is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(byte[] frame, ClassTable classes)
+            throws IOException, ClassNotFoundException {
+        return decode(ByteBuffer.wrap(frame), classes);
+    }
+
+    /**
+     * Decode the process of a whole frame of a migration session held
+     * in a buffer, such as a memory-mapped file. A raw payload is
+     * decoded in place, without copying it first.
+     *
+     * @param frame   the frame, header included, from the buffer's
+     *                position to its limit
+     * @param classes the receiver's class table of the session
+     * @return the process object
+     * @throws IOException            if the frame is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    public static MigratableProcess decode(ByteBuffer frame, ClassTable classes)
+            throws IOException, ClassNotFoundException {
+        frame = frame.slice();
+        if (frame.remaining() < HEADER_SIZE || frame.getInt(6) != frame.remaining() - HEADER_SIZE) {
+            throw new IOException("bad frame header");
+        }
+        byte codecId = frame.get(0);
+        Compression compression = Compression.getInstance(frame.get(1));
+        int rawLength = frame.getInt(2);
+        if (compression == null || rawLength < 0 || rawLength > getMaxLength()) {
+            throw new IOException("bad frame header");
+        }
+        frame.position(HEADER_SIZE);
+        if (compression == Compression.NONE) {
+            return MigrationCodecs.decode(codecId, new ByteBufferInputStream(frame), classes);
+        }
+        byte[] wire = new byte[frame.remaining()];
+        frame.get(wire);
+        return MigrationCodecs.decode(codecId, compression.decompress(wire, rawLength, getMaxLength()), classes);
+    }
+
+    private static MigratableProcess decode(byte codecId, byte compressionId, int rawLength,
+                                            byte[] wire, ClassTable classes)
+            throws IOException, ClassNotFoundException {
+        Compression compression = Compression.getInstance(compressionId);
+        if (compression == null || rawLength < 0 || rawLength > getMaxLength()) {
+            throw new IOException("bad frame header");
+        }
+        return MigrationCodecs.decode(codecId, compression.decompress(wire, rawLength, getMaxLength()), classes);
+    }
+
+    /**
+     * Get the configured compression, <code>none</code> by default.
+     *
+     * @return the compression
+     */
+    public static Compression getDefaultCompression() {
+        String name = Configuration.get("migration.compression", Compression.NONE.getValue());
+        Compression compression = Compression.getInstance(name);
+        return compression == null ? Compression.NONE : compression;
+    }
+
+    /**
+     * Get the largest payload length a frame may have, compressed or
+     * not, <code>server.frame.max</code>
+     *
+     * @return the length in bytes
+     */
+    public static int getMaxLength() {
+        return Configuration.getInt("server.frame.max", DEFAULT_MAX_LENGTH);
+    }
+
+    public MigrationCodec getCodec() {
+        return codec;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the compression ratio, wire payload size over raw payload size
+     *
+     * @return the ratio
+     */
+    public double getRatio() {
+        return rawLength == 0 ? 1.0 : (double) (bytes.length - HEADER_SIZE) / rawLength;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,43 @@
+package edu.cmu.courses.ds.codec;
+
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A codec which can share class metadata across the frames of one
+ * connection
+ *
+ * Instead of the class metadata, a session codec writes the index of
+ * the class in the <code>ClassTable</code> of the connection. Codecs
+ * which don't implement this interface send the metadata in every
+ * frame, also on long-lived connections.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.ClassTable
+ */
+public interface SessionCodec extends MigrationCodec {
+    /**
+     * Encode a suspended process
+     *
+     * @param process the process object
+     * @param out     the output stream
+     * @param classes the sender's class table of the connection
+     * @throws IOException if the process can't be encoded
+     */
+    void encode(MigratableProcess process, OutputStream out, ClassTable classes) throws IOException;
+
+    /**
+     * Decode a process
+     *
+     * @param in      the input stream
+     * @param classes the receiver's class table of the connection
+     * @return the process object
+     * @throws IOException            if the payload is malformed
+     * @throws ClassNotFoundException if the process class is unknown
+     */
+    MigratableProcess decode(InputStream in, ClassTable classes) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,59 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An <code>InputStream</code> reading the remaining bytes of a
+ * <code>ByteBuffer</code>, such as a memory-mapped file, without
+ * copying them first.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see java.nio.ByteBuffer
+ */
+public class ByteBufferInputStream extends InputStream {
+    /**
+     * The buffer, its position is the read position
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Constructor of <code>ByteBufferInputStream</code>
+     *
+     * @param buffer the buffer, read from its position to its limit
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,128 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+/**
+ * Content addressed chunk store
+ *
+ * Each chunk is kept in a file named by the SHA-1 of its content,
+ * so a chunk is written only once however many snapshots refer to
+ * it. Chunks are written to a temporary file, synced and atomically
+ * renamed, so a present chunk file is always complete.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.ContentChunker
+ */
+public class ChunkStore {
+    /**
+     * Suffix of chunk files which are being written
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The store directory
+     */
+    private File directory;
+
+    /**
+     * Constructor of <code>ChunkStore</code>
+     *
+     * @param directory the store directory, created if missing
+     * @throws IOException if the directory can't be created
+     */
+    public ChunkStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("create chunk directory " + directory + " failed");
+        }
+    }
+
+    /**
+     * Check if a chunk is stored
+     *
+     * @param hash the chunk hash
+     * @return <code>true</code> if the chunk is stored
+     */
+    public boolean contains(String hash) {
+        return file(hash).isFile();
+    }
+
+    /**
+     * Store a chunk if it is not stored yet
+     *
+     * @param hash   the chunk hash
+     * @param data   the data
+     * @param offset the chunk offset in the data
+     * @param length the chunk length
+     * @return <code>true</code> if the chunk was written
+     * @throws IOException if any IO error occurs
+     */
+    public boolean put(String hash, byte[] data, int offset, int length) throws IOException {
+        File file = file(hash);
+        if (file.isFile()) {
+            return false;
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data, offset, length);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Read a chunk
+     *
+     * @param hash the chunk hash
+     * @return the chunk content
+     * @throws IOException if the chunk is missing or can't be read
+     */
+    public byte[] get(String hash) throws IOException {
+        return Files.readAllBytes(file(hash).toPath());
+    }
+
+    /**
+     * Get the file of a chunk
+     *
+     * @param hash the chunk hash
+     * @return the chunk file
+     */
+    public File file(String hash) {
+        return new File(directory, hash);
+    }
+
+    /**
+     * Delete every chunk which is not in the live set, including
+     * leftover temporary files.
+     *
+     * @param live the hashes of chunks which are still referenced
+     * @return the number of bytes freed
+     */
+    public long retain(Set<String> live) {
+        long freed = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return freed;
+        }
+        for (File file : files) {
+            if (!live.contains(file.getName())) {
+                long length = file.length();
+                if (file.delete()) {
+                    freed += length;
+                }
+            }
+        }
+        return freed;
+    }
+}
@@ -0,0 +1,140 @@
+package edu.cmu.courses.ds.io;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content defined chunking of byte arrays
+ *
+ * The data is cut where a rolling gear hash of the last bytes matches
+ * a mask, so a change in the middle of the data only changes the
+ * chunks around it, even if it shifts all following bytes. Each chunk
+ * is identified by the SHA-1 of its content, so equal chunks of two
+ * snapshots are stored or sent only once.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.ChunkStore
+ */
+public class ContentChunker {
+    /**
+     * Minimum chunk size in bytes
+     */
+    public static final int MIN_SIZE = 16 * 1024;
+
+    /**
+     * Maximum chunk size in bytes
+     */
+    public static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * Cut mask, 16 bits give an average chunk size around 64KB
+     */
+    private static final long MASK = (1L << 16) - 1;
+
+    /**
+     * Gear table. The seed is fixed so all nodes cut the same data
+     * at the same points.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(15440);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private ContentChunker() {
+    }
+
+    /**
+     * Split data into content defined chunks.
+     *
+     * @param data the data
+     * @return the chunks in order, which cover the whole data
+     */
+    public static List<Chunk> split(byte[] data) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        int start = 0;
+        while (start < data.length) {
+            int end = cut(data, start);
+            chunks.add(new Chunk(start, end - start, hash(data, start, end - start)));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Compute the SHA-1 of a byte range as a hex string
+     *
+     * @param data   the data
+     * @param offset the start offset
+     * @param length the number of bytes
+     * @return the hex string of the digest
+     */
+    public static String hash(byte[] data, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+        digest.update(data, offset, length);
+        byte[] result = digest.digest();
+        StringBuilder sb = new StringBuilder(result.length * 2);
+        for (byte b : result) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the end of the chunk which starts at <code>start</code>
+     */
+    private static int cut(byte[] data, int start) {
+        int limit = Math.min(data.length, start + MAX_SIZE);
+        int i = Math.min(limit, start + MIN_SIZE);
+        long fingerprint = 0;
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+            if ((fingerprint & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * A chunk of data
+     */
+    public static class Chunk {
+        /**
+         * Offset of the chunk in the data
+         */
+        public final int offset;
+
+        /**
+         * Length of the chunk
+         */
+        public final int length;
+
+        /**
+         * SHA-1 of the chunk content
+         */
+        public final String hash;
+
+        public Chunk(int offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+}
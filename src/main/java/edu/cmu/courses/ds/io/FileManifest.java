@@ -0,0 +1,194 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The content of a file as a list of chunk hashes
+ * The file is cut into chunks of <code>chunkSize</code> bytes, the
+ * last one shorter, and each chunk is identified by the SHA-1 of its
+ * content. Two files with the same content have the same manifest
+ * ID, wherever they are.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.FileShipment
+ */
+public class FileManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The path of the file on the node which built the manifest
+     */
+    private String path;
+
+    /**
+     * The file length in bytes
+     */
+    private long length;
+
+    /**
+     * The chunk size in bytes
+     */
+    private int chunkSize;
+
+    /**
+     * The hex SHA-1 of each chunk
+     */
+    private String[] hashes;
+
+    /**
+     * The hex SHA-1 of the length and the chunk hashes
+     */
+    private String id;
+
+    /**
+     * Constructor of <code>FileManifest</code>
+     *
+     * @param path      the path of the file
+     * @param length    the file length
+     * @param chunkSize the chunk size
+     * @param hashes    the chunk hashes
+     */
+    public FileManifest(String path, long length, int chunkSize, String[] hashes) {
+        this.path = path;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+        MessageDigest digest = newDigest();
+        digest.update(Long.toString(length).getBytes(UTF8));
+        for (String hash : hashes) {
+            digest.update(hash.getBytes(UTF8));
+        }
+        this.id = toHex(digest.digest());
+    }
+
+    /**
+     * Build the manifest of a file
+     *
+     * @param file      the file
+     * @param chunkSize the chunk size
+     * @return the manifest
+     * @throws IOException if the file can't be read
+     */
+    public static FileManifest build(File file, int chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            int count = (int) ((length + chunkSize - 1) / chunkSize);
+            String[] hashes = new String[count];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(chunkSize, 1024 * 1024));
+            for (int i = 0; i < count; i++) {
+                MessageDigest digest = newDigest();
+                long position = (long) i * chunkSize;
+                long end = Math.min(length, position + chunkSize);
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        throw new IOException(file + " shrank while it was hashed");
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += n;
+                }
+                hashes[i] = toHex(digest.digest());
+            }
+            return new FileManifest(file.getPath(), length, chunkSize, hashes);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the path of the file on the node which built the manifest
+     *
+     * @return the path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the file length
+     *
+     * @return the length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get the chunk size
+     *
+     * @return the size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get the chunk hashes
+     *
+     * @return the hex SHA-1 of each chunk, in order
+     */
+    public String[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Get the position of a chunk in the file
+     *
+     * @param index the chunk index
+     * @return the offset in bytes
+     */
+    public long getOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * Get the length of a chunk
+     *
+     * @param index the chunk index
+     * @return the length in bytes
+     */
+    public int getLength(int index) {
+        return (int) Math.min(chunkSize, length - getOffset(index));
+    }
+
+    /**
+     * Get the manifest ID, which identifies the content
+     *
+     * @return the hex SHA-1 of the length and the chunk hashes
+     */
+    public String getId() {
+        return id;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Input files which travel with their process
+ * While a process is encoded inside an export, each
+ * <code>TransactionalFileInputStream</code> it holds hands its file to
+ * the <code>Exporter</code> of the encoding thread, which makes sure
+ * the destination has the content, and writes the
+ * <code>FileManifest</code> of the file with its path. The destination
+ * hands the manifest to the <code>Resolver</code> of the decoding
+ * thread, which returns a local file with the same content, and the
+ * stream reads that file from then on.
+ *
+ * The binary codec does the same for the streams it encodes in its
+ * own form.
+ *
+ * The manifests are cached by path, length and modification time, so
+ * an unchanged file is hashed only once. A file which was modified
+ * less than <code>RACY_MILLIS</code> before it was hashed may be
+ * rewritten with the same length and modification time, since file
+ * systems keep the time in coarse steps, so its manifest is not
+ * trusted and the file is hashed again, until it is older.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.TransactionalFileInputStream
+ * @see edu.cmu.courses.ds.io.FileManifest
+ */
+public class FileShipment {
+    /**
+     * The chunk size of manifests, in bytes
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The coarsest modification time step of the file systems, in
+     * milliseconds
+     */
+    static final long RACY_MILLIS = 2000;
+
+    /**
+     * The exporter of the encoding on the current thread
+     */
+    private static final ThreadLocal<Exporter> exporter = new ThreadLocal<Exporter>();
+
+    /**
+     * The resolver of the decoding on the current thread
+     */
+    private static final ThreadLocal<Resolver> resolver = new ThreadLocal<Resolver>();
+
+    /**
+     * Cached manifests by path
+     */
+    private static final Map<String, Cached> manifests = new ConcurrentHashMap<String, Cached>();
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private FileShipment() {
+    }
+
+    /**
+     * Ship the input files of the processes encoded by the current
+     * thread, until <code>endExport()</code>
+     *
+     * @param target the exporter to the destination
+     */
+    public static void beginExport(Exporter target) {
+        exporter.set(target);
+    }
+
+    /**
+     * Stop shipping the input files of the current thread
+     */
+    public static void endExport() {
+        exporter.remove();
+    }
+
+    /**
+     * Resolve the manifests decoded by the current thread with a
+     * resolver, until <code>endResolve()</code>
+     *
+     * @param target the resolver of the receiving manager
+     */
+    public static void beginResolve(Resolver target) {
+        resolver.set(target);
+    }
+
+    /**
+     * Stop resolving manifests on the current thread
+     */
+    public static void endResolve() {
+        resolver.remove();
+    }
+
+    /**
+     * Ship a file if the current thread exports
+     *
+     * @param file the file
+     * @return the manifest, <code>null</code> if the thread doesn't
+     *         export
+     * @throws IOException if the file can't be read or shipped
+     */
+    public static FileManifest export(File file) throws IOException {
+        Exporter target = exporter.get();
+        if (target == null) {
+            return null;
+        }
+        FileManifest manifest = manifest(file);
+        target.export(file, manifest);
+        return manifest;
+    }
+
+    /**
+     * Get the local file of a received manifest
+     *
+     * @param manifest the manifest
+     * @return the file
+     * @throws IOException if the thread has no resolver or the content
+     *                     isn't here
+     */
+    public static File resolve(FileManifest manifest) throws IOException {
+        Resolver target = resolver.get();
+        if (target == null) {
+            throw new IOException("no file cache for " + manifest.getPath());
+        }
+        return target.resolve(manifest);
+    }
+
+    /**
+     * Get the manifest of a file, from the cache if the file didn't
+     * change
+     *
+     * @param file the file
+     * @return the manifest
+     * @throws IOException if the file can't be read
+     */
+    public static FileManifest manifest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        Cached cached = manifests.get(path);
+        if (cached != null && cached.length == length && cached.modified == modified &&
+                modified < cached.hashed - RACY_MILLIS) {
+            return cached.manifest;
+        }
+        long hashed = System.currentTimeMillis();
+        FileManifest manifest = FileManifest.build(file, CHUNK_SIZE);
+        manifests.put(path, new Cached(manifest, length, modified, hashed));
+        return manifest;
+    }
+
+    /**
+     * Makes sure a destination has the content of a file
+     */
+    public interface Exporter {
+        /**
+         * Send the chunks of a file the destination doesn't have
+         *
+         * @param file     the file
+         * @param manifest the manifest of the file
+         * @throws IOException if the chunks can't be sent
+         */
+        void export(File file, FileManifest manifest) throws IOException;
+    }
+
+    /**
+     * Finds the local copy of shipped content
+     */
+    public interface Resolver {
+        /**
+         * Get a local file with the content of a manifest
+         *
+         * @param manifest the manifest
+         * @return the file
+         * @throws IOException if the content isn't here
+         */
+        File resolve(FileManifest manifest) throws IOException;
+    }
+
+    private static class Cached {
+        final FileManifest manifest;
+        final long length;
+        final long modified;
+        final long hashed;
+
+        Cached(FileManifest manifest, long length, long modified, long hashed) {
+            this.manifest = manifest;
+            this.length = length;
+            this.modified = modified;
+            this.hashed = hashed;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I/O counters of the transactional streams of a process
+ * Bytes are counted as they are read or written, and calls are the
+ * system calls the streams make: opening the file, seeking, and each
+ * read or write of the <code>RandomAccessFile</code>. The counters
+ * are <code>LongAdder</code>s, so the process thread never takes a
+ * lock to count, and other threads can read them at any time.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.TransactionalFileInputStream#setCounters(IOCounters)
+ * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream#setCounters(IOCounters)
+ */
+public class IOCounters implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+
+    /**
+     * The counters of the manager the process runs on, which also
+     * count everything counted here, not saved
+     */
+    private transient volatile IOCounters node;
+
+    /**
+     * Also count in the counters of a manager
+     *
+     * @param node the counters of the manager, <code>null</code> to
+     *             stop
+     */
+    public void setNode(IOCounters node) {
+        this.node = node;
+    }
+
+    /**
+     * Count a read call
+     *
+     * @param bytes the bytes it read, negative at the end of the file
+     */
+    public void read(int bytes) {
+        calls.increment();
+        if (bytes > 0) {
+            bytesRead.add(bytes);
+        }
+        IOCounters n = node;
+        if (n != null) {
+            n.read(bytes);
+        }
+    }
+
+    /**
+     * Count a write call
+     *
+     * @param bytes the bytes it wrote
+     */
+    public void write(int bytes) {
+        calls.increment();
+        bytesWritten.add(bytes);
+        IOCounters n = node;
+        if (n != null) {
+            n.write(bytes);
+        }
+    }
+
+    /**
+     * Count calls which move no data, like opening or seeking
+     *
+     * @param count the number of calls
+     */
+    public void call(int count) {
+        calls.add(count);
+        IOCounters n = node;
+        if (n != null) {
+            n.call(count);
+        }
+    }
+
+    /**
+     * Get the bytes read
+     *
+     * @return the bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Get the bytes written
+     *
+     * @return the bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Get the system calls of the streams
+     *
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+}
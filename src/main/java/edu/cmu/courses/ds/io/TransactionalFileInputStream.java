@@ -3,6 +3,9 @@ package edu.cmu.courses.ds.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 
@@ -17,9 +20,18 @@ import java.io.Serializable;
  * <code>RandomAccessFile</code> to seek the offset before
  * reading or writing.
  *
+ * When the process is encoded inside a <code>FileShipment</code>
+ * export, the content of the file travels with the stream, and the
+ * migrated stream reads a local copy with the same content.
+ *
+ * A stream may stop at a <code>limit</code> before the end of the
+ * file, so the input of a split process can be divided into ranges
+ * which are read by different processes.
+ *
  * @author Jian Fang(jianf)
  * @author Fangyu Gao(fangyug)
  * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream
+ * @see edu.cmu.courses.ds.io.FileShipment
  * @see java.io.RandomAccessFile
  */
 public class TransactionalFileInputStream extends InputStream
@@ -34,6 +46,11 @@ public class TransactionalFileInputStream extends InputStream
      */
     private long offset;
 
+    /**
+     * The offset the stream ends at, -1 for the end of the file
+     */
+    private long limit = -1;
+
     /**
      * Random access file handler, we use <code>RandomAccessFile</code>
      * to seek to the offset when reading the input file
@@ -42,6 +59,12 @@ public class TransactionalFileInputStream extends InputStream
      */
     private transient RandomAccessFile handler;
 
+    /**
+     * The I/O counters of the process reading the stream, not saved
+     * with it
+     */
+    private transient IOCounters counters;
+
     /**
      * The migrated flag. When the flag is set, we should reset the
      * file handler and seek to the previous offset
@@ -59,6 +82,111 @@ public class TransactionalFileInputStream extends InputStream
         this.migrated = false;
     }
 
+    /**
+     * Constructor of TransactionalFileInputStream which continues at a
+     * saved offset, used when a process is rebuilt after migration.
+     *
+     * @param sourceFile the input file object
+     * @param offset the saved offset
+     */
+    public TransactionalFileInputStream(File sourceFile, long offset) {
+        this.sourceFile = sourceFile;
+        this.offset = offset;
+        this.migrated = true;
+    }
+
+    /**
+     * Constructor of TransactionalFileInputStream which reads a range
+     * of the file, used for the second half of a split process.
+     *
+     * @param sourceFile the input file object
+     * @param offset the start of the range
+     * @param limit the end of the range, -1 for the end of the file
+     */
+    public TransactionalFileInputStream(File sourceFile, long offset, long limit) {
+        this(sourceFile, offset);
+        this.limit = limit;
+    }
+
+    /**
+     * Get the input file
+     *
+     * @return the input file object
+     */
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Get the current offset
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the offset the stream ends at
+     *
+     * @return the limit, -1 for the end of the file
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Stop the stream at an offset
+     *
+     * @param limit the new limit, -1 for the end of the file
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Get the number of bytes left to read
+     *
+     * @return the bytes up to the limit or the end of the file
+     */
+    public long getRemaining() {
+        long end = limit >= 0 ? limit : sourceFile.length();
+        return Math.max(0, end - offset);
+    }
+
+    /**
+     * Find the start of the first line at or after a position, so a
+     * split point doesn't cut a line in two.
+     *
+     * @param position the position in the file
+     * @return the offset of the line start, or the end of the range if
+     *         no line starts after the position
+     * @throws IOException if the file can't be read
+     */
+    public long findLineStart(long position) throws IOException {
+        long end = limit >= 0 ? limit : sourceFile.length();
+        if (position <= 0) {
+            return 0;
+        }
+        RandomAccessFile file = new RandomAccessFile(sourceFile, "r");
+        try {
+            file.seek(position - 1);
+            byte[] buffer = new byte[8192];
+            long current = position - 1;
+            int n;
+            while (current < end && (n = file.read(buffer)) > 0) {
+                for (int i = 0; i < n && current < end; i++, current++) {
+                    if (buffer[i] == '\n') {
+                        return current + 1;
+                    }
+                }
+            }
+            return end;
+        } finally {
+            file.close();
+        }
+    }
+
     /**
      * Implementation of <code>read()</code>
      * At the beginning, we check the migrated flag, if the flag
@@ -77,23 +205,120 @@ public class TransactionalFileInputStream extends InputStream
     @Override
     public int read() throws IOException {
         if (migrated || handler == null) {
-            handler = new RandomAccessFile(sourceFile, "r");
-            migrated = false;
-            handler.seek(offset);
+            open();
+        }
+        if (limit >= 0 && offset >= limit) {
+            return -1;
         }
         int result = handler.read();
         offset++;
+        IOCounters c = counters;
+        if (c != null) {
+            c.read(result >= 0 ? 1 : -1);
+        }
+        return result;
+    }
+
+    /**
+     * Bulk implementation of <code>read(byte[], int, int)</code>.
+     * Reads up to <code>len</code> bytes with a single call to
+     * <code>handler.read(byte[], int, int)</code> instead of one call
+     * per byte, and increases the <code>offset</code> by the number of
+     * bytes actually read.
+     *
+     * @param b   the buffer into which the data is read.
+     * @param off the start offset in array <code>b</code>
+     * @param len the maximum number of bytes to read.
+     * @return the total number of bytes read into the buffer, or
+     *         <code>-1</code> if the end of the file has been reached.
+     * @throws IOException if an I/O error occurs.
+     * @see java.io.RandomAccessFile#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (migrated || handler == null) {
+            open();
+        }
+        if (limit >= 0) {
+            if (offset >= limit) {
+                return -1;
+            }
+            len = (int) Math.min(len, limit - offset);
+        }
+        int result = handler.read(b, off, len);
+        if (result > 0) {
+            offset += result;
+        }
+        IOCounters c = counters;
+        if (c != null) {
+            c.read(result);
+        }
         return result;
     }
 
+    /**
+     * Open the file and seek to the offset
+     */
+    private void open() throws IOException {
+        handler = new RandomAccessFile(sourceFile, "r");
+        migrated = false;
+        handler.seek(offset);
+        IOCounters c = counters;
+        if (c != null) {
+            c.call(2);
+        }
+    }
+
+    /**
+     * Count the I/O of the stream in the counters of a process
+     *
+     * @param counters the counters, <code>null</code> to stop counting
+     */
+    public void setCounters(IOCounters counters) {
+        this.counters = counters;
+    }
+
     /**
      * close the handle
      */
     @Override
     public void close() throws IOException {
-    	handler.close();
+        if (handler != null) {
+            handler.close();
+        }
     }
     
+    /**
+     * Save the stream, and the manifest of the file if it is shipped.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(FileShipment.export(sourceFile));
+    }
+
+    /**
+     * Restore the stream. A shipped stream reads the local copy of its
+     * file; streams saved without a manifest keep their path.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        FileManifest manifest = null;
+        try {
+            manifest = (FileManifest) in.readObject();
+        } catch (OptionalDataException e) {
+            if (!e.eof) {
+                throw e;
+            }
+        }
+        if (manifest != null) {
+            sourceFile = FileShipment.resolve(manifest);
+            migrated = true;
+        }
+    }
+
     /**
      * Set the migrated flag
      *
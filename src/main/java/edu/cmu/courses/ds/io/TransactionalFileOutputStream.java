@@ -1,6 +1,10 @@
 package edu.cmu.courses.ds.io;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Transactional FileInputStream
@@ -38,6 +42,12 @@ public class TransactionalFileOutputStream extends OutputStream
      */
     private transient RandomAccessFile handler;
 
+    /**
+     * The I/O counters of the process writing the stream, not saved
+     * with it
+     */
+    private transient IOCounters counters;
+
     /**
      * The migrated flag. When the flag is set, we should reset the
      * file handler and seek to the previous offset
@@ -55,6 +65,28 @@ public class TransactionalFileOutputStream extends OutputStream
         this.migrated = false;
     }
 
+    /**
+     * Constructor of TransactionalFileOutputStream which continues at a
+     * saved offset, used when a process is rebuilt after migration.
+     *
+     * @param targetFile the output file object
+     * @param offset the saved offset
+     */
+    public TransactionalFileOutputStream(File targetFile, long offset) {
+        this.targetFile = targetFile;
+        this.offset = offset;
+        this.migrated = true;
+    }
+
+    /**
+     * Get the current offset
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
     public File GetTargetFile() {
     	return targetFile;
     }
@@ -73,12 +105,107 @@ public class TransactionalFileOutputStream extends OutputStream
     @Override
     public void write(int b) throws IOException {
         if (migrated || handler == null) {
-            handler = new RandomAccessFile(targetFile, "rw");
-            handler.seek(offset);
-            migrated = false;
+            open();
         }
         handler.write(b);
         offset++;
+        IOCounters c = counters;
+        if (c != null) {
+            c.write(1);
+        }
+    }
+
+    /**
+     * Bulk implementation of <code>write(byte[], int, int)</code>.
+     * Writes the whole range with a single call to
+     * <code>handler.write(byte[], int, int)</code> instead of one call
+     * per byte, then increases the <code>offset</code> by <code>len</code>.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @throws IOException if an I/O error occurs.
+     * @see java.io.RandomAccessFile#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (migrated || handler == null) {
+            open();
+        }
+        handler.write(b, off, len);
+        offset += len;
+        IOCounters c = counters;
+        if (c != null) {
+            c.write(len);
+        }
+    }
+
+    /**
+     * Open the file and seek to the offset
+     * A file with other hard links, such as an output materialized
+     * from the <code>ResultCache</code>, is replaced by a copy first,
+     * so writing it never changes the other names. The handler of a
+     * previous open is closed.
+     */
+    private void open() throws IOException {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
+        breakLink(targetFile);
+        handler = new RandomAccessFile(targetFile, "rw");
+        handler.seek(offset);
+        migrated = false;
+        IOCounters c = counters;
+        if (c != null) {
+            c.call(2);
+        }
+    }
+
+    /**
+     * Replace a file which has other hard links by a writable copy of
+     * it. The copy is moved over the file, so the other names keep the
+     * old content.
+     *
+     * @param file the file, which may not exist
+     * @return <code>true</code> if the file was replaced
+     * @throws IOException if the file can't be copied
+     */
+    public static boolean breakLink(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        int links;
+        try {
+            links = ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (links <= 1) {
+            return false;
+        }
+        Path copy = Files.createTempFile(path.getParent(), file.getName() + ".", ".tmp");
+        try {
+            Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+            if (!copy.toFile().setWritable(true)) {
+                throw new IOException("can't make " + copy + " writable");
+            }
+            Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+        return true;
+    }
+
+    /**
+     * Count the I/O of the stream in the counters of a process
+     *
+     * @param counters the counters, <code>null</code> to stop counting
+     */
+    public void setCounters(IOCounters counters) {
+        this.counters = counters;
     }
     
     /**
@@ -86,7 +213,10 @@ public class TransactionalFileOutputStream extends OutputStream
      */
     @Override
     public void close() throws IOException {
-    	handler.close();
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
     }
 
     /**
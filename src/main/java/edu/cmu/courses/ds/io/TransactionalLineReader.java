@@ -0,0 +1,204 @@
+package edu.cmu.courses.ds.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered line reader over a <code>TransactionalFileInputStream</code>
+ *
+ * <code>DataInputStream.readLine()</code> reads the transactional
+ * stream one byte at a time, which costs one system call per byte.
+ * This reader fills a byte buffer with bulk reads instead. Since the
+ * underlying stream's offset runs ahead of the lines that have really
+ * been consumed, the unconsumed part of the buffer is saved together
+ * with the stream when the reader is serialized, so a migrated reader
+ * continues exactly at the next unread line.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.TransactionalFileInputStream
+ */
+public class TransactionalLineReader implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default buffer size in bytes
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The charset used to decode lines
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The underlying transactional input stream
+     */
+    private TransactionalFileInputStream in;
+
+    /**
+     * The read buffer. Only the bytes between <code>position</code>
+     * and <code>limit</code> are serialized.
+     */
+    private transient byte[] buffer;
+
+    /**
+     * The next unread byte in <code>buffer</code>
+     */
+    private transient int position;
+
+    /**
+     * The number of valid bytes in <code>buffer</code>
+     */
+    private transient int limit;
+
+    /**
+     * Constructor with the default buffer size
+     *
+     * @param in the transactional input stream
+     */
+    public TransactionalLineReader(TransactionalFileInputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor with a specific buffer size
+     *
+     * @param in         the transactional input stream
+     * @param bufferSize the buffer size in bytes
+     */
+    public TransactionalLineReader(TransactionalFileInputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Read a line of UTF-8 text. A line is terminated by
+     * <code>'\n'</code> or <code>"\r\n"</code>, the terminator is not
+     * included in the result.
+     *
+     * @return the line, or <code>null</code> if the end of the file
+     *         has been reached.
+     * @throws IOException if an I/O error occurs.
+     */
+    public String readLine() throws IOException {
+        ByteArrayOutputStream pending = null;
+        while (true) {
+            if (position >= limit && !fill()) {
+                if (pending == null || pending.size() == 0) {
+                    return null;
+                }
+                return decode(pending.toByteArray(), 0, pending.size());
+            }
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    String line;
+                    if (pending == null) {
+                        line = decode(buffer, position, i - position);
+                    } else {
+                        pending.write(buffer, position, i - position);
+                        line = decode(pending.toByteArray(), 0, pending.size());
+                    }
+                    position = i + 1;
+                    return line;
+                }
+            }
+            if (pending == null) {
+                pending = new ByteArrayOutputStream(limit - position + 128);
+            }
+            pending.write(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+
+    /**
+     * Count the I/O of the underlying stream in the counters of a
+     * process
+     *
+     * @param counters the counters, <code>null</code> to stop counting
+     * @see edu.cmu.courses.ds.io.TransactionalFileInputStream#setCounters(IOCounters)
+     */
+    public void setCounters(IOCounters counters) {
+        if (in != null) {
+            in.setCounters(counters);
+        }
+    }
+
+    /**
+     * Get the underlying stream
+     *
+     * @return the stream
+     */
+    public TransactionalFileInputStream getInput() {
+        return in;
+    }
+
+    /**
+     * Get the bytes which were read from the stream but not consumed
+     * yet
+     *
+     * @return the number of buffered bytes
+     */
+    public int getBuffered() {
+        return limit - position;
+    }
+
+    /**
+     * Close the underlying stream
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Refill the buffer from the underlying stream.
+     *
+     * @return <code>false</code> if the end of the file has been reached
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+    }
+
+    /**
+     * Decode a line, dropping a trailing <code>'\r'</code>
+     */
+    private static String decode(byte[] b, int off, int len) {
+        if (len > 0 && b[off + len - 1] == '\r') {
+            len--;
+        }
+        return new String(b, off, len, UTF8);
+    }
+
+    /**
+     * Save the stream and the unconsumed bytes of the buffer.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(buffer.length);
+        out.writeInt(limit - position);
+        out.write(buffer, position, limit - position);
+    }
+
+    /**
+     * Restore the stream and the unconsumed bytes of the buffer.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buffer = new byte[in.readInt()];
+        limit = in.readInt();
+        position = 0;
+        in.readFully(buffer, 0, limit);
+    }
+}
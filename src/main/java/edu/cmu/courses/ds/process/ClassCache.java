@@ -0,0 +1,299 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.ClassBundle;
+import edu.cmu.courses.ds.codec.JobClassLoader;
+import edu.cmu.courses.ds.io.ChunkStore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The node-local cache of shipped bytecode
+ * When a job arrives, the receiver asks the sender only for the class
+ * files which are neither on the local classpath in the same version
+ * nor in this cache. The received class files are verified against
+ * their hash and kept by hash in a <code>ChunkStore</code> under
+ * <code>classes.cache.dir</code>, so they survive a restart and are
+ * shared by all jobs which contain them.
+ *
+ * Each job gets its own <code>JobClassLoader</code>, which later
+ * migrations of the same job reuse. At most
+ * <code>classes.cache.jobs</code> loaders are kept; the least recently
+ * used one is dropped beyond that, and its classes are unloaded once
+ * its processes are gone. Every manager keeps its own cache and
+ * loaders.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.ClassBundle
+ * @see edu.cmu.courses.ds.codec.JobClassLoader
+ */
+public class ClassCache {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ClassCache.class);
+
+    /**
+     * Valid class file hashes
+     */
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * The class files by hash, created on first use
+     */
+    private ChunkStore store;
+    private File directory;
+
+    /**
+     * The loaders of the jobs by ID, least recently used first
+     */
+    private final LinkedHashMap<String, JobClassLoader> loaders =
+            new LinkedHashMap<String, JobClassLoader>(16, 0.75f, true);
+
+    /**
+     * Maximum number of kept loaders
+     */
+    private int maxJobs;
+
+    /**
+     * Hashes of local class files by name, <code>""</code> if the
+     * class is not on the classpath
+     */
+    private final Map<String, String> local = new HashMap<String, String>();
+
+    /**
+     * Bytes of class files received
+     */
+    private final AtomicLong received = new AtomicLong(0);
+
+    /**
+     * Constructor with the configured limit
+     *
+     * @param directory the cache directory
+     */
+    ClassCache(File directory) {
+        this.directory = directory;
+        maxJobs = Math.max(1, Configuration.getInt("classes.cache.jobs", 32));
+    }
+
+    /**
+     * Check which class files of a job are here
+     *
+     * @param bundle the job
+     * @return <code>true</code> for each class which is on the
+     *         classpath in the same version or in the cache
+     */
+    public synchronized boolean[] have(ClassBundle bundle) {
+        String[] names = bundle.getNames();
+        String[] hashes = bundle.getHashes();
+        boolean[] result = new boolean[names.length];
+        boolean cached = loaders.containsKey(bundle.getId());
+        for (int i = 0; i < names.length; i++) {
+            result[i] = cached || hashes[i].equals(localHash(names[i])) ||
+                    (HASH.matcher(hashes[i]).matches() && getStore().contains(hashes[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Store a received class file
+     *
+     * @param hash  the hash of the class file
+     * @param bytes the class file
+     * @throws IOException if the hash doesn't match the content, or
+     *                     the file can't be written
+     */
+    public void put(String hash, byte[] bytes) throws IOException {
+        if (!HASH.matcher(hash).matches() || !hash.equals(ClassBundle.hash(bytes))) {
+            throw new IOException("class file doesn't match its hash " + hash);
+        }
+        ChunkStore chunks;
+        synchronized (this) {
+            chunks = getStore();
+        }
+        if (chunks.put(hash, bytes, 0, bytes.length)) {
+            received.addAndGet(bytes.length);
+        }
+    }
+
+    /**
+     * Get the bytes of class files received
+     *
+     * @return the count
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Get the loader of a job, creating it from the cached class files
+     * if it is new
+     *
+     * @param bundle the job
+     * @return the loader
+     * @throws IOException if a class file is missing
+     */
+    public synchronized JobClassLoader getLoader(ClassBundle bundle) throws IOException {
+        JobClassLoader loader = loaders.get(bundle.getId());
+        if (loader != null) {
+            return loader;
+        }
+        String[] names = bundle.getNames();
+        String[] hashes = bundle.getHashes();
+        Map<String, byte[]> code = new HashMap<String, byte[]>();
+        for (int i = 0; i < names.length; i++) {
+            if (hashes[i].equals(localHash(names[i]))) {
+                continue;
+            }
+            if (!HASH.matcher(hashes[i]).matches() || !getStore().contains(hashes[i])) {
+                throw new IOException("class " + names[i] + " of job " + bundle.getId() + " is missing");
+            }
+            code.put(names[i], getStore().get(hashes[i]));
+        }
+        loader = new JobClassLoader(MigratableProcess.class.getClassLoader(), bundle, code);
+        loaders.put(bundle.getId(), loader);
+        LOG.info("loaded " + loader);
+        Iterator<JobClassLoader> it = loaders.values().iterator();
+        while (loaders.size() > maxJobs && it.hasNext()) {
+            JobClassLoader evicted = it.next();
+            it.remove();
+            LOG.info("dropped " + evicted);
+        }
+        return loader;
+    }
+
+    /**
+     * Drop the loader of a job, so its classes are unloaded once its
+     * processes are gone
+     *
+     * @param prefix a prefix of the job ID
+     * @return the number of dropped loaders
+     */
+    public synchronized int unload(String prefix) {
+        int count = 0;
+        Iterator<JobClassLoader> it = loaders.values().iterator();
+        while (it.hasNext()) {
+            JobClassLoader loader = it.next();
+            if (loader.getId().startsWith(prefix)) {
+                it.remove();
+                LOG.info("dropped " + loader);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the kept loaders
+     *
+     * @return the loaders, least recently used first
+     */
+    public synchronized List<JobClassLoader> getLoaders() {
+        return new ArrayList<JobClassLoader>(loaders.values());
+    }
+
+    /**
+     * Get the hash of a class file on the local classpath
+     */
+    private String localHash(String name) {
+        String hash = local.get(name);
+        if (hash == null) {
+            hash = "";
+            InputStream in = MigratableProcess.class.getClassLoader()
+                    .getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in != null) {
+                try {
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, n);
+                        }
+                        hash = ClassBundle.hash(out.toByteArray());
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    LOG.warn("read local class " + name + " error", e);
+                }
+            }
+            local.put(name, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the class file store, creating the directory
+     */
+    private ChunkStore getStore() {
+        if (store == null) {
+            try {
+                store = new ChunkStore(directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("create class cache " + directory + " failed", e);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * The class loader of one migration session
+     * It resolves the classes of the jobs received on the session with
+     * their loaders, the most recent job first, and everything else
+     * with the parent. A loader caches the classes it resolved, so the
+     * session gets a new one with every new job, and the next version
+     * of a class takes over.
+     */
+    public static class SessionLoader extends ClassLoader {
+        private final List<JobClassLoader> jobs;
+
+        public SessionLoader(ClassLoader parent) {
+            this(parent, new ArrayList<JobClassLoader>());
+        }
+
+        private SessionLoader(ClassLoader parent, List<JobClassLoader> jobs) {
+            super(parent);
+            this.jobs = jobs;
+        }
+
+        /**
+         * Get the loader of the session with one more job
+         *
+         * @param job the loader of the job
+         * @return the new session loader
+         */
+        public SessionLoader with(JobClassLoader job) {
+            List<JobClassLoader> result = new ArrayList<JobClassLoader>(jobs);
+            result.remove(job);
+            result.add(0, job);
+            return new SessionLoader(getParent(), result);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            for (JobClassLoader job : jobs) {
+                if (job.contains(name)) {
+                    return job.loadClass(name);
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+}
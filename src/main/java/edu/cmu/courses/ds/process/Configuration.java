@@ -0,0 +1,134 @@
+package edu.cmu.courses.ds.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The configuration of <code>ProcessManager</code>
+ * The configuration is loaded from <code>conf/mprocess.conf</code>,
+ * or from the file named by the <code>mprocess.conf</code> system
+ * property. Any key can be overridden by a system property of the
+ * same name, for example <code>-Dcheckpoint.interval=5000</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see java.util.Properties
+ */
+public class Configuration {
+    /**
+     * Default configuration file
+     */
+    public static final String DEFAULT_FILE = "conf/mprocess.conf";
+
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(Configuration.class);
+
+    /**
+     * The loaded properties
+     */
+    private static Properties properties = load();
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private Configuration() {
+    }
+
+    /**
+     * Get a string value.
+     *
+     * @param key          the configuration key
+     * @param defaultValue the value used if the key is not set
+     * @return the configured value
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get an integer value.
+     *
+     * @param key          the configuration key
+     * @param defaultValue the value used if the key is not set
+     * @return the configured value
+     */
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * Get a long value. A malformed value is logged and ignored.
+     *
+     * @param key          the configuration key
+     * @param defaultValue the value used if the key is not set
+     * @return the configured value
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.error("bad value of " + key + ": '" + value + "'");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a boolean value.
+     *
+     * @param key          the configuration key
+     * @param defaultValue the value used if the key is not set
+     * @return the configured value
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Load the configuration file. A missing file is not an error,
+     * all keys then take their default values.
+     *
+     * @return the loaded properties
+     */
+    private static Properties load() {
+        Properties result = new Properties();
+        File file = new File(System.getProperty("mprocess.conf", DEFAULT_FILE));
+        if (!file.isFile()) {
+            return result;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            result.load(in);
+        } catch (IOException e) {
+            LOG.error("read configuration " + file + " error", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOG.error("close configuration " + file + " error", e);
+                }
+            }
+        }
+        return result;
+    }
+}
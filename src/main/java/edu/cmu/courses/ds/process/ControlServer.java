@@ -0,0 +1,511 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.IOCounters;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The local control endpoint of a manager
+ * A TCP server on the loopback address, <code>control.port</code>,
+ * for scripts which drive the manager at a high rate. A request is one
+ * line of words like a console command, a reply is one line of JSON.
+ * Requests may be pipelined: a client can send any number of lines
+ * without waiting, the replies come back in the same order, and the
+ * replies of a burst of requests are flushed together. Each reply
+ * carries <code>seq</code>, the number of its request on the
+ * connection from 1, and <code>ok</code>; a failed request has an
+ * <code>error</code> message. Requests of one connection run one after
+ * the other, so a client which wants a slow migration to overlap other
+ * requests opens more connections.
+ *
+ * <pre>
+ * ping                                              {"seq":1,"ok":true}
+ * run PROCESS_NAME ARG...                           "id", "cached"
+ * ps                                                "processes": id, class, args and metrics
+ * mg [-j N] [-p] [-l] [-u] [-f] TARGET... HOST[:PORT] "selected", "migrated", "elapsedMs", "downtimesMs"
+ * stats [SECONDS]                                   "seconds", "processes" and "node" rates
+ * drain [-j N] [-p] [-l] [-f] [HOST[:PORT]...]      "migrated", "failed", "elapsedMs"
+ * </pre>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager#startControl(int)
+ */
+public class ControlServer implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ControlServer.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The longest request line in characters
+     */
+    private static final int MAX_LINE = 65536;
+
+    private final ProcessManager manager;
+    private final ServerSocket serverSocket;
+
+    /**
+     * The threads of the connections, one per connection
+     */
+    private final ExecutorService connections =
+            Executors.newCachedThreadPool(new ProcessServer.NamedThreadFactory("control"));
+
+    /**
+     * The open connections, closed when the server stops
+     */
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile boolean running = true;
+
+    /**
+     * Constructor of <code>ControlServer</code>, which binds the port
+     *
+     * @param manager the manager to control
+     * @param port    the loopback port, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public ControlServer(ProcessManager manager, int port) throws IOException {
+        this.manager = manager;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Get the bound port
+     *
+     * @return the port
+     */
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the server stops
+     */
+    public void run() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("control accept error", e);
+                }
+                continue;
+            }
+            sockets.add(socket);
+            connections.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop accepting and close every connection
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOG.debug("close control server", e);
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("close control connection", e);
+            }
+        }
+        connections.shutdown();
+    }
+
+    /**
+     * Answer the requests of one connection in order. The replies are
+     * flushed when no more request is waiting.
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+            long seq = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                seq++;
+                Json reply = new Json().field("seq", seq);
+                if (line.length() > MAX_LINE) {
+                    reply.field("ok", false).field("error", "request too long");
+                } else {
+                    execute(line.trim(), reply);
+                }
+                out.write(reply.end());
+                out.write('\n');
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (SocketException e) {
+            LOG.debug("control connection closed", e);
+        } catch (IOException e) {
+            LOG.error("control connection error", e);
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("close control connection", e);
+            }
+        }
+    }
+
+    /**
+     * Run one request and fill its reply
+     */
+    private void execute(String line, Json reply) {
+        String[] args = line.isEmpty() ? new String[]{""} : line.split("\\s+");
+        try {
+            String command = args[0].toLowerCase();
+            if (command.equals("ping")) {
+                reply.field("ok", true);
+            } else if (command.equals("run")) {
+                run(args, reply);
+            } else if (command.equals("ps")) {
+                ps(reply);
+            } else if (command.equals("mg")) {
+                migrate(args, reply);
+            } else if (command.equals("stats")) {
+                stats(args, reply);
+            } else if (command.equals("drain")) {
+                drain(args, reply);
+            } else {
+                fail(reply, "unknown command '" + args[0] + "'");
+            }
+        } catch (IllegalArgumentException e) {
+            fail(reply, e.getMessage());
+        } catch (IllegalStateException e) {
+            fail(reply, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(reply, "interrupted");
+        } catch (Exception e) {
+            LOG.error("control request '" + line + "' error", e);
+            fail(reply, e.toString());
+        }
+    }
+
+    private static void fail(Json reply, String error) {
+        reply.field("ok", false).field("error", error);
+    }
+
+    private void run(String[] args, Json reply) throws Exception {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("usage: run PROCESS_NAME ARG...");
+        }
+        MigratableProcess process = manager.runProcess(args[1], Arrays.copyOfRange(args, 2, args.length));
+        if (process == null) {
+            throw new IllegalArgumentException("no such program: '" + args[1] + "'");
+        }
+        reply.field("ok", true).field("id", process.getId()).field("cached", process.resultCached);
+    }
+
+    private void ps(Json reply) {
+        reply.field("ok", true).key("processes").append('[');
+        boolean first = true;
+        for (MigratableProcess process : manager.getProcesses()) {
+            if (!first) {
+                reply.append(',');
+            }
+            first = false;
+            ProcessMetrics metrics = process.getMetrics();
+            IOCounters io = metrics.getIO();
+            Json entry = new Json().field("id", process.getId())
+                    .field("class", process.getClass().getSimpleName()).key("args").array(process.arguments)
+                    .field("cpuMs", metrics.getCpuTime() / 1000000).field("wallMs", metrics.getWallTime() / 1000000)
+                    .field("read", io.getBytesRead()).field("written", io.getBytesWritten())
+                    .field("calls", io.getCalls()).field("suspends", metrics.getSuspendCount())
+                    .field("pauses", metrics.getPauseCount())
+                    .field("migrations", metrics.getMigrationCount());
+            reply.append(entry.end());
+        }
+        reply.append(']');
+    }
+
+    private void migrate(String[] args, Json reply) throws IOException {
+        Options options = new Options(args, true);
+        if (options.words.size() < 2) {
+            throw new IllegalArgumentException(
+                    "usage: mg [-j N] [-p] [-l] [-u] [-f] PROCESS_ID|CLASS_NAME|all... HOSTNAME[:PORT]");
+        }
+        String target = options.words.remove(options.words.size() - 1);
+        int colon = target.lastIndexOf(':');
+        String hostName = colon > 0 ? target.substring(0, colon) : target;
+        int hostPort = colon > 0 ? parsePort(target.substring(colon + 1)) :
+                Configuration.getInt("server.port", ProcessServer.PORT);
+        List<MigratableProcess> selected = manager.selectProcesses(options.words);
+        if (selected == null) {
+            throw new IllegalArgumentException("no such process: " + options.words);
+        }
+        long start = System.nanoTime();
+        int migrated = 0;
+        List<Long> downtimes = Collections.emptyList();
+        if (!selected.isEmpty()) {
+            MigrationBatch batch = manager.migrate(selected, hostName, hostPort, options.concurrency,
+                    options.precopy, options.postcopy, options.urgent, options.files);
+            migrated = batch.getDowntimes().size();
+            downtimes = batch.getDowntimes();
+        }
+        reply.field("ok", true).field("selected", selected.size()).field("migrated", migrated)
+                .field("elapsedMs", (System.nanoTime() - start) / 1e6).key("downtimesMs").append('[');
+        for (int i = 0; i < downtimes.size(); i++) {
+            if (i > 0) {
+                reply.append(',');
+            }
+            reply.number(downtimes.get(i) / 1e6);
+        }
+        reply.append(']');
+    }
+
+    private void stats(String[] args, Json reply) throws InterruptedException {
+        double seconds = 1;
+        if (args.length > 2) {
+            throw new IllegalArgumentException("usage: stats [SECONDS]");
+        }
+        if (args.length == 2) {
+            try {
+                seconds = Double.parseDouble(args[1]);
+            } catch (NumberFormatException e) {
+                seconds = -1;
+            }
+            if (seconds < 0) {
+                throw new IllegalArgumentException("bad interval: " + args[1]);
+            }
+        }
+        ProcessStats stats = ProcessStats.sample(manager, (long) (seconds * 1000));
+        reply.field("ok", true).field("seconds", stats.seconds).key("processes").append('[');
+        for (int i = 0; i < stats.rows.size(); i++) {
+            ProcessStats.Row row = stats.rows.get(i);
+            if (i > 0) {
+                reply.append(',');
+            }
+            reply.append(new Json().field("id", row.process.getId())
+                    .field("class", row.process.getClass().getSimpleName()).field("cpu", row.cpu)
+                    .field("readRate", row.readRate).field("writeRate", row.writeRate)
+                    .field("callRate", row.callRate).end());
+        }
+        reply.append(']').key("node").append(new Json().field("processes", stats.rows.size())
+                .field("cpu", stats.cpu).field("readRate", stats.readRate).field("writeRate", stats.writeRate)
+                .field("callRate", stats.callRate).field("streamReadRate", stats.nodeReadRate)
+                .field("streamWriteRate", stats.nodeWriteRate).field("load", stats.load).end());
+    }
+
+    private void drain(String[] args, Json reply) {
+        Options options = new Options(args, false);
+        List<String> targets = options.words;
+        if (targets.isEmpty()) {
+            targets.addAll(manager.getBalancer().getPeers());
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("usage: drain [-j N] [-p] [-l] [-f] [HOSTNAME[:PORT]...]");
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            String target = targets.get(i);
+            int colon = target.lastIndexOf(':');
+            if (colon <= 0) {
+                targets.set(i, target + ":" + Configuration.getInt("server.port", ProcessServer.PORT));
+            } else {
+                parsePort(target.substring(colon + 1));
+            }
+        }
+        if (manager.isDraining()) {
+            throw new IllegalStateException("a drain is running");
+        }
+        NodeDrain drain = new NodeDrain(manager, targets, options.concurrency, options.precopy,
+                options.postcopy, options.files);
+        int migrated = drain.run();
+        reply.field("ok", true).field("migrated", migrated).key("failed").append('[');
+        List<MigratableProcess> failed = drain.getFailed();
+        for (int i = 0; i < failed.size(); i++) {
+            if (i > 0) {
+                reply.append(',');
+            }
+            reply.number(failed.get(i).getId());
+        }
+        reply.append(']').field("elapsedMs", drain.getElapsed() / 1e6);
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad port: " + port);
+        }
+    }
+
+    /**
+     * The options of the migrate and drain requests, with the defaults
+     * of the configuration, and the words after them
+     */
+    private static class Options {
+        int concurrency = Configuration.getInt("migration.parallel", 4);
+        boolean precopy = Configuration.getBoolean("migration.precopy", false);
+        boolean postcopy = Configuration.getBoolean("migration.postcopy", false);
+        boolean urgent;
+        boolean files = Configuration.getBoolean("migration.files", false);
+        final List<String> words;
+
+        Options(String[] args, boolean migrate) {
+            words = new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+            while (!words.isEmpty() && words.get(0).startsWith("-")) {
+                String option = words.remove(0);
+                if (option.equals("-p")) {
+                    precopy = true;
+                } else if (option.equals("-l")) {
+                    postcopy = true;
+                } else if (migrate && option.equals("-u")) {
+                    urgent = true;
+                } else if (option.equals("-f")) {
+                    files = true;
+                } else if (option.equals("-j") && !words.isEmpty()) {
+                    try {
+                        concurrency = Integer.parseInt(words.remove(0));
+                    } catch (NumberFormatException e) {
+                        concurrency = 0;
+                    }
+                    if (concurrency <= 0) {
+                        throw new IllegalArgumentException("bad concurrency");
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+        }
+    }
+
+    /**
+     * A JSON object written field by field
+     */
+    private static class Json {
+        private final StringBuilder sb = new StringBuilder("{");
+        private boolean empty = true;
+
+        Json key(String name) {
+            if (!empty) {
+                sb.append(',');
+            }
+            empty = false;
+            string(name);
+            sb.append(':');
+            return this;
+        }
+
+        Json field(String name, String value) {
+            key(name);
+            if (value == null) {
+                sb.append("null");
+            } else {
+                string(value);
+            }
+            return this;
+        }
+
+        Json field(String name, long value) {
+            key(name).sb.append(value);
+            return this;
+        }
+
+        Json field(String name, double value) {
+            key(name).number(value);
+            return this;
+        }
+
+        Json field(String name, boolean value) {
+            key(name).sb.append(value);
+            return this;
+        }
+
+        Json array(List<String> values) {
+            sb.append('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                string(values.get(i));
+            }
+            sb.append(']');
+            return this;
+        }
+
+        Json number(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                sb.append("null");
+            } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                sb.append((long) value);
+            } else {
+                sb.append(String.format(Locale.ROOT, "%.3f", value));
+            }
+            return this;
+        }
+
+        Json append(char c) {
+            sb.append(c);
+            return this;
+        }
+
+        Json append(String raw) {
+            sb.append(raw);
+            return this;
+        }
+
+        private void string(String value) {
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+
+        String end() {
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package edu.cmu.courses.ds.process;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.io.TransactionalLineReader;
+
+/**
+ * The external merge sort example of <code>MigratableProcess</code>
+ * Sort all lines of a file which may be much larger than the heap.
+ *
+ * The process has two phases. In the run generation phase the input
+ * is cut into chunks of <code>RUN_LINES</code> lines, and each chunk
+ * is sorted and spilled to a run file by a pool of worker threads,
+ * so several runs are sorted in parallel. In the merge phase at most
+ * <code>FAN_IN</code> runs are k-way merged at a time by using a
+ * <code>PriorityQueue</code> of merge cursors, until only the output
+ * file is left.
+ *
+ * The run list, the partially filled chunk and the merge cursors are
+ * all serializable, so the process can migrate during either phase.
+ * In-flight spills are always finished before the process returns
+ * from <code>processing()</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigratableProcess
+ * @see edu.cmu.courses.ds.io.TransactionalLineReader
+ * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream
+ */
+public class ExternalSortProcess extends MigratableProcess{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of lines of a sorted run
+     */
+    public static final int DEFAULT_RUN_LINES = 100000;
+
+    /**
+     * Default number of threads which sort and spill runs
+     */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of runs merged at the same time
+     */
+    public static final int FAN_IN = 64;
+
+    /**
+     * Buffer size of each merge cursor's reader
+     */
+    private static final int CURSOR_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Buffer size of the output stream
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Line separator bytes of run and output files
+     */
+    private static final byte[] NEW_LINE = {'\n'};
+
+    /**
+     * Which step is the process in.
+     * 0: run generation, 1: merge, 2: finished
+     */
+    private int step;
+
+    /**
+     * The input file name
+     */
+    private String inputFile;
+
+    /**
+     * The output file name
+     */
+    private String outputFile;
+
+    /**
+     * Number of lines of a sorted run
+     */
+    private int runLines;
+
+    /**
+     * Number of threads which sort and spill runs
+     */
+    private int threads;
+
+    /**
+     * Line reader of the input file
+     */
+    private TransactionalLineReader reader;
+
+    /**
+     * The lines of the chunk which is being read
+     */
+    private ArrayList<String> chunk;
+
+    /**
+     * Sequence number of the next run file
+     */
+    private int nextRun;
+
+    /**
+     * Runs which are spilled and wait for merging, in creation order.
+     * Merged runs are appended at the end.
+     */
+    private ArrayList<Run> runs;
+
+    /**
+     * Runs of the current merge pass
+     */
+    private ArrayList<Run> merging;
+
+    /**
+     * Runs which are already merged. They are only deleted when the
+     * last pass finishes, so an older checkpoint of the process can
+     * still replay the passes after them.
+     */
+    private ArrayList<Run> merged;
+
+    /**
+     * Merge cursors of the current merge pass
+     */
+    private PriorityQueue<MergeCursor> heap;
+
+    /**
+     * Target run of the current merge pass, <code>null</code> if the
+     * current pass writes the output file.
+     */
+    private Run mergeTarget;
+
+    /**
+     * Output stream of the current merge pass
+     */
+    private TransactionalFileOutputStream mergeStream;
+
+    /**
+     * Spilling thread pool, recreated after migration.
+     */
+    private transient ExecutorService spillers;
+
+    /**
+     * Pending spill tasks, always empty when the process is suspended.
+     */
+    private transient List<Future<Run>> spilling;
+
+    /**
+     * The constructor with parameters.
+     *
+     * @param args command line arguments from <code>ProcessManager</code>
+     */
+    public ExternalSortProcess(String[] args){
+        super(args);
+        if(arguments.size() < 2){
+            System.out.println("usage: run ExternalSortProcess INPUT OUTPUT [RUN_LINES] [THREADS]");
+            return;
+        }
+        inputFile = arguments.get(0);
+        outputFile = arguments.get(1);
+        runLines = arguments.size() > 2 ? Integer.parseInt(arguments.get(2)) : DEFAULT_RUN_LINES;
+        threads = arguments.size() > 3 ? Integer.parseInt(arguments.get(3)) : DEFAULT_THREADS;
+        if(runLines <= 0 || threads <= 0){
+            throw new IllegalArgumentException("RUN_LINES and THREADS must be positive");
+        }
+        reader = new TransactionalLineReader(new TransactionalFileInputStream(new File(inputFile)));
+        chunk = new ArrayList<String>();
+        runs = new ArrayList<Run>();
+        merged = new ArrayList<Run>();
+        step = 0;
+        nextRun = 0;
+    }
+
+    /**
+     * Implementation of <code>processing()</code> from
+     * <code>MigratableProcess</code>.
+     * This function should loop with the <code>suspending</code> flag.
+     * Generate the sorted runs first, then merge them into the output
+     * file. The process can resume to the particular phase, chunk and
+     * merge position after migration.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    @Override
+    public void processing() throws IOException {
+        if(reader == null){
+            return;
+        }
+        if(step == 0){
+            generateRuns();
+        }
+        if(step == 1 && !suspending){
+            mergeRuns();
+        }
+    }
+
+    /**
+     * Run generation phase. Read chunks of <code>runLines</code>
+     * lines and hand them to the spilling pool. At most
+     * <code>threads</code> chunks are in flight, which bounds the
+     * memory used by this phase.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    private void generateRuns() throws IOException {
+        spillers = Executors.newFixedThreadPool(threads);
+        spilling = new ArrayList<Future<Run>>();
+        try{
+            while(!suspending){
+                String line = reader.readLine();
+                if(line != null){
+                    chunk.add(line);
+                    if(chunk.size() < runLines){
+                        continue;
+                    }
+                }
+                if(!chunk.isEmpty()){
+                    if(spilling.size() >= threads){
+                        collect(spilling.remove(0));
+                    }
+                    spilling.add(spillers.submit(new Spill(chunk, newRun())));
+                    chunk = new ArrayList<String>();
+                }
+                if(line == null){
+                    reader.close();
+                    step = 1;
+                    break;
+                }
+            }
+        }finally{
+            try{
+                for(Future<Run> future : spilling){
+                    collect(future);
+                }
+            }finally{
+                spilling.clear();
+                spillers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Merge phase. Merge at most <code>FAN_IN</code> runs in one pass,
+     * the merged run is appended to the run list until the last pass,
+     * which writes the output file.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    private void mergeRuns() throws IOException {
+        while(!suspending && step == 1){
+            if(heap == null){
+                startMergePass();
+            }
+            OutputStream out = new BufferedOutputStream(mergeStream, OUTPUT_BUFFER_SIZE);
+            try{
+                while(!suspending && !heap.isEmpty()){
+                    MergeCursor cursor = heap.poll();
+                    out.write(cursor.line.getBytes("UTF-8"));
+                    out.write(NEW_LINE);
+                    if(cursor.advance()){
+                        heap.offer(cursor);
+                    }
+                }
+            }finally{
+                out.flush();
+            }
+            if(heap.isEmpty()){
+                finishMergePass();
+            }
+        }
+    }
+
+    /**
+     * Take the first <code>FAN_IN</code> runs and open a cursor
+     * for each of them.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    private void startMergePass() throws IOException {
+        int n = Math.min(FAN_IN, runs.size());
+        merging = new ArrayList<Run>(runs.subList(0, n));
+        runs.subList(0, n).clear();
+        File target;
+        if(runs.isEmpty()){
+            mergeTarget = null;
+            target = new File(outputFile);
+        }else{
+            mergeTarget = newRun();
+            target = mergeTarget.file;
+        }
+        target.delete();
+        mergeStream = new TransactionalFileOutputStream(target);
+        heap = new PriorityQueue<MergeCursor>(Math.max(n, 1));
+        for(Run run : merging){
+            MergeCursor cursor = new MergeCursor(run);
+            if(cursor.advance()){
+                heap.offer(cursor);
+            }
+        }
+    }
+
+    /**
+     * Close the current pass and queue the merged run, or delete all
+     * runs and finish the process after the last pass, creating the
+     * output file if the input had no line.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    private void finishMergePass() throws IOException {
+        mergeStream.close();
+        merged.addAll(merging);
+        if(mergeTarget == null){
+            // an empty input writes no line, but still has an output
+            new File(outputFile).createNewFile();
+            for(Run run : merged){
+                run.file.delete();
+            }
+            merged.clear();
+            step = 2;
+        }else{
+            runs.add(mergeTarget);
+        }
+        merging = null;
+        heap = null;
+        mergeTarget = null;
+        mergeStream = null;
+    }
+
+    /**
+     * Create the descriptor of the next run file
+     *
+     * @return the run
+     */
+    private Run newRun(){
+        return new Run(new File(outputFile + ".run" + (nextRun++)));
+    }
+
+    /**
+     * Wait for a spill task and record its run.
+     *
+     * @param future the spill task
+     * @throws IOException if the spill failed
+     */
+    private void collect(Future<Run> future) throws IOException {
+        Run run;
+        try{
+            run = future.get();
+        }catch (InterruptedException e){
+            throw new IOException("ExternalSortProcess[" + id + "]: interrupted", e);
+        }catch (ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("ExternalSortProcess[" + id + "]: spill failed", e.getCause());
+        }
+        runs.add(run);
+    }
+
+    /**
+     * The descriptor of a sorted run file
+     */
+    static class Run implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The run file
+         */
+        File file;
+
+        Run(File file){
+            this.file = file;
+        }
+    }
+
+    /**
+     * The cursor of a run in a merge pass. It keeps the head line
+     * of the run and a serializable reader positioned right after it.
+     */
+    static class MergeCursor implements Serializable, Comparable<MergeCursor> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The head line of the run
+         */
+        String line;
+
+        /**
+         * The reader of the run file
+         */
+        TransactionalLineReader reader;
+
+        MergeCursor(Run run){
+            this.reader = new TransactionalLineReader(
+                    new TransactionalFileInputStream(run.file), CURSOR_BUFFER_SIZE);
+        }
+
+        /**
+         * Move to the next line of the run.
+         *
+         * @return <code>false</code> if the run is exhausted
+         * @throws IOException if any IO error occurs.
+         */
+        boolean advance() throws IOException {
+            line = reader.readLine();
+            if(line == null){
+                reader.close();
+                return false;
+            }
+            return true;
+        }
+
+        public int compareTo(MergeCursor other){
+            return line.compareTo(other.line);
+        }
+    }
+
+    /**
+     * The spill task, sorts a chunk and writes it to a run file.
+     */
+    static class Spill implements Callable<Run> {
+        private List<String> lines;
+        private Run run;
+
+        Spill(List<String> lines, Run run){
+            this.lines = lines;
+            this.run = run;
+        }
+
+        public Run call() throws IOException {
+            Collections.sort(lines);
+            run.file.delete();
+            TransactionalFileOutputStream stream = new TransactionalFileOutputStream(run.file);
+            OutputStream out = new BufferedOutputStream(stream, OUTPUT_BUFFER_SIZE);
+            try{
+                Iterator<String> it = lines.iterator();
+                while(it.hasNext()){
+                    out.write(it.next().getBytes("UTF-8"));
+                    out.write(NEW_LINE);
+                }
+                out.flush();
+            }finally{
+                stream.close();
+            }
+            return run;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.ChunkStore;
+import edu.cmu.courses.ds.io.ContentChunker;
+import edu.cmu.courses.ds.io.FileManifest;
+import edu.cmu.courses.ds.io.FileShipment;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The node-local cache of shipped input files
+ * Chunks received from other managers are verified against their hash
+ * and kept in a <code>ChunkStore</code> under
+ * <code>files.cache.dir</code>. When a migrated process needs a file,
+ * its chunks are joined into one file named after the manifest ID,
+ * which later processes reading the same content use as it is.
+ *
+ * Chunks and files are touched whenever they are used, and when the
+ * cache grows beyond <code>files.cache.max</code> bytes the least
+ * recently used ones are deleted. Each <code>ProcessManager</code> has
+ * its own cache.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.FileShipment
+ * @see edu.cmu.courses.ds.process.FileTransfer
+ */
+public class FileCache implements FileShipment.Resolver {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(FileCache.class);
+
+    /**
+     * Valid chunk hashes and manifest IDs
+     */
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * Suffix of joined files which are being written
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The chunks and the joined files
+     */
+    private ChunkStore chunks;
+    private File chunkDir;
+    private File fileDir;
+
+    /**
+     * The cache size limit in bytes
+     */
+    private long maxBytes;
+
+    /**
+     * The cache size in bytes, -1 until it is counted
+     */
+    private long size = -1;
+
+    /**
+     * Constructor with the configured size limit
+     *
+     * @param directory the cache directory
+     */
+    FileCache(File directory) {
+        this(directory, Configuration.getLong("files.cache.max", 4L * 1024 * 1024 * 1024));
+    }
+
+    /**
+     * Constructor of <code>FileCache</code>
+     *
+     * @param directory the cache directory
+     * @param maxBytes  the cache size limit in bytes
+     */
+    FileCache(File directory, long maxBytes) {
+        this.chunkDir = new File(directory, "chunks");
+        this.fileDir = new File(directory, "files");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Check if the joined file of a manifest is here, and touch it
+     *
+     * @param id the manifest ID
+     * @return <code>true</code> if the file is here
+     */
+    public boolean hasFile(String id) {
+        return HASH.matcher(id).matches() && touch(new File(fileDir, id));
+    }
+
+    /**
+     * Check if a chunk is here, and touch it
+     *
+     * @param hash the chunk hash
+     * @return <code>true</code> if the chunk is here
+     */
+    public boolean hasChunk(String hash) {
+        return HASH.matcher(hash).matches() && touch(new File(chunkDir, hash));
+    }
+
+    /**
+     * Get the length of a chunk which is here, and touch it
+     *
+     * @param hash the chunk hash
+     * @return the chunk length, -1 if the chunk is missing
+     */
+    public long getChunkLength(String hash) {
+        if (!hasChunk(hash)) {
+            return -1;
+        }
+        return new File(chunkDir, hash).length();
+    }
+
+    /**
+     * Store a received chunk
+     *
+     * @param hash   the chunk hash
+     * @param data   the data
+     * @param offset the chunk offset in the data
+     * @param length the chunk length
+     * @throws IOException if the hash doesn't match the content, or
+     *                     the chunk can't be written
+     */
+    public void putChunk(String hash, byte[] data, int offset, int length) throws IOException {
+        if (!HASH.matcher(hash).matches() || !hash.equals(ContentChunker.hash(data, offset, length))) {
+            throw new IOException("chunk doesn't match its hash " + hash);
+        }
+        if (getChunks().put(hash, data, offset, length)) {
+            grow(length);
+        }
+    }
+
+    /**
+     * Read a chunk, and touch it
+     *
+     * @param hash the chunk hash
+     * @return the chunk content
+     * @throws IOException if the chunk is missing or can't be read
+     */
+    public byte[] getChunk(String hash) throws IOException {
+        if (!hasChunk(hash)) {
+            throw new IOException("chunk " + hash + " is missing");
+        }
+        return getChunks().get(hash);
+    }
+
+    /**
+     * Get the joined file of a manifest, joining its chunks first if
+     * needed
+     *
+     * @param manifest the manifest
+     * @return the file
+     * @throws IOException if a chunk is missing or the file can't be
+     *                     written
+     */
+    public File resolve(FileManifest manifest) throws IOException {
+        String id = manifest.getId();
+        if (!HASH.matcher(id).matches()) {
+            throw new IOException("bad manifest of " + manifest.getPath());
+        }
+        File file = new File(fileDir, id);
+        if (touch(file)) {
+            return file;
+        }
+        getChunks();
+        if (!fileDir.isDirectory() && !fileDir.mkdirs() && !fileDir.isDirectory()) {
+            throw new IOException("create file cache directory " + fileDir + " failed");
+        }
+        File temp = new File(fileDir, id + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (String hash : manifest.getHashes()) {
+                File chunk = new File(chunkDir, hash);
+                if (!HASH.matcher(hash).matches() || !touch(chunk)) {
+                    throw new IOException("chunk " + hash + " of " + manifest.getPath() + " is missing");
+                }
+                FileChannel in = FileChannel.open(chunk.toPath(), StandardOpenOption.READ);
+                try {
+                    long position = 0;
+                    long length = in.size();
+                    while (position < length) {
+                        position += in.transferTo(position, length - position, out);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (out.size() != manifest.getLength()) {
+                throw new IOException("joined " + manifest.getPath() + " has the wrong length");
+            }
+        } catch (IOException e) {
+            out.close();
+            if (!temp.delete()) {
+                LOG.warn("can't delete " + temp);
+            }
+            throw e;
+        }
+        out.close();
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        grow(manifest.getLength());
+        LOG.info("joined " + manifest.getPath() + " into " + file);
+        return file;
+    }
+
+    /**
+     * Get the chunk store, creating the directory
+     */
+    private synchronized ChunkStore getChunks() throws IOException {
+        if (chunks == null) {
+            chunks = new ChunkStore(chunkDir);
+        }
+        return chunks;
+    }
+
+    /**
+     * Set the modification time of a file to now
+     *
+     * @return <code>true</code> if the file exists
+     */
+    private static boolean touch(File file) {
+        return file.isFile() && (file.setLastModified(System.currentTimeMillis()) || file.isFile());
+    }
+
+    /**
+     * Count new bytes, and evict if the cache is too large
+     */
+    private synchronized void grow(long bytes) {
+        if (size < 0) {
+            size = 0;
+            for (File file : list()) {
+                size += file.length();
+            }
+        } else {
+            size += bytes;
+        }
+        if (size > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used chunks and files until the cache
+     * is down to 90% of its limit
+     */
+    private void evict() {
+        List<File> files = list();
+        final long[] modified = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            modified[i] = files.get(i).lastModified();
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+        long target = maxBytes / 10 * 9;
+        for (int i : order) {
+            if (size <= target) {
+                break;
+            }
+            File file = files.get(i);
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                LOG.info("evicted " + file);
+            }
+        }
+    }
+
+    /**
+     * List the chunks and joined files
+     */
+    private List<File> list() {
+        List<File> files = new ArrayList<File>();
+        for (File dir : new File[]{chunkDir, fileDir}) {
+            File[] entries = dir.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (HASH.matcher(entry.getName()).matches()) {
+                        files.add(entry);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Get the cache size
+     *
+     * @return the size of the chunks and joined files in bytes
+     */
+    public synchronized long getSize() {
+        grow(0);
+        return size;
+    }
+
+    /**
+     * Get the cache size limit
+     *
+     * @return the limit in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "file cache " + chunkDir.getParent() + " " + getSize() + "/" + maxBytes + "B";
+    }
+}
@@ -0,0 +1,251 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.ContentChunker;
+import edu.cmu.courses.ds.io.FileManifest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The connection which ships input files to one peer
+ * It is a second session to the peer, so a large file never holds up
+ * the frames and acknowledgements of the main session. For each file
+ * the sender asks which chunks the peer has, then sends the missing
+ * ones straight from the file into the socket with
+ * <code>FileChannel.transferTo()</code>, and waits until the peer has
+ * stored them all. The chunks are throttled like pre-copy blocks.
+ * Large migration frames are shipped the same way, cut into content
+ * defined chunks, so a peer which got an earlier frame of the same
+ * process only gets the chunks that changed since.
+ *
+ * One file is shipped at a time; concurrent migrations to the peer
+ * take turns.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.FileShipment
+ * @see edu.cmu.courses.ds.process.FileCache
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ */
+public class FileTransfer {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(FileTransfer.class);
+
+    /**
+     * The peer address, "host:port"
+     */
+    private String peer;
+
+    /**
+     * The connection
+     */
+    private SocketChannel channel;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    /**
+     * Bytes of chunks sent, and bytes of chunks the peer already had
+     */
+    private long sent;
+    private long skipped;
+
+    /**
+     * The bandwidth limits of the main session
+     */
+    private MigrationThrottle throttle;
+
+    /**
+     * Open a file session to a peer
+     *
+     * @param host     the peer host name
+     * @param port     the peer port
+     * @param throttle the bandwidth limits of the main session
+     * @throws IOException if the peer can't be connected
+     */
+    public FileTransfer(String host, int port, MigrationThrottle throttle) throws IOException {
+        this.peer = host + ":" + port;
+        this.throttle = throttle;
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port),
+                    Configuration.getInt("peer.connect.timeout", 5000));
+            channel.socket().setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            MigrationHandshake.offer(in, out, MigrationHandshake.SESSION_VERSION);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Make sure the peer has the content of a file
+     *
+     * @param file     the file
+     * @param manifest the manifest of the file
+     * @return the number of bytes sent
+     * @throws IOException if the chunks can't be sent or stored
+     */
+    public synchronized long ship(File file, FileManifest manifest) throws IOException {
+        String[] hashes = manifest.getHashes();
+        MigrationSession.writeHave(out, manifest.getId(), hashes);
+        out.flush();
+        byte[] have = readAnswer(MigrationSession.HAVE, 1 + hashes.length);
+        if (have[0] != 0) {
+            skipped += manifest.getLength();
+            return 0;
+        }
+        long bytes = 0;
+        int count = 0;
+        FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            for (int i = 0; i < hashes.length; i++) {
+                int length = manifest.getLength(i);
+                if (have[1 + i] != 0) {
+                    skipped += length;
+                    continue;
+                }
+                throttle.acquire(peer, length, MigrationThrottle.Lane.NORMAL);
+                MigrationSession.writeChunk(out, i, hashes[i], length);
+                out.flush();
+                long position = manifest.getOffset(i);
+                long end = position + length;
+                while (position < end) {
+                    long n = source.transferTo(position, end - position, channel);
+                    if (n <= 0 && source.size() < end) {
+                        throw new IOException(file + " shrank while it was shipped");
+                    }
+                    position += n;
+                }
+                bytes += length;
+                count++;
+            }
+        } finally {
+            source.close();
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] ack = readAnswer(MigrationSession.ACK, 1);
+            if (ack[0] == 0) {
+                throw new IOException(peer + " failed to store a chunk of " + file);
+            }
+        }
+        sent += bytes;
+        LOG.info("shipped " + bytes + "B of " + file + " to " + peer);
+        return bytes;
+    }
+
+    /**
+     * Make sure the peer has the content defined chunks of a frame
+     *
+     * @param data   the frame
+     * @param chunks the chunks of the frame
+     * @return the number of bytes sent
+     * @throws IOException if the chunks can't be sent or stored
+     */
+    public synchronized long ship(byte[] data, List<ContentChunker.Chunk> chunks) throws IOException {
+        String[] hashes = new String[chunks.size()];
+        StringBuilder joined = new StringBuilder(hashes.length * 40);
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = chunks.get(i).hash;
+            joined.append(hashes[i]);
+        }
+        byte[] name = joined.toString().getBytes("UTF-8");
+        MigrationSession.writeHave(out, ContentChunker.hash(name, 0, name.length), hashes);
+        out.flush();
+        byte[] have = readAnswer(MigrationSession.HAVE, 1 + hashes.length);
+        long bytes = 0;
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            ContentChunker.Chunk chunk = chunks.get(i);
+            if (have[0] != 0 || have[1 + i] != 0) {
+                skipped += chunk.length;
+                continue;
+            }
+            throttle.acquire(peer, chunk.length, MigrationThrottle.Lane.NORMAL);
+            MigrationSession.writeChunk(out, i, chunk.hash, chunk.length);
+            out.write(data, chunk.offset, chunk.length);
+            out.flush();
+            bytes += chunk.length;
+            count++;
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] ack = readAnswer(MigrationSession.ACK, 1);
+            if (ack[0] == 0) {
+                throw new IOException(peer + " failed to store a chunk of a frame");
+            }
+        }
+        sent += bytes;
+        return bytes;
+    }
+
+    /**
+     * Read the answer to a question
+     */
+    private byte[] readAnswer(byte type, int length) throws IOException {
+        byte actual = in.readByte();
+        in.readInt();
+        int size = in.readInt();
+        if (actual != type || size != length) {
+            throw new IOException("bad file session message type " + actual);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    /**
+     * Get the bytes of chunks sent
+     *
+     * @return the count
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the bytes of chunks the peer already had
+     *
+     * @return the count
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Check if the connection is open
+     *
+     * @return <code>true</code> if open
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("close file session to " + peer + " error", e);
+        }
+    }
+}
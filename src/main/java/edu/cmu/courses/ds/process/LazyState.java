@@ -0,0 +1,142 @@
+package edu.cmu.courses.ds.process;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A large field of a process which may migrate after the process
+ * Wrap buffers, sorted runs or any other bulky state of a
+ * <code>MigratableProcess</code> in a <code>LazyState</code> and read
+ * it with <code>get()</code>. A post-copy migration sends only a
+ * handle of the state, so the process starts on the new host right
+ * away; the value follows in the background, and <code>get()</code>
+ * blocks until it arrives if the process needs it earlier. Any other
+ * encoding, such as a checkpoint or a normal migration, writes the
+ * value inline.
+ *
+ * A state which is migrated again before its value arrived is fetched
+ * first, so a handle always points to the manager holding the value.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PostCopy
+ */
+public class LazyState<T extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Encoding modes
+     */
+    private static final byte INLINE = 0;
+    private static final byte REMOTE = 1;
+
+    /**
+     * The value, if loaded
+     */
+    private transient T value;
+
+    /**
+     * Whether <code>value</code> is here
+     */
+    private transient boolean loaded;
+
+    /**
+     * The ID of this state when this manager exports it
+     */
+    private transient long id;
+
+    /**
+     * Where the value is, if not loaded
+     */
+    private transient String host;
+    private transient int port;
+    private transient long remoteId;
+
+    /**
+     * Constructor of <code>LazyState</code>
+     *
+     * @param value the initial value
+     */
+    public LazyState(T value) {
+        this.value = value;
+        this.loaded = true;
+        this.id = PostCopy.newId();
+    }
+
+    /**
+     * Get the value, fetching it first if it hasn't arrived yet
+     *
+     * @return the value
+     * @throws IOException if the value can't be fetched
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T get() throws IOException {
+        if (!loaded) {
+            value = (T) PostCopy.fetch(host, port, remoteId);
+            loaded = true;
+            host = null;
+        }
+        return value;
+    }
+
+    /**
+     * Replace the value
+     *
+     * @param value the new value
+     */
+    public synchronized void set(T value) {
+        this.value = value;
+        this.loaded = true;
+        this.host = null;
+    }
+
+    /**
+     * Check if the value is here
+     *
+     * @return <code>true</code> if <code>get()</code> won't block
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Get the value as it is, for serving a fetch
+     */
+    synchronized T peek() {
+        return value;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        PostCopy.Export export = PostCopy.currentExport();
+        T current = get();
+        if (export == null) {
+            out.writeByte(INLINE);
+            out.writeObject(current);
+        } else {
+            export.add(id, this);
+            out.writeByte(REMOTE);
+            out.writeUTF(export.getHost());
+            out.writeInt(export.getPort());
+            out.writeLong(id);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        id = PostCopy.newId();
+        byte mode = in.readByte();
+        if (mode == INLINE) {
+            value = (T) in.readObject();
+            loaded = true;
+        } else if (mode == REMOTE) {
+            host = in.readUTF();
+            port = in.readInt();
+            remoteId = in.readLong();
+            PostCopy.prefetch(this);
+        } else {
+            throw new IOException("bad lazy state mode " + mode);
+        }
+    }
+}
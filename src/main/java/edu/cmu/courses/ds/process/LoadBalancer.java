@@ -0,0 +1,499 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.IOCounters;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The automatic migration balancer of a manager
+ * Every <code>balancer.interval</code> milliseconds the balancer takes
+ * the <code>LoadSummary</code> of its manager and exchanges it with the
+ * peers of <code>balancer.peers</code>, over their migration sessions.
+ * Peers which exchange with this manager are learned the same way. If
+ * this node scores higher than the coldest peer, processes migrate
+ * there.
+ *
+ * Several rules keep the balancers of a cluster from thrashing:
+ * <ul>
+ *     <li>the gap between the scores must exceed
+ *     <code>balancer.threshold</code> for <code>balancer.sustain</code>
+ *     rounds in a row, and the count only restarts once the gap falls
+ *     below half the threshold</li>
+ *     <li>no more than enough processes to even out the two scores
+ *     move, and at most <code>balancer.max</code> per round</li>
+ *     <li>after a migration the balancer waits
+ *     <code>balancer.cooldown</code> milliseconds, and a process
+ *     doesn't move again within <code>balancer.process.cooldown</code>
+ *     milliseconds of its start</li>
+ *     <li>summaries older than three intervals, and peers using more
+ *     than <code>balancer.memory.max</code> of their heap, are
+ *     ignored</li>
+ * </ul>
+ * With <code>balancer.steal</code>, a balancer whose manager runs no
+ * process asks the busiest peer for work instead, and the peer splits
+ * off a part of one of its <code>SplittableProcess</code>es for it, see
+ * <code>ProcessSplitter</code>.
+ *
+ * Each decision is logged, appended to the file
+ * <code>balancer.log</code>, and the last ones are kept for the
+ * <code>bal</code> command.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LoadSummary
+ * @see edu.cmu.courses.ds.process.ProcessManager#migrate(List, String, int, int, boolean, boolean, boolean, boolean)
+ */
+public class LoadBalancer implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(LoadBalancer.class);
+
+    /**
+     * Number of decisions kept for the <code>bal</code> command
+     */
+    private static final int HISTORY = 20;
+
+    /**
+     * The manager of the processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The configured peers, "host:port"
+     */
+    private List<String> peers = new CopyOnWriteArrayList<String>();
+
+    /**
+     * The last summary of each node, by "host:port"
+     */
+    private Map<String, LoadSummary> loads = new ConcurrentHashMap<String, LoadSummary>();
+
+    /**
+     * Settings
+     */
+    private long interval;
+    private double threshold;
+    private int sustain;
+    private int maxPerRound;
+    private long cooldown;
+    private long processCooldown;
+    private double memoryMax;
+    private double ioScale;
+    private boolean stealing;
+
+    /**
+     * The decision log file, <code>null</code> if not configured
+     */
+    private File logFile;
+
+    /**
+     * Number of rounds in a row the node was hot
+     */
+    private int hotRounds;
+
+    /**
+     * When the last migration of the balancer finished
+     */
+    private long lastMigration;
+
+    /**
+     * Transactional I/O bytes and time of the last local sample
+     */
+    private long lastBytes = -1;
+    private long lastSample;
+    private double ioRate;
+
+    /**
+     * The last decisions
+     */
+    private LinkedList<String> decisions = new LinkedList<String>();
+
+    /**
+     * The background balancing thread
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor of <code>LoadBalancer</code>, read the settings and
+     * the peers from <code>Configuration</code>.
+     *
+     * @param manager the process manager
+     */
+    public LoadBalancer(ProcessManager manager) {
+        this.manager = manager;
+        this.interval = Math.max(1, Configuration.getLong("balancer.interval", 5000));
+        this.threshold = Double.parseDouble(Configuration.get("balancer.threshold", "1.0"));
+        this.sustain = Math.max(1, Configuration.getInt("balancer.sustain", 3));
+        this.maxPerRound = Math.max(1, Configuration.getInt("balancer.max", 2));
+        this.cooldown = Configuration.getLong("balancer.cooldown", 15000);
+        this.processCooldown = Configuration.getLong("balancer.process.cooldown", 60000);
+        this.memoryMax = Double.parseDouble(Configuration.get("balancer.memory.max", "0.9"));
+        this.ioScale = Configuration.getLong("balancer.io.scale", 50L * 1024 * 1024);
+        this.stealing = Configuration.getBoolean("balancer.steal", false);
+        String log = Configuration.get("balancer.log", "");
+        this.logFile = log.length() == 0 ? null : new File(log);
+        for (String peer : Configuration.get("balancer.peers", "").split("[,\\s]+")) {
+            if (peer.length() > 0) {
+                addPeer(peer);
+            }
+        }
+    }
+
+    /**
+     * Add a peer to exchange loads with
+     *
+     * @param peer "host:port", or "host" for <code>server.port</code>
+     */
+    public void addPeer(String peer) {
+        if (peer.lastIndexOf(':') <= 0) {
+            peer = peer + ":" + Configuration.getInt("server.port", ProcessServer.PORT);
+        }
+        if (!peers.contains(peer)) {
+            peers.add(peer);
+        }
+    }
+
+    /**
+     * Get the peers to exchange loads with
+     *
+     * @return "host:port" of each peer
+     */
+    public List<String> getPeers() {
+        return new ArrayList<String>(peers);
+    }
+
+    /**
+     * Start the periodic balancing
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "balancer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic balancing
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Check if the periodic balancing is enabled
+     *
+     * @return <code>true</code> if enabled
+     */
+    public synchronized boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    /**
+     * Take the summary of the local node. The I/O rate is averaged
+     * since the previous sample, over at least one second.
+     *
+     * @return the summary
+     */
+    public synchronized LoadSummary sample() {
+        long now = System.currentTimeMillis();
+        IOCounters io = manager.getIO();
+        long bytes = io.getBytesRead() + io.getBytesWritten();
+        if (lastBytes < 0) {
+            lastBytes = bytes;
+            lastSample = now;
+        } else if (now - lastSample >= 1000) {
+            ioRate = (bytes - lastBytes) * 1000.0 / (now - lastSample);
+            lastBytes = bytes;
+            lastSample = now;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        double cpu = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        cpu = cpu < 0 ? 0 : cpu / cores;
+        Runtime runtime = Runtime.getRuntime();
+        double memory = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+        return new LoadSummary(getNode(), manager.getProcesses().size(), cores, cpu, ioRate, memory);
+    }
+
+    /**
+     * Record the summary of a peer, sent with its exchange
+     *
+     * @param summary the summary
+     */
+    public void record(LoadSummary summary) {
+        if (!summary.getNode().equals(getNode())) {
+            loads.put(summary.getNode(), summary);
+        }
+    }
+
+    /**
+     * Get the node name of this manager in load summaries, which peers
+     * migrate to
+     *
+     * @return "host:port"
+     */
+    public String getNode() {
+        String host = manager.getAddress();
+        if (host == null) {
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                host = "localhost";
+            }
+        }
+        return host + ":" + manager.getServerPort();
+    }
+
+    /**
+     * The implementation of <code>Runnable</code> interface.
+     * Run one balancing round.
+     */
+    public void run() {
+        try {
+            balance();
+        } catch (RuntimeException e) {
+            LOG.error("balancing round failed", e);
+        }
+    }
+
+    /**
+     * Exchange the loads with the peers, then move processes to the
+     * coldest peer if this node is hot enough for long enough. Nothing
+     * moves while the manager is drained.
+     *
+     * @return the number of migrated processes
+     */
+    public int balance() {
+        if (manager.isDraining()) {
+            return 0;
+        }
+        LoadSummary local = sample();
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            try {
+                PeerConnection connection = manager.getPeer(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1)));
+                record(LoadSummary.parse(connection.exchangeLoad(local.encode())));
+            } catch (IOException e) {
+                LOG.debug("exchange load with " + peer + " failed", e);
+            } catch (NumberFormatException e) {
+                LOG.warn("bad balancer peer " + peer);
+            }
+        }
+
+        if (stealing && local.getProcesses() == 0) {
+            steal();
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        LoadSummary coldest = null;
+        for (LoadSummary load : loads.values()) {
+            if (now - load.getTime() > 3 * interval) {
+                loads.remove(load.getNode());
+            } else if (load.getMemory() <= memoryMax &&
+                    (coldest == null || load.score(ioScale) < coldest.score(ioScale))) {
+                coldest = load;
+            }
+        }
+        if (coldest == null) {
+            hotRounds = 0;
+            return 0;
+        }
+
+        double gap = local.score(ioScale) - coldest.score(ioScale);
+        if (gap > threshold) {
+            hotRounds++;
+        } else if (gap < threshold / 2) {
+            hotRounds = 0;
+            return 0;
+        }
+        if (hotRounds < sustain) {
+            return 0;
+        }
+        String reason = String.format("local %.2f vs %s %.2f, hot for %d rounds",
+                local.score(ioScale), coldest.getNode(), coldest.score(ioScale), hotRounds);
+        if (now - lastMigration < cooldown) {
+            decide("hold", reason + ", cooling down");
+            return 0;
+        }
+
+        int count = 0;
+        while (count < maxPerRound &&
+                local.score(ioScale, -(count + 1)) >= coldest.score(ioScale, count + 1)) {
+            count++;
+        }
+        if (count == 0) {
+            decide("hold", reason + ", a migration would reverse the gap");
+            return 0;
+        }
+        List<MigratableProcess> selected = selectProcesses(now, count);
+        if (selected.isEmpty()) {
+            decide("hold", reason + ", all processes are cooling down");
+            return 0;
+        }
+
+        StringBuilder ids = new StringBuilder();
+        for (MigratableProcess process : selected) {
+            ids.append(ids.length() == 0 ? "" : ",").append(process.getId());
+        }
+        int colon = coldest.getNode().lastIndexOf(':');
+        int migrated = 0;
+        try {
+            MigrationBatch batch = manager.migrate(selected, coldest.getNode().substring(0, colon),
+                    Integer.parseInt(coldest.getNode().substring(colon + 1)),
+                    Configuration.getInt("migration.parallel", 4),
+                    Configuration.getBoolean("migration.precopy", false),
+                    Configuration.getBoolean("migration.postcopy", false), false,
+                    Configuration.getBoolean("migration.files", false));
+            migrated = batch.getDowntimes().size();
+        } catch (IOException e) {
+            LOG.debug("connect " + coldest.getNode() + " failed", e);
+        } catch (NumberFormatException e) {
+            LOG.warn("bad node " + coldest.getNode());
+        }
+        decide("migrate", reason + ", moved " + migrated + "/" + selected.size() +
+                " processes [" + ids + "] to " + coldest.getNode());
+        coldest.addProcesses(migrated);
+        lastMigration = System.currentTimeMillis();
+        hotRounds = 0;
+        return migrated;
+    }
+
+    /**
+     * Ask the busiest peer with processes for a part of one of them
+     */
+    private void steal() {
+        long now = System.currentTimeMillis();
+        LoadSummary busiest = null;
+        for (LoadSummary load : loads.values()) {
+            if (now - load.getTime() <= 3 * interval && load.getProcesses() > 0 &&
+                    (busiest == null || load.score(ioScale) > busiest.score(ioScale))) {
+                busiest = load;
+            }
+        }
+        if (busiest == null) {
+            return;
+        }
+        int colon = busiest.getNode().lastIndexOf(':');
+        try {
+            if (manager.getSplitter().steal(busiest.getNode().substring(0, colon),
+                    Integer.parseInt(busiest.getNode().substring(colon + 1)))) {
+                decide("steal", String.format("idle, %s %.2f split off a part for this node",
+                        busiest.getNode(), busiest.score(ioScale)));
+            }
+        } catch (IOException e) {
+            LOG.debug("steal from " + busiest.getNode() + " failed", e);
+        } catch (NumberFormatException e) {
+            LOG.warn("bad node " + busiest.getNode());
+        }
+    }
+
+    /**
+     * Select the processes which run here the longest, skipping those
+     * started within <code>balancer.process.cooldown</code>
+     */
+    private List<MigratableProcess> selectProcesses(long now, int count) {
+        List<MigratableProcess> candidates = new ArrayList<MigratableProcess>();
+        for (MigratableProcess process : manager.getProcesses()) {
+            if (now - process.startTime >= processCooldown) {
+                candidates.add(process);
+            }
+        }
+        Collections.sort(candidates, new Comparator<MigratableProcess>() {
+            public int compare(MigratableProcess a, MigratableProcess b) {
+                return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+            }
+        });
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    /**
+     * Log a decision and keep it for the <code>bal</code> command
+     */
+    private void decide(String action, String reason) {
+        String line = String.format("%tT %s %s: %s", System.currentTimeMillis(), getNode(), action, reason);
+        LOG.info("balancer " + line);
+        synchronized (decisions) {
+            decisions.addLast(line);
+            if (decisions.size() > HISTORY) {
+                decisions.removeFirst();
+            }
+            if (logFile != null) {
+                try {
+                    Writer writer = new FileWriter(logFile, true);
+                    try {
+                        writer.write(line + "\n");
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    LOG.warn("write balancer log " + logFile + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the last decisions
+     *
+     * @return the decisions, the oldest first
+     */
+    public List<String> getDecisions() {
+        synchronized (decisions) {
+            return new ArrayList<String>(decisions);
+        }
+    }
+
+    /**
+     * Print the loads of this node and its peers, and the last
+     * decisions
+     */
+    public void printStatus() {
+        System.out.println("Balancer is " + (isEnabled() ? "on" : "off, set balancer.enabled or type 'bal on'") +
+                ", peers: " + (peers.isEmpty() ? "none" : peers.toString()));
+        LoadSummary local = sample();
+        System.out.println(String.format("local  %s score=%.2f", local, local.score(ioScale)));
+        long now = System.currentTimeMillis();
+        for (LoadSummary load : loads.values()) {
+            System.out.println(String.format("peer   %s score=%.2f age=%dms",
+                    load, load.score(ioScale), now - load.getTime()));
+        }
+        for (String decision : getDecisions()) {
+            System.out.println(decision);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.cmu.courses.ds.process;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The load of one manager, as exchanged by <code>LoadBalancer</code>s
+ * The summary names the node by the "host:port" other managers migrate
+ * to, and holds the number of running processes, the cores, the CPU
+ * load, the rate of transactional file I/O and the heap usage. The
+ * <code>score()</code> is what the balancers compare.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LoadBalancer
+ */
+public class LoadSummary {
+    /**
+     * The node, "host:port"
+     */
+    private String node;
+
+    /**
+     * Number of running processes
+     */
+    private int processes;
+
+    /**
+     * Number of available processors
+     */
+    private int cores;
+
+    /**
+     * System load average per core, 0 if unknown
+     */
+    private double cpu;
+
+    /**
+     * Bytes per second read and written through transactional streams
+     */
+    private double ioRate;
+
+    /**
+     * Used fraction of the maximum heap
+     */
+    private double memory;
+
+    /**
+     * When the summary was taken or received, by the local clock
+     */
+    private long time;
+
+    /**
+     * Constructor of <code>LoadSummary</code>
+     *
+     * @param node      the node, "host:port"
+     * @param processes number of running processes
+     * @param cores     number of available processors
+     * @param cpu       system load average per core
+     * @param ioRate    transactional I/O in bytes per second
+     * @param memory    used fraction of the maximum heap
+     */
+    public LoadSummary(String node, int processes, int cores, double cpu, double ioRate, double memory) {
+        this.node = node;
+        this.processes = processes;
+        this.cores = Math.max(1, cores);
+        this.cpu = cpu;
+        this.ioRate = ioRate;
+        this.memory = memory;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * The load score: runnable processes per core, plus the CPU load,
+     * plus the I/O rate in units of <code>ioScale</code>
+     *
+     * @param ioScale the I/O rate which weighs as much as one process
+     *                per core, in bytes per second
+     * @return the score
+     */
+    public double score(double ioScale) {
+        return (double) processes / cores + cpu + (ioScale > 0 ? ioRate / ioScale : 0);
+    }
+
+    /**
+     * The score of a node with some more or fewer processes, all else
+     * being equal
+     *
+     * @param ioScale the I/O rate which weighs as much as one process
+     *                per core
+     * @param delta   the change of the process count
+     * @return the score
+     */
+    public double score(double ioScale, int delta) {
+        return score(ioScale) + (double) delta / cores;
+    }
+
+    /**
+     * Serialize the summary into a session message body
+     *
+     * @return the bytes
+     */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(node);
+            out.writeInt(processes);
+            out.writeInt(cores);
+            out.writeDouble(cpu);
+            out.writeDouble(ioRate);
+            out.writeDouble(memory);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parse a session message body
+     *
+     * @param body the bytes
+     * @return the summary, timed now
+     * @throws IOException if the body is malformed
+     */
+    public static LoadSummary parse(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String node = in.readUTF();
+        int processes = in.readInt();
+        int cores = in.readInt();
+        double cpu = in.readDouble();
+        double ioRate = in.readDouble();
+        double memory = in.readDouble();
+        if (processes < 0 || cores <= 0 || in.available() != 0) {
+            throw new IOException("bad load summary");
+        }
+        return new LoadSummary(node, processes, cores, cpu, ioRate, memory);
+    }
+
+    /**
+     * Get the node
+     *
+     * @return "host:port"
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Get the number of running processes
+     *
+     * @return the count
+     */
+    public int getProcesses() {
+        return processes;
+    }
+
+    /**
+     * Get the used fraction of the maximum heap
+     *
+     * @return the fraction
+     */
+    public double getMemory() {
+        return memory;
+    }
+
+    /**
+     * Get when the summary was taken or received
+     *
+     * @return the <code>System.currentTimeMillis()</code> of the summary
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Count processes which were just migrated to the node, until its
+     * next summary arrives
+     *
+     * @param count the number of processes
+     */
+    void addProcesses(int count) {
+        processes += count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s processes=%d cores=%d cpu=%.2f io=%.0fB/s mem=%.0f%%",
+                node, processes, cores, cpu, ioRate, memory * 100);
+    }
+}
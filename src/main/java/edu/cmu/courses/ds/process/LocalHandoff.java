@@ -0,0 +1,334 @@
+package edu.cmu.courses.ds.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The same-host fast path of migrations
+ * When the peer of a migration session runs on the same host, large
+ * frames are not sent through the loopback socket. The sender copies
+ * the frame into a memory-mapped handoff file in
+ * <code>migration.local.dir</code> and sends only the ID of the file
+ * and the frame length; the receiver maps the file and decodes the
+ * frame right from the mapping. Both managers of a host must use the
+ * same directory, which is the case with the default.
+ *
+ * Each session keeps a small <code>Pool</code> of handoff files, which
+ * stay mapped and are reused once their frame is acknowledged, so a
+ * migration costs neither file creation nor page faults. The sender
+ * holds a lock on its files, and files whose lock is free belong to a
+ * dead manager and are swept. The receiver only reads files named
+ * after an ID in its own directory, and only for peers on its host.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
+ */
+public class LocalHandoff {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(LocalHandoff.class);
+
+    /**
+     * Name prefix and suffix of handoff files
+     */
+    private static final String PREFIX = "handoff-";
+    private static final String SUFFIX = ".frame";
+
+    /**
+     * The next handoff file ID, starting at a random value so managers
+     * sharing the directory don't collide
+     */
+    private static final AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong());
+
+    /**
+     * Whether the directory was swept by this manager
+     */
+    private static boolean swept;
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private LocalHandoff() {
+    }
+
+    /**
+     * Check if frames to a peer may be handed off through files
+     *
+     * @param address the peer address
+     * @return <code>true</code> if <code>migration.local.handoff</code>
+     *         is set and the address belongs to this host
+     */
+    public static boolean isEnabled(InetAddress address) {
+        return Configuration.getBoolean("migration.local.handoff", true) && isLocal(address);
+    }
+
+    /**
+     * Check if an address belongs to this host
+     *
+     * @param address the address
+     * @return <code>true</code> if it is a loopback address or the
+     *         address of a local interface
+     */
+    public static boolean isLocal(InetAddress address) {
+        if (address == null) {
+            return false;
+        }
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the minimum frame size which is handed off
+     *
+     * @return the size in bytes
+     */
+    public static int getThreshold() {
+        return Configuration.getInt("migration.local.threshold", 64 * 1024);
+    }
+
+    /**
+     * Map the frame of a handoff file
+     *
+     * @param id     the file ID
+     * @param length the frame length
+     * @return the frame, valid until it is acknowledged
+     * @throws IOException if the file is missing or too short
+     */
+    public static ByteBuffer read(long id, int length) throws IOException {
+        File file = getFile(id);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() < length) {
+                throw new IOException("short handoff file " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the handoff directory
+     */
+    private static File getDirectory() {
+        String shm = new File("/dev/shm").isDirectory() ? "/dev/shm" : System.getProperty("java.io.tmpdir");
+        return new File(Configuration.get("migration.local.dir", new File(shm, "mprocess-handoff").getPath()));
+    }
+
+    /**
+     * Get the handoff file of an ID
+     */
+    private static File getFile(long id) {
+        return new File(getDirectory(), PREFIX + Long.toHexString(id) + SUFFIX);
+    }
+
+    /**
+     * Create the directory, and delete the files of dead managers once
+     */
+    private static synchronized File prepareDirectory() throws IOException {
+        File dir = getDirectory();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can't create handoff directory " + dir);
+        }
+        if (swept) {
+            return dir;
+        }
+        swept = true;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return dir;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                try {
+                    FileLock lock = channel.tryLock();
+                    if (lock != null) {
+                        if (!file.delete()) {
+                            LOG.warn("can't delete stale handoff file " + file);
+                        }
+                        lock.release();
+                    }
+                } catch (OverlappingFileLockException e) {
+                    LOG.debug("handoff file " + file + " is in use", e);
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOG.debug("sweep handoff file " + file + " error", e);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * The handoff files of one session
+     */
+    public static class Pool {
+        /**
+         * Files which are not in flight
+         */
+        private final List<Slot> free = new ArrayList<Slot>();
+
+        /**
+         * All files of the pool
+         */
+        private final List<Slot> all = new ArrayList<Slot>();
+
+        /**
+         * Closed flag
+         */
+        private boolean closed;
+
+        /**
+         * Copy a frame into a free handoff file, or a new one
+         *
+         * @param frame the frame bytes
+         * @return the file, in flight until released
+         * @throws IOException if no file can be created
+         */
+        public Slot write(byte[] frame) throws IOException {
+            Slot slot = null;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("handoff pool is closed");
+                }
+                for (int i = 0; i < free.size(); i++) {
+                    if (free.get(i).buffer.capacity() >= frame.length) {
+                        slot = free.remove(i);
+                        break;
+                    }
+                }
+                if (slot == null && !free.isEmpty()) {
+                    Slot small = free.remove(0);
+                    all.remove(small);
+                    small.delete();
+                }
+            }
+            if (slot == null) {
+                slot = new Slot(frame.length);
+                synchronized (this) {
+                    all.add(slot);
+                }
+            }
+            ByteBuffer buffer = slot.buffer.duplicate();
+            buffer.clear();
+            buffer.put(frame);
+            return slot;
+        }
+
+        /**
+         * Return a file after its migration. A file whose frame was not
+         * acknowledged may still be read by the peer, so it is deleted
+         * instead of reused.
+         *
+         * @param slot         the file
+         * @param acknowledged <code>true</code> if the peer answered
+         */
+        public synchronized void release(Slot slot, boolean acknowledged) {
+            if (closed || !acknowledged) {
+                all.remove(slot);
+                slot.delete();
+            } else {
+                free.add(slot);
+            }
+        }
+
+        /**
+         * Delete all files
+         */
+        public synchronized void close() {
+            closed = true;
+            for (Slot slot : all) {
+                slot.delete();
+            }
+            all.clear();
+            free.clear();
+        }
+    }
+
+    /**
+     * A mapped handoff file
+     */
+    public static class Slot {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final MappedByteBuffer buffer;
+
+        Slot(int length) throws IOException {
+            File dir = prepareDirectory();
+            id = nextId.getAndIncrement();
+            file = new File(dir, PREFIX + Long.toHexString(id) + SUFFIX);
+            int capacity = Integer.highestOneBit(Math.max(length, 4096) - 1) << 1;
+            if (capacity <= 0) {
+                capacity = Integer.MAX_VALUE;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lock = channel.lock();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                channel.close();
+                if (!file.delete()) {
+                    LOG.warn("can't delete handoff file " + file);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Get the file ID
+         *
+         * @return the ID
+         */
+        public long getId() {
+            return id;
+        }
+
+        private void delete() {
+            try {
+                lock.release();
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("close handoff file " + file + " error", e);
+            }
+            if (!file.delete()) {
+                LOG.warn("can't delete handoff file " + file);
+            }
+        }
+    }
+}
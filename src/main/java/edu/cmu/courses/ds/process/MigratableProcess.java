@@ -1,7 +1,9 @@
 package edu.cmu.courses.ds.process;
 
+import edu.cmu.courses.ds.io.IOCounters;
 import edu.cmu.courses.ds.io.TransactionalFileInputStream;
 import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.io.TransactionalLineReader;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,9 +11,12 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The abstract class of Migratable Process
@@ -42,17 +47,122 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     protected volatile boolean suspending;
 
+    /**
+     * The running flag. It is set before the process thread starts,
+     * and cleared when <code>run()</code> returns.
+     */
+    protected transient volatile boolean running;
+
+    /**
+     * The finished flag. It is set when <code>processing()</code>
+     * returns before any suspension was requested, or throws.
+     */
+    protected volatile boolean finished;
+
+    /**
+     * Whether a suspension was requested or <code>processing()</code>
+     * returned by itself, whichever came first. It decides if a return
+     * from <code>processing()</code> is a suspension or the end of the
+     * work, so a suspension arriving right after the process finished
+     * can't turn it into a suspended one.
+     */
+    private transient volatile int control;
+
+    private static final int NONE = 0;
+    private static final int SUSPEND = 1;
+    private static final int RETURNED = 2;
+
+    private static final AtomicIntegerFieldUpdater<MigratableProcess> CONTROL =
+            AtomicIntegerFieldUpdater.newUpdater(MigratableProcess.class, "control");
+
+    /**
+     * The pausing flag, set with <code>suspending</code> by
+     * <code>pause()</code>, so the thread waits in <code>run()</code>
+     * instead of ending when <code>processing()</code> returns
+     */
+    private transient volatile boolean pausing;
+
+    /**
+     * Set while the thread waits in <code>run()</code> for
+     * <code>unpause()</code>
+     */
+    private transient volatile boolean paused;
+
+    /**
+     * The thread running the process, and the thread waiting for it to
+     * pause
+     */
+    private transient volatile Thread thread;
+    private transient volatile Thread pauser;
+
+    /**
+     * The failed flag. It is set when <code>processing()</code> throws.
+     */
+    protected transient volatile boolean failed;
+
     /**
      * The process ID
      */
     protected long id;
 
+    /**
+     * The manager running the process, set when it starts
+     */
+    transient ProcessManager manager;
+
+    /**
+     * When the process last started on its manager, in milliseconds
+     */
+    transient volatile long startTime;
+
+    /**
+     * The manager which merges the outputs of the parts of a split
+     * process, "host:port", set when the process or the process it was
+     * split off is split the first time
+     *
+     * @see edu.cmu.courses.ds.process.ProcessSplitter
+     */
+    String splitCoordinator;
+
+    /**
+     * The output path of the process this one was split off, and the
+     * index of this part among the parts split off that process
+     */
+    String splitParent;
+    int splitIndex;
+
+    /**
+     * Number of parts split off this process
+     */
+    int splitCount;
+
+    /**
+     * The key of the outputs in the result cache, set when the process
+     * starts by name and the cache is enabled
+     *
+     * @see edu.cmu.courses.ds.process.ResultCache
+     */
+    String resultKey;
+
+    /**
+     * Set when the outputs of the process came from the result cache,
+     * so it never ran
+     */
+    transient volatile boolean resultCached;
+
+    /**
+     * The I/O, CPU, suspend and migration metrics of the process
+     *
+     * @see edu.cmu.courses.ds.process.ProcessMetrics
+     */
+    private ProcessMetrics metrics = new ProcessMetrics();
+
     /**
      * Constructor of MigratableProcess without any argument.
      */
     public MigratableProcess(){
         initProcess(new String[0]);
-        this.id = ProcessManager.getInstance().generateID();
+        this.id = ProcessManager.nextID();
     }
 
     /**
@@ -62,7 +172,7 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     public MigratableProcess(String[] arguments){
         initProcess(arguments);
-        this.id = ProcessManager.getInstance().generateID();
+        this.id = ProcessManager.nextID();
     }
 
     /**
@@ -82,6 +192,10 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      * The implementation of <code>Runnable</code> interface.
      * Call the <code>processing()</code> idle loop, if any
      * <code>IOException</code> raised, we log the error information.
+     * The process finished if <code>processing()</code> returned before
+     * any suspension was requested. When it returns for a pause, the
+     * thread waits here and calls <code>processing()</code> again after
+     * <code>unpause()</code>.
      * We assure when the process finished its work, the
      * <code>ProcessManager</code> is notified by using
      * <code>finishProcess</code>.
@@ -90,32 +204,141 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      * @see edu.cmu.courses.ds.process.ProcessManager#finishProcess(MigratableProcess)
      */
     public void run(){
+        running = true;
+        failed = true;
+        thread = Thread.currentThread();
+        boolean suspended = false;
+        ProcessMetrics m = getMetrics();
+        m.getIO().setNode(manager != null ? manager.getIO() : null);
         try{
-            processing();
+            while (true) {
+                m.start();
+                countStreams(m.getIO());
+                processing();
+                if (CONTROL.compareAndSet(this, NONE, RETURNED)) {
+                    break;
+                }
+                if (!pausing) {
+                    suspended = true;
+                    break;
+                }
+                m.stop();
+                waitUnpause();
+            }
+            failed = false;
         }catch (IOException e){
             LOG.error(this.getClass().getSimpleName() + "[" + id + "]", e);
         }finally {
-            ProcessManager.getInstance().finishProcess(this);
+            m.stop();
+            finished = !suspended;
+            if (manager != null) {
+                manager.finishProcess(this);
+            }
+            thread = null;
+            running = false;
             suspending = false;
+            LockSupport.unpark(pauser);
+        }
+    }
+
+    /**
+     * Wait in <code>run()</code> until <code>unpause()</code>
+     */
+    private void waitUnpause() {
+        suspending = false;
+        paused = true;
+        LockSupport.unpark(pauser);
+        boolean interrupted = false;
+        while (pausing) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+        paused = false;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Suspend the running process.
      * Set the <code>suspending</code> flag, and wait the process breaks
-     * from its idle loop.
+     * from its idle loop. If the process is not running, for example it
+     * finished just before, the function returns immediately, the caller
+     * can tell this case by <code>isFinished()</code>.
      *
      * @throws InterruptedException if the suspending process is
      *                              interrupted
      */
     public void suspend() throws InterruptedException {
-        suspending = true;
-        while(suspending)
+        if (running) {
+            getMetrics().suspended();
+        }
+        if (CONTROL.compareAndSet(this, NONE, SUSPEND) || control == SUSPEND) {
+            suspending = true;
+        }
+        while(running)
         {
         	Thread.sleep(10);
         }
     }
 
+    /**
+     * Pause the running process to take a snapshot of it.
+     * Like <code>suspend()</code> the process breaks from its idle loop,
+     * but its thread waits in <code>run()</code> instead of ending, and
+     * the process stays with its manager, until <code>unpause()</code>
+     * lets it continue on the same thread.
+     *
+     * @return <code>true</code> if the process is paused, and must be
+     *         unpaused; <code>false</code> if it finished, failed, or
+     *         was not running
+     * @throws InterruptedException if the pausing thread is interrupted
+     */
+    boolean pause() throws InterruptedException {
+        if (!running) {
+            return false;
+        }
+        pauser = Thread.currentThread();
+        pausing = true;
+        if (!CONTROL.compareAndSet(this, NONE, SUSPEND)) {
+            pausing = false;
+            while (running) {
+                Thread.sleep(10);
+            }
+            return false;
+        }
+        getMetrics().paused();
+        suspending = true;
+        boolean interrupted = false;
+        while (!paused && running) {
+            LockSupport.parkNanos(this, 1000000);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+        if (paused && interrupted) {
+            unpause();
+        } else if (!paused) {
+            pausing = false;
+        }
+        if (interrupted) {
+            throw new InterruptedException("pause of " + getClass().getSimpleName() + "[" + id + "]");
+        }
+        return paused;
+    }
+
+    /**
+     * Let a paused process continue on its thread
+     */
+    void unpause() {
+        suspending = false;
+        CONTROL.set(this, NONE);
+        pausing = false;
+        LockSupport.unpark(thread);
+    }
+
     /**
      * Resume the running process from suspending.
      * Clear the <code>suspending</code> flag, and start the process again.
@@ -123,6 +346,7 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     public void resume(){
     	suspending = false;
+        CONTROL.set(this, NONE);
     }
     
     
@@ -137,7 +361,7 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream#setMigrated(boolean)
      */
     public void migrated(){
-        this.id = ProcessManager.getInstance().generateID();
+        this.id = ProcessManager.nextID();
 
         Field f[] = this.getClass().getDeclaredFields();
         for (int i = 0; i < f.length; i++) {
@@ -179,6 +403,67 @@ public abstract class MigratableProcess implements Runnable, Serializable{
     }
     
 
+    /**
+     * Let the transactional streams of the process, in the fields of its
+     * class and superclasses, count their I/O in the process metrics.
+     * A field counts by the value it holds, so a stream in a field
+     * declared as <code>InputStream</code> or <code>Object</code>
+     * counts too, and so does the stream under a
+     * <code>TransactionalLineReader</code>.
+     */
+    private void countStreams(IOCounters counters) {
+        for (Class<?> c = getClass(); c != MigratableProcess.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                if (field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    Object value = field.get(this);
+                    if (value instanceof TransactionalFileInputStream) {
+                        ((TransactionalFileInputStream) value).setCounters(counters);
+                    } else if (value instanceof TransactionalFileOutputStream) {
+                        ((TransactionalFileOutputStream) value).setCounters(counters);
+                    } else if (value instanceof TransactionalLineReader) {
+                        ((TransactionalLineReader) value).setCounters(counters);
+                    }
+                } catch (IllegalAccessException e) {
+                    LOG.warn("count I/O of field " + field.getName() + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the metrics of the process
+     *
+     * @return the metrics, created if the process was saved without
+     */
+    public ProcessMetrics getMetrics() {
+        ProcessMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if (metrics == null) {
+                    metrics = new ProcessMetrics();
+                }
+                m = metrics;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Check if the process has finished its work
+     *
+     * @return <code>true</code> if the process finished
+     */
+    public boolean isFinished(){
+        return finished;
+    }
+
     /**
      * Get the process id
      *
@@ -0,0 +1,494 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.io.FileManifest;
+import edu.cmu.courses.ds.io.FileShipment;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A batch migration of several processes to one host
+ * The processes are migrated in parallel, at most
+ * <code>concurrency</code> at a time. Each one is suspended, encoded,
+ * and its frame sent to the host over its migration session as soon as
+ * it is ready, then its acknowledgement is awaited before the next
+ * process is taken, so no more than <code>concurrency</code> processes
+ * are ever suspended at once. Processes which fail to migrate are
+ * restarted locally, just like a single migration.
+ *
+ * In pre-copy mode each process is migrated on its own by a
+ * <code>PreCopyMigration</code> instead: it is copied in rounds while
+ * it runs, then suspended only for the final stop-and-copy.
+ *
+ * In post-copy mode the <code>LazyState</code> fields of the processes
+ * are exported instead of encoded, and the host fetches them after
+ * starting the processes. Post-copy combines with both modes.
+ *
+ * When input files are shipped, the chunks of the files the processes
+ * read which the host doesn't have are sent while the processes are
+ * encoded, see <code>FileShipment</code>.
+ *
+ * A process is restarted locally only when the host said it didn't
+ * start it. If the host doesn't acknowledge a frame in time, the
+ * migration is cancelled, and the host's answer to the cancel decides.
+ * A process whose fate stays unknown, because the connection failed
+ * after its frame went out, is not restarted, so it never runs twice;
+ * its checkpoint, if any, is kept.
+ *
+ * The downtime of a process is the time from the start of its suspend
+ * to the arrival of its own acknowledgement, when it runs again on the
+ * host; it never includes the encoding or transfer of other processes.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection#migrate(List, MigrationThrottle.Lane)
+ * @see edu.cmu.courses.ds.process.PreCopyMigration
+ * @see edu.cmu.courses.ds.process.PostCopy
+ */
+public class MigrationBatch {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(MigrationBatch.class);
+
+    /**
+     * The manager of the processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The migration session to the host
+     */
+    private PeerConnection peer;
+
+    /**
+     * The processes to migrate
+     */
+    private List<MigratableProcess> processes;
+
+    /**
+     * Maximum number of processes suspended and encoded at the same time
+     */
+    private int concurrency;
+
+    /**
+     * Pre-copy mode
+     */
+    private boolean precopy;
+
+    /**
+     * Post-copy mode
+     */
+    private boolean postcopy;
+
+    /**
+     * Send the frames in the urgent lane of the throttle
+     */
+    private boolean urgent;
+
+    /**
+     * Ship the input files of the processes with them
+     */
+    private boolean files;
+
+    /**
+     * Results of the last run
+     */
+    private List<Long> downtimes = new ArrayList<Long>();
+    private long elapsed;
+    private long shipped;
+
+    /**
+     * Constructor of <code>MigrationBatch</code>
+     *
+     * @param manager     the manager of the processes
+     * @param peer        the migration session to the host
+     * @param processes   the processes to migrate
+     * @param concurrency maximum number of processes suspended and
+     *                    encoded at the same time
+     * @param precopy     migrate with pre-copy rounds
+     * @param postcopy    export <code>LazyState</code> fields
+     */
+    public MigrationBatch(ProcessManager manager, PeerConnection peer, List<MigratableProcess> processes,
+                          int concurrency, boolean precopy, boolean postcopy) {
+        this.manager = manager;
+        this.peer = peer;
+        this.processes = processes;
+        this.concurrency = Math.max(1, concurrency);
+        this.precopy = precopy;
+        this.postcopy = postcopy;
+    }
+
+    /**
+     * Send the frames ahead of other migrations when the bandwidth is
+     * throttled. Each frame goes in the lane of its size otherwise;
+     * pre-copy rounds always go in the bulk lane.
+     *
+     * @param urgent <code>true</code> for the urgent lane
+     * @see edu.cmu.courses.ds.process.MigrationThrottle
+     */
+    public void setUrgent(boolean urgent) {
+        this.urgent = urgent;
+    }
+
+    /**
+     * Ship the input files of the processes to the host, for hosts
+     * which don't share storage with this one. Only the chunks the host
+     * doesn't have yet are sent, before the frame of the process.
+     * Off by default.
+     *
+     * @param files <code>true</code> to ship input files
+     * @see edu.cmu.courses.ds.io.FileShipment
+     */
+    public void setShipFiles(boolean files) {
+        this.files = files;
+    }
+
+    /**
+     * Migrate the processes and print the result of each one and the
+     * aggregate downtime.
+     *
+     * @return the number of processes which migrated
+     */
+    public int run() {
+        long start = System.nanoTime();
+        downtimes.clear();
+        shipped = 0;
+        List<Item> items = prepare();
+        long wire = 0;
+        for (Item item : items) {
+            wire += item.wire;
+            shipped += item.shipped;
+        }
+
+        int migrated = 0;
+        long total = 0;
+        long max = 0;
+        for (Item item : items) {
+            String name = item.process.getClass().getSimpleName() + "[" + item.process.getId() + "]";
+            if (item.export != null) {
+                if (!item.status) {
+                    PostCopy.withdraw(item.export);
+                } else if (item.export.getCount() > 0) {
+                    item.detail += " lazy=" + item.export.getCount();
+                }
+            }
+            if (item.finished) {
+                System.out.println("Process finished: " + name);
+                continue;
+            }
+            if (item.start == 0) {
+                System.out.println((item.running ? "Failed to migrate " : "Failed to suspend ") + name);
+                continue;
+            }
+            if (item.unknown) {
+                System.out.println("Unknown if " + name + " migrated, the connection to " +
+                        peer.getPeer() + " failed; not restarted");
+                LOG.error("no acknowledgement of " + name + " from " + peer.getPeer() +
+                        ", not restarted");
+                continue;
+            }
+            if (!item.status) {
+                System.out.println("Failed to migrate " + name);
+                manager.finishMigration(item.process, false);
+                continue;
+            }
+            long downtime = item.end - item.start;
+            downtimes.add(downtime);
+            total += downtime;
+            max = Math.max(max, downtime);
+            migrated++;
+            System.out.println(String.format("Successfully migrated %s downtime=%.1fms wire=%dB%s",
+                    name, downtime / 1000000.0, item.wire, item.detail));
+            if (item.frame != null) {
+                LOG.info(String.format("%s to %s: codec=%s compression=%s raw=%dB wire=%dB ratio=%.2f downtime=%dms",
+                        name, peer.getPeer(), item.frame.getCodec().getName(),
+                        item.frame.getCompression().getValue(), item.frame.getRawLength(),
+                        item.frame.getBytes().length, item.frame.getRatio(), downtime / 1000000));
+            }
+            manager.finishMigration(item.process, true);
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.println(String.format(
+                "Migrated %d/%d processes to %s in %.1fms: downtime avg=%.1fms max=%.1fms wire=%dB",
+                migrated, items.size(), peer.getPeer(), elapsed / 1000000.0,
+                migrated == 0 ? 0 : total / 1000000.0 / migrated, max / 1000000.0, wire));
+        return migrated;
+    }
+
+    /**
+     * Get the downtime of each migrated process of the last run
+     *
+     * @return the downtimes in nanoseconds
+     */
+    public List<Long> getDowntimes() {
+        return downtimes;
+    }
+
+    /**
+     * Get the wall time of the last run
+     *
+     * @return the time in nanoseconds
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Get the bytes of input file chunks shipped in the last run
+     *
+     * @return the count
+     */
+    public long getShipped() {
+        return shipped;
+    }
+
+    /**
+     * Migrate the processes in parallel
+     */
+    private List<Item> prepare() {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, processes.size()),
+                new ProcessServer.NamedThreadFactory("migration"));
+        List<Future<Item>> futures = new ArrayList<Future<Item>>();
+        for (final MigratableProcess process : processes) {
+            futures.add(executor.submit(new Callable<Item>() {
+                public Item call() {
+                    PostCopy.Export export = null;
+                    if (postcopy) {
+                        export = PostCopy.beginExport(peer.getLocalAddress(), manager.getServerPort());
+                    }
+                    final long[] shipped = new long[1];
+                    if (files) {
+                        FileShipment.beginExport(new FileShipment.Exporter() {
+                            public void export(File file, FileManifest manifest) throws IOException {
+                                shipped[0] += peer.shipFile(file, manifest);
+                            }
+                        });
+                    }
+                    try {
+                        Item item;
+                        if (precopy) {
+                            item = precopy(process);
+                        } else {
+                            item = prepare(process);
+                            if (item.frame != null) {
+                                send(item);
+                            }
+                        }
+                        item.export = export;
+                        item.shipped = shipped[0];
+                        if (shipped[0] > 0) {
+                            item.detail += " files=" + shipped[0] + "B";
+                        }
+                        return item;
+                    } finally {
+                        PostCopy.endExport();
+                        FileShipment.endExport();
+                    }
+                }
+            }));
+        }
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                items.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                LOG.error("migration interrupted", e);
+                Thread.currentThread().interrupt();
+                items.add(new Item(processes.get(i)));
+            } catch (ExecutionException e) {
+                LOG.error("migration error", e.getCause());
+                items.add(new Item(processes.get(i)));
+            }
+        }
+        executor.shutdown();
+        return items;
+    }
+
+    /**
+     * Suspend and encode one process
+     */
+    private Item prepare(MigratableProcess process) {
+        Item item = new Item(process);
+        synchronized (process) {
+            if (!process.running) {
+                // it finished, or another migration suspended it and
+                // still owns it
+                item.finished = process.isFinished();
+                return item;
+            }
+            item.start = System.nanoTime();
+            try {
+                process.suspend();
+            } catch (InterruptedException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] suspend error", e);
+                item.start = 0;
+                return item;
+            }
+            MigrationTrace.record(MigrationTrace.Phase.SUSPEND, process, item.start);
+            if (process.isFinished()) {
+                item.finished = true;
+                return item;
+            }
+            try {
+                long serialize = System.nanoTime();
+                item.frame = peer.build(process);
+                MigrationTrace.record(MigrationTrace.Phase.SERIALIZE, process, serialize);
+                item.wire = item.frame.getBytes().length;
+            } catch (IOException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] encode error", e);
+            } catch (RuntimeException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] encode error", e);
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Send the frame of one suspended process and wait for its
+     * acknowledgement
+     */
+    private void send(Item item) {
+        try {
+            long sent = System.nanoTime();
+            PeerConnection.Ack ack = peer.migrate(Collections.singletonList(item.frame),
+                    urgent ? MigrationThrottle.Lane.URGENT : null).get(0);
+            item.status = ack.isStarted();
+            item.unknown = !ack.isAnswered();
+            item.end = ack.getTime();
+            MigrationTrace.record(MigrationTrace.Phase.TRANSFER, item.process, sent, item.end);
+        } catch (IOException e) {
+            LOG.error("migration of " + item.process.getClass().getSimpleName() + "[" +
+                    item.process.getId() + "] to " + peer.getPeer() + " error", e);
+        }
+    }
+
+    /**
+     * Migrate one process with pre-copy rounds
+     */
+    private Item precopy(MigratableProcess process) {
+        Item item = new Item(process);
+        PreCopyMigration migration = new PreCopyMigration(peer, process);
+        try {
+            migration.precopy();
+        } catch (IOException e) {
+            LOG.error(process.getClass().getSimpleName() +
+                    "[" + process.getId() + "] pre-copy error", e);
+            item.running = true;
+            return item;
+        }
+        synchronized (process) {
+            if (!process.running) {
+                migration.abandon();
+                item.finished = process.isFinished();
+                return item;
+            }
+            item.start = System.nanoTime();
+            try {
+                process.suspend();
+            } catch (InterruptedException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] suspend error", e);
+                migration.abandon();
+                item.start = 0;
+                return item;
+            }
+            long suspended = System.nanoTime();
+            MigrationTrace.record(MigrationTrace.Phase.SUSPEND, process, item.start, suspended);
+            if (process.isFinished()) {
+                migration.abandon();
+                item.finished = true;
+                return item;
+            }
+            try {
+                PeerConnection.Ack ack = migration.commit();
+                item.status = ack.isStarted();
+                item.unknown = !ack.isAnswered();
+                item.end = ack.getTime();
+                MigrationTrace.record(MigrationTrace.Phase.TRANSFER, process, suspended, item.end);
+            } catch (IOException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] migration error", e);
+            } catch (RuntimeException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] encode error", e);
+            }
+        }
+        item.wire = migration.getPrecopiedBytes() + migration.getFinalBytes();
+        item.detail = String.format(" rounds=%d precopied=%dB final=%dB",
+                migration.getRounds(), migration.getPrecopiedBytes(), migration.getFinalBytes());
+        return item;
+    }
+
+    /**
+     * The migration of one process
+     */
+    private static class Item {
+        final MigratableProcess process;
+        MigrationFrame frame;
+        boolean finished;
+        boolean status;
+
+        /**
+         * The frame was sent, but it is unknown whether the host
+         * started the process
+         */
+        boolean unknown;
+
+        /**
+         * The migration failed before the process was suspended
+         */
+        boolean running;
+
+        /**
+         * Bytes sent for the process
+         */
+        long wire;
+
+        /**
+         * Bytes of input file chunks shipped for the process
+         */
+        long shipped;
+
+        /**
+         * Extra information printed on success
+         */
+        String detail = "";
+
+        /**
+         * The post-copied states of the process
+         */
+        PostCopy.Export export;
+
+        /**
+         * Start of the suspend, 0 if the process wasn't suspended
+         */
+        long start;
+
+        /**
+         * Arrival of the acknowledgement
+         */
+        long end;
+
+        Item(MigratableProcess process) {
+            this.process = process;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.Compression;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The handshake of a migration connection
+ * The sender opens with a magic number, the protocol version and the
+ * compressions it can send. The <code>ProcessServer</code> side answers
+ * with the subset it can decode, and the sender only chooses among
+ * those for the frames of this connection.
+ *
+ * Version 1 connections carry a single frame and its acknowledgement.
+ * Version 2 connections are long-lived migration sessions which carry
+ * any number of frames, see <code>MigrationSession</code>.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
+ * @see edu.cmu.courses.ds.codec.Compression
+ * @see edu.cmu.courses.ds.process.MigrationSession
+ */
+public class MigrationHandshake {
+    /**
+     * Magic number of migration connections, "MGRT"
+     */
+    public static final int MAGIC = 0x4d475254;
+
+    /**
+     * Protocol version of single frame connections
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Protocol version of migration sessions
+     */
+    public static final int SESSION_VERSION = 2;
+
+    /**
+     * Size of the fixed part of the sender's offer: magic number,
+     * version and the number of compressions which follow
+     */
+    public static final int OFFER_HEADER_SIZE = 9;
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private MigrationHandshake() {
+    }
+
+    /**
+     * Sender side of the handshake
+     *
+     * @param in  the connection input
+     * @param out the connection output
+     * @return the compressions accepted by the receiver
+     * @throws IOException if the receiver doesn't speak the protocol
+     */
+    public static Set<Compression> offer(DataInputStream in, DataOutputStream out) throws IOException {
+        return offer(in, out, VERSION);
+    }
+
+    /**
+     * Sender side of the handshake of a specific protocol version
+     *
+     * @param in      the connection input
+     * @param out     the connection output
+     * @param version the protocol version
+     * @return the compressions accepted by the receiver
+     * @throws IOException if the receiver doesn't speak the protocol
+     */
+    public static Set<Compression> offer(DataInputStream in, DataOutputStream out, int version)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+        writeCompressions(out, EnumSet.allOf(Compression.class));
+        out.flush();
+        if (in.readInt() != MAGIC) {
+            throw new IOException("peer is not a process server");
+        }
+        return readCompressions(in);
+    }
+
+    /**
+     * Receiver side of the handshake
+     *
+     * @param in  the connection input
+     * @param out the connection output
+     * @return the compressions both sides support
+     * @throws IOException if the sender doesn't speak the protocol
+     */
+    public static Set<Compression> accept(DataInputStream in, DataOutputStream out) throws IOException {
+        checkOffer(in.readInt(), in.readInt());
+        Set<Compression> accepted = readCompressions(in);
+        out.write(reply(accepted));
+        out.flush();
+        return accepted;
+    }
+
+    /**
+     * Check the fixed part of the sender's offer
+     *
+     * @param magic   the magic number
+     * @param version the protocol version
+     * @throws IOException if the sender doesn't speak the protocol
+     */
+    public static void checkOffer(int magic, int version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("peer is not a process manager");
+        }
+        if (version != VERSION && version != SESSION_VERSION) {
+            throw new IOException("unsupported protocol version " + version);
+        }
+    }
+
+    /**
+     * Parse the compression IDs of the sender's offer
+     *
+     * @param ids the compression IDs
+     * @return the compressions both sides support
+     */
+    public static Set<Compression> parseCompressions(byte[] ids) {
+        Set<Compression> result = EnumSet.of(Compression.NONE);
+        for (byte id : ids) {
+            Compression compression = Compression.getInstance(id);
+            if (compression != null) {
+                result.add(compression);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build the receiver's reply
+     *
+     * @param accepted the compressions both sides support
+     * @return the reply bytes
+     */
+    public static byte[] reply(Set<Compression> accepted) {
+        byte[] bytes = new byte[5 + accepted.size()];
+        bytes[0] = (byte) (MAGIC >>> 24);
+        bytes[1] = (byte) (MAGIC >>> 16);
+        bytes[2] = (byte) (MAGIC >>> 8);
+        bytes[3] = (byte) MAGIC;
+        bytes[4] = (byte) accepted.size();
+        int i = 5;
+        for (Compression compression : accepted) {
+            bytes[i++] = compression.getId();
+        }
+        return bytes;
+    }
+
+    private static void writeCompressions(DataOutputStream out, Set<Compression> compressions) throws IOException {
+        out.writeByte(compressions.size());
+        for (Compression compression : compressions) {
+            out.writeByte(compression.getId());
+        }
+    }
+
+    private static Set<Compression> readCompressions(DataInputStream in) throws IOException {
+        byte[] ids = new byte[in.readUnsignedByte()];
+        in.readFully(ids);
+        return parseCompressions(ids);
+    }
+}
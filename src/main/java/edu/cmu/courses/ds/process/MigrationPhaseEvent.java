@@ -0,0 +1,61 @@
+package edu.cmu.courses.ds.process;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder event of one migration phase of one process
+ * The event is committed when the phase ends; its
+ * <code>elapsed</code> field is the time of the phase. Only
+ * <code>MigrationTrace</code> loads this class, and only on JVMs with
+ * Flight Recorder.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationTrace
+ */
+@Name("edu.cmu.courses.ds.MigrationPhase")
+@Label("Migration Phase")
+@Category({"Migratable Process", "Migration"})
+@Description("One phase of the migration of a process, on the sender or the receiver")
+@StackTrace(false)
+class MigrationPhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Side")
+    String side;
+
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    /**
+     * Commit an event if the recording wants it
+     */
+    static void commit(String phase, String side, MigratableProcess process, long elapsed) {
+        MigrationPhaseEvent event = new MigrationPhaseEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.phase = phase;
+        event.side = side;
+        if (process != null) {
+            event.processId = process.getId();
+            event.processClass = process.getClass().getName();
+        }
+        event.elapsed = elapsed;
+        event.commit();
+    }
+}
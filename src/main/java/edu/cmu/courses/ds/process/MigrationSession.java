@@ -0,0 +1,422 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.ClassTable;
+import edu.cmu.courses.ds.io.ContentChunker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The message format of migration sessions
+ * After a version 2 handshake, both sides exchange messages until the
+ * sender closes the connection. Each message is the type byte, the
+ * stream ID and the body length, then the body. The sender numbers
+ * its frames with stream IDs and may send the next frame before the
+ * previous one is acknowledged; the receiver acknowledges each frame
+ * with the same stream ID, in any order.
+ *
+ * <ul>
+ *     <li><code>FRAME</code>: a whole <code>MigrationFrame</code></li>
+ *     <li><code>CLASS</code>: a class definition of the session's
+ *     <code>ClassTable</code>, sent before the first frame using it</li>
+ *     <li><code>ACK</code>: one status byte, 1 if the process was
+ *     started</li>
+ *     <li><code>BLOCK</code>: the offset and bytes of a part of the
+ *     encoded process of a pre-copy migration</li>
+ *     <li><code>COMMIT</code>: the codec ID and the total length of a
+ *     pre-copy migration; the receiver decodes the image built from
+ *     the blocks of the stream and acknowledges it</li>
+ *     <li><code>DISCARD</code>: drop the blocks of an abandoned
+ *     pre-copy migration</li>
+ *     <li><code>SEAL</code>: the length of a whole
+ *     <code>MigrationFrame</code> which was sent in slices, as the
+ *     <code>BLOCK</code>s of the stream; the receiver decodes the frame
+ *     and acknowledges it</li>
+ *     <li><code>FETCH</code>: the ID of a post-copied
+ *     <code>LazyState</code> the sender wants from the receiver</li>
+ *     <li><code>STATE</code>: the answer to a fetch, one status byte,
+ *     1 if the state was found, then the serialized value</li>
+ *     <li><code>HANDOFF</code>: the ID and length of a handoff file
+ *     holding a whole <code>MigrationFrame</code>, only between
+ *     managers on the same host</li>
+ *     <li><code>LOAD</code>: a <code>LoadSummary</code> of the sender,
+ *     answered by a <code>LOAD</code> of the receiver with the same
+ *     stream ID</li>
+ *     <li><code>ASSEMBLE</code>: the hash and length of each chunk of
+ *     a whole <code>MigrationFrame</code>, whose chunks were stored in
+ *     the <code>FileCache</code> of the receiver before</li>
+ *     <li><code>CANCEL</code>: the sender gave up waiting for the
+ *     acknowledgement of the frame with the same stream ID. The
+ *     receiver never starts the process after this, and answers with
+ *     an <code>ACK</code>, 1 only if it started the process before.</li>
+ * </ul>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationHandshake
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
+ * @see edu.cmu.courses.ds.process.PostCopy
+ * @see edu.cmu.courses.ds.process.LocalHandoff
+ * @see edu.cmu.courses.ds.process.LoadBalancer
+ * @see edu.cmu.courses.ds.process.FileTransfer
+ * @see edu.cmu.courses.ds.process.ClassCache
+ * @see edu.cmu.courses.ds.process.ProcessReplicator
+ */
+public class MigrationSession {
+    /**
+     * Size of the message header in bytes
+     */
+    public static final int HEADER_SIZE = 9;
+
+    /**
+     * Message types
+     */
+    public static final byte FRAME = 1;
+    public static final byte CLASS = 2;
+    public static final byte ACK = 3;
+    public static final byte BLOCK = 4;
+    public static final byte COMMIT = 5;
+    public static final byte DISCARD = 6;
+    public static final byte FETCH = 7;
+    public static final byte STATE = 8;
+    public static final byte HANDOFF = 9;
+    public static final byte LOAD = 10;
+    public static final byte HAVE = 11;
+    public static final byte CHUNK = 12;
+    public static final byte CODE = 13;
+    public static final byte BYTECODE = 14;
+    public static final byte REPLICA = 15;
+    public static final byte RELEASE = 16;
+    public static final byte HEARTBEAT = 17;
+    public static final byte MERGE = 18;
+    public static final byte STEAL = 19;
+    public static final byte ASSEMBLE = 20;
+    public static final byte CANCEL = 21;
+    public static final byte SEAL = 22;
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private MigrationSession() {
+    }
+
+    /**
+     * Write a message header
+     *
+     * @param out    the connection output
+     * @param type   the message type
+     * @param stream the stream ID
+     * @param length the body length
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeHeader(DataOutputStream out, byte type, int stream, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(stream);
+        out.writeInt(length);
+    }
+
+    /**
+     * Write a class definition message
+     *
+     * @param out   the connection output
+     * @param entry the class definition
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeClass(DataOutputStream out, ClassTable.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeInt(entry.index);
+        body.writeLong(entry.fingerprint);
+        body.writeUTF(entry.name);
+        body.flush();
+        writeHeader(out, CLASS, 0, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Parse the body of a class definition message
+     *
+     * @param body the message body
+     * @return the class definition
+     * @throws IOException if the body is malformed
+     */
+    public static ClassTable.Entry parseClass(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int index = in.readInt();
+        long fingerprint = in.readLong();
+        return new ClassTable.Entry(index, in.readUTF(), fingerprint);
+    }
+
+    /**
+     * Write a block of a pre-copy migration
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the migration
+     * @param offset the offset of the block in the encoded process
+     * @param data   the encoded process
+     * @param length the block length
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeBlock(DataOutputStream out, int stream, int offset,
+                                  byte[] data, int length) throws IOException {
+        writeHeader(out, BLOCK, stream, 4 + length);
+        out.writeInt(offset);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Write the commit of a pre-copy migration
+     *
+     * @param out     the connection output
+     * @param stream  the stream ID of the migration
+     * @param codecId the codec of the encoded process
+     * @param length  the length of the encoded process
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeCommit(DataOutputStream out, int stream, byte codecId, int length) throws IOException {
+        writeHeader(out, COMMIT, stream, 5);
+        out.writeByte(codecId);
+        out.writeInt(length);
+    }
+
+    /**
+     * Write the seal of a frame sent in blocks
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the frame
+     * @param length the frame length, header included
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeSeal(DataOutputStream out, int stream, int length) throws IOException {
+        writeHeader(out, SEAL, stream, 4);
+        out.writeInt(length);
+    }
+
+    /**
+     * Write a fetch of a post-copied state
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the fetch
+     * @param id     the ID of the state
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeFetch(DataOutputStream out, int stream, long id) throws IOException {
+        writeHeader(out, FETCH, stream, 8);
+        out.writeLong(id);
+    }
+
+    /**
+     * Write the handoff of a frame
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the frame
+     * @param id     the ID of the handoff file
+     * @param length the frame length
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeHandoff(DataOutputStream out, int stream, long id, int length) throws IOException {
+        writeHeader(out, HANDOFF, stream, 12);
+        out.writeLong(id);
+        out.writeInt(length);
+    }
+
+    /**
+     * Build a load summary message
+     *
+     * @param stream the stream ID of the exchange
+     * @param load   the encoded <code>LoadSummary</code>
+     * @return the message bytes
+     */
+    public static byte[] load(int stream, byte[] load) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + load.length);
+        buffer.put(LOAD).putInt(stream).putInt(load.length);
+        buffer.put(load);
+        return buffer.array();
+    }
+
+    /**
+     * Write the question which chunks of a file the receiver has
+     *
+     * @param out    the connection output
+     * @param id     the manifest ID
+     * @param hashes the chunk hashes
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeHave(DataOutputStream out, String id, String[] hashes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeUTF(id);
+        body.writeInt(hashes.length);
+        for (String hash : hashes) {
+            body.writeUTF(hash);
+        }
+        body.flush();
+        writeHeader(out, HAVE, 0, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Build the answer to a question which chunks the receiver has
+     *
+     * @param stream the stream ID of the question
+     * @param file   <code>true</code> if the whole file is here
+     * @param chunks <code>true</code> for each chunk which is here
+     * @return the message bytes
+     */
+    public static byte[] have(int stream, boolean file, boolean[] chunks) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 1 + chunks.length);
+        buffer.put(HAVE).putInt(stream).putInt(1 + chunks.length);
+        buffer.put((byte) (file ? 1 : 0));
+        for (boolean chunk : chunks) {
+            buffer.put((byte) (chunk ? 1 : 0));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Write the header and the hash of a chunk message, the content
+     * follows
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the chunk
+     * @param hash   the chunk hash
+     * @param length the chunk length
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeChunk(DataOutputStream out, int stream, String hash, int length) throws IOException {
+        byte[] name = hash.getBytes("UTF-8");
+        writeHeader(out, CHUNK, stream, 2 + name.length + length);
+        out.writeShort(name.length);
+        out.write(name);
+    }
+
+    /**
+     * Write the chunk list of a frame whose chunks the receiver has
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the frame
+     * @param chunks the chunks of the frame in order
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeAssemble(DataOutputStream out, int stream,
+                                     List<ContentChunker.Chunk> chunks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeInt(chunks.size());
+        for (ContentChunker.Chunk chunk : chunks) {
+            body.writeUTF(chunk.hash);
+            body.writeInt(chunk.length);
+        }
+        body.flush();
+        writeHeader(out, ASSEMBLE, stream, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Write a job announcement
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the announcement
+     * @param bundle the encoded <code>ClassBundle</code>
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeCode(DataOutputStream out, int stream, byte[] bundle) throws IOException {
+        writeHeader(out, CODE, stream, bundle.length);
+        out.write(bundle);
+    }
+
+    /**
+     * Build the answer to a job announcement
+     *
+     * @param stream  the stream ID of the announcement
+     * @param classes <code>true</code> for each class whose bytecode
+     *                is here
+     * @return the message bytes
+     */
+    public static byte[] code(int stream, boolean[] classes) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + classes.length);
+        buffer.put(CODE).putInt(stream).putInt(classes.length);
+        for (boolean present : classes) {
+            buffer.put((byte) (present ? 1 : 0));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Write a class file message
+     *
+     * @param out    the connection output
+     * @param stream the stream ID of the class file
+     * @param hash   the hash of the class file
+     * @param code   the class file
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeBytecode(DataOutputStream out, int stream, String hash, byte[] code) throws IOException {
+        byte[] name = hash.getBytes("UTF-8");
+        writeHeader(out, BYTECODE, stream, 2 + name.length + code.length);
+        out.writeShort(name.length);
+        out.write(name);
+        out.write(code);
+    }
+
+    /**
+     * Write a request which is acknowledged like a frame
+     *
+     * @param out    the connection output
+     * @param type   <code>REPLICA</code>, <code>RELEASE</code>,
+     *               <code>HEARTBEAT</code>, <code>MERGE</code> or
+     *               <code>STEAL</code>
+     * @param stream the stream ID of the message
+     * @param body   the body built by <code>ProcessReplicator</code> or
+     *               <code>ProcessSplitter</code>
+     * @throws IOException if any IO error occurs
+     */
+    public static void writeRequest(DataOutputStream out, byte type, int stream, byte[] body) throws IOException {
+        writeHeader(out, type, stream, body.length);
+        out.write(body);
+    }
+
+    /**
+     * Build the answer to a fetch
+     *
+     * @param stream the stream ID of the fetch
+     * @param data   the serialized value, <code>null</code> if the
+     *               state was not found
+     * @return the message bytes
+     */
+    public static byte[] state(int stream, byte[] data) {
+        int length = data == null ? 0 : data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 1 + length);
+        buffer.put(STATE).putInt(stream).putInt(1 + length);
+        buffer.put((byte) (data == null ? 0 : 1));
+        if (data != null) {
+            buffer.put(data);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Build an acknowledgement message
+     *
+     * @param stream the stream ID of the frame
+     * @param status <code>true</code> if the process was started
+     * @return the message bytes
+     */
+    public static byte[] ack(int stream, boolean status) {
+        byte[] bytes = new byte[HEADER_SIZE + 1];
+        bytes[0] = ACK;
+        bytes[1] = (byte) (stream >>> 24);
+        bytes[2] = (byte) (stream >>> 16);
+        bytes[3] = (byte) (stream >>> 8);
+        bytes[4] = (byte) stream;
+        bytes[8] = 1;
+        bytes[9] = (byte) (status ? 1 : 0);
+        return bytes;
+    }
+}
@@ -0,0 +1,308 @@
+package edu.cmu.courses.ds.process;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bandwidth limits of migration traffic
+ * Every frame, pre-copy block and post-copied state takes tokens from
+ * the bucket of its peer and from the global bucket before it is sent,
+ * or after it is received. A bucket refills at its rate up to
+ * <code>migration.bandwidth.burst</code> bytes; a transfer larger than
+ * the burst waits for a full bucket and leaves it in debt, so the
+ * average rate holds for any size.
+ *
+ * Each transfer runs in a <code>Lane</code>. A bucket gives no tokens
+ * to a lane while a more urgent lane waits, so small and urgent
+ * migrations overtake bulk ones, and processes blocked on a
+ * post-copied state overtake the background prefetch. Large transfers
+ * take their tokens slice by slice, see <code>PeerConnection</code>,
+ * so an urgent one waits for one slice at most.
+ *
+ * The limits apply to all migration sessions of a manager, like the
+ * link and the disk they share. They are read from
+ * <code>migration.bandwidth</code> and
+ * <code>migration.bandwidth.peer</code> and can be changed at runtime
+ * with the <code>bw</code> command; 0 means unlimited.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ */
+public class MigrationThrottle {
+    /**
+     * The priority of a transfer, the most urgent first
+     */
+    public enum Lane {
+        /**
+         * Urgent migrations (<code>mg -u</code>), frames smaller than
+         * <code>migration.lane.small</code>, and post-copied states a
+         * process waits for
+         */
+        URGENT,
+
+        /**
+         * Stop-and-copy frames of suspended processes
+         */
+        NORMAL,
+
+        /**
+         * Pre-copy rounds of running processes and post-copy prefetch
+         */
+        BULK
+    }
+
+    /**
+     * The global bucket
+     */
+    private Bucket global;
+
+    /**
+     * Per-peer buckets by "host:port"
+     */
+    private Map<String, Bucket> peers = new HashMap<String, Bucket>();
+
+    /**
+     * Per-peer rates set at runtime, by "host:port"
+     */
+    private Map<String, Long> overrides = new HashMap<String, Long>();
+
+    /**
+     * Rate of peers without an override, in bytes per second
+     */
+    private long peerRate;
+
+    /**
+     * Bucket size in bytes
+     */
+    private long burst;
+
+    /**
+     * Bytes and waited nanoseconds of each lane
+     */
+    private AtomicLong[] bytes = new AtomicLong[Lane.values().length];
+    private AtomicLong[] waits = new AtomicLong[Lane.values().length];
+
+    /**
+     * Constructor with the configured limits
+     */
+    public MigrationThrottle() {
+        this(Configuration.getLong("migration.bandwidth", 0), Configuration.getLong("migration.bandwidth.peer", 0),
+                Configuration.getLong("migration.bandwidth.burst", 1024 * 1024));
+    }
+
+    /**
+     * Constructor with given limits
+     *
+     * @param rate     the global rate in bytes per second, 0 means
+     *                 unlimited
+     * @param peerRate the rate of each peer in bytes per second, 0
+     *                 means unlimited
+     * @param burst    the bucket size in bytes
+     */
+    MigrationThrottle(long rate, long peerRate, long burst) {
+        this.burst = Math.max(1, burst);
+        this.global = new Bucket(rate, this.burst);
+        this.peerRate = peerRate;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = new AtomicLong(0);
+            waits[i] = new AtomicLong(0);
+        }
+    }
+
+    /**
+     * Get the lane of a transfer by its size
+     *
+     * @param length the transfer size in bytes
+     * @return <code>URGENT</code> below <code>migration.lane.small</code>,
+     *         else <code>NORMAL</code>
+     */
+    public static Lane laneOf(long length) {
+        return length < Configuration.getLong("migration.lane.small", 64 * 1024) ? Lane.URGENT : Lane.NORMAL;
+    }
+
+    /**
+     * Wait until a transfer may go, and take its tokens
+     *
+     * @param peer   the peer, "host:port"
+     * @param length the transfer size in bytes
+     * @param lane   the lane of the transfer
+     * @throws IOException if the thread is interrupted while it waits
+     */
+    public void acquire(String peer, long length, Lane lane) throws IOException {
+        long start = System.nanoTime();
+        try {
+            getBucket(peer).acquire(length, lane);
+            global.acquire(length, lane);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while throttled", e);
+        }
+        bytes[lane.ordinal()].addAndGet(length);
+        waits[lane.ordinal()].addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Set the global rate
+     *
+     * @param rate bytes per second, 0 means unlimited
+     */
+    public void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    /**
+     * Set the rate of the peers which have no rate of their own
+     *
+     * @param rate bytes per second, 0 means unlimited
+     */
+    public synchronized void setPeerRate(long rate) {
+        peerRate = rate;
+        for (Map.Entry<String, Bucket> entry : peers.entrySet()) {
+            if (!overrides.containsKey(entry.getKey())) {
+                entry.getValue().setRate(rate);
+            }
+        }
+    }
+
+    /**
+     * Set the rate of one peer
+     *
+     * @param peer the peer, "host:port"
+     * @param rate bytes per second, 0 means unlimited
+     */
+    public synchronized void setPeerRate(String peer, long rate) {
+        overrides.put(peer, rate);
+        getBucket(peer).setRate(rate);
+    }
+
+    /**
+     * Get or create the bucket of a peer
+     */
+    private synchronized Bucket getBucket(String peer) {
+        Bucket bucket = peers.get(peer);
+        if (bucket == null) {
+            Long rate = overrides.get(peer);
+            bucket = new Bucket(rate != null ? rate : peerRate, burst);
+            peers.put(peer, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Print the limits, and the bytes and wait time of each lane
+     */
+    public synchronized void printStatus() {
+        System.out.println("global: " + formatRate(global.getRate()));
+        System.out.println("peer:   " + formatRate(peerRate));
+        for (Map.Entry<String, Long> entry : overrides.entrySet()) {
+            System.out.println(entry.getKey() + ": " + formatRate(entry.getValue()));
+        }
+        for (Lane lane : Lane.values()) {
+            System.out.println(String.format("%-6s sent=%dB waited=%.1fms", lane.name().toLowerCase(),
+                    bytes[lane.ordinal()].get(), waits[lane.ordinal()].get() / 1000000.0));
+        }
+    }
+
+    /**
+     * Parse a rate with an optional K, M or G suffix
+     *
+     * @param rate the rate, like "512K" or "10M"
+     * @return bytes per second
+     * @throws NumberFormatException if the rate is malformed or negative
+     */
+    public static long parseRate(String rate) {
+        String value = rate.toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long result = Long.parseLong(value) * unit;
+        if (result < 0) {
+            throw new NumberFormatException("negative rate " + rate);
+        }
+        return result;
+    }
+
+    private static String formatRate(long rate) {
+        return rate <= 0 ? "unlimited" : String.format("%.1fMB/s", rate / 1048576.0);
+    }
+
+    /**
+     * A token bucket with priority lanes
+     */
+    private static class Bucket {
+        private long rate;
+        private long burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        /**
+         * Number of waiting transfers of each lane
+         */
+        private int[] waiting = new int[Lane.values().length];
+
+        Bucket(long rate, long burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            notifyAll();
+        }
+
+        synchronized void acquire(long length, Lane lane) throws InterruptedException {
+            waiting[lane.ordinal()]++;
+            try {
+                while (rate > 0) {
+                    refill();
+                    double needed = Math.min(length, burst);
+                    if (!isOvertaken(lane) && tokens >= needed) {
+                        tokens -= length;
+                        return;
+                    }
+                    long wait = (long) Math.ceil(Math.max(needed - tokens, 1) * 1000 / rate);
+                    wait(Math.max(1, Math.min(wait, 100)));
+                }
+            } finally {
+                waiting[lane.ordinal()]--;
+                notifyAll();
+            }
+        }
+
+        private boolean isOvertaken(Lane lane) {
+            for (int i = 0; i < lane.ordinal(); i++) {
+                if (waiting[i] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            } else {
+                tokens = burst;
+            }
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package edu.cmu.courses.ds.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The latency of each phase of the migrations of the JVM
+ * The sender suspends a process, serializes it and transfers it until
+ * the acknowledgement arrives; the receiver deserializes it, marks its
+ * streams to reopen in <code>migrated()</code>, which they do at their
+ * next read or write, and starts it. Every phase of
+ * every process is added to the histogram of the phase, which is
+ * registered as the MBean
+ * <code>edu.cmu.courses.ds:type=MigrationPhase,side=SIDE,name=PHASE</code>,
+ * and committed as a <code>MigrationPhaseEvent</code> to Flight
+ * Recorder when a recording enables it. The transfer phase of the
+ * sender includes the receiver phases, since the acknowledgement
+ * comes after the process started.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PhaseLatency
+ * @see edu.cmu.courses.ds.process.MigrationPhaseEvent
+ */
+public class MigrationTrace {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(MigrationTrace.class);
+
+    /**
+     * The phases of a migration, in order
+     */
+    public enum Phase {
+        SUSPEND("sender"),
+        SERIALIZE("sender"),
+        TRANSFER("sender"),
+        DESERIALIZE("receiver"),
+        REOPEN("receiver"),
+        START("receiver");
+
+        private final String side;
+
+        Phase(String side) {
+            this.side = side;
+        }
+
+        public String getSide() {
+            return side;
+        }
+    }
+
+    /**
+     * The histograms of the phases
+     */
+    private static final Map<Phase, PhaseLatency> latencies = register();
+
+    /**
+     * Set if Flight Recorder events can be committed
+     */
+    private static final boolean flightRecorder = hasFlightRecorder();
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private MigrationTrace() {
+    }
+
+    /**
+     * Record a phase of the migration of a process
+     *
+     * @param phase   the phase
+     * @param process the process, <code>null</code> if unknown, like
+     *                a process which can't be decoded
+     * @param start   the <code>System.nanoTime()</code> the phase began
+     */
+    public static void record(Phase phase, MigratableProcess process, long start) {
+        record(phase, process, start, System.nanoTime());
+    }
+
+    /**
+     * Record a phase of the migration of a process which ended before
+     *
+     * @param phase   the phase
+     * @param process the process, <code>null</code> if unknown
+     * @param start   the <code>System.nanoTime()</code> the phase began
+     * @param end     the <code>System.nanoTime()</code> the phase ended
+     */
+    public static void record(Phase phase, MigratableProcess process, long start, long end) {
+        long elapsed = end - start;
+        latencies.get(phase).record(elapsed);
+        if (flightRecorder) {
+            MigrationPhaseEvent.commit(phase.name().toLowerCase(), phase.getSide(), process, elapsed);
+        }
+    }
+
+    /**
+     * Get the histogram of a phase
+     *
+     * @param phase the phase
+     * @return the histogram
+     */
+    public static PhaseLatency getLatency(Phase phase) {
+        return latencies.get(phase);
+    }
+
+    /**
+     * Print the latency of every phase which was recorded
+     */
+    public static void printStatus() {
+        System.out.println(String.format("%-12s %-8s %8s %9s %9s %9s %9s %9s",
+                "PHASE", "SIDE", "COUNT", "MEAN(ms)", "P50", "P90", "P99", "MAX"));
+        for (Phase phase : Phase.values()) {
+            PhaseLatency latency = latencies.get(phase);
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-12s %-8s %8d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    phase.name().toLowerCase(), phase.getSide(), latency.getCount(), latency.getMeanMillis(),
+                    latency.getP50Millis(), latency.getP90Millis(), latency.getP99Millis(),
+                    latency.getMaxMillis()));
+        }
+    }
+
+    /**
+     * Create the histograms and register them as MBeans
+     */
+    private static Map<Phase, PhaseLatency> register() {
+        Map<Phase, PhaseLatency> map = new EnumMap<Phase, PhaseLatency>(Phase.class);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Phase phase : Phase.values()) {
+            PhaseLatency latency = new PhaseLatency(phase.getSide());
+            map.put(phase, latency);
+            try {
+                ObjectName name = new ObjectName("edu.cmu.courses.ds:type=MigrationPhase,side=" +
+                        phase.getSide() + ",name=" + phase.name().toLowerCase());
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(latency, name);
+                }
+            } catch (JMException e) {
+                LOG.warn("register MBean of phase " + phase + " failed", e);
+            }
+        }
+        return map;
+    }
+
+    private static boolean hasFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            LOG.debug("Flight Recorder is not available");
+            return false;
+        }
+    }
+}
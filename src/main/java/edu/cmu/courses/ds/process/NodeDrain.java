@@ -0,0 +1,229 @@
+package edu.cmu.courses.ds.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The evacuation of every process of a manager
+ * The drain asks each target manager for its <code>LoadSummary</code>
+ * and plans where each process goes: one by one, processes are given
+ * to the target whose score is the lowest with the processes planned
+ * so far, so targets with more cores and less load take more. Targets
+ * which don't answer or use more than <code>balancer.memory.max</code>
+ * of their heap get nothing. Then one <code>MigrationBatch</code> per
+ * target runs, all at the same time.
+ *
+ * While the drain runs the manager refuses new processes from the
+ * console and from other managers. Processes which fail to move are
+ * restarted locally by their batch, and reported.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationBatch
+ * @see edu.cmu.courses.ds.process.LoadSummary
+ */
+public class NodeDrain {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(NodeDrain.class);
+
+    /**
+     * The manager to drain
+     */
+    private ProcessManager manager;
+
+    /**
+     * The target managers, "host:port"
+     */
+    private List<String> targets;
+
+    /**
+     * Migration settings of the batches
+     */
+    private int concurrency;
+    private boolean precopy;
+    private boolean postcopy;
+    private boolean files;
+
+    /**
+     * Results of the last run
+     */
+    private List<MigratableProcess> failed = new ArrayList<MigratableProcess>();
+    private long elapsed;
+
+    /**
+     * Constructor of <code>NodeDrain</code>
+     *
+     * @param manager     the manager to drain
+     * @param targets     the target managers, "host:port"
+     * @param concurrency maximum number of processes suspended and
+     *                    encoded at the same time, per target
+     * @param precopy     migrate with pre-copy rounds
+     * @param postcopy    export <code>LazyState</code> fields
+     * @param files       ship the input files of the processes
+     */
+    public NodeDrain(ProcessManager manager, List<String> targets, int concurrency,
+                     boolean precopy, boolean postcopy, boolean files) {
+        this.manager = manager;
+        this.targets = targets;
+        this.concurrency = concurrency;
+        this.precopy = precopy;
+        this.postcopy = postcopy;
+        this.files = files;
+    }
+
+    /**
+     * Plan and run the drain, then print the total time and the
+     * processes which are still here.
+     *
+     * @return the number of processes which moved
+     */
+    public int run() {
+        long start = System.nanoTime();
+        failed.clear();
+        manager.setDraining(true);
+        try {
+            List<MigratableProcess> processes = new ArrayList<MigratableProcess>(manager.getProcesses());
+            Map<String, List<MigratableProcess>> plan = plan(processes);
+            if (plan.isEmpty()) {
+                System.out.println("No target can take processes");
+                failed.addAll(processes);
+                return 0;
+            }
+            for (Map.Entry<String, List<MigratableProcess>> entry : plan.entrySet()) {
+                System.out.println("Drain plan: " + entry.getValue().size() + " processes to " + entry.getKey());
+            }
+            List<Thread> threads = new ArrayList<Thread>();
+            for (final Map.Entry<String, List<MigratableProcess>> entry : plan.entrySet()) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        migrate(entry.getKey(), entry.getValue());
+                    }
+                }, "drain-" + entry.getKey());
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (MigratableProcess process : processes) {
+                if (manager.getProcesses().contains(process)) {
+                    failed.add(process);
+                }
+            }
+            elapsed = System.nanoTime() - start;
+            System.out.println(String.format("Drained %d/%d processes in %.1fms",
+                    processes.size() - failed.size(), processes.size(), elapsed / 1000000.0));
+            for (MigratableProcess process : failed) {
+                System.out.println("Restarted locally: " + process.toString());
+            }
+            return processes.size() - failed.size();
+        } finally {
+            manager.setDraining(false);
+        }
+    }
+
+    /**
+     * Assign each process to the target with the lowest score
+     * including the processes already assigned to it
+     *
+     * @param processes the processes to move
+     * @return the processes of each target which takes any
+     */
+    private Map<String, List<MigratableProcess>> plan(List<MigratableProcess> processes) {
+        double ioScale = Configuration.getLong("balancer.io.scale", 50L * 1024 * 1024);
+        double memoryMax = Double.parseDouble(Configuration.get("balancer.memory.max", "0.9"));
+        byte[] local = manager.getBalancer().sample().encode();
+        List<String> names = new ArrayList<String>();
+        List<LoadSummary> loads = new ArrayList<LoadSummary>();
+        for (String target : targets) {
+            try {
+                LoadSummary load = LoadSummary.parse(getPeer(target).exchangeLoad(local));
+                if (load.getMemory() > memoryMax) {
+                    System.out.println("Skip " + target + ": heap is " + Math.round(load.getMemory() * 100) + "% used");
+                    continue;
+                }
+                names.add(target);
+                loads.add(load);
+            } catch (IOException e) {
+                System.out.println("Skip " + target + ": " + e.getMessage());
+            }
+        }
+
+        Map<String, List<MigratableProcess>> plan = new LinkedHashMap<String, List<MigratableProcess>>();
+        if (loads.isEmpty()) {
+            return plan;
+        }
+        int[] assigned = new int[loads.size()];
+        for (MigratableProcess process : processes) {
+            int best = 0;
+            for (int i = 1; i < loads.size(); i++) {
+                if (loads.get(i).score(ioScale, assigned[i] + 1) < loads.get(best).score(ioScale, assigned[best] + 1)) {
+                    best = i;
+                }
+            }
+            assigned[best]++;
+            List<MigratableProcess> list = plan.get(names.get(best));
+            if (list == null) {
+                list = new ArrayList<MigratableProcess>();
+                plan.put(names.get(best), list);
+            }
+            list.add(process);
+        }
+        return plan;
+    }
+
+    /**
+     * Migrate the planned processes of one target as one batch
+     */
+    private void migrate(String target, List<MigratableProcess> processes) {
+        int colon = target.lastIndexOf(':');
+        try {
+            manager.migrate(processes, target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)),
+                    concurrency, precopy, postcopy, false, files);
+        } catch (IOException e) {
+            LOG.error("drain to " + target + " failed", e);
+            System.out.println("Connect " + target + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the migration session to a target
+     */
+    private PeerConnection getPeer(String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        return manager.getPeer(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+    }
+
+    /**
+     * Get the processes of the last run which didn't move
+     *
+     * @return the processes, restarted locally
+     */
+    public List<MigratableProcess> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the wall time of the last run
+     *
+     * @return the time in nanoseconds
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+}
@@ -0,0 +1,978 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.ClassBundle;
+import edu.cmu.courses.ds.codec.ClassTable;
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodec;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.io.ContentChunker;
+import edu.cmu.courses.ds.io.FileManifest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The long-lived migration session to one peer
+ * The connection is opened with a session handshake and then shared
+ * by all migrations to the peer. Any number of threads can send
+ * frames at the same time; each frame gets its own stream ID, and a
+ * reader thread hands every acknowledgement to the thread waiting for
+ * it. Class metadata is sent once per connection, see
+ * <code>ClassTable</code>, and so is the bytecode of a job the peer
+ * doesn't have, see <code>ClassBundle</code>.
+ *
+ * The same session also fetches post-copied states from the peer, see
+ * <code>PostCopy</code>, and exchanges load summaries, see
+ * <code>LoadBalancer</code>, replicates processes to standbys, see
+ * <code>ProcessReplicator</code>, and splits processes, see
+ * <code>ProcessSplitter</code>. Input files are shipped through a second
+ * session, see <code>FileTransfer</code>, and so are the chunks of frames
+ * of at least <code>migration.dedup.threshold</code> bytes, which are
+ * then sent as a list of chunks the peer joins. Large frames to a peer on the same host
+ * are handed off through files, see <code>LocalHandoff</code>. All
+ * transfers are throttled by <code>MigrationThrottle</code> before they
+ * take the connection, so a throttled transfer never holds up a more
+ * urgent one. Frames and pre-copy blocks larger than
+ * <code>migration.slice</code> bytes are sent in slices, and each
+ * slice takes its tokens and the connection on its own, so urgent
+ * messages go out between the slices of a bulk transfer.
+ *
+ * If the connection fails, all waiting migrations fail, and the pool
+ * opens a new connection for the next migration.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnectionPool
+ * @see edu.cmu.courses.ds.process.MigrationSession
+ */
+public class PeerConnection {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(PeerConnection.class);
+
+    /**
+     * The peer address, "host:port"
+     */
+    private String peer;
+
+    /**
+     * The connection
+     */
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    /**
+     * The compressions accepted by the peer, only <code>NONE</code> if
+     * the peer is on this host, where compressing costs more time than
+     * sending the raw frame
+     */
+    private Set<Compression> accepted;
+
+    /**
+     * The handoff files of this session, <code>null</code> unless the
+     * peer is on this host
+     */
+    private LocalHandoff.Pool handoff;
+
+    /**
+     * The sender's class table of this connection
+     */
+    private ClassTable classes = new ClassTable();
+
+    /**
+     * Migrations and fetches waiting for their answer, by stream ID
+     */
+    private Map<Integer, Ack> pending = new ConcurrentHashMap<Integer, Ack>();
+
+    /**
+     * The stream ID of the next frame
+     */
+    private AtomicInteger nextStream = new AtomicInteger(1);
+
+    /**
+     * The jobs whose bytecode the peer has, by bundle ID, guarded by
+     * itself while a job is announced
+     */
+    private Set<String> jobs = new HashSet<String>();
+
+    /**
+     * The session shipping input files, opened on first use
+     */
+    private FileTransfer files;
+
+    /**
+     * Closed flag
+     */
+    private volatile boolean closed;
+
+    /**
+     * The bandwidth limits of the session
+     */
+    private MigrationThrottle throttle;
+
+    /**
+     * Open a session to a peer with its own configured bandwidth limits
+     *
+     * @param host the peer host name
+     * @param port the peer port
+     * @throws IOException if the peer can't be connected
+     */
+    public PeerConnection(String host, int port) throws IOException {
+        this(host, port, new MigrationThrottle());
+    }
+
+    /**
+     * Open a session to a peer
+     *
+     * @param host     the peer host name
+     * @param port     the peer port
+     * @param throttle the bandwidth limits of the session, shared with
+     *                 the other sessions of the manager
+     * @throws IOException if the peer can't be connected
+     */
+    public PeerConnection(String host, int port, MigrationThrottle throttle) throws IOException {
+        this.peer = host + ":" + port;
+        this.throttle = throttle;
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port),
+                    Configuration.getInt("peer.connect.timeout", 5000));
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            accepted = MigrationHandshake.offer(in, out, MigrationHandshake.SESSION_VERSION);
+            if (LocalHandoff.isLocal(socket.getInetAddress())) {
+                accepted = EnumSet.of(Compression.NONE);
+            }
+            if (LocalHandoff.isEnabled(socket.getInetAddress())) {
+                handoff = new LocalHandoff.Pool();
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readAcks();
+            }
+        }, "peer-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Encode a suspended process into a frame of this session
+     *
+     * @param process the process object
+     * @return the frame
+     * @throws IOException if the process can't be encoded
+     */
+    public MigrationFrame build(MigratableProcess process) throws IOException {
+        shipCode(process.getClass());
+        return MigrationFrame.build(MigrationCodecs.getDefault(), process, accepted, classes);
+    }
+
+    /**
+     * Encode a process into a raw payload of this session, for
+     * pre-copy migrations
+     *
+     * @param codec   the codec
+     * @param process the process object
+     * @return the payload
+     * @throws IOException if the process can't be encoded
+     */
+    public byte[] encode(MigrationCodec codec, MigratableProcess process) throws IOException {
+        shipCode(process.getClass());
+        return MigrationCodecs.encode(codec, process, classes);
+    }
+
+    /**
+     * Make sure the peer can load a process class. The first time a job
+     * is used on this session, its <code>ClassBundle</code> is
+     * announced and the class files the peer asks for are sent. Classes
+     * of the framework are never shipped.
+     *
+     * @param clazz the process class
+     * @throws IOException if the bytecode can't be read or sent
+     */
+    public void shipCode(Class<?> clazz) throws IOException {
+        ClassBundle bundle = ClassBundle.of(clazz);
+        if (bundle == null) {
+            return;
+        }
+        synchronized (jobs) {
+            if (jobs.contains(bundle.getId())) {
+                return;
+            }
+            int[] streams = new int[]{nextStream.getAndIncrement()};
+            Ack answer = new Ack();
+            pending.put(streams[0], answer);
+            try {
+                synchronized (out) {
+                    checkOpen();
+                    MigrationSession.writeCode(out, streams[0], bundle.encode());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                forget(streams);
+                close(e);
+                throw e;
+            }
+            await(streams, Collections.singletonList(answer));
+            String[] hashes = bundle.getHashes();
+            if (answer.data.length != hashes.length) {
+                throw new IOException("bad job answer from " + peer);
+            }
+            List<Integer> missing = new ArrayList<Integer>();
+            long length = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                if (answer.data[i] == 0) {
+                    missing.add(i);
+                    length += bundle.getCode(i).length;
+                }
+            }
+            if (!missing.isEmpty()) {
+                throttle.acquire(peer, length, MigrationThrottle.laneOf(length));
+                streams = new int[missing.size()];
+                List<Ack> acks = new ArrayList<Ack>(streams.length);
+                for (int i = 0; i < streams.length; i++) {
+                    streams[i] = nextStream.getAndIncrement();
+                    Ack ack = new Ack();
+                    acks.add(ack);
+                    pending.put(streams[i], ack);
+                }
+                try {
+                    synchronized (out) {
+                        checkOpen();
+                        for (int i = 0; i < streams.length; i++) {
+                            int index = missing.get(i);
+                            MigrationSession.writeBytecode(out, streams[i], hashes[index], bundle.getCode(index));
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    forget(streams);
+                    close(e);
+                    throw e;
+                }
+                await(streams, acks);
+                for (Ack ack : acks) {
+                    if (!ack.status) {
+                        throw new IOException(peer + " failed to store the bytecode of " + clazz.getName());
+                    }
+                }
+                LOG.info("shipped " + missing.size() + " classes, " + length + "B of " +
+                        clazz.getName() + " to " + peer);
+            }
+            jobs.add(bundle.getId());
+        }
+    }
+
+    /**
+     * Get the bandwidth limits of this session
+     *
+     * @return the throttle
+     */
+    public MigrationThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Get a new stream ID for a pre-copy migration
+     *
+     * @return the stream ID
+     */
+    public int newStream() {
+        return nextStream.getAndIncrement();
+    }
+
+    /**
+     * Send blocks of a pre-copy migration
+     *
+     * @param stream the stream ID of the migration
+     * @param data   the encoded process
+     * @param blocks offset and length of each block to send
+     * @throws IOException if the connection fails
+     */
+    public void sendBlocks(int stream, byte[] data, List<int[]> blocks) throws IOException {
+        try {
+            sendSlices(stream, data, blocks, MigrationThrottle.Lane.BULK);
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Send the last blocks and the commit of a pre-copy migration, and
+     * wait for its acknowledgement
+     *
+     * @param stream  the stream ID of the migration
+     * @param data    the encoded process
+     * @param blocks  offset and length of each block to send
+     * @param codecId the codec of the encoded process
+     * @return the acknowledgement, not answered if it is unknown
+     *         whether the peer started the process
+     * @throws IOException if the commit could not be sent, so the
+     *                     process was not started
+     */
+    public Ack commit(int stream, byte[] data, List<int[]> blocks, byte codecId) throws IOException {
+        int[] streams = new int[]{stream};
+        Ack ack = new Ack();
+        pending.put(stream, ack);
+        boolean written = false;
+        try {
+            sendSlices(stream, data, blocks, MigrationThrottle.laneOf(length(blocks)));
+            synchronized (out) {
+                checkOpen();
+                written = true;
+                for (ClassTable.Entry entry : classes.takeUnsent()) {
+                    MigrationSession.writeClass(out, entry);
+                }
+                MigrationSession.writeCommit(out, stream, codecId, data.length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+            if (!written) {
+                forget(streams);
+                throw e;
+            }
+        }
+        awaitFrames(streams, Collections.singletonList(ack));
+        return ack;
+    }
+
+    /**
+     * Drop the blocks of an abandoned pre-copy migration on the peer
+     *
+     * @param stream the stream ID of the migration
+     */
+    public void discard(int stream) {
+        try {
+            synchronized (out) {
+                checkOpen();
+                MigrationSession.writeHeader(out, MigrationSession.DISCARD, stream, 0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Send blocks in slices of at most <code>migration.slice</code>
+     * bytes. Each slice waits for its own tokens and holds the
+     * connection only while it is written.
+     *
+     * @param stream the stream ID of the blocks
+     * @param data   the encoded process or frame
+     * @param blocks offset and length of each block to send
+     * @param lane   the lane of the transfer
+     * @throws IOException if the connection fails
+     */
+    private void sendSlices(int stream, byte[] data, List<int[]> blocks, MigrationThrottle.Lane lane)
+            throws IOException {
+        int slice = getSliceSize();
+        for (int[] block : blocks) {
+            int end = block[0] + block[1];
+            for (int offset = block[0]; offset < end; offset += slice) {
+                int length = Math.min(slice, end - offset);
+                throttle.acquire(peer, length, lane);
+                synchronized (out) {
+                    checkOpen();
+                    MigrationSession.writeBlock(out, stream, offset, data, length);
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the largest slice of a transfer, <code>migration.slice</code>
+     *
+     * @return the size in bytes
+     */
+    static int getSliceSize() {
+        return Math.max(1024, Configuration.getInt("migration.slice", 256 * 1024));
+    }
+
+    /**
+     * Get the total length of blocks
+     */
+    private static long length(List<int[]> blocks) {
+        long length = 0;
+        for (int[] block : blocks) {
+            length += block[1];
+        }
+        return length;
+    }
+
+    /**
+     * Send a frame and wait for its acknowledgement
+     *
+     * @param frame the frame built by this connection
+     * @return <code>true</code> if the peer started the process
+     * @throws IOException if the frame can't be sent, or it is not
+     *                     known whether the peer started the process
+     */
+    public boolean migrate(MigrationFrame frame) throws IOException {
+        Ack ack = migrate(Collections.singletonList(frame)).get(0);
+        if (!ack.isAnswered()) {
+            throw new IOException("no acknowledgement from " + peer);
+        }
+        return ack.isStarted();
+    }
+
+    /**
+     * Send several frames in one write and wait for all their
+     * acknowledgements, in the lane of their total size
+     *
+     * @param frames the frames built by this connection
+     * @return the acknowledgements in the order of the frames
+     * @throws IOException if no frame could be sent
+     * @see edu.cmu.courses.ds.process.PeerConnection#migrate(List, MigrationThrottle.Lane)
+     */
+    public List<Ack> migrate(List<MigrationFrame> frames) throws IOException {
+        return migrate(frames, null);
+    }
+
+    /**
+     * Send several frames in one write and wait for all their
+     * acknowledgements. Frames larger than <code>migration.slice</code>
+     * are sent in slices first, and sealed in that write.
+     *
+     * @param frames the frames built by this connection
+     * @param lane   the lane of the frames, <code>null</code> for the
+     *               lane of their total size
+     * @return the acknowledgements in the order of the frames, those
+     *         which are not answered if it is unknown whether the peer
+     *         started their processes
+     * @throws IOException if no frame could be sent, so none of the
+     *                     processes was started
+     * @see edu.cmu.courses.ds.process.MigrationThrottle#laneOf(long)
+     */
+    public List<Ack> migrate(List<MigrationFrame> frames, MigrationThrottle.Lane lane) throws IOException {
+        long threshold = handoff != null ? 0 : Configuration.getLong("migration.dedup.threshold", 1048576);
+        List<List<ContentChunker.Chunk>> chunked = new ArrayList<List<ContentChunker.Chunk>>(frames.size());
+        long total = 0;
+        for (MigrationFrame frame : frames) {
+            byte[] bytes = frame.getBytes();
+            List<ContentChunker.Chunk> chunks = null;
+            if (threshold > 0 && bytes.length >= threshold) {
+                try {
+                    chunks = ContentChunker.split(bytes);
+                    shipChunks(bytes, chunks);
+                } catch (IOException e) {
+                    LOG.warn("ship the chunks of a frame to " + peer + " failed, send the frame instead", e);
+                    chunks = null;
+                }
+            }
+            chunked.add(chunks);
+            if (chunks == null) {
+                total += bytes.length;
+            }
+        }
+        if (lane == null) {
+            lane = MigrationThrottle.laneOf(total);
+        }
+        int[] streams = new int[frames.size()];
+        LocalHandoff.Slot[] slots = new LocalHandoff.Slot[frames.size()];
+        boolean acknowledged = false;
+        List<Ack> acks = new ArrayList<Ack>(frames.size());
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = nextStream.getAndIncrement();
+            Ack ack = new Ack();
+            acks.add(ack);
+            pending.put(streams[i], ack);
+        }
+        boolean written = false;
+        try {
+            try {
+                for (int i = 0; i < streams.length; i++) {
+                    byte[] bytes = frames.get(i).getBytes();
+                    if (handoff != null && bytes.length >= LocalHandoff.getThreshold()) {
+                        try {
+                            slots[i] = handoff.write(bytes);
+                        } catch (IOException e) {
+                            LOG.warn("handoff to " + peer + " failed, send the frame instead", e);
+                        }
+                    }
+                }
+                long unsliced = 0;
+                for (int i = 0; i < streams.length; i++) {
+                    byte[] bytes = frames.get(i).getBytes();
+                    if (slots[i] == null && chunked.get(i) == null) {
+                        if (bytes.length > getSliceSize()) {
+                            sendSlices(streams[i], bytes, Collections.singletonList(new int[]{0, bytes.length}), lane);
+                        } else {
+                            unsliced += bytes.length;
+                        }
+                    }
+                }
+                throttle.acquire(peer, unsliced, lane);
+                synchronized (out) {
+                    checkOpen();
+                    written = true;
+                    for (ClassTable.Entry entry : classes.takeUnsent()) {
+                        MigrationSession.writeClass(out, entry);
+                    }
+                    for (int i = 0; i < streams.length; i++) {
+                        byte[] bytes = frames.get(i).getBytes();
+                        if (slots[i] != null) {
+                            MigrationSession.writeHandoff(out, streams[i], slots[i].getId(), bytes.length);
+                        } else if (chunked.get(i) != null) {
+                            MigrationSession.writeAssemble(out, streams[i], chunked.get(i));
+                        } else if (bytes.length > getSliceSize()) {
+                            MigrationSession.writeSeal(out, streams[i], bytes.length);
+                        } else {
+                            MigrationSession.writeHeader(out, MigrationSession.FRAME, streams[i], bytes.length);
+                            out.write(bytes);
+                        }
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+                if (!written) {
+                    forget(streams);
+                    throw e;
+                }
+            }
+            awaitFrames(streams, acks);
+            acknowledged = true;
+            for (Ack ack : acks) {
+                acknowledged &= ack.isAnswered();
+            }
+        } finally {
+            for (LocalHandoff.Slot slot : slots) {
+                if (slot != null) {
+                    handoff.release(slot, acknowledged);
+                }
+            }
+        }
+        return acks;
+    }
+
+    /**
+     * Fetch a post-copied state from the peer. The state is throttled
+     * when it arrives, which delays the next transfer.
+     *
+     * @param id   the ID of the state on the peer
+     * @param lane the lane of the fetch
+     * @return the serialized value
+     * @throws IOException if the peer doesn't have the state, the
+     *                     connection fails or the peer doesn't answer
+     *                     within <code>peer.ack.timeout</code>
+     */
+    public byte[] fetch(long id, MigrationThrottle.Lane lane) throws IOException {
+        int[] streams = new int[]{nextStream.getAndIncrement()};
+        Ack ack = new Ack();
+        pending.put(streams[0], ack);
+        try {
+            synchronized (out) {
+                checkOpen();
+                MigrationSession.writeFetch(out, streams[0], id);
+                out.flush();
+            }
+        } catch (IOException e) {
+            forget(streams);
+            close(e);
+            throw e;
+        }
+        await(streams, Collections.singletonList(ack));
+        if (!ack.status) {
+            throw new IOException("state " + id + " is not on " + peer);
+        }
+        throttle.acquire(peer, ack.data.length, lane);
+        return ack.data;
+    }
+
+    /**
+     * Send the load summary of this manager and get the peer's
+     *
+     * @param load the encoded <code>LoadSummary</code>
+     * @return the encoded summary of the peer
+     * @throws IOException if the connection fails or the peer doesn't
+     *                     answer within <code>peer.ack.timeout</code>
+     */
+    public byte[] exchangeLoad(byte[] load) throws IOException {
+        int[] streams = new int[]{nextStream.getAndIncrement()};
+        Ack ack = new Ack();
+        pending.put(streams[0], ack);
+        try {
+            synchronized (out) {
+                checkOpen();
+                out.write(MigrationSession.load(streams[0], load));
+                out.flush();
+            }
+        } catch (IOException e) {
+            forget(streams);
+            close(e);
+            throw e;
+        }
+        await(streams, Collections.singletonList(ack));
+        return ack.data;
+    }
+
+    /**
+     * Send a request and wait for its acknowledgement
+     *
+     * @param type the message type
+     * @param body the message body
+     * @param lane the lane of the message
+     * @return <code>true</code> if the peer accepted it
+     * @throws IOException if the connection fails or the peer doesn't
+     *                     answer within <code>peer.ack.timeout</code>
+     * @see edu.cmu.courses.ds.process.ProcessReplicator
+     * @see edu.cmu.courses.ds.process.ProcessSplitter
+     */
+    public boolean request(byte type, byte[] body, MigrationThrottle.Lane lane) throws IOException {
+        throttle.acquire(peer, body.length, lane);
+        int[] streams = new int[]{nextStream.getAndIncrement()};
+        Ack ack = new Ack();
+        pending.put(streams[0], ack);
+        try {
+            synchronized (out) {
+                checkOpen();
+                MigrationSession.writeRequest(out, type, streams[0], body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            forget(streams);
+            close(e);
+            throw e;
+        }
+        await(streams, Collections.singletonList(ack));
+        return ack.status;
+    }
+
+    /**
+     * Wait for the acknowledgements of migrations. Migrations which
+     * are not acknowledged within <code>peer.ack.timeout</code> are
+     * cancelled, and the peer's answers to the cancels are waited for
+     * as long again. An acknowledgement which still didn't arrive is
+     * left unanswered, since the peer may or may not have started the
+     * process.
+     */
+    private void awaitFrames(int[] streams, List<Ack> acks) {
+        long timeout = Configuration.getLong("peer.ack.timeout", 60000);
+        try {
+            if (awaitAll(acks, timeout)) {
+                return;
+            }
+            try {
+                synchronized (out) {
+                    checkOpen();
+                    for (int i = 0; i < streams.length; i++) {
+                        if (acks.get(i).latch.getCount() > 0) {
+                            LOG.warn("no acknowledgement of migration " + streams[i] + " from " + peer +
+                                    ", cancel it");
+                            MigrationSession.writeHeader(out, MigrationSession.CANCEL, streams[i], 0);
+                        }
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
+            awaitAll(acks, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            forget(streams);
+        }
+    }
+
+    /**
+     * Wait until all acknowledgements arrived or failed
+     *
+     * @return <code>false</code> if some didn't within the timeout
+     */
+    private static boolean awaitAll(List<Ack> acks, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Ack ack : acks) {
+            if (!ack.latch.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the acknowledgements of some streams
+     */
+    private void await(int[] streams, List<Ack> acks) throws IOException {
+        long deadline = System.currentTimeMillis() + Configuration.getLong("peer.ack.timeout", 60000);
+        try {
+            for (Ack ack : acks) {
+                long wait = deadline - System.currentTimeMillis();
+                if (!ack.latch.await(wait, TimeUnit.MILLISECONDS)) {
+                    forget(streams);
+                    throw new IOException("no acknowledgement from " + peer);
+                }
+                if (ack.error != null) {
+                    throw new IOException("connection to " + peer + " failed", ack.error);
+                }
+            }
+        } catch (InterruptedException e) {
+            forget(streams);
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    /**
+     * Make sure the peer has the content of an input file
+     *
+     * @param file     the file
+     * @param manifest the manifest of the file
+     * @return the number of bytes sent
+     * @throws IOException if the file can't be shipped
+     */
+    public long shipFile(File file, FileManifest manifest) throws IOException {
+        FileTransfer transfer = getFiles();
+        try {
+            return transfer.ship(file, manifest);
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Make sure the peer has the chunks of a frame
+     *
+     * @param data   the frame
+     * @param chunks the content defined chunks of the frame
+     * @return the number of bytes sent
+     * @throws IOException if the chunks can't be shipped
+     */
+    public long shipChunks(byte[] data, List<ContentChunker.Chunk> chunks) throws IOException {
+        FileTransfer transfer = getFiles();
+        try {
+            return transfer.ship(data, chunks);
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the file session, opening it if needed
+     */
+    private synchronized FileTransfer getFiles() throws IOException {
+        checkOpen();
+        if (files == null || !files.isOpen()) {
+            int colon = peer.lastIndexOf(':');
+            files = new FileTransfer(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)), throttle);
+        }
+        return files;
+    }
+
+    /**
+     * Check the connection is open, the caller holds the lock
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("connection to " + peer + " is closed");
+        }
+    }
+
+    /**
+     * Check if the connection is closed
+     *
+     * @return <code>true</code> if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check if large frames are handed off through files
+     *
+     * @return <code>true</code> if the peer is on this host
+     */
+    public boolean isHandoff() {
+        return handoff != null;
+    }
+
+    /**
+     * Get the number of migrations waiting for their acknowledgement
+     *
+     * @return the count
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Get the peer address
+     *
+     * @return "host:port"
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * Get the local address of the connection, which the peer can
+     * connect back to
+     *
+     * @return the IP address
+     */
+    public String getLocalAddress() {
+        return socket.getLocalAddress().getHostAddress();
+    }
+
+    /**
+     * Close the connection and fail all waiting migrations
+     *
+     * @param cause the error, or <code>null</code> for a normal close
+     */
+    public void close(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cause != null) {
+            LOG.error("connection to " + peer + " failed", cause);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.debug("close connection to " + peer + " error", e);
+        }
+        if (handoff != null) {
+            handoff.close();
+        }
+        synchronized (this) {
+            if (files != null) {
+                files.close();
+            }
+        }
+        IOException error = cause != null ? cause : new IOException("connection closed");
+        Iterator<Ack> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Ack ack = it.next();
+            it.remove();
+            ack.error = error;
+            ack.latch.countDown();
+        }
+    }
+
+    /**
+     * Stop waiting for the acknowledgements of some streams
+     */
+    private void forget(int[] streams) {
+        for (int stream : streams) {
+            pending.remove(stream);
+        }
+    }
+
+    /**
+     * Loop of the reader thread
+     */
+    private void readAcks() {
+        try {
+            while (!closed) {
+                byte type = in.readByte();
+                int stream = in.readInt();
+                int length = in.readInt();
+                if ((type != MigrationSession.ACK || length != 1) &&
+                        (type != MigrationSession.STATE || length < 1) &&
+                        (type != MigrationSession.LOAD || length < 0 || length > 65536) &&
+                        (type != MigrationSession.CODE || length < 0 || length > ClassBundle.MAX_CLASSES)) {
+                    throw new IOException("bad session message type " + type);
+                }
+                boolean raw = type == MigrationSession.LOAD || type == MigrationSession.CODE;
+                boolean status = raw || in.readBoolean();
+                byte[] data = null;
+                if (type != MigrationSession.ACK) {
+                    data = new byte[raw ? length : length - 1];
+                    in.readFully(data);
+                }
+                Ack ack = pending.remove(stream);
+                if (ack == null) {
+                    LOG.warn("unexpected acknowledgement " + stream + " from " + peer);
+                    continue;
+                }
+                ack.status = status;
+                ack.data = data;
+                ack.time = System.nanoTime();
+                ack.answered = true;
+                ack.latch.countDown();
+            }
+        } catch (IOException e) {
+            close(closed ? null : e);
+        }
+    }
+
+    /**
+     * The acknowledgement of one frame, or the answer to a fetch or a
+     * load exchange
+     */
+    public static class Ack {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean status;
+        private volatile byte[] data;
+        private volatile long time;
+        private volatile boolean answered;
+        private volatile IOException error;
+
+        /**
+         * Check if the peer answered, so <code>isStarted()</code> tells
+         * for sure whether the peer started the process
+         *
+         * @return <code>false</code> if the connection failed or the
+         *         peer didn't answer in time
+         */
+        public boolean isAnswered() {
+            return answered;
+        }
+
+        /**
+         * Check if the peer started the process
+         *
+         * @return <code>true</code> if started
+         */
+        public boolean isStarted() {
+            return status;
+        }
+
+        /**
+         * Get the time when the acknowledgement arrived
+         *
+         * @return the <code>System.nanoTime()</code> of the arrival
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+}
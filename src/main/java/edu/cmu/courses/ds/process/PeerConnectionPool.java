@@ -0,0 +1,71 @@
+package edu.cmu.courses.ds.process;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pool of migration sessions, one per peer
+ * A session is opened the first time a process migrates to a peer and
+ * reused by all later migrations, until it fails or the pool is
+ * closed.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ */
+public class PeerConnectionPool {
+    /**
+     * Open sessions by "host:port"
+     */
+    private Map<String, PeerConnection> connections = new HashMap<String, PeerConnection>();
+
+    /**
+     * The bandwidth limits of the sessions
+     */
+    private MigrationThrottle throttle;
+
+    /**
+     * Constructor of a pool with its own configured bandwidth limits
+     */
+    public PeerConnectionPool() {
+        this(new MigrationThrottle());
+    }
+
+    /**
+     * Constructor of <code>PeerConnectionPool</code>
+     *
+     * @param throttle the bandwidth limits of the sessions
+     */
+    public PeerConnectionPool(MigrationThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Get the session to a peer, opening it if needed
+     *
+     * @param host the peer host name
+     * @param port the peer port
+     * @return the session
+     * @throws IOException if the peer can't be connected
+     */
+    public synchronized PeerConnection get(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        PeerConnection connection = connections.get(key);
+        if (connection == null || connection.isClosed()) {
+            connection = new PeerConnection(host, port, throttle);
+            connections.put(key, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Close all sessions
+     */
+    public synchronized void close() {
+        for (PeerConnection connection : connections.values()) {
+            connection.close(null);
+        }
+        connections.clear();
+    }
+}
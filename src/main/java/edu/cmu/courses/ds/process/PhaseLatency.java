@@ -0,0 +1,138 @@
+package edu.cmu.courses.ds.process;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * The latency histogram of one migration phase
+ * Samples fall into buckets of powers of two microseconds, from under
+ * 2us to over half an hour. Recording a sample adds to one bucket and
+ * to the totals without taking a lock.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationTrace
+ */
+public class PhaseLatency implements PhaseLatencyMBean {
+    /**
+     * Number of buckets, the last one is open ended
+     */
+    private static final int BUCKETS = 32;
+
+    private final String side;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0);
+
+    /**
+     * Constructor of an empty histogram
+     *
+     * @param side the side of the migration the phase runs on
+     */
+    PhaseLatency(String side) {
+        this.side = side;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param nanos the phase time in nanoseconds
+     */
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public String getSide() {
+        return side;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / 1e6 / n;
+    }
+
+    public double getMaxMillis() {
+        return max.get() / 1e6;
+    }
+
+    public double getP50Millis() {
+        return percentile(0.50);
+    }
+
+    public double getP90Millis() {
+        return percentile(0.90);
+    }
+
+    public double getP99Millis() {
+        return percentile(0.99);
+    }
+
+    public long[] getHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = buckets[i].sum();
+        }
+        return histogram;
+    }
+
+    public long[] getBucketBoundsMicros() {
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 2L << i;
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    /**
+     * Get the upper bound of the bucket of a percentile, no more than
+     * the maximum
+     */
+    private double percentile(double fraction) {
+        long[] histogram = getHistogram();
+        long n = 0;
+        for (long c : histogram) {
+            n += c;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(i == BUCKETS - 1 ? Double.MAX_VALUE : (2L << i) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+}
@@ -0,0 +1,52 @@
+package edu.cmu.courses.ds.process;
+
+/**
+ * The JMX view of the latency of one migration phase
+ * Times are in milliseconds. The percentiles are the upper bounds of
+ * the histogram buckets they fall in.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PhaseLatency
+ */
+public interface PhaseLatencyMBean {
+    /**
+     * Get the side of the migration the phase runs on
+     *
+     * @return <code>sender</code> or <code>receiver</code>
+     */
+    String getSide();
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    /**
+     * Get the histogram, bucket <code>i</code> counts the samples
+     * shorter than <code>getBucketBoundsMicros()[i]</code> which don't
+     * fit an earlier bucket
+     *
+     * @return the sample count of each bucket
+     */
+    long[] getHistogram();
+
+    /**
+     * Get the exclusive upper bounds of the histogram buckets
+     *
+     * @return the bounds in microseconds
+     */
+    long[] getBucketBoundsMicros();
+
+    /**
+     * Forget all samples
+     */
+    void reset();
+}
@@ -0,0 +1,311 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.ContextObjectInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Post-copy migration of <code>LazyState</code> fields
+ * While a process is encoded inside an export, each loaded
+ * <code>LazyState</code> it holds is written as a handle with the
+ * address of this manager and the ID of the state, and the state is
+ * kept here until the new host fetches it. The new host starts the
+ * process as soon as the small rest of it is decoded; the states are
+ * fetched over a migration session to this manager in the background,
+ * or on demand when the process needs one first.
+ *
+ * Each exported state is served once, then forgotten. States which
+ * are not fetched within <code>migration.postcopy.ttl</code>
+ * milliseconds are dropped, and the exports of failed migrations are
+ * withdrawn at once, since the process runs here again.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LazyState
+ * @see edu.cmu.courses.ds.process.MigrationSession
+ */
+public class PostCopy {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(PostCopy.class);
+
+    /**
+     * The next state ID, starting at a random value so handles of an
+     * earlier run of this manager never match
+     */
+    private static final AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong());
+
+    /**
+     * Exported states waiting for their fetch, by ID
+     */
+    private static final Map<Long, Entry> exports = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * The export of the encoding on the current thread
+     */
+    private static final ThreadLocal<Export> current = new ThreadLocal<Export>();
+
+    /**
+     * The sessions to the managers states are fetched from
+     */
+    private static final PeerConnectionPool sources = new PeerConnectionPool();
+
+    /**
+     * Set on the background fetch thread while it fetches, whose
+     * fetches go in the bulk lane
+     *
+     * @see edu.cmu.courses.ds.process.MigrationThrottle
+     */
+    private static final ThreadLocal<Boolean> prefetching = new ThreadLocal<Boolean>();
+
+    /**
+     * The background fetch thread
+     */
+    private static final ExecutorService prefetcher =
+            Executors.newSingleThreadExecutor(new ProcessServer.NamedThreadFactory("postcopy"));
+
+    /**
+     * Statistics of fetched states
+     */
+    private static final AtomicLong fetched = new AtomicLong();
+    private static final AtomicLong fetchedBytes = new AtomicLong();
+
+    /**
+     * Invisible constructor, all functions are static.
+     */
+    private PostCopy() {
+    }
+
+    /**
+     * Export the <code>LazyState</code> fields of the processes
+     * encoded on this thread until <code>endExport()</code>
+     *
+     * @param host the address the new host connects back to
+     * @param port the migration port of this manager
+     * @return the export
+     */
+    public static Export beginExport(String host, int port) {
+        Export export = new Export(host, port);
+        current.set(export);
+        return export;
+    }
+
+    /**
+     * Encode <code>LazyState</code> fields inline again on this thread
+     */
+    public static void endExport() {
+        current.remove();
+    }
+
+    /**
+     * Drop the states of an export, whose migration failed
+     *
+     * @param export the export
+     */
+    public static void withdraw(Export export) {
+        for (Long id : export.ids) {
+            exports.remove(id);
+        }
+    }
+
+    /**
+     * Get the number of exported states not fetched yet
+     *
+     * @return the count
+     */
+    public static int getExportCount() {
+        purge();
+        return exports.size();
+    }
+
+    /**
+     * Get the number of states fetched by this manager
+     *
+     * @return the count
+     */
+    public static long getFetchedCount() {
+        return fetched.get();
+    }
+
+    /**
+     * Get the bytes of states fetched by this manager
+     *
+     * @return the byte count
+     */
+    public static long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    /**
+     * Get a new state ID
+     */
+    static long newId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Get the export of the current thread
+     *
+     * @return the export, <code>null</code> if states are encoded inline
+     */
+    static Export currentExport() {
+        return current.get();
+    }
+
+    /**
+     * Serialize and forget an exported state
+     *
+     * @param id the state ID
+     * @return the serialized value, <code>null</code> if the state is
+     *         unknown or expired
+     * @throws IOException if the value can't be serialized
+     */
+    static byte[] serve(long id) throws IOException {
+        purge();
+        Entry entry = exports.remove(id);
+        if (entry == null) {
+            LOG.warn("fetch of unknown state " + id);
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(entry.state.peek());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Fetch a state from the manager which exported it
+     *
+     * @param host the host of the manager
+     * @param port the migration port of the manager
+     * @param id   the state ID
+     * @return the value
+     * @throws IOException if the state can't be fetched
+     */
+    static Object fetch(String host, int port, long id) throws IOException {
+        byte[] data = sources.get(host, port).fetch(id,
+                Boolean.TRUE.equals(prefetching.get()) ? MigrationThrottle.Lane.BULK : MigrationThrottle.Lane.URGENT);
+        fetched.incrementAndGet();
+        fetchedBytes.addAndGet(data.length);
+        ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unrecognized state " + id + " from " + host + ":" + port, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fetch a decoded state in the background, if
+     * <code>migration.postcopy.prefetch</code> is set
+     *
+     * @param state the state, which is not loaded
+     */
+    static void prefetch(final LazyState<?> state) {
+        if (!Configuration.getBoolean("migration.postcopy.prefetch", true)) {
+            return;
+        }
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                prefetching.set(Boolean.TRUE);
+                try {
+                    state.get();
+                } catch (IOException e) {
+                    LOG.error("prefetch state error", e);
+                } finally {
+                    prefetching.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the expired states
+     */
+    private static void purge() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = exports.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiry < now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The states exported by the encoding of one process
+     */
+    public static class Export {
+        private final String host;
+        private final int port;
+        private final Set<Long> ids = new LinkedHashSet<Long>();
+
+        Export(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Keep a state until it is fetched. A state exported again by
+         * a later pre-copy round keeps its entry.
+         */
+        void add(long id, LazyState<?> state) {
+            if (ids.add(id)) {
+                long ttl = Configuration.getLong("migration.postcopy.ttl", 600000);
+                exports.put(id, new Entry(state, System.currentTimeMillis() + ttl));
+            }
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        /**
+         * Get the number of exported states
+         *
+         * @return the count
+         */
+        public int getCount() {
+            return ids.size();
+        }
+    }
+
+    /**
+     * An exported state
+     */
+    private static class Entry {
+        final LazyState<?> state;
+        final long expiry;
+
+        Entry(LazyState<?> state, long expiry) {
+            this.state = state;
+            this.expiry = expiry;
+        }
+    }
+}
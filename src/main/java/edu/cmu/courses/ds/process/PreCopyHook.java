@@ -0,0 +1,25 @@
+package edu.cmu.courses.ds.process;
+
+/**
+ * Dirty tracking hook of pre-copy migration
+ * A <code>MigratableProcess</code> which knows when its state changes
+ * can implement this interface. A pre-copy round or the final
+ * stop-and-copy is skipped when the process reports no change since
+ * the previous call, so a process which is idle or only changes state
+ * now and then is never encoded twice for nothing.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PreCopyMigration
+ */
+public interface PreCopyHook {
+    /**
+     * Report if any migrated field changed since the previous call,
+     * and start tracking again. It is called from the migrating thread
+     * while the process runs, and once more after it is suspended.
+     *
+     * @return <code>true</code> if any field which is migrated
+     *         changed since the previous call
+     */
+    boolean takeDirty();
+}
@@ -0,0 +1,263 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.MigrationCodec;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pre-copy live migration of one process
+ * While the process keeps running, it is encoded in rounds. The first
+ * round sends the whole encoded process in blocks of
+ * <code>migration.precopy.block</code> bytes; each following round
+ * compares the new encoding with the previous one and sends only the
+ * blocks which differ. The rounds stop after
+ * <code>migration.precopy.rounds</code> rounds, when a round sends at
+ * most <code>migration.precopy.threshold</code> bytes, or when the
+ * dirty bytes stop shrinking. The last round always ends right before
+ * the caller suspends the process, so its encoding is the freshest one
+ * the receiver has. Then <code>commit()</code> sends the blocks which
+ * changed since that round, so the downtime covers the last few blocks
+ * and, unless the process tells what changed, one more encoding and
+ * the comparison.
+ *
+ * Encoding a running process may see a torn state, which doesn't
+ * matter: every block sent is compared with the final encoding, which
+ * is exact. Processes implementing <code>PreCopyHook</code> skip the
+ * rounds in which nothing changed, and aren't encoded at all while
+ * suspended when nothing changed since the last round. Any other
+ * process is encoded once more while suspended, since nothing else
+ * can tell what changed.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PreCopyHook
+ * @see edu.cmu.courses.ds.process.MigrationSession
+ */
+public class PreCopyMigration {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(PreCopyMigration.class);
+
+    /**
+     * The migration session to the host
+     */
+    private PeerConnection peer;
+
+    /**
+     * The migrating process
+     */
+    private MigratableProcess process;
+
+    /**
+     * The dirty tracking hook of the process, if any
+     */
+    private PreCopyHook hook;
+
+    /**
+     * The codec of this migration
+     */
+    private MigrationCodec codec;
+
+    /**
+     * The stream ID of this migration
+     */
+    private int stream;
+
+    /**
+     * The encoding the receiver has
+     */
+    private byte[] previous;
+
+    /**
+     * Configuration
+     */
+    private int blockSize;
+    private int maxRounds;
+    private long threshold;
+
+    /**
+     * Statistics
+     */
+    private int rounds;
+    private long precopied;
+    private long finalBytes;
+
+    /**
+     * Constructor of <code>PreCopyMigration</code>
+     *
+     * @param peer    the migration session to the host
+     * @param process the process, which is running
+     */
+    public PreCopyMigration(PeerConnection peer, MigratableProcess process) {
+        this.peer = peer;
+        this.process = process;
+        this.hook = process instanceof PreCopyHook ? (PreCopyHook) process : null;
+        this.codec = MigrationCodecs.getDefault();
+        this.stream = peer.newStream();
+        this.blockSize = Math.max(1024, Configuration.getInt("migration.precopy.block", 64 * 1024));
+        this.maxRounds = Configuration.getInt("migration.precopy.rounds", 5);
+        this.threshold = Configuration.getLong("migration.precopy.threshold", 256 * 1024);
+    }
+
+    /**
+     * Run the pre-copy rounds while the process runs
+     *
+     * @throws IOException if the connection fails, the process is
+     *                     still running then
+     */
+    public void precopy() throws IOException {
+        if (hook != null) {
+            hook.takeDirty();
+        }
+        long lastDirty = Long.MAX_VALUE;
+        boolean fresh = false;
+        while (rounds < maxRounds) {
+            if (previous != null && hook != null && !hook.takeDirty()) {
+                fresh = true;
+                break;
+            }
+            long dirty = round();
+            fresh = dirty >= 0;
+            if (fresh && (dirty <= threshold || dirty >= lastDirty)) {
+                break;
+            }
+            if (fresh) {
+                lastDirty = dirty;
+            }
+        }
+        // the stop-and-copy diffs against the last round, so the round
+        // which failed last is retried rather than diffing against an
+        // older one, or sending everything while suspended
+        for (int retry = 0; !fresh && retry < maxRounds; retry++) {
+            fresh = round() >= 0;
+        }
+    }
+
+    /**
+     * Encode the running process and send the blocks which changed
+     *
+     * @return the dirty bytes sent, -1 if the encoding saw a torn
+     *         state and failed
+     */
+    private long round() throws IOException {
+        rounds++;
+        byte[] current;
+        try {
+            current = peer.encode(codec, process);
+        } catch (RuntimeException e) {
+            LOG.debug("encode running process error, retry", e);
+            return -1;
+        }
+        List<int[]> blocks = diff(current);
+        peer.sendBlocks(stream, current, blocks);
+        long dirty = length(blocks);
+        precopied += dirty;
+        previous = current;
+        return dirty;
+    }
+
+    /**
+     * Stop-and-copy. The caller has suspended the process, the blocks
+     * which changed since the last round and the commit are sent, and
+     * the peer decodes and starts the process.
+     *
+     * @return the acknowledgement, not answered if it is unknown
+     *         whether the peer started the process
+     * @throws IOException if the process can't be encoded, or the
+     *                     commit can't be sent
+     */
+    public PeerConnection.Ack commit() throws IOException {
+        byte[] current;
+        List<int[]> blocks;
+        if (previous != null && hook != null && !hook.takeDirty()) {
+            current = previous;
+            blocks = Collections.emptyList();
+        } else {
+            long start = System.nanoTime();
+            current = peer.encode(codec, process);
+            blocks = diff(current);
+            MigrationTrace.record(MigrationTrace.Phase.SERIALIZE, process, start);
+        }
+        finalBytes = length(blocks);
+        return peer.commit(stream, current, blocks, codec.getId());
+    }
+
+    /**
+     * Give up the migration, the peer drops what it received
+     */
+    public void abandon() {
+        peer.discard(stream);
+    }
+
+    /**
+     * Get the number of pre-copy rounds
+     *
+     * @return the count
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Get the bytes sent while the process was running
+     *
+     * @return the byte count
+     */
+    public long getPrecopiedBytes() {
+        return precopied;
+    }
+
+    /**
+     * Get the bytes sent during the stop-and-copy
+     *
+     * @return the byte count
+     */
+    public long getFinalBytes() {
+        return finalBytes;
+    }
+
+    /**
+     * Find the blocks of <code>current</code> which differ from the
+     * previous encoding
+     *
+     * @return offset and length of each dirty block
+     */
+    private List<int[]> diff(byte[] current) {
+        List<int[]> blocks = new ArrayList<int[]>();
+        for (int offset = 0; offset < current.length; offset += blockSize) {
+            int length = Math.min(blockSize, current.length - offset);
+            if (previous == null || offset + length > previous.length ||
+                    !equal(previous, current, offset, length)) {
+                blocks.add(new int[]{offset, length});
+            }
+        }
+        return blocks;
+    }
+
+    private static boolean equal(byte[] a, byte[] b, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long length(List<int[]> blocks) {
+        long total = 0;
+        for (int[] block : blocks) {
+            total += block[1];
+        }
+        return total;
+    }
+}
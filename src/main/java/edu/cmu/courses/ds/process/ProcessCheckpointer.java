@@ -0,0 +1,604 @@
+package edu.cmu.courses.ds.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.cmu.courses.ds.io.ChunkStore;
+import edu.cmu.courses.ds.io.ContentChunker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The local checkpointer of <code>ProcessManager</code>
+ * Every <code>checkpoint.interval</code> milliseconds, each running
+ * process is paused, serialized into memory and continues right away on
+ * its own thread, then the snapshot is written to <code>checkpoint.dir</code> in the
+ * background. A checkpoint is written to a temporary file, synced and
+ * atomically renamed, so a crash never leaves a half written checkpoint.
+ * Writes are throttled to <code>checkpoint.bandwidth</code> bytes per
+ * second, so checkpointing doesn't starve the processes' own IO.
+ *
+ * Checkpoints are incremental. The serialized process is split into
+ * content defined chunks which are kept in a shared
+ * <code>ChunkStore</code>, and the checkpoint file itself is only a
+ * manifest of chunk hashes. A checkpoint writes just the chunks which
+ * changed since any earlier checkpoint, so its IO cost follows the
+ * change rate of the process rather than its state size. The pause
+ * and the memory of a checkpoint still follow the state size, since
+ * the whole process is serialized into memory before it is split.
+ * Every
+ * <code>checkpoint.compact</code> rounds, chunks which no manifest
+ * refers to any more are deleted.
+ *
+ * After a crash, <code>recover()</code> deserializes the checkpoints
+ * which are not owned by a running process, and the manager restarts
+ * them like migrated processes.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager
+ * @see edu.cmu.courses.ds.process.Configuration
+ */
+public class ProcessCheckpointer implements Runnable {
+    /**
+     * Suffix of checkpoint files
+     */
+    public static final String SUFFIX = ".ckpt";
+
+    /**
+     * Suffix of checkpoint files which are being written
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Magic number of manifest files, "CKPT"
+     */
+    private static final int MAGIC = 0x434b5054;
+
+    /**
+     * Version of the manifest format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ProcessCheckpointer.class);
+
+    /**
+     * The process manager whose processes are checkpointed
+     */
+    private ProcessManager manager;
+
+    /**
+     * The checkpoint directory
+     */
+    private File directory;
+
+    /**
+     * Checkpoint interval in milliseconds, 0 means disabled
+     */
+    private long interval;
+
+    /**
+     * Write budget in bytes per second, 0 means unlimited
+     */
+    private long bandwidth;
+
+    /**
+     * Number of checkpoint rounds between two compactions
+     */
+    private long compactRounds;
+
+    /**
+     * Number of checkpoint rounds since the last compaction
+     */
+    private long rounds;
+
+    /**
+     * The shared chunk store, created by <code>start()</code> or
+     * <code>recover()</code>.
+     */
+    private ChunkStore store;
+
+    /**
+     * Checkpoint state of each process. <code>MigratableProcess</code>
+     * doesn't override <code>equals()</code>, so the map is keyed by the
+     * process object itself, which stays the same across restarts with
+     * new process IDs.
+     */
+    private ConcurrentHashMap<MigratableProcess, Checkpoint> checkpoints;
+
+    /**
+     * The background checkpointing thread
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor of <code>ProcessCheckpointer</code>, read the
+     * checkpoint settings from <code>Configuration</code>.
+     *
+     * @param manager the process manager
+     */
+    public ProcessCheckpointer(ProcessManager manager) {
+        this(manager, new File(Configuration.get("checkpoint.dir", "checkpoint")));
+    }
+
+    /**
+     * Constructor of <code>ProcessCheckpointer</code> with a specific
+     * checkpoint directory, read the other settings from
+     * <code>Configuration</code>.
+     *
+     * @param manager   the process manager
+     * @param directory the checkpoint directory
+     */
+    public ProcessCheckpointer(ProcessManager manager, File directory) {
+        this.manager = manager;
+        this.directory = directory;
+        this.interval = Configuration.getLong("checkpoint.interval", 0);
+        this.bandwidth = Configuration.getLong("checkpoint.bandwidth", 0);
+        this.compactRounds = Configuration.getLong("checkpoint.compact", 10);
+        this.checkpoints = new ConcurrentHashMap<MigratableProcess, Checkpoint>();
+    }
+
+    /**
+     * Start the periodic checkpointing if <code>checkpoint.interval</code>
+     * is positive.
+     */
+    public void start() {
+        if (interval <= 0 || scheduler != null) {
+            return;
+        }
+        try {
+            openStore();
+        } catch (IOException e) {
+            LOG.error("open checkpoint directory " + directory + " failed", e);
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic checkpointing
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Check if the periodic checkpointing is enabled
+     *
+     * @return <code>true</code> if enabled
+     */
+    public boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    /**
+     * The implementation of <code>Runnable</code> interface.
+     * Checkpoint every running process once, and compact the chunk
+     * store every <code>compactRounds</code> rounds.
+     */
+    public void run() {
+        for (MigratableProcess process : manager.getProcesses()) {
+            try {
+                checkpoint(process);
+            } catch (IOException e) {
+                LOG.error(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] checkpoint error", e);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (compactRounds > 0 && ++rounds >= compactRounds) {
+            rounds = 0;
+            compact();
+        }
+    }
+
+    /**
+     * Delete the chunks which no manifest refers to. Manifests of
+     * processes waiting for recovery are kept alive as well. If any
+     * manifest can't be read, nothing is deleted.
+     */
+    public void compact() {
+        File[] files = directory.listFiles();
+        if (files == null || store == null) {
+            return;
+        }
+        Set<String> live = new HashSet<String>();
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                for (ContentChunker.Chunk chunk : readManifest(file)) {
+                    live.add(chunk.hash);
+                }
+            } catch (IOException e) {
+                if (file.exists()) {
+                    LOG.error("read manifest " + file + " error, skip compaction", e);
+                    return;
+                }
+            }
+        }
+        long freed = store.retain(live);
+        if (freed > 0) {
+            LOG.info("checkpoint compaction freed " + freed + " bytes");
+        }
+    }
+
+    /**
+     * Checkpoint a process.
+     * The process is locked while it's paused, so a migration or
+     * another checkpoint can't interleave with the snapshot.
+     *
+     * @param process the process object
+     * @throws IOException          if the checkpoint can't be written
+     * @throws InterruptedException if the checkpointer is interrupted
+     */
+    public void checkpoint(MigratableProcess process) throws IOException, InterruptedException {
+        byte[] data;
+        long pause;
+        Checkpoint checkpoint;
+        synchronized (process) {
+            if (!manager.getProcesses().contains(process)) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (!process.pause()) {
+                return;
+            }
+            try {
+                checkpoint = getCheckpoint(process);
+                data = serialize(process);
+            } finally {
+                process.unpause();
+            }
+            pause = System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        synchronized (checkpoint) {
+            if (checkpoint.discarded) {
+                return;
+            }
+            checkpoint.written = write(checkpoint.file, data);
+            checkpoint.count++;
+            checkpoint.size = data.length;
+            checkpoint.pauseNanos = pause;
+            checkpoint.writeNanos = System.nanoTime() - start;
+            checkpoint.time = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Discard the checkpoint of a process, called when the process
+     * finished or migrated to another host.
+     *
+     * @param process the process object
+     */
+    public void discard(MigratableProcess process) {
+        Checkpoint checkpoint = checkpoints.remove(process);
+        if (checkpoint == null) {
+            return;
+        }
+        synchronized (checkpoint) {
+            checkpoint.discarded = true;
+            if (checkpoint.file.exists() && !checkpoint.file.delete()) {
+                LOG.error("delete checkpoint " + checkpoint.file + " failed");
+            }
+        }
+    }
+
+    /**
+     * Load all checkpoints which are not owned by a live process.
+     * Unreadable checkpoints are logged and left in place.
+     * The loaded processes keep their checkpoint files, so the next
+     * checkpoints replace the recovered ones.
+     *
+     * @return the recovered processes, which are not started yet
+     */
+    public List<MigratableProcess> recover() {
+        List<MigratableProcess> result = new ArrayList<MigratableProcess>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        try {
+            openStore();
+        } catch (IOException e) {
+            LOG.error("open checkpoint directory " + directory + " failed", e);
+            return result;
+        }
+        Collection<Checkpoint> owned = checkpoints.values();
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX) || isOwned(owned, file)) {
+                continue;
+            }
+            try {
+                Object object = read(file);
+                if (!(object instanceof MigratableProcess)) {
+                    LOG.error("checkpoint " + file + " is not a process");
+                    continue;
+                }
+                MigratableProcess process = (MigratableProcess) object;
+                Checkpoint checkpoint = new Checkpoint(file);
+                checkpoint.time = file.lastModified();
+                checkpoints.put(process, checkpoint);
+                result.add(process);
+            } catch (IOException e) {
+                LOG.error("read checkpoint " + file + " error", e);
+            } catch (ClassNotFoundException e) {
+                LOG.error("checkpoint " + file + " has unknown class", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Print the checkpoint cost and staleness of each running process.
+     */
+    public void printStatus() {
+        if (!isEnabled()) {
+            System.out.println("Checkpointing is disabled, set checkpoint.interval to enable it");
+        }
+        long now = System.currentTimeMillis();
+        for (MigratableProcess process : manager.getProcesses()) {
+            Checkpoint checkpoint = checkpoints.get(process);
+            if (checkpoint == null || checkpoint.time == 0) {
+                System.out.println(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "]: no checkpoint");
+                continue;
+            }
+            System.out.println(process.getClass().getSimpleName() +
+                    "[" + process.getId() + "]: " +
+                    "count=" + checkpoint.count +
+                    " size=" + checkpoint.size + "B" +
+                    " written=" + checkpoint.written + "B" +
+                    " pause=" + TimeUnit.NANOSECONDS.toMillis(checkpoint.pauseNanos) + "ms" +
+                    " write=" + TimeUnit.NANOSECONDS.toMillis(checkpoint.writeNanos) + "ms" +
+                    " age=" + (now - checkpoint.time) + "ms");
+        }
+    }
+
+    /**
+     * Get or create the checkpoint state of a process
+     */
+    private Checkpoint getCheckpoint(MigratableProcess process) {
+        Checkpoint checkpoint = checkpoints.get(process);
+        if (checkpoint == null) {
+            File file = new File(directory, process.getClass().getSimpleName() +
+                    "-" + UUID.randomUUID() + SUFFIX);
+            Checkpoint previous = checkpoints.putIfAbsent(process, new Checkpoint(file));
+            checkpoint = previous == null ? checkpoints.get(process) : previous;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Check if the file belongs to a known checkpoint
+     */
+    private static boolean isOwned(Collection<Checkpoint> owned, File file) {
+        for (Checkpoint checkpoint : owned) {
+            if (checkpoint.file.getName().equals(file.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serialize a process into memory
+     *
+     * @param process the process object
+     * @return the serialized bytes
+     * @throws IOException if serialization fails
+     */
+    private static byte[] serialize(MigratableProcess process) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(process);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create the checkpoint directory and the chunk store
+     *
+     * @throws IOException if the directories can't be created
+     */
+    private synchronized void openStore() throws IOException {
+        if (store == null) {
+            store = new ChunkStore(new File(directory, "chunks"));
+        }
+    }
+
+    /**
+     * Read a checkpoint manifest and rebuild the process from its chunks
+     */
+    private Object read(File file) throws IOException, ClassNotFoundException {
+        List<ContentChunker.Chunk> chunks = readManifest(file);
+        int size = 0;
+        for (ContentChunker.Chunk chunk : chunks) {
+            size += chunk.length;
+        }
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (ContentChunker.Chunk chunk : chunks) {
+            byte[] content = store.get(chunk.hash);
+            if (content.length != chunk.length) {
+                throw new IOException("chunk " + chunk.hash + " is corrupted");
+            }
+            System.arraycopy(content, 0, data, offset, content.length);
+            offset += content.length;
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the chunk list of a manifest
+     *
+     * @param file the manifest file
+     * @return the chunks in order
+     * @throws IOException if the manifest can't be read
+     */
+    private static List<ContentChunker.Chunk> readManifest(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("bad checkpoint manifest " + file);
+            }
+            int count = in.readInt();
+            List<ContentChunker.Chunk> chunks = new ArrayList<ContentChunker.Chunk>(count);
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                String hash = in.readUTF();
+                int length = in.readInt();
+                chunks.add(new ContentChunker.Chunk(offset, length, hash));
+                offset += length;
+            }
+            return chunks;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a checkpoint. The chunks which are not stored yet are
+     * written within the write budget, then the manifest is written to
+     * a temporary file, synced and atomically renamed.
+     *
+     * @param file the checkpoint file
+     * @param data the serialized process
+     * @return the number of chunk bytes actually written
+     * @throws IOException          if any IO error occurs
+     * @throws InterruptedException if the write is interrupted
+     */
+    private long write(File file, byte[] data) throws IOException, InterruptedException {
+        openStore();
+        List<ContentChunker.Chunk> chunks = ContentChunker.split(data);
+        long written = 0;
+        long start = System.nanoTime();
+        for (ContentChunker.Chunk chunk : chunks) {
+            if (store.put(chunk.hash, data, chunk.offset, chunk.length)) {
+                written += chunk.length;
+                if (bandwidth > 0) {
+                    long wait = start + written * 1000000000L / bandwidth - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+            }
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(chunks.size());
+            for (ContentChunker.Chunk chunk : chunks) {
+                out.writeUTF(chunk.hash);
+                out.writeInt(chunk.length);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return written;
+    }
+
+    /**
+     * The checkpoint state of a process
+     */
+    static class Checkpoint {
+        /**
+         * The checkpoint file
+         */
+        final File file;
+
+        /**
+         * Set when the process finished or migrated away
+         */
+        boolean discarded;
+
+        /**
+         * Number of checkpoints written
+         */
+        long count;
+
+        /**
+         * Size of the last checkpoint in bytes
+         */
+        long size;
+
+        /**
+         * Number of chunk bytes written by the last checkpoint
+         */
+        long written;
+
+        /**
+         * Suspension time of the last checkpoint
+         */
+        long pauseNanos;
+
+        /**
+         * Write time of the last checkpoint
+         */
+        long writeNanos;
+
+        /**
+         * Wall clock time of the last checkpoint
+         */
+        volatile long time;
+
+        Checkpoint(File file) {
+            this.file = file;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package edu.cmu.courses.ds.process;
 
+import edu.cmu.courses.ds.codec.JobClassLoader;
+import edu.cmu.courses.ds.io.IOCounters;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reflections.Reflections;
@@ -7,8 +10,13 @@ import org.reflections.Reflections;
 import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
@@ -22,6 +30,11 @@ import java.util.concurrent.atomic.AtomicLong;
  * interface. Other functions in this class contains generator of
  * process ID, callback function of process exit, etc,.
  *
+ * The program runs the single instance of <code>getInstance()</code>,
+ * configured by <code>server.address</code>, <code>server.port</code>
+ * and <code>checkpoint.dir</code>. Tests may create more managers in
+ * one JVM, each with its own address, port and checkpoint directory.
+ *
  * @author Jian Fang(jianf)
  * @author Fangyu Gao(fangyug)
  * @see edu.cmu.courses.ds.process.MigratableProcess
@@ -42,11 +55,17 @@ public class ProcessManager {
 
     /**
      * The counter for process ID. By using the <code>AtomicLong</code>,
-     * We assure the ID generation is thread-safe.
+     * We assure the ID generation is thread-safe. It is shared by all
+     * managers of the JVM, so process IDs never clash between them.
      *
      * @see java.util.concurrent.atomic.AtomicLong
      */
-    private AtomicLong idCounter;
+    private static final AtomicLong idCounter = new AtomicLong(0);
+
+    /**
+     * The migratable classes found on the class path, scanned once
+     */
+    private static Set<Class<? extends MigratableProcess>> scannedClasses;
 
     /**
      * The linked queue of current processes.
@@ -65,33 +84,404 @@ public class ProcessManager {
      */
     Set<Class<? extends MigratableProcess>> processClasses;
 
+    /**
+     * The local checkpointer of running processes
+     *
+     * @see edu.cmu.courses.ds.process.ProcessCheckpointer
+     */
+    private ProcessCheckpointer checkpointer;
+
+    /**
+     * The migration server of this manager
+     *
+     * @see edu.cmu.courses.ds.process.ProcessServer
+     */
+    private ProcessServer server;
+
+    /**
+     * The address the server binds, <code>null</code> for all addresses
+     */
+    private String address;
+
+    /**
+     * The port the server binds, 0 means any free port
+     */
+    private int port;
+
+    /**
+     * The migration sessions to other managers
+     *
+     * @see edu.cmu.courses.ds.process.PeerConnectionPool
+     */
+    private PeerConnectionPool peers;
+
+    /**
+     * The caches of shipped input files, shipped bytecode and process
+     * results of this manager
+     *
+     * @see edu.cmu.courses.ds.process.FileCache
+     * @see edu.cmu.courses.ds.process.ClassCache
+     * @see edu.cmu.courses.ds.process.ResultCache
+     */
+    private FileCache fileCache;
+    private ClassCache classCache;
+    private ResultCache resultCache;
+
+    /**
+     * The bandwidth limits of the migrations of this manager
+     *
+     * @see edu.cmu.courses.ds.process.MigrationThrottle
+     */
+    private MigrationThrottle throttle;
+
+    /**
+     * The I/O counters of all processes which ran here
+     */
+    private final IOCounters io = new IOCounters();
+
+    /**
+     * The automatic migration balancer of this manager
+     *
+     * @see edu.cmu.courses.ds.process.LoadBalancer
+     */
+    private LoadBalancer balancer;
+
+    /**
+     * The warm-standby replicator of processes of this manager, and
+     * the standby of the processes of other managers
+     *
+     * @see edu.cmu.courses.ds.process.ProcessReplicator
+     * @see edu.cmu.courses.ds.process.ProcessStandby
+     */
+    private ProcessReplicator replicator;
+    private ProcessStandby standby;
+
+    /**
+     * The splitter of the splittable processes of this manager
+     *
+     * @see edu.cmu.courses.ds.process.ProcessSplitter
+     */
+    private ProcessSplitter splitter;
+
+    /**
+     * Set while the manager is drained, when it refuses new processes
+     *
+     * @see edu.cmu.courses.ds.process.NodeDrain
+     */
+    private volatile boolean draining;
+
+    /**
+     * The local control endpoint, <code>null</code> until it starts
+     *
+     * @see edu.cmu.courses.ds.process.ControlServer
+     */
+    private ControlServer control;
+
+    /**
+     * Set when processes started by name take their outputs from the
+     * result cache if they ran before, <code>results.cache</code>
+     *
+     * @see edu.cmu.courses.ds.process.ResultCache
+     */
+    private volatile boolean caching = Configuration.getBoolean("results.cache", false);
+
+    /**
+     * Constructor of the single instance, with the configured
+     * <code>server.address</code>, <code>server.port</code> and
+     * <code>checkpoint.dir</code>
+     */
+    private ProcessManager() {
+        this(Configuration.get("server.address", null), Configuration.getInt("server.port", ProcessServer.PORT),
+                new File(Configuration.get("checkpoint.dir", "checkpoint")));
+    }
+
     /**
      * Constructor of <code>ProcessManager</code>
-     * The constructor is invisible since we need to keep
-     * the <code>ProcessManager</code> is single instance.
      * In the constructor we use <code>Reflections</code> library
      * to get all classes inherited from <code>MigratableProcess</code>
+     * in the <code>process.packages</code>, once per JVM.
      *
+     * @param address       the address the server binds,
+     *                      <code>null</code> for all addresses
+     * @param port          the port the server binds, 0 means any free
+     *                      port
+     * @param checkpointDir the checkpoint directory of this manager
      * @see <a href="https://code.google.com/p/reflections/">Reflections Library</a>
      */
-    private ProcessManager() {
-        idCounter = new AtomicLong(0);
+    public ProcessManager(String address, int port, File checkpointDir) {
+        this(address, port, checkpointDir, null);
+    }
+
+    /**
+     * Constructor of <code>ProcessManager</code> with its own cache
+     * directory, which holds the <code>filecache</code>,
+     * <code>classcache</code> and <code>resultcache</code> directories
+     * of the manager
+     *
+     * @param address       the address the server binds,
+     *                      <code>null</code> for all addresses
+     * @param port          the port the server binds, 0 means any free
+     *                      port
+     * @param checkpointDir the checkpoint directory of this manager
+     * @param cacheDir      the cache directory of this manager,
+     *                      <code>null</code> for the configured
+     *                      <code>files.cache.dir</code>,
+     *                      <code>classes.cache.dir</code> and
+     *                      <code>results.cache.dir</code>
+     */
+    public ProcessManager(String address, int port, File checkpointDir, File cacheDir) {
+        this.address = address;
+        this.port = port;
         processes = new ConcurrentLinkedQueue<MigratableProcess>();
-        Reflections reflections = new Reflections("edu.cmu.courses.ds.process");
-        processClasses = reflections.getSubTypesOf(MigratableProcess.class);
+        processClasses = scanClasses();
+        fileCache = new FileCache(getCacheDir(cacheDir, "files.cache.dir", "filecache"));
+        classCache = new ClassCache(getCacheDir(cacheDir, "classes.cache.dir", "classcache"));
+        resultCache = new ResultCache(getCacheDir(cacheDir, "results.cache.dir", "resultcache"));
+        throttle = new MigrationThrottle();
+        peers = new PeerConnectionPool(throttle);
+        checkpointer = new ProcessCheckpointer(this, checkpointDir);
+        balancer = new LoadBalancer(this);
+        replicator = new ProcessReplicator(this);
+        standby = new ProcessStandby(this);
+        splitter = new ProcessSplitter(this);
+    }
+
+    /**
+     * Get the directory of one cache of a manager
+     *
+     * @param cacheDir the cache directory of the manager,
+     *                 <code>null</code> for the configured directory
+     * @param key      the configuration key of the directory
+     * @param name     the name of the directory
+     * @return the directory
+     */
+    private static File getCacheDir(File cacheDir, String key, String name) {
+        return cacheDir != null ? new File(cacheDir, name) : new File(Configuration.get(key, name));
     }
 
     /**
-     * Start the <code>ProcessServer</code> in a new <code>Thread</code>
+     * Start the <code>ProcessServer</code> in a new <code>Thread</code>.
+     * The port is bound before the function returns.
      *
+     * @throws IOException if the port can't be bound
      * @see edu.cmu.courses.ds.process.ProcessServer
      * @see java.lang.Thread#start()
      */
-    public void startServer() {
-        Thread serverThread = new Thread(new ProcessServer());
+    public void startServer() throws IOException {
+        server = new ProcessServer(this, address, port);
+        server.bind();
+        Thread serverThread = new Thread(server, "process-server-" + server.getLocalPort());
         serverThread.start();
     }
 
+    /**
+     * Stop the server, the checkpointer and the migration sessions.
+     * Running processes are left alone, and the standbys of replicated
+     * processes take them over once the heartbeats are missed.
+     */
+    public void shutdown() {
+        if (server != null) {
+            server.stop();
+        }
+        checkpointer.stop();
+        balancer.stop();
+        replicator.stop();
+        standby.stop();
+        splitter.stop();
+        if (control != null) {
+            control.stop();
+        }
+        peers.close();
+    }
+
+    /**
+     * Start the local control endpoint in a new <code>Thread</code>.
+     * The port is bound on the loopback address before the function
+     * returns.
+     *
+     * @param port the port, 0 for any free port
+     * @return the bound port
+     * @throws IOException if the port can't be bound
+     * @see edu.cmu.courses.ds.process.ControlServer
+     */
+    public int startControl(int port) throws IOException {
+        control = new ControlServer(this, port);
+        Thread thread = new Thread(control, "control-server-" + control.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        return control.getLocalPort();
+    }
+
+    /**
+     * Get the migration port of this manager
+     *
+     * @return the port
+     */
+    public int getServerPort() {
+        int bound = server == null ? -1 : server.getLocalPort();
+        return bound > 0 ? bound : port;
+    }
+
+    /**
+     * Get the address the server binds
+     *
+     * @return the address, <code>null</code> for all addresses
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the automatic migration balancer
+     *
+     * @return the balancer, running or not
+     */
+    public LoadBalancer getBalancer() {
+        return balancer;
+    }
+
+    /**
+     * Get the warm-standby replicator of the processes of this manager
+     *
+     * @return the replicator
+     */
+    public ProcessReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Get the standby which holds the replicas of other managers
+     *
+     * @return the standby
+     */
+    public ProcessStandby getStandby() {
+        return standby;
+    }
+
+    /**
+     * Get the splitter of the processes of this manager
+     *
+     * @return the splitter
+     */
+    public ProcessSplitter getSplitter() {
+        return splitter;
+    }
+
+    /**
+     * Get the cache of the input files shipped to this manager
+     *
+     * @return the file cache
+     */
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Get the cache of the bytecode of jobs shipped to this manager
+     *
+     * @return the class cache
+     */
+    public ClassCache getClassCache() {
+        return classCache;
+    }
+
+    /**
+     * Get the cache of the results of processes started by name
+     *
+     * @return the result cache
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Get the bandwidth limits of the migrations of this manager
+     *
+     * @return the throttle
+     */
+    public MigrationThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Get the I/O counters of all processes which ran on this manager
+     *
+     * @return the counters
+     */
+    public IOCounters getIO() {
+        return io;
+    }
+
+    /**
+     * Start the automatic migration balancer, if
+     * <code>balancer.enabled</code> is set.
+     *
+     * @see edu.cmu.courses.ds.process.LoadBalancer#start()
+     */
+    public void startBalancer() {
+        if (Configuration.getBoolean("balancer.enabled", false)) {
+            balancer.start();
+        }
+    }
+
+    /**
+     * Check if the manager is drained and refuses new processes
+     *
+     * @return <code>true</code> while a drain runs
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Start or stop refusing new processes
+     *
+     * @param draining <code>true</code> to refuse new processes
+     */
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    /**
+     * Get the migration session to another manager from the pool
+     *
+     * @param hostName the host of the other manager
+     * @param hostPort the port of the other manager
+     * @return the session
+     * @throws IOException if the other manager can't be connected
+     */
+    PeerConnection getPeer(String hostName, int hostPort) throws IOException {
+        return peers.get(hostName, hostPort);
+    }
+
+    /**
+     * Start the periodic checkpointing of running processes, if
+     * <code>checkpoint.interval</code> is configured.
+     *
+     * @see edu.cmu.courses.ds.process.ProcessCheckpointer#start()
+     */
+    public void startCheckpointer() {
+        checkpointer.start();
+    }
+
+    /**
+     * Restart all processes from the checkpoints which are not owned
+     * by a running process. The recovered processes are treated like
+     * migrated processes, so their streams reopen at the saved offsets.
+     *
+     * @return the number of recovered processes
+     * @see edu.cmu.courses.ds.process.ProcessCheckpointer#recover()
+     */
+    public int recoverProcesses() {
+        List<MigratableProcess> recovered = checkpointer.recover();
+        for (MigratableProcess process : recovered) {
+            process.migrated();
+            startProcess(process);
+            System.out.println("Recovered " + process.toString());
+        }
+        return recovered.size();
+    }
+
     /**
      * Start the interactive console of <code>ProcessManager</code>.
      * Read user command from <code>System.in</code>, then process
@@ -123,18 +513,56 @@ public class ProcessManager {
      * @see java.util.concurrent.atomic.AtomicLong#getAndIncrement()
      */
     public long generateID() {
+        return nextID();
+    }
+
+    /**
+     * Generate a process ID unique in the JVM
+     *
+     * @return the process ID
+     */
+    static long nextID() {
         return idCounter.getAndIncrement();
     }
 
+    /**
+     * Find the migratable classes of the <code>process.packages</code>,
+     * once per JVM
+     */
+    private static synchronized Set<Class<? extends MigratableProcess>> scanClasses() {
+        if (scannedClasses == null) {
+            List<String> packages = new ArrayList<String>();
+            for (String name : Configuration.get("process.packages", "edu.cmu.courses.ds.process").split("[,\\s]+")) {
+                if (name.length() > 0) {
+                    packages.add(name);
+                }
+            }
+            Reflections reflections = new Reflections(packages.toArray());
+            scannedClasses = reflections.getSubTypesOf(MigratableProcess.class);
+        }
+        return scannedClasses;
+    }
+
     /**
      * Callback for process exit, remove process from <code>processes</code>
      * queue. The <code>processes.remove(Object)</code> is thread-safe.
+     * The outputs of a finished process with a result key are stored
+     * in the result cache first.
      *
      * @param process the process instance
      * @see java.util.concurrent.ConcurrentLinkedQueue#remove(Object)
      */
     public void finishProcess(MigratableProcess process) {
+        if (process.isFinished() && process.resultKey != null && !process.failed &&
+                process.splitCount == 0 && process.splitParent == null) {
+            resultCache.store(process.resultKey, process);
+        }
         processes.remove(process);
+        if (process.isFinished()) {
+            checkpointer.discard(process);
+            replicator.discard(process);
+            splitter.finished(process);
+        }
     }
 
     /**
@@ -144,11 +572,16 @@ public class ProcessManager {
      * <code>Class</code> object. Next, we use Java's reflection
      * to create a new process instance.
      * Finally we add the process object to our queue.
+     * No process is started while the manager is drained. When the
+     * result cache is enabled and a process of the same class,
+     * arguments and inputs finished before, its outputs are taken from
+     * the cache and the process doesn't run.
      *
      * @param processName the process name
      * @param args        the process arguments
      * @return if success return <code>true</code>
      *         else return <code>false</code>
+     * @throws IllegalStateException if the manager is drained
      * @throws IllegalAccessException can't access process constructor
      * @throws InstantiationException can't find default process constructor
      * @throws InvocationTargetException 
@@ -156,42 +589,89 @@ public class ProcessManager {
      * @see Class#newInstance()
      * @see edu.cmu.courses.ds.process.MigratableProcess#initProcess(String[])
      * @see edu.cmu.courses.ds.process.ProcessManager#startProcess(MigratableProcess)
+     * @see edu.cmu.courses.ds.process.ResultCache
      */
     public boolean startProcess(String processName, String[] args)
             throws IllegalAccessException, InstantiationException, IllegalArgumentException, InvocationTargetException {
+        return runProcess(processName, args) != null;
+    }
+
+    /**
+     * Start a process by name like <code>startProcess()</code>
+     *
+     * @param processName the process name
+     * @param args        the process arguments
+     * @return the process object, marked if its outputs came from the
+     *         result cache, or <code>null</code> if there is no such
+     *         process class
+     * @throws IllegalStateException if the manager is drained
+     * @see edu.cmu.courses.ds.process.ProcessManager#startProcess(String, String[])
+     */
+    MigratableProcess runProcess(String processName, String[] args)
+            throws IllegalAccessException, InstantiationException, IllegalArgumentException, InvocationTargetException {
+        if (draining) {
+            throw new IllegalStateException("the manager is being drained");
+        }
         Iterator<Class<? extends MigratableProcess>> it = processClasses.iterator();
         while (it.hasNext()) {
             Class<? extends MigratableProcess> process = it.next();
 
             if (process.getSimpleName().equals(processName)) {
-                Constructor<?>[] ctors = process.getDeclaredConstructors();
-                Constructor<?> ctor = null;
-            	for (int i = 0; i < ctors.length; i++) {
-            	    ctor = ctors[i];
-            	    if (ctor.getGenericParameterTypes().length != 0)
-            		break;
-            	}
+                Constructor<?> ctor;
+                try {
+                    ctor = process.getDeclaredConstructor(String[].class);
+                } catch (NoSuchMethodException e) {
+                    throw new InstantiationException(processName + " has no constructor of String[]");
+                }
             	MigratableProcess processInstance = (MigratableProcess) ctor.newInstance((Object) args);
+                if (caching) {
+                    String key = null;
+                    try {
+                        key = resultCache.key(processInstance);
+                        if (key != null && resultCache.materialize(key, processInstance)) {
+                            processInstance.resultCached = true;
+                            return processInstance;
+                        }
+                        resultCache.unlink(processInstance);
+                    } catch (IOException e) {
+                        LOG.warn("result cache of " + processInstance + " failed", e);
+                    }
+                    processInstance.resultKey = key;
+                }
                 startProcess(processInstance);
                 
-                return true;
+                return processInstance;
             }
         }
-        return false;
+        return null;
     }
 
     /**
      * Start a process by using <code>MigratableProcess</code> object.
      * Add the process object to the linked queue. This function is
-     * thread-safe.
+     * thread-safe. The process is queued before its thread starts, so
+     * a process which finishes at once is never left in the queue.
      *
      * @param process
      * @see java.util.concurrent.ConcurrentLinkedQueue#offer(Object)
      */
     public void startProcess(MigratableProcess process) {
+        process.manager = this;
+        process.startTime = System.currentTimeMillis();
         Thread thread = new Thread(process);
-        thread.start();
+        thread.setContextClassLoader(process.getClass().getClassLoader());
+        process.running = true;
         processes.offer(process);
+        thread.start();
+    }
+
+    /**
+     * Get all running processes
+     *
+     * @return the running processes
+     */
+    public Collection<MigratableProcess> getProcesses() {
+        return processes;
     }
 
     /**
@@ -224,6 +704,15 @@ public class ProcessManager {
         return null;
     }
 
+    /**
+     * Run one console command, as if it was typed in the console
+     *
+     * @param commandLine the command line
+     */
+    public void execute(String commandLine) {
+        processCommand(commandLine);
+    }
+
     /**
      * Process command line.
      * Split the command line with blank. The first block is
@@ -260,6 +749,36 @@ public class ProcessManager {
             case MG:
                 processMigrateCommand(args);
                 break;
+            case CKPT:
+                checkpointer.printStatus();
+                break;
+            case RECOVER:
+                processRecoverCommand();
+                break;
+            case BAL:
+                processBalanceCommand(args);
+                break;
+            case DRAIN:
+                processDrainCommand(args);
+                break;
+            case BW:
+                processBandwidthCommand(args);
+                break;
+            case JOBS:
+                processJobsCommand(args);
+                break;
+            case REP:
+                processReplicateCommand(args);
+                break;
+            case SPLIT:
+                processSplitCommand(args);
+                break;
+            case CACHE:
+                processCacheCommand(args);
+                break;
+            case STATS:
+                processStatsCommand(args);
+                break;
             case UNKNOWN:
             default:
                 System.out.println("unknown command '" + args[0] + "'");
@@ -317,6 +836,9 @@ public class ProcessManager {
             boolean contains = false;
             try {
                 contains = startProcess(processName, processArgs);
+            } catch (IllegalStateException e) {
+                System.out.println("Can't run " + processName + ": " + e.getMessage());
+                return;
             } catch (Exception e) {
                 LOG.error("run command " + processName + " error", e);
                 return;
@@ -327,110 +849,513 @@ public class ProcessManager {
         }
     }
 
+    /**
+     * Restart the processes from their checkpoints after a crash
+     */
+    private void processRecoverCommand() {
+        if (recoverProcesses() == 0) {
+            System.out.println("No checkpoint to recover");
+        }
+    }
+
+    /**
+     * Show the balancer status, or turn the balancer on or off
+     *
+     * @param args command arguments
+     */
+    private void processBalanceCommand(String[] args) {
+        if (args.length == 1) {
+            balancer.printStatus();
+        } else if (args.length == 2 && args[1].equalsIgnoreCase("on")) {
+            balancer.start();
+        } else if (args.length == 2 && args[1].equalsIgnoreCase("off")) {
+            balancer.stop();
+        } else {
+            System.out.println("usage: bal [on|off]");
+        }
+    }
+
+    /**
+     * Move every process to other managers, spread by their capacity.
+     * The targets are the given hosts, or the balancer peers. The
+     * options are those of the migrate command.
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.NodeDrain
+     */
+    private void processDrainCommand(String[] args) {
+        List<String> targets = new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+        int concurrency = Configuration.getInt("migration.parallel", 4);
+        boolean precopy = Configuration.getBoolean("migration.precopy", false);
+        boolean postcopy = Configuration.getBoolean("migration.postcopy", false);
+        boolean files = Configuration.getBoolean("migration.files", false);
+        while (!targets.isEmpty() && targets.get(0).startsWith("-")) {
+            String option = targets.remove(0);
+            if (option.equals("-p")) {
+                precopy = true;
+            } else if (option.equals("-l")) {
+                postcopy = true;
+            } else if (option.equals("-f")) {
+                files = true;
+            } else if (option.equals("-j") && !targets.isEmpty()) {
+                try {
+                    concurrency = Integer.parseInt(targets.remove(0));
+                } catch (NumberFormatException e) {
+                    concurrency = 0;
+                }
+            } else {
+                concurrency = 0;
+            }
+        }
+        if (targets.isEmpty()) {
+            targets.addAll(balancer.getPeers());
+        }
+        if (targets.isEmpty() || concurrency <= 0) {
+            System.out.println("usage: drain [-j N] [-p] [-l] [-f] [HOSTNAME[:PORT]...]");
+            return;
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            String target = targets.get(i);
+            int colon = target.lastIndexOf(':');
+            if (colon <= 0) {
+                targets.set(i, target + ":" + Configuration.getInt("server.port", ProcessServer.PORT));
+                continue;
+            }
+            try {
+                Integer.parseInt(target.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("Bad port: " + target);
+                return;
+            }
+        }
+        if (processes.isEmpty()) {
+            System.out.println("No running process");
+            return;
+        }
+        if (draining) {
+            System.out.println("A drain is running");
+            return;
+        }
+        new NodeDrain(this, targets, concurrency, precopy, postcopy, files).run();
+    }
+
+    /**
+     * Show the migration bandwidth limits, or change one of them.
+     * A rate alone sets the global limit, <code>peer</code> and a rate
+     * the limit of each peer, a host and a rate the limit of that
+     * peer.
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.MigrationThrottle
+     */
+    private void processBandwidthCommand(String[] args) {
+        try {
+            if (args.length == 1) {
+                throttle.printStatus();
+            } else if (args.length == 2) {
+                throttle.setGlobalRate(MigrationThrottle.parseRate(args[1]));
+            } else if (args.length == 3 && args[1].equalsIgnoreCase("peer")) {
+                throttle.setPeerRate(MigrationThrottle.parseRate(args[2]));
+            } else if (args.length == 3) {
+                String peer = args[1];
+                if (peer.lastIndexOf(':') <= 0) {
+                    peer = peer + ":" + Configuration.getInt("server.port", ProcessServer.PORT);
+                }
+                throttle.setPeerRate(peer, MigrationThrottle.parseRate(args[2]));
+            } else {
+                System.out.println("usage: bw [[peer|HOSTNAME[:PORT]] RATE]");
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Bad rate: " + args[args.length - 1]);
+        }
+    }
+
+    /**
+     * Show the jobs whose bytecode was shipped to this manager, or drop
+     * the loaders of some of them so their classes are unloaded once
+     * their processes are gone.
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.ClassCache
+     */
+    private void processJobsCommand(String[] args) {
+        if (args.length == 1) {
+            for (JobClassLoader job : classCache.getLoaders()) {
+                int running = 0;
+                for (MigratableProcess process : processes) {
+                    if (process.getClass().getClassLoader() == job) {
+                        running++;
+                    }
+                }
+                System.out.println(job.getId() + " classes=" + job.getDefinedCount() + " running=" + running);
+            }
+        } else if (args.length == 3 && args[1].equals("unload")) {
+            System.out.println("Unloaded " + classCache.unload(args[2]) + " jobs");
+        } else {
+            System.out.println("usage: jobs [unload ID]");
+        }
+    }
+
+    /**
+     * Show the replication status, or start or stop replicating
+     * processes to a standby manager. The host may name the port of
+     * its manager, <code>server.port</code> by default.
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.ProcessReplicator
+     * @see edu.cmu.courses.ds.process.ProcessStandby
+     */
+    private void processReplicateCommand(String[] args) {
+        List<String> targets = new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+        if (targets.isEmpty()) {
+            replicator.printStatus();
+            standby.printStatus();
+            return;
+        }
+        boolean off = targets.get(0).equals("off");
+        if (off) {
+            targets.remove(0);
+        }
+        if (targets.size() < (off ? 1 : 2)) {
+            System.out.println("usage: rep [PROCESS_ID|CLASS_NAME|all... HOSTNAME[:PORT]] | rep off PROCESS_ID...");
+            return;
+        }
+        String hostName = off ? null : targets.remove(targets.size() - 1);
+        int hostPort = Configuration.getInt("server.port", ProcessServer.PORT);
+        int colon = off ? -1 : hostName.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                hostPort = Integer.parseInt(hostName.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("Bad port: " + hostName);
+                return;
+            }
+            hostName = hostName.substring(0, colon);
+        }
+        List<MigratableProcess> selected = selectProcesses(targets);
+        if (selected == null) {
+            return;
+        }
+        for (MigratableProcess process : selected) {
+            if (off) {
+                if (!replicator.stopReplicating(process)) {
+                    System.out.println("Process " + process.getId() + " is not replicated");
+                }
+            } else {
+                replicator.replicate(process, hostName, hostPort);
+            }
+        }
+    }
+
+    /**
+     * Show the split status, or split processes and run the new parts
+     * on another host, or here if no host is given. The host may name
+     * the port of its manager, <code>server.port</code> by default.
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.ProcessSplitter
+     */
+    private void processSplitCommand(String[] args) {
+        if (args.length == 1) {
+            splitter.printStatus();
+            return;
+        }
+        if (args.length > 3) {
+            System.out.println("usage: split [PROCESS_ID [HOSTNAME[:PORT]]]");
+            return;
+        }
+        String hostName = args.length == 3 ? args[2] : null;
+        int hostPort = Configuration.getInt("server.port", ProcessServer.PORT);
+        int colon = hostName == null ? -1 : hostName.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                hostPort = Integer.parseInt(hostName.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("Bad port: " + hostName);
+                return;
+            }
+            hostName = hostName.substring(0, colon);
+        }
+        List<MigratableProcess> selected = selectProcesses(Collections.singletonList(args[1]));
+        if (selected == null) {
+            return;
+        }
+        for (MigratableProcess process : selected) {
+            try {
+                MigratableProcess part = splitter.split(process, hostName, hostPort);
+                System.out.println(part == null ? "Process " + process.getId() + " can't be split" :
+                        "Split " + part + " off process " + process.getId());
+            } catch (IOException e) {
+                System.out.println("Split process " + process.getId() + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Show the result cache, enable or disable it, or delete its
+     * entries
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.ResultCache
+     */
+    private void processCacheCommand(String[] args) {
+        if (args.length == 1) {
+            System.out.println((caching ? "enabled " : "disabled ") + resultCache);
+        } else if (args.length == 2 && args[1].equals("on")) {
+            caching = true;
+        } else if (args.length == 2 && args[1].equals("off")) {
+            caching = false;
+        } else if (args.length == 2 && args[1].equals("clear")) {
+            System.out.println("Deleted " + resultCache.clear() + " results");
+        } else {
+            System.out.println("usage: cache [on|off|clear]");
+        }
+    }
+
+    /**
+     * Show the I/O and CPU rates of every process and the node totals,
+     * sampled over an interval, one second by default, and repeated
+     * as many times as asked, then the latency of the migration phases
+     *
+     * @param args command arguments
+     * @see edu.cmu.courses.ds.process.ProcessStats
+     */
+    private void processStatsCommand(String[] args) {
+        int count = 1;
+        double seconds = 1;
+        try {
+            int i = 1;
+            if (i + 1 < args.length && args[i].equals("-n")) {
+                count = Integer.parseInt(args[i + 1]);
+                i += 2;
+            }
+            if (i < args.length) {
+                seconds = Double.parseDouble(args[i++]);
+            }
+            if (i < args.length || count < 1 || seconds <= 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("usage: stats [-n COUNT] [SECONDS]");
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                ProcessStats.sample(this, (long) (seconds * 1000)).print();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        MigrationTrace.printStatus();
+    }
+
     /**
      * Quit the program
      */
     private void processQuitCommand() {
+        shutdown();
+        int unfetched = PostCopy.getExportCount();
+        if (unfetched > 0) {
+            System.out.println("Warning: " + unfetched + " post-copied states were never fetched");
+        }
         System.out.println("Bye!");
         System.exit(0);
     }
 
     /**
-     * Migrate the specific process by using process ID
-     * First lookup the process by ID, then we connect 
-     * the specific host by <code>Socket</code>.
-     * If connected, suspend the process and call
-     * <code>statMigrating()</code>.
+     * Migrate processes to the specific host.
+     * The targets are process IDs, names of process classes, or
+     * <code>all</code>. We get the migration session to the host
+     * from the pool, then migrate all selected processes as one
+     * <code>MigrationBatch</code>, suspending at most
+     * <code>migration.parallel</code> processes at the same time, or
+     * the number given by <code>-j</code>. With <code>-p</code>, or if
+     * <code>migration.precopy</code> is set, processes are pre-copied
+     * while they run and only suspended for the final copy. With
+     * <code>-l</code>, or if <code>migration.postcopy</code> is set,
+     * the <code>LazyState</code> fields of the processes are fetched by
+     * the host after the processes start there. With <code>-u</code>
+     * the frames overtake other migrations when the bandwidth is
+     * throttled, see <code>MigrationThrottle</code>. With <code>-f</code>,
+     * or if <code>migration.files</code> is set, the input files of the
+     * processes are shipped to a host without shared storage, see
+     * <code>FileShipment</code>. The host may name
+     * the port of its manager, <code>server.port</code> by default.
      *
      * @param args command arguments
-     * @see edu.cmu.courses.ds.process.ProcessManager#getProcess(long)
-     * @see edu.cmu.courses.ds.process.ProcessManager#startMigrating(Socket, MigratableProcess, String)
+     * @see edu.cmu.courses.ds.process.ProcessManager#selectProcesses(List)
+     * @see edu.cmu.courses.ds.process.MigrationBatch
      */
     private void processMigrateCommand(String[] args) {
-        if (args.length <= 2) {
-            System.out.println("usage: mg PROCESS_ID HOSTNAME");
-        } else {
-            long id = Long.parseLong(args[1]);
-            String hostName = args[2];
-            MigratableProcess process = getProcess(id);
-            if (process == null) {
-                System.out.println("No such process: " + args[1]);
+        List<String> targets = new ArrayList<String>(Arrays.asList(args).subList(1, args.length));
+        int concurrency = Configuration.getInt("migration.parallel", 4);
+        boolean precopy = Configuration.getBoolean("migration.precopy", false);
+        boolean postcopy = Configuration.getBoolean("migration.postcopy", false);
+        boolean urgent = false;
+        boolean files = Configuration.getBoolean("migration.files", false);
+        while (!targets.isEmpty() && targets.get(0).startsWith("-")) {
+            String option = targets.remove(0);
+            if (option.equals("-p")) {
+                precopy = true;
+            } else if (option.equals("-l")) {
+                postcopy = true;
+            } else if (option.equals("-u")) {
+                urgent = true;
+            } else if (option.equals("-f")) {
+                files = true;
+            } else if (option.equals("-j") && !targets.isEmpty()) {
+                try {
+                    concurrency = Integer.parseInt(targets.remove(0));
+                } catch (NumberFormatException e) {
+                    concurrency = 0;
+                }
+            } else {
+                concurrency = 0;
+            }
+        }
+        if (targets.size() < 2 || concurrency <= 0) {
+            System.out.println("usage: mg [-j N] [-p] [-l] [-u] [-f] PROCESS_ID|CLASS_NAME|all... HOSTNAME[:PORT]");
+            return;
+        }
+        String hostName = targets.remove(targets.size() - 1);
+        int hostPort = Configuration.getInt("server.port", ProcessServer.PORT);
+        int colon = hostName.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                hostPort = Integer.parseInt(hostName.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("Bad port: " + hostName);
                 return;
             }
-            Socket socket = null;
+            hostName = hostName.substring(0, colon);
+        }
+        List<MigratableProcess> selected = selectProcesses(targets);
+        if (selected == null) {
+            return;
+        }
+        if (selected.isEmpty()) {
+            System.out.println("No running process");
+            return;
+        }
+        try {
+            migrate(selected, hostName, hostPort, concurrency, precopy, postcopy, urgent, files);
+        }
+        catch (IOException e) {
+        	System.out.println("Connect " + hostName + " failed: " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Migrate processes of this manager to another manager as one
+     * <code>MigrationBatch</code>
+     *
+     * @param selected    the processes
+     * @param hostName    the host of the other manager
+     * @param hostPort    the port of the other manager
+     * @param concurrency maximum number of processes suspended at the
+     *                    same time
+     * @param precopy     migrate with pre-copy rounds
+     * @param postcopy    export <code>LazyState</code> fields
+     * @return the finished batch, with its results
+     * @throws IOException if the other manager can't be connected
+     */
+    public MigrationBatch migrate(List<MigratableProcess> selected, String hostName, int hostPort,
+                                  int concurrency, boolean precopy, boolean postcopy) throws IOException {
+        return migrate(selected, hostName, hostPort, concurrency, precopy, postcopy, false, false);
+    }
+
+    /**
+     * Migrate processes of this manager to another manager as one
+     * <code>MigrationBatch</code>, maybe ahead of other migrations and
+     * with their input files
+     *
+     * @param selected    the processes
+     * @param hostName    the host of the other manager
+     * @param hostPort    the port of the other manager
+     * @param concurrency maximum number of processes suspended at the
+     *                    same time
+     * @param precopy     migrate with pre-copy rounds
+     * @param postcopy    export <code>LazyState</code> fields
+     * @param urgent      send the frames in the urgent lane of the
+     *                    <code>MigrationThrottle</code>
+     * @param files       ship the input files of the processes to a
+     *                    host without shared storage
+     * @return the finished batch, with its results
+     * @throws IOException if the other manager can't be connected
+     */
+    public MigrationBatch migrate(List<MigratableProcess> selected, String hostName, int hostPort,
+                                  int concurrency, boolean precopy, boolean postcopy,
+                                  boolean urgent, boolean files) throws IOException {
+        PeerConnection peer = peers.get(hostName, hostPort);
+        MigrationBatch batch = new MigrationBatch(this, peer, selected, concurrency, precopy, postcopy);
+        batch.setUrgent(urgent);
+        batch.setShipFiles(files);
+        batch.run();
+        return batch;
+    }
+
+    /**
+     * Select processes by IDs, class names or <code>all</code>.
+     * A class name selects every running process of the class, by
+     * simple or full name.
+     *
+     * @param targets the targets of the migrate command
+     * @return the selected processes without duplicates, or
+     *         <code>null</code> if a target matches no process
+     */
+    List<MigratableProcess> selectProcesses(List<String> targets) {
+        Set<MigratableProcess> selected = new LinkedHashSet<MigratableProcess>();
+        for (String target : targets) {
+            if (target.equalsIgnoreCase("all")) {
+                selected.addAll(processes);
+                continue;
+            }
+            boolean found = false;
             try {
-            	socket = new Socket(hostName, ProcessServer.PORT);
-                
-	            try {
-	                process.suspend();
-	            } catch (InterruptedException e) {
-	                LOG.error(process.getClass().getSimpleName() +
-	                        "[" + id + "] suspend error", e);
-	                return;
-	            }
-	            startMigrating(socket, process, hostName);
-
-	            socket.close();
+                MigratableProcess process = getProcess(Long.parseLong(target));
+                if (process != null) {
+                    selected.add(process);
+                    found = true;
+                }
+            } catch (NumberFormatException e) {
+                for (MigratableProcess process : processes) {
+                    Class<?> processClass = process.getClass();
+                    if (processClass.getSimpleName().equals(target) || processClass.getName().equals(target)) {
+                        selected.add(process);
+                        found = true;
+                    }
+                }
             }
-            catch (IOException e) {
-            	System.out.println("Connect " + hostName + " failed: " +
-                        e.getMessage());
-            	return;
+            if (!found) {
+                System.out.println("No such process: " + target);
+                return null;
             }
         }
-
+        return new ArrayList<MigratableProcess>(selected);
     }
 
     /**
-     * Start migrating the process to specific host.
-     * First we send the entire <code>MigratableProcess</code> object
-     * by using <code>ObjectOutputStream</code>. After that we receive
-     * this migration status from host by using <code>DataInputStream</code>.
-     * If the migration fails, the process will restart without losing data..
+     * Finish the migration of a process.
+     * A migrated process doesn't need its local checkpoint or replica
+     * any more,
+     * a process which failed to migrate restarts here.
      *
-     * @param socket the server socket
      * @param process the process object
-     * @param hostName the host name which the object will migrate to
-     * @throws IOException 
-     * @see java.net.Socket
-     * @see java.io.DataInputStream
-     * @see java.io.ObjectOutputStream
-     */
-    private void startMigrating(Socket socket, MigratableProcess process, String hostName) throws IOException {
-    	ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-    	DataInputStream in = new DataInputStream(socket.getInputStream());
-        boolean status = false;
-        try {    	
-            out.writeObject(process);
-            status = in.readBoolean();
-        }
-    	catch (IOException e1) {
-    		LOG.error(process.getClass().getSimpleName() +
-                    "[" + process.getId() + "] migration error", e1);
-    		restartProcess(process);
-        	socket.close();
-        	return;
-    	}
+     * @param status  <code>true</code> if the process was migrated
+     * @see edu.cmu.courses.ds.process.ProcessManager#restartProcess(MigratableProcess)
+     */
+    void finishMigration(MigratableProcess process, boolean status) {
         if (status) {
-            System.out.println("Successfully migrated " +
-                    process.getClass().getSimpleName() +
-                    "[" + process.getId() + "]");
-        } 
-        else {
-            System.out.println("Failed to migrate " +
-                    process.getClass().getSimpleName() +
-                    "[" + process.getId() + "]");
-    		restartProcess(process);
-        }
-        try {
-            in.close();
-            out.close();
-        }
-        catch (IOException e) {
-	        System.out.println("file close failed: " +
-	                e.getMessage());
+            checkpointer.discard(process);
+            replicator.discard(process);
+        } else {
+            restartProcess(process);
         }
-        socket.close();
     }
     
     /**
@@ -459,8 +1384,39 @@ public class ProcessManager {
         sb.append("ps:   list all running process\n");
         sb.append("run:  start process.\n");
         sb.append("      run PROCESS_NAME ARG...\n");
-        sb.append("mg:   migrate process to another machine\n");
-        sb.append("      mg PROCESS_ID HOSTNAME\n");
+        sb.append("mg:   migrate processes to another machine in parallel\n");
+        sb.append("      mg [-j N] [-p] [-l] [-u] [-f] PROCESS_ID|CLASS_NAME|all... HOSTNAME[:PORT]\n");
+        sb.append("      -j N: suspend at most N processes at the same time\n");
+        sb.append("      -p:   pre-copy processes while they run\n");
+        sb.append("      -l:   fetch lazy states after the processes start\n");
+        sb.append("      -u:   go ahead of other migrations when the bandwidth is limited\n");
+        sb.append("      -f:   ship the input files to a host without shared storage\n");
+        sb.append("ckpt: show checkpoint cost and staleness of each process\n");
+        sb.append("recover: restart processes from their checkpoints\n");
+        sb.append("bal:  show the loads of this and the peer managers and the last balancer decisions\n");
+        sb.append("      bal [on|off]: start or stop migrating processes to colder peers\n");
+        sb.append("drain: move every process to other machines, refusing new ones meanwhile\n");
+        sb.append("      drain [-j N] [-p] [-l] [-f] [HOSTNAME[:PORT]...]\n");
+        sb.append("      without hosts the balancer peers are the targets\n");
+        sb.append("bw:   show the migration bandwidth limits and the traffic of each lane\n");
+        sb.append("      bw [[peer|HOSTNAME[:PORT]] RATE]: set the global, per-peer or one peer's limit,\n");
+        sb.append("      RATE in bytes per second with an optional K, M or G, 0 for unlimited\n");
+        sb.append("jobs: list the jobs whose bytecode was shipped here\n");
+        sb.append("      jobs unload ID: drop a job, by a prefix of its ID\n");
+        sb.append("rep:  show the replication lag and traffic of each process and the standby failovers\n");
+        sb.append("      rep PROCESS_ID|CLASS_NAME|all... HOSTNAME[:PORT]: stream snapshots to a standby,\n");
+        sb.append("      which restarts the processes if this machine stops answering\n");
+        sb.append("      rep off PROCESS_ID|CLASS_NAME|all...: stop replicating\n");
+        sb.append("split: show the remaining input of splittable processes and the pending merges\n");
+        sb.append("      split PROCESS_ID [HOSTNAME[:PORT]]: move half of the remaining input to a new\n");
+        sb.append("      process on the host, or here; the outputs are merged when all parts finish\n");
+        sb.append("cache: show the result cache of processes started by run\n");
+        sb.append("      cache [on|off]: take the outputs of a process which ran before with the same\n");
+        sb.append("      arguments and inputs from the cache instead of running it\n");
+        sb.append("      cache clear: delete the cached results\n");
+        sb.append("stats: show the CPU and I/O rates and totals of each process and of this machine\n");
+        sb.append("      stats [-n COUNT] [SECONDS]: sample COUNT times over SECONDS, 1 second by default,\n");
+        sb.append("      then show the latency of each migration phase\n");
         sb.append("quit: quit Process Manager\n");
         sb.append("help: show help information\n");
         System.out.println(sb.toString());
@@ -468,14 +1424,40 @@ public class ProcessManager {
 
     /**
      * Main function.
-     * Start <code>ProcessManager</code> server and console
+     * Start <code>ProcessManager</code> server, control endpoint if
+     * <code>control.port</code> is set, checkpointer, balancer and
+     * console.
+     * With the <code>-recover</code> argument, the processes of the last
+     * run are restarted from their checkpoints first.
      *
      * @param args program augments
      * @see edu.cmu.courses.ds.process.ProcessManager#startServer()
+     * @see edu.cmu.courses.ds.process.ProcessManager#recoverProcesses()
+     * @see edu.cmu.courses.ds.process.ProcessManager#startCheckpointer()
+     * @see edu.cmu.courses.ds.process.ProcessManager#startBalancer()
      * @see edu.cmu.courses.ds.process.ProcessManager#startConsole()
      */
     public static void main(String[] args) {
-        ProcessManager.getInstance().startServer();
+        try {
+            ProcessManager.getInstance().startServer();
+        } catch (IOException e) {
+            LOG.fatal("ServerSocket bind error", e);
+        }
+        for (String arg : args) {
+            if (arg.equals("-recover")) {
+                ProcessManager.getInstance().recoverProcesses();
+            }
+        }
+        int controlPort = Configuration.getInt("control.port", 0);
+        if (controlPort > 0) {
+            try {
+                ProcessManager.getInstance().startControl(controlPort);
+            } catch (IOException e) {
+                LOG.error("control port " + controlPort + " bind error", e);
+            }
+        }
+        ProcessManager.getInstance().startCheckpointer();
+        ProcessManager.getInstance().startBalancer();
         ProcessManager.getInstance().startConsole();
     }
 }
@@ -28,10 +28,60 @@ public enum ProcessManagerCommand {
     RUN("run"),
 
     /**
-     * Migrate a process
+     * Migrate processes
      */
     MG("mg"),
 
+    /**
+     * Prints checkpoint cost and staleness of each process
+     */
+    CKPT("ckpt"),
+
+    /**
+     * Restart processes from their checkpoints
+     */
+    RECOVER("recover"),
+
+    /**
+     * Show or switch the automatic migration balancer
+     */
+    BAL("bal"),
+
+    /**
+     * Move every process to other managers
+     */
+    DRAIN("drain"),
+
+    /**
+     * Show or set the migration bandwidth limits
+     */
+    BW("bw"),
+
+    /**
+     * Show or unload the jobs whose bytecode was shipped here
+     */
+    JOBS("jobs"),
+
+    /**
+     * Show the replication status, or replicate processes to a standby
+     */
+    REP("rep"),
+
+    /**
+     * Show the split status, or split a process
+     */
+    SPLIT("split"),
+
+    /**
+     * Show, enable, disable or clear the result cache
+     */
+    CACHE("cache"),
+
+    /**
+     * Show the I/O and CPU rates of the processes
+     */
+    STATS("stats"),
+
     /**
      * Quit the program
      */
@@ -0,0 +1,136 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.IOCounters;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a process
+ * The I/O counters of its transactional streams, the CPU and wall time
+ * of its thread while it runs, and how often it was suspended,
+ * paused for a snapshot and migrated. A pause lets the process go on
+ * on the same thread, so it is counted apart from the suspends asked
+ * by users and migrations. The metrics travel with the process, so they cover its
+ * whole life on every manager. The time of the current run is added
+ * when the run ends, and read from the running thread until then.
+ * Every counter is a <code>LongAdder</code>, so counting never takes a
+ * lock.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.io.IOCounters
+ * @see edu.cmu.courses.ds.process.MigratableProcess#run()
+ */
+public class ProcessMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final IOCounters io = new IOCounters();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder wallNanos = new LongAdder();
+    private final LongAdder suspends = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final LongAdder migrations = new LongAdder();
+
+    /**
+     * The thread of the current run, its CPU time and the wall clock
+     * when the run began, <code>null</code> between runs
+     */
+    private transient volatile Thread thread;
+    private transient volatile long cpuStart;
+    private transient volatile long wallStart;
+
+    /**
+     * Begin a run on the current thread
+     */
+    void start() {
+        cpuStart = cpuTime();
+        wallStart = System.nanoTime();
+        thread = Thread.currentThread();
+    }
+
+    /**
+     * End the run of the current thread, adding its time
+     */
+    void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread = null;
+        cpuNanos.add(Math.max(0, cpuTime() - cpuStart));
+        wallNanos.add(System.nanoTime() - wallStart);
+    }
+
+    void suspended() {
+        suspends.increment();
+    }
+
+    void paused() {
+        pauses.increment();
+    }
+
+    void migrated() {
+        migrations.increment();
+    }
+
+    /**
+     * Get the I/O counters, which the streams of the process count in
+     *
+     * @return the counters
+     */
+    public IOCounters getIO() {
+        return io;
+    }
+
+    /**
+     * Get the CPU time of the process thread, including the current
+     * run
+     *
+     * @return the time in nanoseconds, not counting the current run if
+     *         the JVM doesn't measure thread CPU time
+     */
+    public long getCpuTime() {
+        long total = cpuNanos.sum();
+        Thread current = thread;
+        if (current != null && THREADS.isThreadCpuTimeSupported()) {
+            long now = THREADS.getThreadCpuTime(current.getId());
+            if (now >= 0 && thread == current) {
+                total += Math.max(0, now - cpuStart);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the time the process ran, including the current run
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWallTime() {
+        long total = wallNanos.sum();
+        if (thread != null) {
+            total += System.nanoTime() - wallStart;
+        }
+        return total;
+    }
+
+    public long getSuspendCount() {
+        return suspends.sum();
+    }
+
+    public long getPauseCount() {
+        return pauses.sum();
+    }
+
+    public long getMigrationCount() {
+        return migrations.sum();
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
@@ -1,66 +1,1099 @@
 package edu.cmu.courses.ds.process;
 
-import java.io.DataOutputStream;
+import edu.cmu.courses.ds.codec.ClassBundle;
+import edu.cmu.courses.ds.codec.ClassTable;
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.JobClassLoader;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.io.FileShipment;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * The socket receiver of socket server.
- * Each receiver is a single thread that communicate with
- * one client. It implements the <code>run()</code> from
- * the <code>Runnable</code>interface.
+ * The receiver of one migration connection.
+ * Each receiver is a non-blocking state machine driven by an I/O
+ * loop of <code>ProcessServer</code>. It parses the handshake offer
+ * and answers it, then collects the length-prefixed process frame.
+ * The complete frame is decoded on the server's decode executor, and
+ * the receiver sends a signal to the client to tell if the migration
+ * succeed.
+ *
+ * After a session handshake the connection stays open and carries
+ * session messages instead of a single frame. Class definitions are
+ * applied in order on the I/O loop, frames are decoded concurrently,
+ * and each frame is acknowledged with its stream ID as soon as it is
+ * decoded. The blocks of pre-copy migrations are collected into one
+ * image per stream, which is decoded when the stream is committed,
+ * and so are the slices of large frames until they are sealed.
+ * Fetches of post-copied states are answered from the decode executor.
+ * Peers on the same host may hand frames off through files instead,
+ * which are read on the decode executor too. Load summaries are
+ * recorded and answered right on the I/O loop. The chunks of shipped
+ * input files and large frames are looked up and stored in the
+ * <code>FileCache</code> on the decode executor, where assembled frames
+ * are joined from them, and so is the bytecode of the jobs the
+ * sender announces. Frames of the session resolve the classes of
+ * those jobs through their <code>JobClassLoader</code>. Replicas and
+ * heartbeats of warm-standby replication go to the
+ * <code>ProcessStandby</code> of the manager on the decode executor,
+ * and the merges and steals of split processes to its
+ * <code>ProcessSplitter</code>.
  *
  * @author Jian Fang(jianf)
  * @author Fangyu Gao(fangyug)
  * @see edu.cmu.courses.ds.process.ProcessServer
+ * @see edu.cmu.courses.ds.process.MigrationHandshake
+ * @see edu.cmu.courses.ds.codec.MigrationFrame
+ * @see edu.cmu.courses.ds.process.MigrationSession
  */
-public class ProcessReceiver implements Runnable{
-	/**
-	 * Socket communication with client.
-	 */
-	Socket clientSocket;
-	
-	/**
-	 * Constructor with an already exist socket as input.
-	 */
-	ProcessReceiver(Socket clientSocket) {
-		this.clientSocket = clientSocket;
-	}
-	
-    /**
-     * The implementation of <code>Runnable</code> interface.
-     * After connected and received process, the receiver
-     * determine which class the process is, then send a
-     * signal to the client to tell if the migration succeed.
-     */
-	public void run() {
-		try {
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-			DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-			
-			Object object = in.readObject();
-			
-			MigratableProcess process = null;
-            if(object instanceof MigratableProcess){
-            	process = (MigratableProcess)object;
-            	process.migrated();
-            	out.writeBoolean(true);
-	            ProcessManager.getInstance().startProcess(process);
-            }
-            else {
-            	out.writeBoolean(false);
-            }
-            in.close();
-            out.close();
-            clientSocket.close();
-		}
-		catch (IOException e) {
-			System.out.println("processing client request error");
+public class ProcessReceiver {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ProcessReceiver.class);
+
+    /**
+     * Receiver states
+     */
+    private static final int OFFER_HEADER = 0;
+    private static final int OFFER_IDS = 1;
+    private static final int FRAME_HEADER = 2;
+    private static final int FRAME_BODY = 3;
+    private static final int MESSAGE_HEADER = 4;
+    private static final int MESSAGE_BODY = 5;
+    private static final int DECODING = 6;
+    private static final int CLOSED = 7;
+
+    /**
+     * Number of decided migrations whose status is kept to answer late
+     * cancels
+     */
+    private static final int DECIDED = 1024;
+
+    /**
+     * Initial size of the buffer of a variable size part, it doubles
+     * as the part arrives
+     */
+    private static final int INITIAL_BODY_SIZE = 64 * 1024;
+
+    /**
+     * The server which accepted the connection
+     */
+    private ProcessServer server;
+
+    /**
+     * Channel communication with client.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The I/O loop which drives this receiver
+     */
+    private ProcessServer.IoLoop loop;
+
+    /**
+     * The selection key of the channel
+     */
+    private SelectionKey key;
+
+    /**
+     * The time when the connection was accepted
+     */
+    private long acceptTime;
+
+    /**
+     * The current state
+     */
+    private int state;
+
+    /**
+     * Buffer of the fixed size part being parsed
+     */
+    private ByteBuffer header;
+
+    /**
+     * Variable size part being collected, the offered compression IDs
+     * or the frame payload
+     */
+    private byte[] body;
+
+    /**
+     * Number of bytes of <code>body</code> collected
+     */
+    private int bodyPosition;
+
+    /**
+     * Declared length of the part being collected. <code>body</code>
+     * grows towards it as bytes arrive, so a header alone can't make
+     * the receiver allocate the whole length.
+     */
+    private int bodyLength;
+
+    /**
+     * Header fields of the frame
+     */
+    private byte codecId;
+    private byte compressionId;
+    private int rawLength;
+
+    /**
+     * The class table of a session, <code>null</code> on a single
+     * frame connection
+     */
+    private ClassTable classes;
+
+    /**
+     * The loader of the jobs received on a session, <code>null</code>
+     * until the first job arrives
+     */
+    private volatile ClassCache.SessionLoader loader;
+
+    /**
+     * Jobs of the session which wait for their bytecode, by ID
+     */
+    private Map<String, ClassBundle> announced = new HashMap<String, ClassBundle>();
+
+    /**
+     * Whether the peer is on this host and may hand frames off
+     */
+    private boolean local;
+
+    /**
+     * Header fields of the session message
+     */
+    private byte messageType;
+    private int stream;
+
+    /**
+     * Images of pre-copy migrations by stream ID, only used by the I/O
+     * loop
+     */
+    private Map<Integer, Image> images = new HashMap<Integer, Image>();
+
+    /**
+     * Migrations of the session which are received but not started or
+     * refused yet, those the sender cancelled before that, and the
+     * status of the last <code>DECIDED</code> decided ones, by stream
+     * ID. Guarded by the receiver.
+     */
+    private Set<Integer> undecided = new HashSet<Integer>();
+    private Set<Integer> cancelled = new HashSet<Integer>();
+    private Map<Integer, Boolean> decided = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > DECIDED;
+        }
+    };
+
+    /**
+     * Bytes waiting to be written
+     */
+    private ByteBuffer output;
+
+    /**
+     * Close the connection when <code>output</code> is written
+     */
+    private boolean closeAfterWrite;
+
+    /**
+     * Constructor with an accepted non-blocking channel.
+     */
+    ProcessReceiver(ProcessServer server, SocketChannel channel, ProcessServer.IoLoop loop, long acceptTime) {
+        this.server = server;
+        this.channel = channel;
+        this.loop = loop;
+        this.acceptTime = acceptTime;
+        this.state = OFFER_HEADER;
+        this.header = ByteBuffer.allocate(MigrationHandshake.OFFER_HEADER_SIZE);
+    }
+
+    /**
+     * Register the channel with the selector of the I/O loop
+     *
+     * @param selector the selector
+     * @throws IOException if the channel is closed
+     */
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Read what is available and advance the state machine.
+     *
+     * @param buffer the I/O loop's read buffer
+     * @throws IOException if the connection fails or the peer sends
+     *                     malformed data
+     */
+    void read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            if (state != CLOSED) {
+                boolean idle = (state == OFFER_HEADER || state == MESSAGE_HEADER) && header.position() == 0;
+                close(idle ? null : new IOException("connection closed by client"));
+            }
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining() && state < DECODING) {
+            switch (state) {
+                case OFFER_HEADER:
+                    if (fill(buffer)) {
+                        int magic = header.getInt();
+                        int version = header.getInt();
+                        MigrationHandshake.checkOffer(magic, version);
+                        if (version == MigrationHandshake.SESSION_VERSION) {
+                            classes = new ClassTable();
+                            local = LocalHandoff.isLocal(channel.socket().getInetAddress());
+                        }
+                        startBody(header.get() & 0xff, OFFER_IDS);
+                    }
+                    break;
+                case OFFER_IDS:
+                    collect(buffer);
+                    break;
+                case FRAME_HEADER:
+                    if (fill(buffer)) {
+                        codecId = header.get();
+                        compressionId = header.get();
+                        rawLength = header.getInt();
+                        int length = header.getInt();
+                        if (length < 0 || length > server.getMaxFrameLength()) {
+                            throw new IOException("bad frame length " + length);
+                        }
+                        startBody(length, FRAME_BODY);
+                    }
+                    break;
+                case FRAME_BODY:
+                    collect(buffer);
+                    break;
+                case MESSAGE_HEADER:
+                    if (fill(buffer)) {
+                        messageType = header.get();
+                        stream = header.getInt();
+                        int length = header.getInt();
+                        if (messageType < MigrationSession.FRAME || messageType > MigrationSession.SEAL ||
+                                messageType == MigrationSession.ACK || messageType == MigrationSession.STATE ||
+                                (messageType == MigrationSession.HANDOFF && !local)) {
+                            throw new IOException("bad session message type " + messageType);
+                        }
+                        if (length < 0 || length - MigrationFrame.HEADER_SIZE > server.getMaxFrameLength()) {
+                            throw new IOException("bad session message length " + length);
+                        }
+                        startBody(length, MESSAGE_BODY);
+                    }
+                    break;
+                case MESSAGE_BODY:
+                    collect(buffer);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write pending output.
+     *
+     * @throws IOException if the connection fails
+     */
+    void write() throws IOException {
+        if (output != null) {
+            channel.write(output);
+            if (output.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            output = null;
+        }
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if (closeAfterWrite) {
+            close(null);
+        }
+    }
+
+    /**
+     * Close the connection
+     *
+     * @param cause the error which closes the connection, or
+     *              <code>null</code> for a normal close
+     */
+    void close(IOException cause) {
+        if (cause != null) {
+            LOG.error("processing client request error", cause);
+        }
+        state = CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        ProcessServer.closeQuietly(channel);
+        synchronized (this) {
+            cancelled.addAll(undecided);
+            undecided.clear();
+        }
+    }
+
+    /**
+     * Copy bytes into the fixed size <code>header</code>.
+     *
+     * @return <code>true</code> if the header is complete, then it is
+     *         flipped for reading
+     */
+    private boolean fill(ByteBuffer buffer) {
+        while (header.hasRemaining() && buffer.hasRemaining()) {
+            header.put(buffer.get());
+        }
+        if (header.hasRemaining()) {
+            return false;
+        }
+        header.flip();
+        return true;
+    }
+
+    /**
+     * Start collecting a variable size part
+     */
+    private void startBody(int length, int nextState) throws IOException {
+        body = new byte[Math.min(length, INITIAL_BODY_SIZE)];
+        bodyPosition = 0;
+        bodyLength = length;
+        state = nextState;
+        if (length == 0) {
+            finishBody();
+        }
+    }
+
+    /**
+     * Copy bytes into <code>body</code>
+     */
+    private void collect(ByteBuffer buffer) throws IOException {
+        int n = Math.min(buffer.remaining(), bodyLength - bodyPosition);
+        if (bodyPosition + n > body.length) {
+            int size = (int) Math.min((long) bodyLength, Math.max(2L * body.length, bodyPosition + n));
+            body = Arrays.copyOf(body, size);
+        }
+        buffer.get(body, bodyPosition, n);
+        bodyPosition += n;
+        if (bodyPosition == bodyLength) {
+            finishBody();
+        }
+    }
+
+    /**
+     * A variable size part is complete. Answer the handshake, or
+     * dispatch the frame to the decode executor.
+     */
+    private void finishBody() throws IOException {
+        if (state == OFFER_IDS) {
+            Set<Compression> accepted = MigrationHandshake.parseCompressions(body);
+            send(MigrationHandshake.reply(accepted));
+            server.recordHandshake(System.nanoTime() - acceptTime);
+            if (classes != null) {
+                header = ByteBuffer.allocate(MigrationSession.HEADER_SIZE);
+                state = MESSAGE_HEADER;
+            } else {
+                header = ByteBuffer.allocate(MigrationFrame.HEADER_SIZE);
+                state = FRAME_HEADER;
+            }
+        } else if (state == MESSAGE_BODY) {
+            header.clear();
+            state = MESSAGE_HEADER;
+            switch (messageType) {
+                case MigrationSession.CLASS:
+                    classes.define(MigrationSession.parseClass(body));
+                    break;
+                case MigrationSession.BLOCK:
+                    putBlock(stream, body);
+                    break;
+                case MigrationSession.COMMIT:
+                    commit(stream, body);
+                    break;
+                case MigrationSession.SEAL:
+                    seal(stream, body);
+                    break;
+                case MigrationSession.DISCARD:
+                    images.remove(stream);
+                    break;
+                case MigrationSession.FETCH:
+                    fetch(stream, body);
+                    break;
+                case MigrationSession.HANDOFF:
+                    handoff(stream, body);
+                    break;
+                case MigrationSession.LOAD:
+                    load(stream, body);
+                    break;
+                case MigrationSession.HAVE:
+                    have(stream, body);
+                    break;
+                case MigrationSession.CHUNK:
+                    chunk(stream, body);
+                    break;
+                case MigrationSession.ASSEMBLE:
+                    assemble(stream, body);
+                    break;
+                case MigrationSession.CANCEL:
+                    cancel(stream);
+                    break;
+                case MigrationSession.CODE:
+                    code(stream, body);
+                    break;
+                case MigrationSession.BYTECODE:
+                    bytecode(stream, body);
+                    break;
+                case MigrationSession.REPLICA:
+                case MigrationSession.RELEASE:
+                case MigrationSession.HEARTBEAT:
+                case MigrationSession.MERGE:
+                case MigrationSession.STEAL:
+                    request(messageType, stream, body);
+                    break;
+                default:
+                    receive(stream);
+                    dispatch(stream, body);
+                    break;
+            }
+            body = null;
+        } else {
+            state = DECODING;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatch(0, body);
+            body = null;
+        }
+    }
+
+    /**
+     * Copy a block of a pre-copy migration into its image
+     */
+    private void putBlock(int stream, byte[] block) throws IOException {
+        if (block.length < 4) {
+            throw new IOException("bad pre-copy block");
+        }
+        int offset = ((block[0] & 0xff) << 24) | ((block[1] & 0xff) << 16) |
+                ((block[2] & 0xff) << 8) | (block[3] & 0xff);
+        int length = block.length - 4;
+        if (offset < 0 || (long) offset + length > (long) server.getMaxFrameLength() + MigrationFrame.HEADER_SIZE) {
+            throw new IOException("bad pre-copy block offset " + offset);
+        }
+        Image image = images.get(stream);
+        if (image == null) {
+            image = new Image();
+            images.put(stream, image);
+        }
+        image.put(offset, block, 4, length);
+    }
+
+    /**
+     * Hand the image of a committed pre-copy migration to the decode
+     * executor
+     */
+    private void commit(final int stream, byte[] commit) throws IOException {
+        if (commit.length != 5) {
+            throw new IOException("bad pre-copy commit");
+        }
+        final byte codec = commit[0];
+        int length = ((commit[1] & 0xff) << 24) | ((commit[2] & 0xff) << 16) |
+                ((commit[3] & 0xff) << 8) | (commit[4] & 0xff);
+        Image image = images.remove(stream);
+        if (image == null) {
+            image = new Image();
+        }
+        if (length < 0 || length > image.size) {
+            throw new IOException("bad pre-copy length " + length);
+        }
+        final byte[] payload = length == image.data.length ? image.data : Arrays.copyOf(image.data, length);
+        receive(stream);
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                MigratableProcess process = null;
+                ClassLoader previous = bindLoader();
+                long start = System.nanoTime();
+                try {
+                    process = MigrationCodecs.decode(codec, payload, classes);
+                } catch (IOException e) {
+                    LOG.error("client sent malformed process", e);
+                } catch (ClassNotFoundException e) {
+                    LOG.error("client sent unrecognized object", e);
+                } finally {
+                    unbindLoader(previous);
+                }
+                MigrationTrace.record(MigrationTrace.Phase.DESERIALIZE, process, start);
+                finish(stream, process);
+            }
+        });
+    }
+
+    /**
+     * Hand the image of a frame which was sent in blocks to the decode
+     * executor
+     */
+    private void seal(final int stream, byte[] seal) throws IOException {
+        if (seal.length != 4) {
+            throw new IOException("bad seal");
+        }
+        final int length = ByteBuffer.wrap(seal).getInt();
+        Image image = images.remove(stream);
+        if (image == null) {
+            image = new Image();
+        }
+        if (length < MigrationFrame.HEADER_SIZE || length != image.size) {
+            throw new IOException("bad sealed length " + length);
+        }
+        final byte[] frame = image.data;
+        receive(stream);
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                MigratableProcess process = null;
+                ClassLoader previous = bindLoader();
+                long start = System.nanoTime();
+                try {
+                    process = MigrationFrame.decode(ByteBuffer.wrap(frame, 0, length), classes);
+                } catch (IOException e) {
+                    LOG.error("client sent malformed process", e);
+                } catch (ClassNotFoundException e) {
+                    LOG.error("client sent unrecognized object", e);
+                } finally {
+                    unbindLoader(previous);
+                }
+                MigrationTrace.record(MigrationTrace.Phase.DESERIALIZE, process, start);
+                finish(stream, process);
+            }
+        });
+    }
+
+    /**
+     * Serialize a post-copied state on the decode executor, then send
+     * it back on the I/O loop
+     */
+    private void fetch(final int stream, byte[] fetch) throws IOException {
+        if (fetch.length != 8) {
+            throw new IOException("bad fetch");
+        }
+        final long id = ByteBuffer.wrap(fetch).getLong();
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                byte[] data = null;
+                try {
+                    data = PostCopy.serve(id);
+                } catch (IOException e) {
+                    LOG.error("serialize state " + id + " error", e);
+                }
+                final byte[] message = MigrationSession.state(stream, data);
+                loop.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            send(message);
+                        } catch (IOException e) {
+                            close(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decode a frame right from its handoff file on the decode executor
+     */
+    private void handoff(final int stream, byte[] handoff) throws IOException {
+        if (handoff.length != 12) {
+            throw new IOException("bad handoff");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(handoff);
+        final long id = buffer.getLong();
+        final int length = buffer.getInt();
+        if (length < 0 || length - MigrationFrame.HEADER_SIZE > server.getMaxFrameLength()) {
+            throw new IOException("bad handoff length " + length);
+        }
+        receive(stream);
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                MigratableProcess process = null;
+                ClassLoader previous = bindLoader();
+                long start = System.nanoTime();
+                try {
+                    process = MigrationFrame.decode(LocalHandoff.read(id, length), classes);
+                } catch (IOException e) {
+                    LOG.error("client sent malformed process", e);
+                } catch (ClassNotFoundException e) {
+                    LOG.error("client sent unrecognized object", e);
+                } finally {
+                    unbindLoader(previous);
+                }
+                MigrationTrace.record(MigrationTrace.Phase.DESERIALIZE, process, start);
+                finish(stream, process);
+            }
+        });
+    }
+
+    /**
+     * Record the load summary of the peer and answer with the summary
+     * of this manager
+     */
+    private void load(int stream, byte[] load) throws IOException {
+        LoadBalancer balancer = server.getManager().getBalancer();
+        balancer.record(LoadSummary.parse(load));
+        send(MigrationSession.load(stream, balancer.sample().encode()));
+    }
+
+    /**
+     * Look up the chunks of a shipped file in the file cache on the
+     * decode executor, then answer on the I/O loop
+     */
+    private void have(final int stream, byte[] have) throws IOException {
+        final String id;
+        final String[] hashes;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(have));
+            id = in.readUTF();
+            int count = in.readInt();
+            if (count < 0 || count > have.length) {
+                throw new IOException("bad chunk count " + count);
+            }
+            hashes = new String[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = in.readUTF();
+            }
+        } catch (IOException e) {
+            throw new IOException("bad have", e);
+        }
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                FileCache cache = server.getManager().getFileCache();
+                boolean file = cache.hasFile(id);
+                boolean[] chunks = new boolean[hashes.length];
+                for (int i = 0; !file && i < hashes.length; i++) {
+                    chunks[i] = cache.hasChunk(hashes[i]);
+                }
+                reply(MigrationSession.have(stream, file, chunks));
+            }
+        });
+    }
+
+    /**
+     * Store a chunk of a shipped file on the decode executor, then
+     * acknowledge it on the I/O loop
+     */
+    private void chunk(final int stream, final byte[] chunk) throws IOException {
+        final int length = chunk.length < 2 ? -1 : ((chunk[0] & 0xff) << 8) | (chunk[1] & 0xff);
+        if (length < 0 || 2 + length > chunk.length) {
+            throw new IOException("bad chunk");
+        }
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                boolean status = false;
+                try {
+                    String hash = new String(chunk, 2, length, "UTF-8");
+                    server.getManager().getFileCache().putChunk(hash, chunk, 2 + length, chunk.length - 2 - length);
+                    status = true;
+                } catch (IOException e) {
+                    LOG.error("store chunk error", e);
+                }
+                reply(MigrationSession.ack(stream, status));
+            }
+        });
+    }
+
+    /**
+     * Join the chunks of a frame from the file cache and decode it on
+     * the decode executor
+     */
+    private void assemble(final int stream, byte[] assemble) throws IOException {
+        final String[] hashes;
+        final int[] lengths;
+        int total = 0;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(assemble));
+            int count = in.readInt();
+            if (count < 0 || count > assemble.length) {
+                throw new IOException("bad chunk count " + count);
+            }
+            hashes = new String[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = in.readUTF();
+                lengths[i] = in.readInt();
+                if (lengths[i] < 0 || (long) total + lengths[i] - MigrationFrame.HEADER_SIZE > server.getMaxFrameLength()) {
+                    throw new IOException("bad assembled length");
+                }
+                total += lengths[i];
+            }
+        } catch (IOException e) {
+            throw new IOException("bad assemble", e);
+        }
+        final int length = total;
+        receive(stream);
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                MigratableProcess process = null;
+                ClassLoader previous = bindLoader();
+                long start = System.nanoTime();
+                try {
+                    for (int i = 0; i < hashes.length; i++) {
+                        if (server.getManager().getFileCache().getChunkLength(hashes[i]) != lengths[i]) {
+                            throw new IOException("chunk " + hashes[i] + " is missing or has the wrong length");
+                        }
+                    }
+                    byte[] frame = new byte[length];
+                    int offset = 0;
+                    for (int i = 0; i < hashes.length; i++) {
+                        byte[] chunk = server.getManager().getFileCache().getChunk(hashes[i]);
+                        if (chunk.length != lengths[i]) {
+                            throw new IOException("chunk " + hashes[i] + " has the wrong length");
+                        }
+                        System.arraycopy(chunk, 0, frame, offset, chunk.length);
+                        offset += chunk.length;
+                    }
+                    process = MigrationFrame.decode(frame, classes);
+                } catch (IOException e) {
+                    LOG.error("client sent malformed process", e);
+                } catch (ClassNotFoundException e) {
+                    LOG.error("client sent unrecognized object", e);
+                } finally {
+                    unbindLoader(previous);
+                }
+                MigrationTrace.record(MigrationTrace.Phase.DESERIALIZE, process, start);
+                finish(stream, process);
+            }
+        });
+    }
+
+    /**
+     * Look up the bytecode of an announced job on the decode executor,
+     * and add the job to the session once all of it is here, then
+     * answer on the I/O loop
+     */
+    private void code(final int stream, byte[] code) throws IOException {
+        final ClassBundle bundle = ClassBundle.parse(code);
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                ClassCache cache = server.getManager().getClassCache();
+                boolean[] have = cache.have(bundle);
+                boolean complete = true;
+                for (boolean present : have) {
+                    complete &= present;
+                }
+                if (complete) {
+                    try {
+                        addJob(cache.getLoader(bundle));
+                    } catch (IOException e) {
+                        LOG.error("load job " + bundle.getId() + " error", e);
+                        Arrays.fill(have, false);
+                    }
+                } else {
+                    synchronized (ProcessReceiver.this) {
+                        announced.put(bundle.getId(), bundle);
+                    }
+                }
+                reply(MigrationSession.code(stream, have));
+            }
+        });
+    }
+
+    /**
+     * Store a class file on the decode executor, adding the jobs it
+     * completes to the session, then acknowledge it on the I/O loop
+     */
+    private void bytecode(final int stream, final byte[] bytecode) throws IOException {
+        final int length = bytecode.length < 2 ? -1 : ((bytecode[0] & 0xff) << 8) | (bytecode[1] & 0xff);
+        if (length < 0 || 2 + length > bytecode.length) {
+            throw new IOException("bad bytecode");
+        }
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                boolean status = false;
+                try {
+                    String hash = new String(bytecode, 2, length, "UTF-8");
+                    ClassCache cache = server.getManager().getClassCache();
+                    cache.put(hash, Arrays.copyOfRange(bytecode, 2 + length, bytecode.length));
+                    List<ClassBundle> ready = new ArrayList<ClassBundle>();
+                    synchronized (ProcessReceiver.this) {
+                        Iterator<ClassBundle> it = announced.values().iterator();
+                        while (it.hasNext()) {
+                            ClassBundle bundle = it.next();
+                            boolean complete = true;
+                            for (boolean present : cache.have(bundle)) {
+                                complete &= present;
+                            }
+                            if (complete) {
+                                it.remove();
+                                ready.add(bundle);
+                            }
+                        }
+                    }
+                    for (ClassBundle bundle : ready) {
+                        addJob(cache.getLoader(bundle));
+                    }
+                    status = true;
+                } catch (IOException e) {
+                    LOG.error("store bytecode error", e);
+                }
+                reply(MigrationSession.ack(stream, status));
+            }
+        });
+    }
+
+    /**
+     * Hand a replication or splitting request to the standby or the
+     * splitter of the manager on the decode executor, then acknowledge
+     * it on the I/O loop. Replicas keep the session loader, which
+     * resolves their shipped classes when they are restored.
+     */
+    private void request(final byte type, final int stream, final byte[] message) {
+        final ClassLoader session = loader;
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                ProcessStandby standby = server.getManager().getStandby();
+                ProcessSplitter splitter = server.getManager().getSplitter();
+                boolean status = false;
+                try {
+                    if (type == MigrationSession.REPLICA) {
+                        status = standby.replica(message, session);
+                    } else if (type == MigrationSession.RELEASE) {
+                        status = standby.release(message);
+                    } else if (type == MigrationSession.HEARTBEAT) {
+                        status = standby.heartbeat(message);
+                    } else if (type == MigrationSession.MERGE) {
+                        status = splitter.merge(message);
+                    } else {
+                        status = splitter.offer(message);
+                    }
+                } catch (IOException e) {
+                    LOG.error("bad request " + type, e);
+                }
+                reply(MigrationSession.ack(stream, status));
+            }
+        });
+    }
+
+    /**
+     * Let the frames of this session resolve the classes of a job
+     */
+    private synchronized void addJob(JobClassLoader job) {
+        if (loader == null) {
+            loader = new ClassCache.SessionLoader(MigratableProcess.class.getClassLoader());
+        }
+        loader = loader.with(job);
+    }
+
+    /**
+     * Make the session loader the context loader of the decoding thread,
+     * and let the shipped files of the decoded process resolve in the
+     * file cache of the manager
+     *
+     * @return the previous context loader
+     */
+    private ClassLoader bindLoader() {
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        if (loader != null) {
+            Thread.currentThread().setContextClassLoader(loader);
+        }
+        FileShipment.beginResolve(server.getManager().getFileCache());
+        return previous;
+    }
+
+    /**
+     * Restore the decoding thread after <code>bindLoader()</code>
+     *
+     * @param previous the previous context loader
+     */
+    private void unbindLoader(ClassLoader previous) {
+        FileShipment.endResolve();
+        Thread.currentThread().setContextClassLoader(previous);
+    }
+
+    /**
+     * Send a message from the decode executor on the I/O loop
+     */
+    private void reply(final byte[] message) {
+        loop.execute(new Runnable() {
+            public void run() {
+                try {
+                    send(message);
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remember a received migration until it is decided
+     */
+    private synchronized void receive(int stream) {
+        undecided.add(stream);
+    }
+
+    /**
+     * Cancel a migration whose acknowledgement the sender gave up
+     * waiting for, and answer with its status: started if it was
+     * started before the cancel arrived, refused otherwise, in which
+     * case it is never started.
+     */
+    private void cancel(int stream) throws IOException {
+        boolean status;
+        synchronized (this) {
+            if (undecided.remove(stream)) {
+                cancelled.add(stream);
+                status = false;
+            } else {
+                Boolean known = decided.get(stream);
+                status = known != null && known;
+            }
+        }
+        LOG.warn("sender cancelled migration " + stream + (status ? " after the start" : ""));
+        send(MigrationSession.ack(stream, status));
+    }
+
+    /**
+     * Hand a received frame to the decode executor
+     */
+    private void dispatch(final int stream, final byte[] data) {
+        server.getDecoders().execute(new Runnable() {
+            public void run() {
+                decode(stream, data);
+            }
+        });
+    }
+
+    /**
+     * Decode the frame and start the process, then send the status
+     * back on the I/O loop. Runs on the decode executor.
+     *
+     * @param stream the stream ID of a session frame
+     * @param data   the whole frame of a session, or the payload of a
+     *               single frame connection
+     */
+    private void decode(final int stream, byte[] data) {
+        MigratableProcess process = null;
+        ClassLoader previous = bindLoader();
+        long start = System.nanoTime();
+        try {
+            if (classes != null) {
+                process = MigrationFrame.decode(data, classes);
+            } else {
+                process = MigrationFrame.decode(codecId, compressionId, rawLength, data);
+            }
+        } catch (IOException e) {
+            LOG.error("client sent malformed process", e);
         } catch (ClassNotFoundException e) {
-        	System.out.println("client sent unrecognized object");
+            LOG.error("client sent unrecognized object", e);
+        } finally {
+            unbindLoader(previous);
+        }
+        MigrationTrace.record(MigrationTrace.Phase.DESERIALIZE, process, start);
+        finish(stream, process);
+    }
+
+    /**
+     * Start a decoded process, then send the status back on the I/O
+     * loop. A drained manager refuses the process, so the sender
+     * restarts it.
+     *
+     * @param stream  the stream ID of a session migration
+     * @param process the process, <code>null</code> if it can't be
+     *                decoded
+     */
+    private void finish(final int stream, MigratableProcess process) {
+        synchronized (this) {
+            if (classes != null && !undecided.remove(stream)) {
+                LOG.warn("dropped " + (process == null ? "migration " + stream : process.toString()) +
+                        " cancelled by the sender");
+                cancelled.remove(stream);
+                return;
+            }
+            if (process != null && server.getManager().isDraining()) {
+                LOG.warn("refused " + process.toString() + " while draining");
+                process = null;
+            }
+            if (process != null) {
+                long start = System.nanoTime();
+                process.migrated();
+                process.getMetrics().migrated();
+                long reopened = System.nanoTime();
+                MigrationTrace.record(MigrationTrace.Phase.REOPEN, process, start, reopened);
+                server.getManager().startProcess(process);
+                MigrationTrace.record(MigrationTrace.Phase.START, process, reopened);
+            }
+            if (classes != null) {
+                decided.put(stream, process != null);
+            }
+        }
+        final boolean status = process != null;
+        loop.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (classes != null) {
+                        send(MigrationSession.ack(stream, status));
+                    } else {
+                        closeAfterWrite = true;
+                        send(new byte[]{(byte) (status ? 1 : 0)});
+                    }
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue bytes and try to write them right away
+     */
+    private void send(byte[] bytes) throws IOException {
+        if (state == CLOSED) {
+            return;
+        }
+        if (output == null) {
+            output = ByteBuffer.wrap(bytes);
+        } else {
+            ByteBuffer merged = ByteBuffer.allocate(output.remaining() + bytes.length);
+            merged.put(output).put(bytes).flip();
+            output = merged;
+        }
+        write();
+    }
+
+    /**
+     * The image of a pre-copy migration, grown by its blocks
+     */
+    private static class Image {
+        byte[] data = new byte[0];
+
+        /**
+         * End of the last byte received
+         */
+        int size;
+
+        void put(int offset, byte[] block, int blockOffset, int length) {
+            int end = offset + length;
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, (int) Math.min(Integer.MAX_VALUE - 8, data.length * 2L)));
+            }
+            System.arraycopy(block, blockOffset, data, offset, length);
+            size = Math.max(size, end);
         }
-	}
+    }
 }
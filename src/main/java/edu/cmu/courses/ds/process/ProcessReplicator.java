@@ -0,0 +1,451 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.ContentChunker;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The warm-standby replicator of <code>ProcessManager</code>
+ * Every <code>replication.interval</code> milliseconds, each replicated
+ * process is paused, serialized into memory and continues right away,
+ * like a checkpoint, and the snapshot is streamed to the standby
+ * manager of the process. Snapshots are split into content defined
+ * chunks, and only the chunks the standby hasn't acknowledged yet are
+ * sent, so a round costs about the change rate of the process.
+ *
+ * A heartbeat goes to every standby on the same interval. When the
+ * heartbeats of this manager stop for <code>replication.timeout</code>
+ * milliseconds, the standby restarts the processes from their last
+ * replicated snapshot, see <code>ProcessStandby</code>. If a standby
+ * answers that it took over already, this manager was cut off rather
+ * than dead, and its own copies of the processes are stopped like
+ * migrated ones.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessStandby
+ * @see edu.cmu.courses.ds.process.ProcessCheckpointer
+ */
+public class ProcessReplicator {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ProcessReplicator.class);
+
+    /**
+     * The process manager whose processes are replicated
+     */
+    private ProcessManager manager;
+
+    /**
+     * Replication interval in milliseconds
+     */
+    private long interval;
+
+    /**
+     * Replication state of each process, keyed by the process object
+     * like the checkpoints
+     */
+    private ConcurrentHashMap<MigratableProcess, Replica> replicas;
+
+    /**
+     * Replica IDs, unique among the replicas of this manager
+     */
+    private Random random = new Random();
+
+    /**
+     * Snapshot bytes shipped and replication rounds, of all processes
+     */
+    private AtomicLong shipped = new AtomicLong(0);
+    private AtomicLong rounds = new AtomicLong(0);
+
+    /**
+     * The replication and heartbeat threads, started with the first
+     * replicated process
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor of <code>ProcessReplicator</code>, read the interval
+     * from <code>Configuration</code>.
+     *
+     * @param manager the process manager
+     */
+    public ProcessReplicator(ProcessManager manager) {
+        this.manager = manager;
+        this.interval = Math.max(1, Configuration.getLong("replication.interval", 200));
+        this.replicas = new ConcurrentHashMap<MigratableProcess, Replica>();
+    }
+
+    /**
+     * Start replicating a process to a standby manager. A process
+     * replicated already moves to the new standby.
+     *
+     * @param process the process object
+     * @param host    the host of the standby
+     * @param port    the port of the standby
+     */
+    public void replicate(MigratableProcess process, String host, int port) {
+        Replica previous = replicas.put(process, new Replica(host, port, random.nextLong()));
+        if (previous != null) {
+            release(previous);
+        }
+        start();
+    }
+
+    /**
+     * Stop replicating a process, and let its standby drop the replica
+     *
+     * @param process the process object
+     * @return <code>true</code> if the process was replicated
+     */
+    public boolean stopReplicating(MigratableProcess process) {
+        Replica replica = replicas.remove(process);
+        if (replica == null) {
+            return false;
+        }
+        release(replica);
+        return true;
+    }
+
+    /**
+     * Discard the replica of a process, called when the process
+     * finished or migrated to another host.
+     *
+     * @param process the process object
+     */
+    public void discard(MigratableProcess process) {
+        stopReplicating(process);
+    }
+
+    /**
+     * Start the replication and heartbeat threads
+     */
+    private synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "replicator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                replicateAll();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                heartbeat();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the replication and the heartbeats; the standbys take over
+     * after <code>replication.timeout</code>.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Replicate every replicated process once
+     */
+    private void replicateAll() {
+        for (Map.Entry<MigratableProcess, Replica> entry : replicas.entrySet()) {
+            MigratableProcess process = entry.getKey();
+            Replica replica = entry.getValue();
+            try {
+                replicate(process, replica);
+            } catch (IOException e) {
+                LOG.warn(process.getClass().getSimpleName() + "[" + process.getId() + "] replicate to " +
+                        replica.getStandby() + " error: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.error(process.getClass().getSimpleName() + "[" + process.getId() + "] replicate error", e);
+            }
+        }
+        rounds.incrementAndGet();
+    }
+
+    /**
+     * Take a snapshot of a process and send it to its standby.
+     * The process is locked while it's paused, so a migration or a
+     * checkpoint can't interleave with the snapshot.
+     */
+    private void replicate(MigratableProcess process, Replica replica) throws IOException, InterruptedException {
+        byte[] data;
+        long start = System.currentTimeMillis();
+        synchronized (process) {
+            if (!manager.getProcesses().contains(process)) {
+                return;
+            }
+            if (!process.pause()) {
+                return;
+            }
+            try {
+                data = serialize(process);
+            } finally {
+                process.unpause();
+            }
+        }
+        List<ContentChunker.Chunk> chunks = ContentChunker.split(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(manager.getBalancer().getNode());
+        out.writeLong(replica.id);
+        out.writeUTF(process.getClass().getSimpleName() + "[" + process.getId() + "]");
+        out.writeInt(chunks.size());
+        Set<String> sent = new HashSet<String>();
+        long payload = 0;
+        synchronized (replica) {
+            for (ContentChunker.Chunk chunk : chunks) {
+                out.writeUTF(chunk.hash);
+                out.writeInt(chunk.length);
+                if (replica.sent.contains(chunk.hash) || !sent.add(chunk.hash)) {
+                    out.writeBoolean(false);
+                } else {
+                    out.writeBoolean(true);
+                    out.write(data, chunk.offset, chunk.length);
+                    payload += chunk.length;
+                }
+            }
+        }
+        out.flush();
+        PeerConnection peer = manager.getPeer(replica.host, replica.port);
+        peer.shipCode(process.getClass());
+        boolean status = peer.request(MigrationSession.REPLICA, bytes.toByteArray(), MigrationThrottle.Lane.BULK);
+        synchronized (replica) {
+            if (replicas.get(process) != replica) {
+                return;
+            }
+            if (!status) {
+                replica.sent.clear();
+                throw new IOException("standby is missing chunks, resending all of them");
+            }
+            replica.sent = new HashSet<String>();
+            for (ContentChunker.Chunk chunk : chunks) {
+                replica.sent.add(chunk.hash);
+            }
+            replica.count++;
+            replica.size = data.length;
+            replica.shipped += payload;
+            replica.lag = System.currentTimeMillis() - start;
+            replica.time = System.currentTimeMillis();
+        }
+        shipped.addAndGet(payload);
+    }
+
+    /**
+     * Send a heartbeat to every standby. A standby which took over the
+     * processes of this manager already fences them off here.
+     */
+    private void heartbeat() {
+        Set<String> standbys = new LinkedHashSet<String>();
+        for (Replica replica : replicas.values()) {
+            standbys.add(replica.getStandby());
+        }
+        for (String standby : standbys) {
+            int colon = standby.lastIndexOf(':');
+            try {
+                PeerConnection peer = manager.getPeer(standby.substring(0, colon),
+                        Integer.parseInt(standby.substring(colon + 1)));
+                if (!peer.request(MigrationSession.HEARTBEAT, encodeSource(), MigrationThrottle.Lane.URGENT)) {
+                    fence(standby);
+                }
+            } catch (IOException e) {
+                LOG.debug("heartbeat to " + standby + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the processes a standby took over
+     */
+    private void fence(String standby) {
+        for (Map.Entry<MigratableProcess, Replica> entry : replicas.entrySet()) {
+            if (!entry.getValue().getStandby().equals(standby)) {
+                continue;
+            }
+            MigratableProcess process = entry.getKey();
+            replicas.remove(process, entry.getValue());
+            LOG.warn(process.getClass().getSimpleName() + "[" + process.getId() + "] was taken over by " +
+                    standby + ", stopping it here");
+            synchronized (process) {
+                if (!manager.getProcesses().contains(process)) {
+                    continue;
+                }
+                try {
+                    process.suspend();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            manager.finishMigration(process, true);
+        }
+    }
+
+    /**
+     * Let the standby of a replica drop it, in the background
+     */
+    private void release(final Replica replica) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeUTF(manager.getBalancer().getNode());
+                    out.writeLong(replica.id);
+                    out.flush();
+                    manager.getPeer(replica.host, replica.port).request(MigrationSession.RELEASE,
+                            bytes.toByteArray(), MigrationThrottle.Lane.URGENT);
+                } catch (IOException e) {
+                    LOG.warn("release replica on " + replica.getStandby() + " error: " + e.getMessage());
+                }
+            }
+        }, "replica-release");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Encode the node name of this manager, the body of a heartbeat
+     */
+    private byte[] encodeSource() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(manager.getBalancer().getNode());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serialize a process into memory
+     */
+    private static byte[] serialize(MigratableProcess process) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(process);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Get the replicated processes
+     *
+     * @return the process objects
+     */
+    public List<MigratableProcess> getProcesses() {
+        return new ArrayList<MigratableProcess>(replicas.keySet());
+    }
+
+    /**
+     * Get the replication lag of a process, from the start of its last
+     * snapshot to the acknowledgement of the standby
+     *
+     * @param process the process object
+     * @return the lag in milliseconds, -1 if nothing was replicated yet
+     */
+    public long getLag(MigratableProcess process) {
+        Replica replica = replicas.get(process);
+        if (replica == null) {
+            return -1;
+        }
+        synchronized (replica) {
+            return replica.count == 0 ? -1 : replica.lag;
+        }
+    }
+
+    /**
+     * Get the snapshot bytes shipped to all standbys
+     *
+     * @return the count
+     */
+    public long getShipped() {
+        return shipped.get();
+    }
+
+    /**
+     * Print the standby, lag, staleness and traffic of each replicated
+     * process.
+     */
+    public void printStatus() {
+        long now = System.currentTimeMillis();
+        System.out.println("Replication: interval=" + interval + "ms rounds=" + rounds.get() +
+                " shipped=" + shipped.get() + "B");
+        for (Map.Entry<MigratableProcess, Replica> entry : replicas.entrySet()) {
+            MigratableProcess process = entry.getKey();
+            Replica replica = entry.getValue();
+            synchronized (replica) {
+                System.out.println(process.getClass().getSimpleName() +
+                        "[" + process.getId() + "] -> " + replica.getStandby() + ": " +
+                        (replica.count == 0 ? "no replica yet" :
+                                "count=" + replica.count +
+                                " size=" + replica.size + "B" +
+                                " shipped=" + replica.shipped + "B" +
+                                " lag=" + replica.lag + "ms" +
+                                " age=" + (now - replica.time) + "ms"));
+            }
+        }
+    }
+
+    /**
+     * Replication state of one process
+     */
+    private static class Replica {
+        final String host;
+        final int port;
+        final long id;
+
+        /**
+         * Chunk hashes the standby acknowledged with the last snapshot
+         */
+        Set<String> sent = new HashSet<String>();
+
+        long count;
+        long size;
+        long shipped;
+        long lag;
+        long time;
+
+        Replica(String host, int port, long id) {
+            this.host = host;
+            this.port = port;
+            this.id = id;
+        }
+
+        String getStandby() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -1,15 +1,25 @@
 package edu.cmu.courses.ds.process;
 
+import edu.cmu.courses.ds.codec.MigrationFrame;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The socket server of process manager.
@@ -18,10 +28,19 @@ import java.net.SocketException;
  * the <code>run()</code> from the <code>Runnable</code>
  * interface.
  *
+ * The server is non-blocking. The thread which runs the server only
+ * accepts connections, and hands each one to one of
+ * <code>server.io.threads</code> I/O loops. Each I/O loop owns a
+ * <code>Selector</code> and a direct read buffer, and drives the
+ * <code>ProcessReceiver</code> state machines of its connections.
+ * Once a whole frame has arrived, the receiver hands it to the decode
+ * executor of <code>server.decode.threads</code> threads, so decoding
+ * and starting processes never block the I/O loops.
+ *
  * @author Jian Fang(jianf)
  * @author Fangyu Gao(fangyug)
- * @see java.net.ServerSocket
- * @see java.net.Socket
+ * @see java.nio.channels.Selector
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
  * @see edu.cmu.courses.ds.process.MigratableProcess
  */
 public class ProcessServer implements Runnable{
@@ -30,6 +49,11 @@ public class ProcessServer implements Runnable{
      */
     public static final int PORT = 15440;
 
+    /**
+     * Size of the direct read buffer of each I/O loop
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Log handler
      *
@@ -38,87 +62,467 @@ public class ProcessServer implements Runnable{
     private static Logger LOG = LogManager.getLogger(ProcessServer.class);
 
     /**
-     * Server socket of process server
+     * The manager which runs the received processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The address to bind, <code>null</code> for all addresses
+     */
+    private String address;
+
+    /**
+     * The port to bind, 0 means any free port
      */
-    private ServerSocket serverSocket;
+    private int port;
+
+    /**
+     * Server socket channel of process server
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Selector of the accepting thread
+     */
+    private Selector acceptSelector;
+
+    /**
+     * The I/O loops
+     */
+    private IoLoop[] loops;
+
+    /**
+     * Index of the I/O loop which gets the next connection
+     */
+    private int nextLoop;
+
+    /**
+     * The executor which decodes and starts received processes
+     */
+    private ExecutorService decoders;
+
+    /**
+     * Maximum accepted frame payload length
+     */
+    private int maxFrameLength;
 
     /**
      * Running flag
      */
-    private boolean running;
+    private volatile boolean running;
+
+    /**
+     * Number of accepted connections
+     */
+    private AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Number of finished handshakes
+     */
+    private AtomicLong handshakes = new AtomicLong();
+
+    /**
+     * Total and maximum time from accept to the end of the handshake
+     */
+    private AtomicLong handshakeNanos = new AtomicLong();
+    private AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    /**
+     * Constructor with the configured <code>server.port</code>
+     */
+    public ProcessServer() {
+        this(Configuration.getInt("server.port", PORT));
+    }
+
+    /**
+     * Constructor with a specific port
+     *
+     * @param port the port to bind, 0 means any free port
+     */
+    public ProcessServer(int port) {
+        this(null, null, port);
+    }
+
+    /**
+     * Constructor of the server of a manager
+     *
+     * @param manager the manager which runs the received processes,
+     *                <code>null</code> for the single instance
+     * @param address the address to bind, <code>null</code> for all
+     *                addresses
+     * @param port    the port to bind, 0 means any free port
+     */
+    public ProcessServer(ProcessManager manager, String address, int port) {
+        this.manager = manager;
+        this.address = address;
+        this.port = port;
+        this.maxFrameLength = MigrationFrame.getMaxLength();
+    }
 
     /**
      * The implementation of <code>Runnable</code> interface
-     * First <code>bind()</code> the port, then idle loop to
+     * First <code>bind()</code> the port, then loop to
      * <code>accept()</code> migration request. If the running
-     * flag is not set, the function breaks the loop.
+     * flag is not set, the function breaks the loop. If the port
+     * can't be bound, the error is logged and the server doesn't run.
      */
-    
     public void run() {
-        running = true;
-        bind();
+        try {
+            bind();
+        } catch (IOException e) {
+            LOG.fatal("ServerSocket bind error", e);
+            stop();
+            return;
+        }
         while(running){
             accept();
         }
     }
 
     /**
-     * Stop the process server.
-     * Unset the running flag, then call <code>serverSocket.close()</code>
-     * This close operation will cause an <code>SocketException</code> in
-     * <code>accept()</code>.
+     * Bind the port and start the I/O loops. Calling it before
+     * <code>run()</code> makes the port known to the caller early,
+     * <code>run()</code> doesn't bind again.
      *
-     * @see java.net.ServerSocket#close()
+     * @throws IOException if the port can't be bound
      */
-    public void stop(){
-        if(running){
-            running = false;
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                LOG.error("stop process server error", e);
-                System.exit(-1);
-            }
+    public synchronized void bind() throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+        running = true;
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        InetSocketAddress local = address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port);
+        serverChannel.bind(local, Configuration.getInt("server.backlog", 1024));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        decoders = Executors.newFixedThreadPool(
+                Configuration.getInt("server.decode.threads", Runtime.getRuntime().availableProcessors()),
+                new NamedThreadFactory("process-decoder"));
+        loops = new IoLoop[Math.max(1, Configuration.getInt("server.io.threads", 2))];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "process-server-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
         }
     }
 
     /**
-     * Bind the <code>PORT</code>.
-     * If bind failed, the program exit with -1.
+     * Stop the process server.
+     * Unset the running flag, then close the accepting selector and the
+     * server channel, which wakes up the accepting thread, and wake up
+     * the I/O loops, which close their connections and selectors.
      */
-    private void bind(){
+    public synchronized void stop(){
+        running = false;
         try {
-        	
-            serverSocket = new ServerSocket(PORT);
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (loops != null) {
+                for (IoLoop loop : loops) {
+                    if (loop != null) {
+                        loop.selector.wakeup();
+                    }
+                }
+            }
         } catch (IOException e) {
-            LOG.fatal("ServerSocket bind error", e);
-            System.exit(-1);
+            LOG.error("stop process server error", e);
         }
+        if (decoders != null) {
+            decoders.shutdown();
+        }
+    }
+
+    /**
+     * Get the manager which runs the received processes
+     *
+     * @return the manager
+     */
+    ProcessManager getManager() {
+        return manager != null ? manager : ProcessManager.getInstance();
+    }
+
+    /**
+     * Get the bound port
+     *
+     * @return the local port, or -1 if not bound
+     */
+    public int getLocalPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
     }
 
     /**
-     * Accept migration request from other <code>ProcessManager</code>.
-     * If the function caught a <code>SocketException</code> and the
-     * <code>running</code> flag is unset, we assert <code>stop()</code>
-     * is called, so exit the program normally. If not, something goes
-     * wrong, we exit the program with status -1.
+     * Accept all pending migration requests from other
+     * <code>ProcessManager</code>, and hand each connection to an
+     * I/O loop. Errors of a single connection are logged and don't
+     * stop the server.
      *
-     * @see java.net.ServerSocket#accept()
+     * @see java.nio.channels.ServerSocketChannel#accept()
      * @see edu.cmu.courses.ds.process.ProcessServer#stop()
      */
     private void accept(){
-        Socket clientSocket = null;
         try {
-            clientSocket = serverSocket.accept();
-        }catch (SocketException e){
-            if(running){
-                LOG.fatal("server socket error", e);
-                System.exit(-1);
-            }
+            acceptSelector.select();
+            acceptSelector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            return;
         } catch (IOException e) {
-            LOG.fatal("ServerSocket accept error", e);
-            System.exit(-1);
+            if (running) {
+                LOG.error("server selector error", e);
+            }
+            return;
+        }
+        while (running) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    break;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("ServerSocket accept error", e);
+                }
+                closeQuietly(channel);
+                break;
+            }
+            accepted.incrementAndGet();
+            IoLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(new ProcessReceiver(this, channel, loop, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Called by a receiver when its handshake is done
+     *
+     * @param nanos time from accept to the end of the handshake
+     */
+    void recordHandshake(long nanos) {
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        long max = maxHandshakeNanos.get();
+        while (nanos > max && !maxHandshakeNanos.compareAndSet(max, nanos)) {
+            max = maxHandshakeNanos.get();
+        }
+    }
+
+    /**
+     * Get the number of accepted connections
+     *
+     * @return the count
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * Get the number of finished handshakes
+     *
+     * @return the count
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Get the average time from accept to the end of the handshake
+     *
+     * @return the average in milliseconds
+     */
+    public double getAverageHandshakeMillis() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : handshakeNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * Get the maximum time from accept to the end of the handshake
+     *
+     * @return the maximum in milliseconds
+     */
+    public double getMaxHandshakeMillis() {
+        return maxHandshakeNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Get the decode executor
+     */
+    ExecutorService getDecoders() {
+        return decoders;
+    }
+
+    /**
+     * Get the maximum accepted frame payload length
+     */
+    int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Close a channel, ignoring errors
+     */
+    static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("close channel error", e);
+            }
+        }
+    }
+
+    /**
+     * An I/O loop. It owns a selector and runs the events of its
+     * connections, plus tasks handed over from other threads.
+     */
+    class IoLoop implements Runnable {
+        /**
+         * The selector of this loop
+         */
+        final Selector selector;
+
+        /**
+         * Tasks which must run on this loop
+         */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * The direct read buffer shared by the connections of this loop
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run a task on this loop
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Register a new connection with this loop
+         *
+         * @param receiver the connection state machine
+         */
+        void register(final ProcessReceiver receiver) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        receiver.register(selector);
+                    } catch (IOException e) {
+                        receiver.close(e);
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            try {
+                loop();
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void loop() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (IOException e) {
+                    LOG.error("I/O loop selector error", e);
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("I/O loop task failed", e);
+                    }
+                }
+                Iterator<SelectionKey> it;
+                try {
+                    it = selector.selectedKeys().iterator();
+                } catch (ClosedSelectorException e) {
+                    return;
+                }
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ProcessReceiver receiver = (ProcessReceiver) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            receiver.read(buffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            receiver.write();
+                        }
+                    } catch (IOException e) {
+                        receiver.close(e);
+                    } catch (RuntimeException e) {
+                        // A bug or a malformed message on one connection
+                        // must not take down the others of this loop
+                        receiver.close(new IOException("connection failed", e));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Close the connections of this loop and its selector, once the
+         * server stopped
+         */
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.channel() instanceof SocketChannel) {
+                        closeQuietly((SocketChannel) key.channel());
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("close selector error", e);
+            }
+        }
+    }
+
+    /**
+     * Thread factory of named daemon threads
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
         }
-        new Thread(new ProcessReceiver(clientSocket)).start();
     }
 }
@@ -0,0 +1,600 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.FileManifest;
+import edu.cmu.courses.ds.io.FileShipment;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The splitter of <code>ProcessManager</code>
+ * A <code>SplittableProcess</code> is split by pausing it, letting
+ * it divide the rest of its input, and letting it continue; the new part is
+ * sent to another manager, or started here. Parts can be split again
+ * wherever they run. An idle manager asks a busy peer for work with a
+ * steal request, see <code>LoadBalancer</code>, and the peer answers
+ * by splitting its process with the most input left and sending the
+ * part to the idle manager.
+ *
+ * The manager which split a process first coordinates the merge of its
+ * outputs. Every part reports to the coordinator when it finishes,
+ * with its output length, the output of the process it was split off,
+ * its index there and the number of parts split off itself. Once a
+ * part and all parts split off it are complete, their part files are
+ * appended to its output in input order, which is the reverse order
+ * of the splits, and deleted.
+ *
+ * The part files are read where the coordinator runs, so parts which
+ * finish on other hosts need shared storage, unless
+ * <code>migration.files</code> is set; then each part ships its output
+ * to the <code>FileCache</code> of the coordinator before it reports,
+ * and deletes its part file once the report is recorded. A part whose
+ * process failed, or whose output the coordinator can't find, aborts
+ * the merge of the whole process: nothing is appended, the part files
+ * are kept, and the error is logged and shown by the status.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.SplittableProcess
+ * @see edu.cmu.courses.ds.process.LoadBalancer
+ */
+public class ProcessSplitter {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ProcessSplitter.class);
+
+    /**
+     * Suffix of part files, followed by the index of the part
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * The process manager whose processes are split
+     */
+    private ProcessManager manager;
+
+    /**
+     * Smallest remaining input in bytes which is split
+     */
+    private long minimum;
+
+    /**
+     * The parts this manager coordinates, by output path
+     */
+    private final Map<String, Part> parts = new HashMap<String, Part>();
+
+    /**
+     * Number of splits, of splits for steal requests, of steal
+     * requests granted to this manager, and of merged processes
+     */
+    private long splits;
+    private long offered;
+    private long stolen;
+    private long merged;
+
+    /**
+     * Outputs whose merge was aborted by a failed part
+     */
+    private final List<String> aborted = new ArrayList<String>();
+
+    /**
+     * Sends the parts for steal requests and the reports of finished
+     * parts
+     */
+    private ExecutorService sender;
+
+    /**
+     * Constructor of <code>ProcessSplitter</code>, read the minimum from
+     * <code>Configuration</code>.
+     *
+     * @param manager the process manager
+     */
+    public ProcessSplitter(ProcessManager manager) {
+        this.manager = manager;
+        this.minimum = Math.max(2, Configuration.getLong("split.min", 1024 * 1024));
+        this.sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "splitter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Split a process.
+     * The process is locked while it's paused, so a migration or a
+     * checkpoint can't interleave with the split.
+     *
+     * @param process the process object
+     * @return the new part, not started yet, or <code>null</code> if
+     *         the process can't be split
+     * @throws IOException          if the input can't be read
+     * @throws InterruptedException if the split is interrupted
+     */
+    public MigratableProcess split(MigratableProcess process) throws IOException, InterruptedException {
+        if (!(process instanceof SplittableProcess)) {
+            return null;
+        }
+        SplittableProcess splittable = (SplittableProcess) process;
+        MigratableProcess part;
+        synchronized (process) {
+            if (!manager.getProcesses().contains(process) || splittable.getRemaining() < minimum) {
+                return null;
+            }
+            if (!process.pause()) {
+                return null;
+            }
+            try {
+                File output = splittable.getOutput().GetTargetFile();
+                part = splittable.split(new File(output.getPath() + PART_SUFFIX + process.splitCount));
+                if (part != null) {
+                    if (process.splitCoordinator == null) {
+                        process.splitCoordinator = manager.getBalancer().getNode();
+                    }
+                    part.splitCoordinator = process.splitCoordinator;
+                    part.splitParent = output.getPath();
+                    part.splitIndex = process.splitCount++;
+                }
+            } finally {
+                process.unpause();
+            }
+        }
+        if (part != null) {
+            synchronized (this) {
+                splits++;
+            }
+            LOG.info(process.getClass().getSimpleName() + "[" + process.getId() + "] split off " + part);
+        }
+        return part;
+    }
+
+    /**
+     * Split a process and run the new part on another manager, or here
+     *
+     * @param process the process object
+     * @param host    the host of the other manager, <code>null</code>
+     *                to start the part here
+     * @param port    the port of the other manager
+     * @return the new part, <code>null</code> if the process can't be
+     *         split
+     * @throws IOException          if the input can't be read
+     * @throws InterruptedException if the split is interrupted
+     */
+    public MigratableProcess split(MigratableProcess process, String host, int port)
+            throws IOException, InterruptedException {
+        MigratableProcess part = split(process);
+        if (part != null) {
+            send(part, host, port);
+        }
+        return part;
+    }
+
+    /**
+     * Send a part which is not started yet to another manager, starting
+     * it here if that fails
+     */
+    private void send(MigratableProcess part, String host, int port) {
+        if (host != null) {
+            try {
+                PeerConnection peer = manager.getPeer(host, port);
+                PeerConnection.Ack ack = peer.migrate(Collections.singletonList(peer.build(part))).get(0);
+                if (ack.isStarted()) {
+                    return;
+                }
+                if (!ack.isAnswered()) {
+                    LOG.error("unknown if " + part + " started on " + host + ":" + port + ", not starting it here");
+                    return;
+                }
+                LOG.warn("send " + part + " to " + host + ":" + port + " failed, starting it here");
+            } catch (IOException e) {
+                LOG.warn("send " + part + " to " + host + ":" + port + " failed, starting it here", e);
+            }
+        }
+        manager.startProcess(part);
+    }
+
+    /**
+     * Ask a busy manager for a part of one of its processes
+     *
+     * @param host the host of the busy manager
+     * @param port the port of the busy manager
+     * @return <code>true</code> if a part is on its way
+     * @throws IOException if the manager can't be reached
+     */
+    public boolean steal(String host, int port) throws IOException {
+        boolean granted = manager.getPeer(host, port).request(MigrationSession.STEAL,
+                encodeNode(), MigrationThrottle.Lane.URGENT);
+        if (granted) {
+            synchronized (this) {
+                stolen++;
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Answer a steal request by splitting the process with the most
+     * input left, and sending the part to the idle manager in the
+     * background
+     *
+     * @param body the <code>STEAL</code> message
+     * @return <code>true</code> if a part is on its way
+     * @throws IOException if the message is malformed
+     */
+    public boolean offer(byte[] body) throws IOException {
+        final String node = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+        final int colon = node.lastIndexOf(':');
+        if (colon <= 0 || manager.isDraining()) {
+            return false;
+        }
+        MigratableProcess largest = null;
+        long remaining = 0;
+        for (MigratableProcess process : manager.getProcesses()) {
+            if (process instanceof SplittableProcess &&
+                    ((SplittableProcess) process).getRemaining() > remaining) {
+                largest = process;
+                remaining = ((SplittableProcess) process).getRemaining();
+            }
+        }
+        if (largest == null) {
+            return false;
+        }
+        final MigratableProcess part;
+        try {
+            part = split(largest);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (part == null) {
+            return false;
+        }
+        synchronized (this) {
+            offered++;
+        }
+        sender.execute(new Runnable() {
+            public void run() {
+                try {
+                    send(part, node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+                } catch (NumberFormatException e) {
+                    LOG.warn("bad node " + node);
+                    manager.startProcess(part);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Report a finished or failed process to the coordinator of its
+     * parts, if it was split or split off
+     *
+     * @param process the finished process
+     */
+    public void finished(final MigratableProcess process) {
+        if (process.splitCoordinator == null || !(process instanceof SplittableProcess)) {
+            return;
+        }
+        final String coordinator = process.splitCoordinator;
+        if (process.failed) {
+            LOG.error(process + " failed, the merge of its outputs is aborted");
+        }
+        if (coordinator.equals(manager.getBalancer().getNode())) {
+            try {
+                merge(encodeReport(process, null));
+            } catch (IOException e) {
+                LOG.error("merge " + process + " error", e);
+            }
+            return;
+        }
+        sender.execute(new Runnable() {
+            public void run() {
+                int colon = coordinator.lastIndexOf(':');
+                File output = ((SplittableProcess) process).getOutput().GetTargetFile();
+                try {
+                    PeerConnection peer = manager.getPeer(coordinator.substring(0, colon),
+                            Integer.parseInt(coordinator.substring(colon + 1)));
+                    FileManifest manifest = null;
+                    if (!process.failed && Configuration.getBoolean("migration.files", false)) {
+                        manifest = FileManifest.build(output, FileShipment.CHUNK_SIZE);
+                        peer.shipFile(output, manifest);
+                    }
+                    boolean recorded = peer.request(MigrationSession.MERGE, encodeReport(process, manifest),
+                            MigrationThrottle.Lane.URGENT);
+                    if (recorded && manifest != null && process.splitParent != null && !output.delete()) {
+                        LOG.warn("delete shipped part " + output + " failed");
+                    }
+                } catch (IOException e) {
+                    LOG.error("report finished part to " + coordinator + " failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Encode the report of a finished part, the body of a
+     * <code>MERGE</code> message
+     *
+     * @param process  the finished process
+     * @param manifest the manifest of its shipped output, or
+     *                 <code>null</code> if the output is on shared
+     *                 storage
+     */
+    private static byte[] encodeReport(MigratableProcess process, FileManifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(((SplittableProcess) process).getOutput().GetTargetFile().getPath());
+        out.writeLong(((SplittableProcess) process).getOutput().getOffset());
+        out.writeUTF(process.splitParent == null ? "" : process.splitParent);
+        out.writeInt(process.splitIndex);
+        out.writeInt(process.splitCount);
+        out.writeBoolean(process.failed);
+        out.writeBoolean(manifest != null);
+        if (manifest != null) {
+            out.writeLong(manifest.getLength());
+            out.writeInt(manifest.getChunkSize());
+            out.writeInt(manifest.getHashes().length);
+            for (String hash : manifest.getHashes()) {
+                out.writeUTF(hash);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Record a finished part, and merge the outputs of every part
+     * which is complete with it. A failed part aborts the merge of
+     * the parts it belongs to once they all reported.
+     *
+     * @param body the <code>MERGE</code> message
+     * @return <code>true</code> if the report was recorded
+     * @throws IOException if the message is malformed, the shipped
+     *                     output can't be joined, or the outputs can't
+     *                     be merged
+     */
+    public synchronized boolean merge(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String path = in.readUTF();
+        long length = in.readLong();
+        String parent = in.readUTF();
+        int index = in.readInt();
+        int count = in.readInt();
+        boolean failed = in.readBoolean();
+        FileManifest manifest = null;
+        if (in.readBoolean()) {
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            int chunks = in.readInt();
+            if (chunks < 0 || chunks > body.length) {
+                throw new IOException("bad merge report of " + path);
+            }
+            String[] hashes = new String[chunks];
+            for (int i = 0; i < chunks; i++) {
+                hashes[i] = in.readUTF();
+            }
+            manifest = new FileManifest(path, size, chunkSize, hashes);
+        }
+        if (length < 0 || count < 0 || index < 0) {
+            throw new IOException("bad merge report of " + path);
+        }
+        File source = manifest != null ? manager.getFileCache().resolve(manifest) : new File(path);
+        Part part = getPart(path);
+        part.length = length;
+        part.count = count;
+        part.source = source;
+        part.finished = true;
+        if (failed) {
+            part.failed = true;
+        } else if (source.length() < length) {
+            LOG.error("part " + path + " is missing or shorter than " + length + "B, parts which finish on " +
+                    "other hosts need shared storage or migration.files, the merge is aborted");
+            part.failed = true;
+        }
+        if (parent.length() > 0) {
+            part.parent = getPart(parent);
+            part.parent.children.put(index, part);
+        }
+        while (part != null && part.isComplete()) {
+            if (part.failed) {
+                part.merged = true;
+                if (part.parent != null) {
+                    part.parent.failed = true;
+                }
+            } else {
+                append(part);
+            }
+            parts.remove(part.file.getPath());
+            if (part.parent == null) {
+                if (part.failed) {
+                    aborted.add(part.file.getPath());
+                    LOG.error("the merge of the parts of " + part.file + " is aborted, a part failed, " +
+                            "the part files are kept");
+                } else {
+                    merged++;
+                    LOG.info("merged the parts of " + part.file);
+                }
+            }
+            part = part.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Cut the output of a part to its own length, then append the
+     * outputs of the parts split off it in input order
+     */
+    private static void append(Part part) throws IOException {
+        if (!part.source.equals(part.file)) {
+            Files.copy(part.source.toPath(), part.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        RandomAccessFile output = new RandomAccessFile(part.file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            channel.truncate(part.length);
+            long position = part.length;
+            for (Part child : part.children.descendingMap().values()) {
+                FileInputStream input = new FileInputStream(child.source);
+                try {
+                    FileChannel source = input.getChannel();
+                    long done = 0;
+                    while (done < child.length) {
+                        long n = channel.transferFrom(source, position + done, child.length - done);
+                        if (n <= 0) {
+                            throw new IOException("part " + child.file + " is shorter than " + child.length);
+                        }
+                        done += n;
+                    }
+                    position += done;
+                } finally {
+                    input.close();
+                }
+                if (child.file.exists() && !child.file.delete()) {
+                    LOG.warn("delete part " + child.file + " failed");
+                }
+            }
+            part.length = position;
+        } finally {
+            output.close();
+        }
+        part.merged = true;
+    }
+
+    /**
+     * Get or create the merge state of an output
+     */
+    private Part getPart(String path) {
+        Part part = parts.get(path);
+        if (part == null) {
+            part = new Part(new File(path));
+            parts.put(path, part);
+        }
+        return part;
+    }
+
+    /**
+     * Encode the node name of this manager, the body of a steal request
+     */
+    private byte[] encodeNode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(manager.getBalancer().getNode());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Stop sending parts and reports
+     */
+    public void stop() {
+        sender.shutdownNow();
+    }
+
+    /**
+     * Get the outputs whose merge was aborted by a failed part
+     *
+     * @return the output paths
+     */
+    public synchronized List<String> getAborted() {
+        return new ArrayList<String>(aborted);
+    }
+
+    /**
+     * Print the split counters, the remaining input of each splittable
+     * process, and the outputs waiting for their parts.
+     */
+    public synchronized void printStatus() {
+        System.out.println("Splits: split=" + splits + " for peers=" + offered + " stolen=" + stolen +
+                " merged=" + merged + " aborted=" + aborted.size() + " min=" + minimum + "B");
+        for (MigratableProcess process : manager.getProcesses()) {
+            if (process instanceof SplittableProcess) {
+                System.out.println(process.getClass().getSimpleName() + "[" + process.getId() + "]: remaining=" +
+                        ((SplittableProcess) process).getRemaining() + "B parts=" + process.splitCount);
+            }
+        }
+        for (Part part : parts.values()) {
+            if (part.parent == null) {
+                System.out.println(part.file + ": waiting for " + part.describe());
+            }
+        }
+        for (String path : aborted) {
+            System.out.println(path + ": aborted, a part failed");
+        }
+    }
+
+    /**
+     * Merge state of the output of one part
+     */
+    private static class Part {
+        final File file;
+
+        /**
+         * Where the output is read, the file itself, or the joined
+         * file in the file cache if it was shipped
+         */
+        File source;
+        boolean finished;
+        boolean failed;
+        boolean merged;
+        long length;
+        int count;
+        Part parent;
+
+        /**
+         * The parts split off this one, by index
+         */
+        final TreeMap<Integer, Part> children = new TreeMap<Integer, Part>();
+
+        Part(File file) {
+            this.file = file;
+        }
+
+        boolean isComplete() {
+            if (!finished || merged || children.size() < count) {
+                return false;
+            }
+            for (Part child : children.values()) {
+                if (!child.merged) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String describe() {
+            if (!finished) {
+                return "the process";
+            }
+            int done = 0;
+            for (Part child : children.values()) {
+                done += child.merged ? 1 : 0;
+            }
+            return (count - done) + " of " + count + " parts";
+        }
+    }
+}
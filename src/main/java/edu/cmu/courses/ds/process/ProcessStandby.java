@@ -0,0 +1,398 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.codec.ContextObjectInputStream;
+import edu.cmu.courses.ds.io.FileShipment;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The standby side of warm-standby replication
+ * The replicas streamed by <code>ProcessReplicator</code> of other
+ * managers are kept in memory, each as the chunk list of its last
+ * snapshot and the content of those chunks. A watcher checks every
+ * quarter of <code>replication.timeout</code> when each source was
+ * last heard of. Once a source was silent for longer than the timeout,
+ * its replicas are deserialized and restarted here like migrated
+ * processes, and later messages of the source are refused, which
+ * tells a source that was only cut off to stop its own copies.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessReplicator
+ */
+public class ProcessStandby implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ProcessStandby.class);
+
+    /**
+     * The process manager which restarts the replicas
+     */
+    private ProcessManager manager;
+
+    /**
+     * Silence in milliseconds after which a source is taken over
+     */
+    private long timeout;
+
+    /**
+     * The sources by node name
+     */
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    /**
+     * Number of taken over sources and processes
+     */
+    private long failovers;
+    private long restarted;
+
+    /**
+     * Time from the detection of the last failover until its processes
+     * ran again, and the silence of the source until then, in
+     * milliseconds
+     */
+    private long failoverTime = -1;
+    private long downTime = -1;
+
+    /**
+     * The watcher thread, started with the first replica
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor of <code>ProcessStandby</code>, read the timeout from
+     * <code>Configuration</code>.
+     *
+     * @param manager the process manager
+     */
+    public ProcessStandby(ProcessManager manager) {
+        this.manager = manager;
+        this.timeout = Math.max(1, Configuration.getLong("replication.timeout", 600));
+    }
+
+    /**
+     * Store the snapshot of a replica
+     *
+     * @param body   the <code>REPLICA</code> message
+     * @param loader the class loader of the session it came on, which
+     *               resolves the classes of shipped jobs
+     * @return <code>false</code> if the source was taken over, or a
+     *         chunk the message refers to is missing
+     * @throws IOException if the message is malformed
+     */
+    public boolean replica(byte[] body, ClassLoader loader) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String node = in.readUTF();
+        long id = in.readLong();
+        String name = in.readUTF();
+        int count = in.readInt();
+        if (count < 0 || count > body.length) {
+            throw new IOException("bad chunk count " + count);
+        }
+        String[] hashes = new String[count];
+        int[] lengths = new int[count];
+        byte[][] data = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = in.readUTF();
+            lengths[i] = in.readInt();
+            if (lengths[i] < 0 || lengths[i] > body.length) {
+                throw new IOException("bad chunk length " + lengths[i]);
+            }
+            if (in.readBoolean()) {
+                data[i] = new byte[lengths[i]];
+                in.readFully(data[i]);
+            }
+        }
+        synchronized (this) {
+            Source source = getSource(node);
+            if (source.failed) {
+                return false;
+            }
+            source.lastSeen = System.currentTimeMillis();
+            Replica previous = source.replicas.get(id);
+            Replica replica = new Replica(name, hashes, lengths, loader);
+            for (int i = 0; i < count; i++) {
+                byte[] chunk = data[i];
+                if (chunk == null) {
+                    chunk = replica.chunks.get(hashes[i]);
+                }
+                if (chunk == null && previous != null) {
+                    chunk = previous.chunks.get(hashes[i]);
+                }
+                if (chunk == null || chunk.length != lengths[i]) {
+                    return false;
+                }
+                replica.chunks.put(hashes[i], chunk);
+            }
+            source.replicas.put(id, replica);
+        }
+        start();
+        return true;
+    }
+
+    /**
+     * Drop a replica
+     *
+     * @param body the <code>RELEASE</code> message
+     * @return <code>false</code> if the source was taken over
+     * @throws IOException if the message is malformed
+     */
+    public synchronized boolean release(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Source source = getSource(in.readUTF());
+        long id = in.readLong();
+        if (source.failed) {
+            return false;
+        }
+        source.lastSeen = System.currentTimeMillis();
+        source.replicas.remove(id);
+        return true;
+    }
+
+    /**
+     * Record a heartbeat of a source
+     *
+     * @param body the <code>HEARTBEAT</code> message
+     * @return <code>false</code> if the source was taken over
+     * @throws IOException if the message is malformed
+     */
+    public synchronized boolean heartbeat(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Source source = getSource(in.readUTF());
+        if (source.failed) {
+            return false;
+        }
+        source.lastSeen = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Get or create the state of a source
+     */
+    private Source getSource(String node) {
+        Source source = sources.get(node);
+        if (source == null) {
+            source = new Source();
+            source.lastSeen = System.currentTimeMillis();
+            sources.put(node, source);
+        }
+        return source;
+    }
+
+    /**
+     * Start the watcher
+     */
+    private synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "standby");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, timeout / 4);
+        scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the watcher, no source is taken over any more
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * The implementation of <code>Runnable</code> interface.
+     * Take over every source with replicas which was silent for longer
+     * than the timeout.
+     */
+    public void run() {
+        List<String> silent = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Map.Entry<String, Source> entry : sources.entrySet()) {
+                Source source = entry.getValue();
+                if (!source.failed && !source.replicas.isEmpty() && now - source.lastSeen > timeout) {
+                    silent.add(entry.getKey());
+                }
+            }
+        }
+        for (String node : silent) {
+            takeOver(node);
+        }
+    }
+
+    /**
+     * Restart the replicas of a source from their last snapshots
+     *
+     * @param node the node name of the source
+     * @return the number of restarted processes
+     */
+    public int takeOver(String node) {
+        long start = System.currentTimeMillis();
+        List<Replica> taken;
+        long lastSeen;
+        synchronized (this) {
+            Source source = sources.get(node);
+            if (source == null || source.failed) {
+                return 0;
+            }
+            source.failed = true;
+            lastSeen = source.lastSeen;
+            taken = new ArrayList<Replica>(source.replicas.values());
+            source.replicas.clear();
+        }
+        LOG.warn("source " + node + " silent for " + (start - lastSeen) + "ms, taking over " +
+                taken.size() + " processes");
+        int count = 0;
+        for (Replica replica : taken) {
+            try {
+                MigratableProcess process = replica.restore(manager.getFileCache());
+                process.migrated();
+                manager.startProcess(process);
+                count++;
+            } catch (IOException e) {
+                LOG.error("restore replica " + replica.name + " of " + node + " error", e);
+            } catch (ClassNotFoundException e) {
+                LOG.error("replica " + replica.name + " of " + node + " has unknown class", e);
+            }
+        }
+        long end = System.currentTimeMillis();
+        synchronized (this) {
+            failovers++;
+            restarted += count;
+            failoverTime = end - start;
+            downTime = end - lastSeen;
+        }
+        return count;
+    }
+
+    /**
+     * Get the time of the last failover
+     *
+     * @return milliseconds from the detection until the processes ran
+     *         again, -1 if there was no failover
+     */
+    public synchronized long getFailoverTime() {
+        return failoverTime;
+    }
+
+    /**
+     * Get the downtime of the last failover
+     *
+     * @return milliseconds from the last message of the source until
+     *         its processes ran again here, -1 if there was no failover
+     */
+    public synchronized long getDownTime() {
+        return downTime;
+    }
+
+    /**
+     * Print the replicas held for each source, and the failovers.
+     */
+    public synchronized void printStatus() {
+        long now = System.currentTimeMillis();
+        System.out.println("Standby: timeout=" + timeout + "ms failovers=" + failovers +
+                " restarted=" + restarted +
+                (failoverTime < 0 ? "" : " last failover=" + failoverTime + "ms down=" + downTime + "ms"));
+        for (Map.Entry<String, Source> entry : sources.entrySet()) {
+            Source source = entry.getValue();
+            if (source.failed) {
+                System.out.println(entry.getKey() + ": taken over");
+                continue;
+            }
+            for (Replica replica : source.replicas.values()) {
+                System.out.println(entry.getKey() + " " + replica.name + ": size=" + replica.size + "B" +
+                        " age=" + (now - replica.time) + "ms");
+            }
+        }
+    }
+
+    /**
+     * Replication state of one source
+     */
+    private static class Source {
+        long lastSeen;
+        boolean failed;
+        Map<Long, Replica> replicas = new HashMap<Long, Replica>();
+    }
+
+    /**
+     * The last snapshot of one process
+     */
+    private static class Replica {
+        final String name;
+        final String[] hashes;
+        final ClassLoader loader;
+        final Map<String, byte[]> chunks = new HashMap<String, byte[]>();
+        final long time = System.currentTimeMillis();
+        final int size;
+
+        Replica(String name, String[] hashes, int[] lengths, ClassLoader loader) {
+            this.name = name;
+            this.hashes = hashes;
+            this.loader = loader;
+            int total = 0;
+            for (int length : lengths) {
+                total += length;
+            }
+            this.size = total;
+        }
+
+        /**
+         * Reassemble and deserialize the snapshot, resolving classes
+         * with the loader of the session it came on
+         *
+         * @param files the file cache which resolves shipped files
+         */
+        MigratableProcess restore(FileCache files) throws IOException, ClassNotFoundException {
+            byte[] data = new byte[size];
+            int offset = 0;
+            for (String hash : hashes) {
+                byte[] chunk = chunks.get(hash);
+                System.arraycopy(chunk, 0, data, offset, chunk.length);
+                offset += chunk.length;
+            }
+            Thread thread = Thread.currentThread();
+            ClassLoader previous = thread.getContextClassLoader();
+            if (loader != null) {
+                thread.setContextClassLoader(loader);
+            }
+            FileShipment.beginResolve(files);
+            try {
+                ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(data));
+                Object object = in.readObject();
+                if (!(object instanceof MigratableProcess)) {
+                    throw new IOException("replica is not a process");
+                }
+                return (MigratableProcess) object;
+            } finally {
+                FileShipment.endResolve();
+                thread.setContextClassLoader(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.IOCounters;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sample of the metrics of the processes of a manager
+ * The metrics are read twice, an interval apart, and the rates are the
+ * differences over the interval. Processes which started during the
+ * interval count from zero, processes which left it are not shown.
+ * The node totals add the rates of the listed processes, and the
+ * transactional I/O of every process running on the manager.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessMetrics
+ */
+public class ProcessStats {
+    /**
+     * The sampled processes, by CPU rate
+     */
+    final List<Row> rows = new ArrayList<Row>();
+
+    /**
+     * The sampling interval in seconds
+     */
+    final double seconds;
+
+    /**
+     * The node totals: rates of the processes and of the manager's
+     * transactional I/O, and the system load average
+     */
+    double cpu;
+    double readRate;
+    double writeRate;
+    double callRate;
+    double nodeReadRate;
+    double nodeWriteRate;
+    final double load;
+
+    /**
+     * The rates and totals of one process
+     */
+    static class Row {
+        final MigratableProcess process;
+        double cpu;
+        double readRate;
+        double writeRate;
+        double callRate;
+        long cpuTime;
+        long wallTime;
+        long bytesRead;
+        long bytesWritten;
+        long calls;
+        long suspends;
+        long pauses;
+        long migrations;
+
+        Row(MigratableProcess process) {
+            this.process = process;
+        }
+    }
+
+    private ProcessStats(double seconds) {
+        this.seconds = seconds;
+        this.load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    /**
+     * Sample the processes of a manager
+     *
+     * @param manager the manager
+     * @param millis  the interval in milliseconds
+     * @return the sample
+     * @throws InterruptedException if the sampling thread is
+     *                              interrupted
+     */
+    public static ProcessStats sample(ProcessManager manager, long millis) throws InterruptedException {
+        Map<MigratableProcess, long[]> before = new LinkedHashMap<MigratableProcess, long[]>();
+        for (MigratableProcess process : manager.getProcesses()) {
+            before.put(process, read(process));
+        }
+        IOCounters node = manager.getIO();
+        long nodeRead = node.getBytesRead();
+        long nodeWritten = node.getBytesWritten();
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        ProcessStats stats = new ProcessStats(Math.max(1, System.nanoTime() - start) / 1e9);
+        stats.nodeReadRate = (node.getBytesRead() - nodeRead) / stats.seconds;
+        stats.nodeWriteRate = (node.getBytesWritten() - nodeWritten) / stats.seconds;
+        for (MigratableProcess process : manager.getProcesses()) {
+            long[] now = read(process);
+            long[] then = before.get(process);
+            if (then == null) {
+                then = new long[now.length];
+            }
+            Row row = new Row(process);
+            row.cpuTime = now[0];
+            row.wallTime = now[1];
+            row.bytesRead = now[2];
+            row.bytesWritten = now[3];
+            row.calls = now[4];
+            row.suspends = now[5];
+            row.migrations = now[6];
+            row.pauses = now[7];
+            row.cpu = (now[0] - then[0]) / 1e9 / stats.seconds;
+            row.readRate = (now[2] - then[2]) / stats.seconds;
+            row.writeRate = (now[3] - then[3]) / stats.seconds;
+            row.callRate = (now[4] - then[4]) / stats.seconds;
+            stats.cpu += row.cpu;
+            stats.readRate += row.readRate;
+            stats.writeRate += row.writeRate;
+            stats.callRate += row.callRate;
+            stats.rows.add(row);
+        }
+        Collections.sort(stats.rows, new Comparator<Row>() {
+            public int compare(Row a, Row b) {
+                return Double.compare(b.cpu, a.cpu);
+            }
+        });
+        return stats;
+    }
+
+    private static long[] read(MigratableProcess process) {
+        ProcessMetrics metrics = process.getMetrics();
+        IOCounters io = metrics.getIO();
+        return new long[]{metrics.getCpuTime(), metrics.getWallTime(), io.getBytesRead(),
+                io.getBytesWritten(), io.getCalls(), metrics.getSuspendCount(), metrics.getMigrationCount(),
+                metrics.getPauseCount()};
+    }
+
+    /**
+     * Print the sample as a table, one process per line, and the node
+     * totals
+     */
+    public void print() {
+        System.out.println(String.format("%-24s %6s %9s %9s %9s %8s %8s %9s %9s %5s %5s %4s",
+                "PROCESS", "CPU%", "READ/s", "WRITE/s", "CALLS/s", "CPU", "WALL", "READ", "WRITTEN", "SUSP", "PAUSE",
+                "MIG"));
+        for (Row row : rows) {
+            String name = row.process.getClass().getSimpleName() + "[" + row.process.getId() + "]";
+            System.out.println(String.format("%-24s %6.1f %9s %9s %9.0f %7.1fs %7.1fs %9s %9s %5d %5d %4d",
+                    name, row.cpu * 100, formatBytes(row.readRate), formatBytes(row.writeRate), row.callRate,
+                    row.cpuTime / 1e9, row.wallTime / 1e9, formatBytes(row.bytesRead),
+                    formatBytes(row.bytesWritten), row.suspends, row.pauses, row.migrations));
+        }
+        System.out.println(String.format(
+                "node: processes=%d cpu=%.1f%% read=%s/s write=%s/s calls=%.0f/s, all streams read=%s/s write=%s/s, load=%.2f",
+                rows.size(), cpu * 100, formatBytes(readRate), formatBytes(writeRate), callRate,
+                formatBytes(nodeReadRate), formatBytes(nodeWriteRate), load));
+    }
+
+    /**
+     * Format a byte count with a K, M or G suffix
+     */
+    static String formatBytes(double bytes) {
+        if (bytes >= 1024 * 1024 * 1024) {
+            return String.format("%.1fG", bytes / (1024 * 1024 * 1024));
+        } else if (bytes >= 1024 * 1024) {
+            return String.format("%.1fM", bytes / (1024 * 1024));
+        } else if (bytes >= 1024) {
+            return String.format("%.1fK", bytes / 1024);
+        }
+        return String.format("%.0f", bytes);
+    }
+}
@@ -0,0 +1,523 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.FileShipment;
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.io.TransactionalLineReader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The node-local cache of process results
+ * A process started by name is identified by its class, its arguments
+ * and the content of its input files, where arguments naming one of
+ * its input or output files count as that input or output, not as the
+ * path. The inputs and outputs are the transactional streams the
+ * fields of the process hold, whatever type the fields are declared
+ * with, and the streams under a <code>TransactionalLineReader</code>.
+ * A process with an argument naming an existing file which is none of
+ * them is not cached, since it may read that file some other way. The
+ * content is the manifest ID of the file, which
+ * <code>FileShipment</code> keeps by path, length and modification
+ * time, so unchanged inputs are not read again. A file modified within
+ * the time step of its file system before it was hashed is hashed
+ * again each time, so a rewrite of the same length within that step
+ * doesn't hit the results of the old content. If a process of the
+ * same key finished before, its outputs are materialized from the
+ * cache instead of running it: hard linked when
+ * <code>results.cache.link</code> is set, which makes the outputs
+ * read-only, or copied. A process which runs copies its outputs which
+ * are such links first, and a <code>TransactionalFileOutputStream</code>
+ * never writes through a link either, even when the read-only mode
+ * doesn't stop it.
+ *
+ * A process which finished without error stores the bytes it wrote to
+ * each output under <code>results.cache.dir</code>. Only processes whose
+ * streams all start at offset 0 are cached, and processes which were
+ * split are not. Entries are touched whenever they are used, and when
+ * the cache grows beyond <code>results.cache.max</code> bytes the least
+ * recently used ones are deleted. The cache belongs to one manager.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessManager#startProcess(String, String[])
+ * @see edu.cmu.courses.ds.io.FileShipment#manifest(File)
+ */
+public class ResultCache {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://logging.apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ResultCache.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Valid keys
+     */
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * Suffix of entries which are being written
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The entry directory, one sub-directory per key
+     */
+    private File directory;
+
+    /**
+     * The cache size limit in bytes
+     */
+    private long maxBytes;
+
+    /**
+     * Link materialized outputs instead of copying them
+     */
+    private boolean link;
+
+    /**
+     * The cache size in bytes, -1 until it is counted
+     */
+    private long size = -1;
+
+    /**
+     * Counters of hits, misses and stored results
+     */
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong stored = new AtomicLong(0);
+
+    /**
+     * Constructor with the configured size limit
+     *
+     * @param directory the entry directory
+     */
+    ResultCache(File directory) {
+        this(directory, Configuration.getLong("results.cache.max", 1024L * 1024 * 1024),
+                Configuration.getBoolean("results.cache.link", true));
+    }
+
+    /**
+     * Constructor of <code>ResultCache</code>
+     *
+     * @param directory the entry directory
+     * @param maxBytes  the cache size limit in bytes
+     * @param link      link materialized outputs instead of copying them
+     */
+    ResultCache(File directory, long maxBytes, boolean link) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.link = link;
+    }
+
+    /**
+     * Get the key of a process which didn't start yet
+     *
+     * @param process the process object
+     * @return the key, <code>null</code> if the process has no output,
+     *         a stream which doesn't start at offset 0, or an input
+     *         which can't be identified
+     * @throws IOException if an input file can't be read
+     */
+    public String key(MigratableProcess process) throws IOException {
+        List<TransactionalFileInputStream> inputs = new ArrayList<TransactionalFileInputStream>();
+        List<TransactionalFileOutputStream> outputs = new ArrayList<TransactionalFileOutputStream>();
+        if (!streams(process, inputs, outputs) || outputs.isEmpty()) {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        digest.update(process.getClass().getName().getBytes(UTF8));
+        for (String argument : process.arguments) {
+            String value = argument;
+            for (int i = 0; i < inputs.size(); i++) {
+                if (new File(argument).equals(inputs.get(i).getSourceFile())) {
+                    value = "\0input" + i;
+                }
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                if (new File(argument).equals(outputs.get(i).GetTargetFile())) {
+                    value = "\0output" + i;
+                }
+            }
+            if (value == argument && new File(argument).exists()) {
+                LOG.debug(process + ": argument " + argument + " is a file but no stream, not cached");
+                return null;
+            }
+            digest.update((byte) 0);
+            digest.update(value.getBytes(UTF8));
+        }
+        for (TransactionalFileInputStream input : inputs) {
+            if (input.getOffset() != 0 || input.getLimit() >= 0) {
+                return null;
+            }
+            digest.update((byte) 0);
+            digest.update(FileShipment.manifest(input.getSourceFile()).getId().getBytes(UTF8));
+        }
+        for (TransactionalFileOutputStream output : outputs) {
+            if (output.getOffset() != 0) {
+                return null;
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Write the cached outputs of a key to the outputs of a process
+     *
+     * @param key     the key of the process
+     * @param process the process object, which is not started
+     * @return <code>true</code> on a hit, when the outputs are written
+     */
+    public boolean materialize(String key, MigratableProcess process) {
+        File entry = new File(directory, key);
+        if (!KEY.matcher(key).matches() || !entry.isDirectory()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        List<TransactionalFileOutputStream> outputs = new ArrayList<TransactionalFileOutputStream>();
+        streams(process, new ArrayList<TransactionalFileInputStream>(), outputs);
+        try {
+            for (int i = 0; i < outputs.size(); i++) {
+                File cached = new File(entry, Integer.toString(i));
+                File target = outputs.get(i).GetTargetFile();
+                if (!cached.isFile()) {
+                    throw new IOException("result " + cached + " is missing");
+                }
+                Files.deleteIfExists(target.toPath());
+                if (link) {
+                    try {
+                        Files.createLink(target.toPath(), cached.toPath());
+                        continue;
+                    } catch (IOException e) {
+                        LOG.debug("link " + cached + " to " + target + " failed, copying", e);
+                    } catch (UnsupportedOperationException e) {
+                        LOG.debug("links are not supported, copying", e);
+                    }
+                }
+                Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (!target.setWritable(true)) {
+                    LOG.warn("can't make " + target + " writable");
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("materialize result " + key + " failed", e);
+            misses.incrementAndGet();
+            return false;
+        }
+        touch(entry);
+        hits.incrementAndGet();
+        LOG.info(process + ": outputs from result " + key);
+        return true;
+    }
+
+    /**
+     * Replace the outputs of a process which were linked to the cache
+     * by writable copies, so the process can write them without
+     * changing the cached results
+     *
+     * @param process the process object, which is not started
+     * @throws IOException if an output can't be copied
+     */
+    public void unlink(MigratableProcess process) throws IOException {
+        List<TransactionalFileOutputStream> outputs = new ArrayList<TransactionalFileOutputStream>();
+        streams(process, new ArrayList<TransactionalFileInputStream>(), outputs);
+        for (TransactionalFileOutputStream output : outputs) {
+            File target = output.GetTargetFile();
+            if (!TransactionalFileOutputStream.breakLink(target) && target.isFile() && !target.canWrite() &&
+                    !target.setWritable(true)) {
+                throw new IOException("can't make " + target + " writable");
+            }
+        }
+    }
+
+    /**
+     * Store the outputs of a process which finished without error
+     *
+     * @param key     the key the process got before it started
+     * @param process the process object
+     */
+    public void store(String key, MigratableProcess process) {
+        File entry = new File(directory, key);
+        if (!KEY.matcher(key).matches() || entry.isDirectory()) {
+            return;
+        }
+        List<TransactionalFileOutputStream> outputs = new ArrayList<TransactionalFileOutputStream>();
+        streams(process, new ArrayList<TransactionalFileInputStream>(), outputs);
+        File temp = new File(directory, key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        long bytes = 0;
+        try {
+            if (!temp.isDirectory() && !temp.mkdirs()) {
+                throw new IOException("create " + temp + " failed");
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                bytes += copy(outputs.get(i).GetTargetFile(), outputs.get(i).getOffset(),
+                        new File(temp, Integer.toString(i)));
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("store result of " + process + " failed", e);
+            delete(temp);
+            return;
+        }
+        stored.incrementAndGet();
+        grow(bytes);
+    }
+
+    /**
+     * Copy the first bytes of an output into a read-only cache file
+     *
+     * @return the number of bytes copied
+     */
+    private static long copy(File source, long length, File target) throws IOException {
+        FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            try {
+                long position = 0;
+                while (position < length) {
+                    long n = in.transferTo(position, length - position, out);
+                    if (n <= 0) {
+                        throw new IOException(source + " is shorter than " + length);
+                    }
+                    position += n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!target.setReadOnly()) {
+            LOG.warn("can't make " + target + " read-only");
+        }
+        return length;
+    }
+
+    /**
+     * Collect the transactional streams of a process, from the fields
+     * of its superclasses down to its own, each class in field name
+     * order. A field counts by the value it holds, like in
+     * <code>MigratableProcess.countStreams()</code>.
+     *
+     * @return <code>false</code> if a line reader has read ahead, so
+     *         the offset of its stream isn't where the process is
+     */
+    private static boolean streams(MigratableProcess process, List<TransactionalFileInputStream> inputs,
+                                   List<TransactionalFileOutputStream> outputs) {
+        boolean known = true;
+        LinkedList<Class<?>> classes = new LinkedList<Class<?>>();
+        for (Class<?> c = process.getClass(); c != MigratableProcess.class; c = c.getSuperclass()) {
+            classes.addFirst(c);
+        }
+        for (Class<?> c : classes) {
+            Field[] fields = c.getDeclaredFields();
+            Arrays.sort(fields, new Comparator<Field>() {
+                public int compare(Field a, Field b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            for (Field field : fields) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    Object value = field.get(process);
+                    if (value instanceof TransactionalFileInputStream) {
+                        inputs.add((TransactionalFileInputStream) value);
+                    } else if (value instanceof TransactionalFileOutputStream) {
+                        outputs.add((TransactionalFileOutputStream) value);
+                    } else if (value instanceof TransactionalLineReader) {
+                        TransactionalLineReader reader = (TransactionalLineReader) value;
+                        inputs.add(reader.getInput());
+                        known &= reader.getBuffered() == 0;
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Delete every entry
+     *
+     * @return the number of deleted entries
+     */
+    public synchronized int clear() {
+        int count = 0;
+        for (File entry : list()) {
+            if (delete(entry)) {
+                count++;
+            }
+        }
+        size = -1;
+        return count;
+    }
+
+    /**
+     * Set the modification time of an entry to now
+     */
+    private static void touch(File entry) {
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("touch " + entry + " failed");
+        }
+    }
+
+    /**
+     * Count new bytes, and evict if the cache is too large
+     */
+    private synchronized void grow(long bytes) {
+        if (size < 0) {
+            size = 0;
+            for (File entry : list()) {
+                size += sizeOf(entry);
+            }
+        } else {
+            size += bytes;
+        }
+        if (size > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is down to
+     * 90% of its limit
+     */
+    private void evict() {
+        List<File> entries = list();
+        final long[] modified = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            modified[i] = entries.get(i).lastModified();
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < entries.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+        long target = maxBytes / 10 * 9;
+        for (int i : order) {
+            if (size <= target) {
+                break;
+            }
+            File entry = entries.get(i);
+            long length = sizeOf(entry);
+            if (delete(entry)) {
+                size -= length;
+                LOG.info("evicted result " + entry.getName());
+            }
+        }
+    }
+
+    /**
+     * List the entries
+     */
+    private List<File> list() {
+        List<File> entries = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (KEY.matcher(file.getName()).matches() && file.isDirectory()) {
+                    entries.add(file);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static long sizeOf(File entry) {
+        long total = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static boolean delete(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    LOG.warn("delete " + file + " failed");
+                }
+            }
+        }
+        return entry.delete();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the number of processes whose outputs came from the cache
+     *
+     * @return the count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the cache size
+     *
+     * @return the size of the entries in bytes
+     */
+    public synchronized long getSize() {
+        grow(0);
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "result cache " + directory + " entries=" + list().size() + " size=" + getSize() + "/" +
+                maxBytes + "B hits=" + hits.get() + " misses=" + misses.get() + " stored=" + stored.get();
+    }
+}
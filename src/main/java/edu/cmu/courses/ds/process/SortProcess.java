@@ -20,14 +20,17 @@ import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
  * Sort characters in each line of a file.
  * This process demonstrates the flexibility of our framework,
  * to stop any at any specific point in a loop and migrate.
+ * The rest of the lines can be split off to another process, see
+ * <code>SplittableProcess</code>.
  * 
  * @author Jian Fang(jianf)
  * @author Fangyu Gao(fangyug)
  * @see edu.cmu.courses.ds.process.MigratableProcess
+ * @see edu.cmu.courses.ds.process.SplittableProcess
  * @see edu.cmu.courses.ds.io.TransactionalFileInputStream
  * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream
  */
-public class SortProcess extends MigratableProcess{
+public class SortProcess extends MigratableProcess implements SplittableProcess{
 
 	/**
 	 * Which step is the process in.
@@ -67,6 +70,63 @@ public class SortProcess extends MigratableProcess{
         step = 0;
         line = "";
 	}
+
+    /**
+     * Constructor of a part split off another sort process
+     *
+     * @param input  the input range of the part
+     * @param output the part file
+     */
+    private SortProcess(TransactionalFileInputStream input, File output) {
+        super(new String[]{input.getSourceFile().getPath(), output.getPath()});
+        inputStream = input;
+        outputStream = new TransactionalFileOutputStream(output);
+        step = 0;
+        line = "";
+    }
+
+    /**
+     * Get the size of the input which is left to sort
+     *
+     * @return the number of bytes
+     */
+    public long getRemaining() {
+        return inputStream == null ? 0 : inputStream.getRemaining();
+    }
+
+    /**
+     * Get the output stream of the sorted lines
+     *
+     * @return the output stream
+     */
+    public TransactionalFileOutputStream getOutput() {
+        return outputStream;
+    }
+
+    /**
+     * Split off the second half of the remaining lines. The split
+     * point moves on to the next line start, so no line is cut in two.
+     *
+     * @param output the part file the new process writes to
+     * @return the new process, <code>null</code> if the rest is a
+     *         single line
+     * @throws IOException if the input can't be read
+     */
+    public MigratableProcess split(File output) throws IOException {
+        if (inputStream == null) {
+            return null;
+        }
+        long offset = inputStream.getOffset();
+        long end = offset + inputStream.getRemaining();
+        long point = inputStream.findLineStart(offset + (end - offset) / 2);
+        if (point <= offset || point >= end) {
+            return null;
+        }
+        SortProcess half = new SortProcess(
+                new TransactionalFileInputStream(inputStream.getSourceFile(), point, end), output);
+        inputStream.setLimit(point);
+        return half;
+    }
 	
 
     
@@ -0,0 +1,49 @@
+package edu.cmu.courses.ds.process;
+
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The interface of processes which can be split
+ * A splittable process divides the rest of its input into two ranges:
+ * it keeps the first one, and a new process of the same kind takes the
+ * second one and writes its output to a separate part file. The parts
+ * run anywhere, and once all of them finished,
+ * <code>ProcessSplitter</code> appends the part files to the output of
+ * the process in input order.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessSplitter
+ * @see edu.cmu.courses.ds.process.SortProcess
+ */
+public interface SplittableProcess {
+    /**
+     * Get the size of the input which is left to process
+     *
+     * @return the number of bytes
+     */
+    long getRemaining();
+
+    /**
+     * Get the output stream the process writes its output to
+     *
+     * @return the output stream
+     */
+    TransactionalFileOutputStream getOutput();
+
+    /**
+     * Split off the second half of the remaining input.
+     * The process is suspended while it is split. It stops at the split
+     * point afterwards, and the returned process, which is not started
+     * yet, continues from there to the end of the old range.
+     *
+     * @param output the part file the new process writes to
+     * @return the new process, <code>null</code> if the rest can't be
+     *         split
+     * @throws IOException if the input can't be read
+     */
+    MigratableProcess split(File output) throws IOException;
+}
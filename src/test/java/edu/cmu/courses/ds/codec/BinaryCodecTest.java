@@ -0,0 +1,189 @@
+package edu.cmu.courses.ds.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.process.MigratableProcess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Round trips of processes through the migration codecs
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.BinaryCodec
+ * @see edu.cmu.courses.ds.codec.JavaSerializationCodec
+ */
+public class BinaryCodecTest {
+    @Test
+    public void everyCodecRoundTripsEveryField() throws Exception {
+        for (MigrationCodec codec : MigrationCodecs.getAll()) {
+            FieldProcess process = new FieldProcess();
+            check(process, roundTrip(codec, process, null));
+            check(process, roundTrip(codec, process, new ClassTable()));
+        }
+    }
+
+    @Test
+    public void noConstructorRunsOnDecode() throws Exception {
+        FieldProcess process = new FieldProcess();
+        int constructed = FieldProcess.constructed;
+        roundTrip(new BinaryCodec(), process, null);
+        assertEquals(constructed, FieldProcess.constructed);
+    }
+
+    @Test
+    public void customSerializationMethodsRun() throws Exception {
+        HookProcess process = new HookProcess();
+        process.value = 41;
+        HookProcess copy = (HookProcess) roundTrip(new BinaryCodec(), process, new ClassTable());
+        assertEquals(42, copy.restored);
+        assertEquals(41, copy.value);
+    }
+
+    @Test
+    public void sharedValuesStayShared() throws Exception {
+        BinaryCodec codec = new BinaryCodec();
+        SharedProcess process = new SharedProcess();
+        process.first = new int[]{1, 2, 3};
+        process.second = process.first;
+        SharedProcess copy = (SharedProcess) roundTrip(codec, process, null);
+        assertSame(copy.first, copy.second);
+
+        process.second = null;
+        process.holder = new ArrayList<Object>(Arrays.asList(new Object[]{process.first}));
+        copy = (SharedProcess) roundTrip(codec, process, null);
+        assertSame(copy.first, copy.holder.get(0));
+
+        process.holder = new ArrayList<Object>(Arrays.asList(new Object[]{new int[]{1, 2, 3}}));
+        copy = (SharedProcess) roundTrip(codec, process, null);
+        assertNotSame(copy.first, copy.holder.get(0));
+        assertArrayEquals(copy.first, (int[]) copy.holder.get(0));
+    }
+
+    private static MigratableProcess roundTrip(MigrationCodec codec, MigratableProcess process,
+                                               ClassTable sender) throws Exception {
+        byte[] payload = MigrationCodecs.encode(codec, process, sender);
+        ClassTable receiver = null;
+        if (sender != null) {
+            receiver = new ClassTable();
+            for (ClassTable.Entry entry : sender.takeUnsent()) {
+                receiver.define(entry);
+            }
+        }
+        return MigrationCodecs.decode(codec.getId(), payload, receiver);
+    }
+
+    private static void check(FieldProcess expected, MigratableProcess decoded) {
+        assertTrue(decoded instanceof FieldProcess);
+        FieldProcess actual = (FieldProcess) decoded;
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.total, actual.total);
+        assertEquals(expected.flag, actual.flag);
+        assertEquals(expected.ratio, actual.ratio, 0.0);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.nothing, actual.nothing);
+        assertEquals(expected.file, actual.file);
+        assertEquals(expected.lines, actual.lines);
+        assertArrayEquals(expected.bytes, actual.bytes);
+        assertArrayEquals(expected.chars, actual.chars);
+        assertArrayEquals(expected.ints, actual.ints);
+        assertArrayEquals(expected.longs, actual.longs);
+        assertEquals(expected.map, actual.map);
+        assertEquals(expected.in.getSourceFile(), actual.in.getSourceFile());
+        assertEquals(expected.in.getOffset(), actual.in.getOffset());
+        assertEquals(expected.out.GetTargetFile(), actual.out.GetTargetFile());
+        assertEquals(expected.out.getOffset(), actual.out.getOffset());
+        assertEquals(null, actual.scratch);
+    }
+
+    /**
+     * A process with a field of every kind the binary codec knows, and
+     * one it doesn't
+     */
+    public static class FieldProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        static int constructed;
+
+        int count = -7;
+        long total = Long.MAX_VALUE - 3;
+        boolean flag = true;
+        double ratio = 0.25;
+        String name = "fünf";
+        String nothing;
+        File file = new File("some/file.txt");
+        ArrayList<String> lines = new ArrayList<String>(Arrays.asList("a", "b", ""));
+        byte[] bytes = {1, -2, 3};
+        char[] chars = {'x', 'é'};
+        int[] ints = {Integer.MIN_VALUE, 0, 5};
+        long[] longs = {Long.MIN_VALUE, -1};
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        TransactionalFileInputStream in = new TransactionalFileInputStream(new File("input.txt"), 12);
+        TransactionalFileOutputStream out = new TransactionalFileOutputStream(new File("output.txt"), 34);
+        transient Object scratch = new Object();
+
+        public FieldProcess() {
+            constructed++;
+            map.put("one", 1);
+        }
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+
+    /**
+     * A process with its own serialization methods
+     */
+    public static class HookProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        int value;
+        transient int restored;
+
+        @Override
+        public void processing() throws IOException {
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            restored = value + 1;
+        }
+    }
+
+    /**
+     * A process whose values may be shared
+     */
+    public static class SharedProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        int[] first;
+        int[] second;
+        List<Object> holder;
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.cmu.courses.ds.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of the order of the definitions of a <code>ClassTable</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.ClassTable
+ */
+public class ClassTableTest {
+    @Test
+    public void indexesFollowTheFirstUse() {
+        ClassTable table = new ClassTable();
+        assertEquals(0, table.indexOf("a.A", 1));
+        assertEquals(1, table.indexOf("b.B", 1));
+        assertEquals(0, table.indexOf("a.A", 1));
+        assertNotEquals(0, table.indexOf("a.A", 2));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void definitionsAreTakenOnceInIndexOrder() {
+        ClassTable table = new ClassTable();
+        table.indexOf("a.A", 1);
+        table.indexOf("b.B", 1);
+        List<ClassTable.Entry> first = table.takeUnsent();
+        assertEquals(2, first.size());
+        assertEquals("a.A", first.get(0).name);
+        assertEquals(1, first.get(1).index);
+
+        table.indexOf("a.A", 1);
+        assertTrue(table.takeUnsent().isEmpty());
+        table.indexOf("c.C", 7);
+        List<ClassTable.Entry> second = table.takeUnsent();
+        assertEquals(1, second.size());
+        assertEquals(2, second.get(0).index);
+        assertEquals(7, second.get(0).fingerprint);
+    }
+
+    @Test
+    public void receiversRefuseDefinitionsOutOfOrder() throws Exception {
+        ClassTable receiver = new ClassTable();
+        try {
+            receiver.define(new ClassTable.Entry(1, "b.B", 1));
+            fail("defined index 1 before index 0");
+        } catch (IOException e) {
+            // expected
+        }
+        receiver.define(new ClassTable.Entry(0, "a.A", 1));
+        assertEquals("a.A", receiver.get(0).name);
+        try {
+            receiver.get(1);
+            fail("got an undefined class");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void concurrentSendersAgreeWithTheReceiver() throws Exception {
+        final ClassTable sender = new ClassTable();
+        final ClassTable receiver = new ClassTable();
+        final List<ClassTable.Entry> wire = new ArrayList<ClassTable.Entry>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        sender.indexOf("c.C" + ((i * 7 + seed) % 50), i % 3);
+                        // the definitions are taken and written under
+                        // one lock, like the connection does
+                        synchronized (wire) {
+                            wire.addAll(sender.takeUnsent());
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (ClassTable.Entry entry : wire) {
+            receiver.define(entry);
+        }
+        assertEquals(sender.size(), receiver.size());
+        for (int i = 0; i < sender.size(); i++) {
+            ClassTable.Entry entry = receiver.get(i);
+            assertEquals(i, sender.indexOf(entry.name, entry.fingerprint));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package edu.cmu.courses.ds.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import org.junit.Test;
+
+/**
+ * Tests of the class descriptor checks of a
+ * <code>JavaSerializationCodec</code> session
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.JavaSerializationCodec
+ */
+public class JavaSerializationCodecTest {
+    @Test
+    public void fingerprintsCoverFieldSignatures() {
+        long value = fingerprint(Value.class);
+        assertEquals(value, fingerprint(SameValue.class));
+        assertNotEquals(value, fingerprint(WiderValue.class));
+        assertNotEquals(value, fingerprint(RenamedValue.class));
+        assertNotEquals(value, fingerprint(HookedValue.class));
+    }
+
+    @Test
+    public void mismatchedDescriptorsAreRefused() throws Exception {
+        JavaSerializationCodec codec = new JavaSerializationCodec();
+        BinaryCodecTest.FieldProcess process = new BinaryCodecTest.FieldProcess();
+        ClassTable sender = new ClassTable();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(process, out, sender);
+
+        ClassTable receiver = new ClassTable();
+        for (ClassTable.Entry entry : sender.takeUnsent()) {
+            long fingerprint = entry.fingerprint;
+            if (entry.name.equals(BinaryCodecTest.FieldProcess.class.getName())) {
+                fingerprint++;
+            }
+            receiver.define(new ClassTable.Entry(entry.index, entry.name, fingerprint));
+        }
+        try {
+            codec.decode(new ByteArrayInputStream(out.toByteArray()), receiver);
+            fail("decoded with a mismatched class descriptor");
+        } catch (InvalidClassException e) {
+            assertEquals(BinaryCodecTest.FieldProcess.class.getName(), e.classname);
+        }
+    }
+
+    private static long fingerprint(Class<?> clazz) {
+        return JavaSerializationCodec.fingerprint(ObjectStreamClass.lookup(clazz));
+    }
+
+    static class Value implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        String name;
+    }
+
+    static class SameValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        String name;
+    }
+
+    static class WiderValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long count;
+        String name;
+    }
+
+    static class RenamedValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int total;
+        String name;
+    }
+
+    static class HookedValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        String name;
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+    }
+}
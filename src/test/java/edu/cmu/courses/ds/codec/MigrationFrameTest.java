@@ -0,0 +1,99 @@
+package edu.cmu.courses.ds.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the bounds of <code>MigrationFrame</code> and
+ * <code>Compression</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.codec.MigrationFrame
+ * @see edu.cmu.courses.ds.codec.Compression
+ */
+public class MigrationFrameTest {
+    @After
+    public void tearDown() {
+        System.clearProperty("migration.compression");
+        System.clearProperty("server.frame.max");
+    }
+
+    @Test
+    public void compressedFramesRoundTrip() throws Exception {
+        System.setProperty("migration.compression", "deflate-fast");
+        BinaryCodecTest.FieldProcess process = new BinaryCodecTest.FieldProcess();
+        process.bytes = new byte[256 * 1024];
+        ClassTable sender = new ClassTable();
+        MigrationFrame frame = MigrationFrame.build(new BinaryCodec(), process,
+                EnumSet.allOf(Compression.class), sender);
+        assertEquals(Compression.DEFLATE_FAST, frame.getCompression());
+
+        ClassTable receiver = new ClassTable();
+        for (ClassTable.Entry entry : sender.takeUnsent()) {
+            receiver.define(entry);
+        }
+        BinaryCodecTest.FieldProcess copy = (BinaryCodecTest.FieldProcess)
+                MigrationFrame.decode(frame.getBytes(), receiver);
+        assertArrayEquals(process.bytes, copy.bytes);
+    }
+
+    @Test
+    public void framesAreNotCompressedByDefault() throws Exception {
+        BinaryCodecTest.FieldProcess process = new BinaryCodecTest.FieldProcess();
+        process.bytes = new byte[256 * 1024];
+        MigrationFrame frame = MigrationFrame.build(new BinaryCodec(), process,
+                EnumSet.allOf(Compression.class), null);
+        assertEquals(Compression.NONE, frame.getCompression());
+    }
+
+    @Test
+    public void decompressGrowsToTheRawLength() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        Arrays.fill(data, (byte) 7);
+        byte[] wire = Compression.DEFLATE.compress(data, 0, data.length);
+        assertArrayEquals(data, Compression.DEFLATE.decompress(wire, data.length, data.length));
+    }
+
+    @Test
+    public void decompressRefusesBadLengths() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        byte[] wire = Compression.DEFLATE_FAST.compress(data, 0, data.length);
+        expectFailure(wire, -1, Integer.MAX_VALUE);
+        expectFailure(wire, data.length, data.length - 1);
+        expectFailure(wire, data.length - 1, Integer.MAX_VALUE);
+        expectFailure(wire, data.length + 1, Integer.MAX_VALUE);
+        expectFailure(Arrays.copyOf(wire, wire.length / 2), data.length, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void decodeRefusesRawLengthsAboveTheFrameLimit() throws Exception {
+        System.setProperty("server.frame.max", "4096");
+        ByteBuffer frame = ByteBuffer.allocate(MigrationFrame.HEADER_SIZE + 16);
+        frame.put(BinaryCodec.ID).put(Compression.DEFLATE.getId()).putInt(Integer.MAX_VALUE).putInt(16);
+        try {
+            MigrationFrame.decode(frame.array(), new ClassTable());
+            fail("decoded a frame above the limit");
+        } catch (IOException e) {
+            assertEquals("bad frame header", e.getMessage());
+        }
+    }
+
+    private static void expectFailure(byte[] wire, int rawLength, int maxLength) {
+        try {
+            Compression.DEFLATE_FAST.decompress(wire, rawLength, maxLength);
+            fail("decompressed " + rawLength + " bytes with limit " + maxLength);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
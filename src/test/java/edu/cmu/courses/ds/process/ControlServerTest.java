@@ -0,0 +1,119 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the pipelined requests of a <code>ControlServer</code>. A
+ * client writes a burst of requests at once and reads the replies.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ControlServer
+ */
+public class ControlServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager target;
+    private Socket socket;
+    private BufferedReader in;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        target = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        target.startServer();
+        int port = source.startControl(0);
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        MigrationBatchTest.TickProcess.stopAll(source);
+        MigrationBatchTest.TickProcess.stopAll(target);
+        source.shutdown();
+        target.shutdown();
+        System.clearProperty("migration.local.handoff");
+    }
+
+    @Test
+    public void pipelinedRepliesKeepTheOrderOfTheRequests() throws Exception {
+        StringBuilder burst = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            burst.append(i % 10 == 9 ? "nosuch" : "ping").append('\n');
+        }
+        send(burst.toString());
+
+        for (int i = 1; i <= 100; i++) {
+            String reply = in.readLine();
+            assertTrue(reply, reply.startsWith("{\"seq\":" + i + ","));
+            if (i % 10 == 0) {
+                assertTrue(reply, reply.contains("\"ok\":false,\"error\":\"unknown command 'nosuch'\""));
+            } else {
+                assertTrue(reply, reply.contains("\"ok\":true"));
+            }
+        }
+    }
+
+    @Test
+    public void failedRequestsDoNotBreakTheConnection() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i <= 65536; i++) {
+            line.append('x');
+        }
+        send("run\n" + line + "\nmg all\nps\n");
+
+        assertTrue(in.readLine().contains("\"error\":\"usage: run PROCESS_NAME ARG...\""));
+        assertTrue(in.readLine().contains("\"error\":\"request too long\""));
+        assertTrue(in.readLine().contains("\"ok\":false"));
+        String ps = in.readLine();
+        assertTrue(ps, ps.startsWith("{\"seq\":4,\"ok\":true,\"processes\":[]"));
+    }
+
+    @Test
+    public void migrationsAnswerInTheOrderOfTheBurst() throws Exception {
+        MigrationBatchTest.start(source, 3);
+        send("ps\nmg -j 2 all 127.0.0.1:" + target.getServerPort() + "\nps\n");
+
+        String before = in.readLine();
+        assertEquals(3, count(before, "\"class\":\"TickProcess\""));
+        String migrate = in.readLine();
+        assertTrue(migrate, migrate.contains("\"selected\":3,\"migrated\":3"));
+        // the request after the migration sees its outcome
+        String after = in.readLine();
+        assertTrue(after, after.startsWith("{\"seq\":3,\"ok\":true,\"processes\":[]"));
+        assertTrue(MigrationBatchTest.awaitProcesses(target, 3));
+    }
+
+    private void send(String requests) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(requests.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static int count(String reply, String part) {
+        int count = 0;
+        for (int i = reply.indexOf(part); i >= 0; i = reply.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
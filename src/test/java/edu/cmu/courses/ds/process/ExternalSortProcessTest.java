@@ -0,0 +1,109 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of <code>ExternalSortProcess</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ExternalSortProcess
+ */
+public class ExternalSortProcessTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sortsAcrossSeveralMergePasses() throws Exception {
+        List<String> lines = randomLines(2000, 1);
+        File input = write("input", lines);
+        File output = new File(folder.getRoot(), "output");
+        // 200 runs of 10 lines need a second merge pass above FAN_IN
+        ExternalSortProcess process = new ExternalSortProcess(
+                new String[]{input.getPath(), output.getPath(), "10", "4"});
+        process.run();
+
+        assertTrue(process.isFinished());
+        Collections.sort(lines);
+        assertEquals(lines, Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void emptyInputCreatesEmptyOutput() throws Exception {
+        File input = write("input", new ArrayList<String>());
+        File output = new File(folder.getRoot(), "output");
+        ExternalSortProcess process = new ExternalSortProcess(
+                new String[]{input.getPath(), output.getPath()});
+        process.run();
+
+        assertTrue(process.isFinished());
+        assertTrue(output.isFile());
+        assertEquals(0, output.length());
+    }
+
+    @Test
+    public void continuesAfterSerialization() throws Exception {
+        List<String> lines = randomLines(20000, 2);
+        File input = write("input", lines);
+        File output = new File(folder.getRoot(), "output");
+        MigratableProcess process = new ExternalSortProcess(
+                new String[]{input.getPath(), output.getPath(), "100", "2"});
+        while (!process.isFinished()) {
+            Thread thread = new Thread(process);
+            thread.start();
+            Thread.sleep(5);
+            process.suspend();
+            thread.join();
+            if (!process.isFinished()) {
+                process = copy(process);
+                process.migrated();
+            }
+        }
+
+        Collections.sort(lines);
+        assertEquals(lines, Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+    }
+
+    private File write(String name, List<String> lines) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<String> randomLines(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            lines.add(Long.toString(random.nextLong(), 36));
+        }
+        return lines;
+    }
+
+    private static MigratableProcess copy(MigratableProcess process) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(process);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return (MigratableProcess) in.readObject();
+    }
+}
@@ -0,0 +1,116 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.cmu.courses.ds.io.ContentChunker;
+import edu.cmu.courses.ds.io.FileManifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the chunks, joined files and eviction of the
+ * <code>FileCache</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.FileCache
+ */
+public class FileCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("filecache");
+    }
+
+    @Test
+    public void chunksWhichDontMatchTheirHashAreRefused() throws Exception {
+        FileCache cache = new FileCache(directory, 1024 * 1024);
+        byte[] data = chunk(1);
+        byte[] other = chunk(2);
+        String hash = ContentChunker.hash(data, 0, data.length);
+        try {
+            cache.putChunk(hash, other, 0, other.length);
+            fail("stored a chunk under the hash of another");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            cache.putChunk("../" + hash.substring(3), data, 0, data.length);
+            fail("stored a chunk under a bad hash");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(cache.hasChunk(hash));
+
+        cache.putChunk(hash, data, 0, data.length);
+        assertTrue(cache.hasChunk(hash));
+        assertArrayEquals(data, cache.getChunk(hash));
+    }
+
+    @Test
+    public void chunksJoinIntoTheFileOfTheirManifest() throws Exception {
+        File source = folder.newFile("source.bin");
+        byte[] content = new byte[2500];
+        new Random(3).nextBytes(content);
+        Files.write(source.toPath(), content);
+        FileManifest manifest = FileManifest.build(source, 1000);
+        FileCache cache = new FileCache(directory, 1024 * 1024);
+        for (int i = 0; i < manifest.getHashes().length; i++) {
+            cache.putChunk(manifest.getHashes()[i], content, (int) manifest.getOffset(i), manifest.getLength(i));
+        }
+
+        File joined = cache.resolve(manifest);
+        assertArrayEquals(content, Files.readAllBytes(joined.toPath()));
+        assertTrue(cache.hasFile(manifest.getId()));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedChunksAreEvicted() throws Exception {
+        FileCache cache = new FileCache(directory, 3500);
+        String[] hashes = new String[4];
+        for (int i = 0; i < 2; i++) {
+            hashes[i] = put(cache, i);
+        }
+        long now = System.currentTimeMillis();
+        assertTrue(new File(directory, "chunks/" + hashes[0]).setLastModified(now - 10000));
+        assertTrue(new File(directory, "chunks/" + hashes[1]).setLastModified(now - 5000));
+        // using the oldest chunk makes it the most recent
+        assertTrue(cache.hasChunk(hashes[0]));
+        hashes[2] = put(cache, 2);
+        hashes[3] = put(cache, 3);
+
+        assertFalse(cache.hasChunk(hashes[1]));
+        assertTrue(cache.hasChunk(hashes[0]));
+        assertTrue(cache.hasChunk(hashes[2]));
+        assertTrue(cache.hasChunk(hashes[3]));
+        assertTrue(cache.getSize() <= 3500);
+    }
+
+    private static String put(FileCache cache, int seed) throws IOException {
+        byte[] data = chunk(seed);
+        String hash = ContentChunker.hash(data, 0, data.length);
+        cache.putChunk(hash, data, 0, data.length);
+        return hash;
+    }
+
+    private static byte[] chunk(int seed) {
+        byte[] data = new byte[1000];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
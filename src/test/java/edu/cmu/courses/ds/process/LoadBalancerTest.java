@@ -0,0 +1,107 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the hysteresis of a <code>LoadBalancer</code>. The balancer
+ * of a manager runs with the default <code>balancer.threshold</code> of
+ * 1 and <code>balancer.sustain</code> of 3 rounds, and sees one peer,
+ * whose score is set relative to the local score before each round.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LoadBalancer
+ */
+public class LoadBalancerTest {
+    private static final String[] PROPERTIES = {"balancer.threshold", "balancer.sustain", "balancer.max",
+            "balancer.cooldown", "balancer.process.cooldown", "balancer.log", "migration.local.handoff"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager target;
+    private File log;
+
+    @Before
+    public void setUp() throws Exception {
+        log = new File(folder.getRoot(), "balancer.log");
+        System.setProperty("balancer.threshold", "1.0");
+        System.setProperty("balancer.sustain", "3");
+        System.setProperty("balancer.max", "1");
+        System.setProperty("balancer.cooldown", "0");
+        System.setProperty("balancer.process.cooldown", "0");
+        System.setProperty("balancer.log", log.getPath());
+        System.setProperty("migration.local.handoff", "false");
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        target = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        target.startServer();
+        MigrationBatchTest.start(source, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MigrationBatchTest.TickProcess.stopAll(source);
+        MigrationBatchTest.TickProcess.stopAll(target);
+        source.shutdown();
+        target.shutdown();
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void hotNodesMigrateOnlyAfterSustainedRounds() throws Exception {
+        assertEquals(0, round(3));
+        assertEquals(0, round(3));
+        assertEquals(1, round(3));
+        assertTrue(MigrationBatchTest.awaitProcesses(target, 1));
+        assertEquals(1, source.getProcesses().size());
+        assertTrue(new String(Files.readAllBytes(log.toPath()), "UTF-8").contains(" migrate: "));
+
+        // the migration starts the count again
+        assertEquals(0, round(3));
+    }
+
+    @Test
+    public void gapsBetweenHalfAndTheThresholdKeepTheHotRounds() throws Exception {
+        assertEquals(0, round(3));
+        assertEquals(0, round(3));
+        assertEquals(0, round(0.75));
+        assertEquals(1, round(3));
+    }
+
+    @Test
+    public void gapsBelowHalfTheThresholdResetTheHotRounds() throws Exception {
+        assertEquals(0, round(3));
+        assertEquals(0, round(3));
+        assertEquals(0, round(0.25));
+        assertEquals(0, round(3));
+        assertEquals(0, round(3));
+        assertEquals(1, round(3));
+    }
+
+    /**
+     * Run a balancing round with the peer a score gap below this node
+     *
+     * @return the number of migrated processes
+     */
+    private int round(double gap) {
+        LoadBalancer balancer = source.getBalancer();
+        double ioScale = Configuration.getLong("balancer.io.scale", 50L * 1024 * 1024);
+        double local = balancer.sample().score(ioScale);
+        balancer.record(new LoadSummary(target.getBalancer().getNode(), 0, 1, local - gap, 0, 0.1));
+        return balancer.balance();
+    }
+}
@@ -0,0 +1,150 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the handoff files of <code>LocalHandoff</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.LocalHandoff
+ */
+public class LocalHandoffTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private LocalHandoff.Pool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("handoff");
+        System.setProperty("migration.local.dir", directory.getPath());
+        pool = new LocalHandoff.Pool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        System.clearProperty("migration.local.dir");
+    }
+
+    @Test
+    public void receiversReadTheFrameOfTheFile() throws Exception {
+        byte[] frame = frame(100000);
+        LocalHandoff.Slot slot = pool.write(frame);
+        ByteBuffer mapped = LocalHandoff.read(slot.getId(), frame.length);
+        byte[] read = new byte[mapped.remaining()];
+        mapped.get(read);
+        assertArrayEquals(frame, read);
+    }
+
+    @Test
+    public void acknowledgedSlotsAreReused() throws Exception {
+        LocalHandoff.Slot slot = pool.write(frame(8192));
+        pool.release(slot, true);
+        assertTrue(getFile(slot).isFile());
+
+        LocalHandoff.Slot next = pool.write(frame(4096));
+        assertEquals(slot.getId(), next.getId());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void slotsWithoutAnAckAreDeleted() throws Exception {
+        LocalHandoff.Slot slot = pool.write(frame(8192));
+        pool.release(slot, false);
+        // the peer may still read it, so it is never written again
+        assertFalse(getFile(slot).exists());
+
+        LocalHandoff.Slot next = pool.write(frame(8192));
+        assertTrue(next.getId() != slot.getId());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void closingThePoolDeletesItsFiles() throws Exception {
+        LocalHandoff.Slot first = pool.write(frame(4096));
+        LocalHandoff.Slot second = pool.write(frame(4096));
+        pool.release(first, true);
+        assertEquals(2, directory.list().length);
+
+        pool.close();
+        assertEquals(0, directory.list().length);
+        // a slot in flight when the pool closed is deleted on release
+        pool.release(second, true);
+        assertFalse(getFile(second).exists());
+    }
+
+    @Test
+    public void slotsOfUnansweredMigrationsAreDeleted() throws Exception {
+        System.setProperty("peer.ack.timeout", "200");
+        final ServerSocket server = new ServerSocket(0);
+        Thread silent = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    MigrationHandshake.accept(in, new DataOutputStream(socket.getOutputStream()));
+                    // read the frames and the cancels, answer nothing
+                    while (in.read() >= 0) {
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        silent.start();
+        PeerConnection peer = new PeerConnection("127.0.0.1", server.getLocalPort());
+        try {
+            assertTrue(peer.isHandoff());
+            // the frame carries no bytecode, the peer never answers a job
+            MigrationFrame frame = MigrationFrame.build(MigrationCodecs.getDefault(),
+                    new PeerConnectionTest.StateProcess(256 * 1024), EnumSet.noneOf(Compression.class));
+            PeerConnection.Ack ack = peer.migrate(Collections.singletonList(frame),
+                    MigrationThrottle.Lane.NORMAL).get(0);
+            assertFalse(ack.isAnswered());
+            assertEquals(0, directory.list().length);
+        } finally {
+            peer.close(null);
+            server.close();
+            silent.join();
+            System.clearProperty("peer.ack.timeout");
+        }
+    }
+
+    private File getFile(LocalHandoff.Slot slot) {
+        return new File(directory, "handoff-" + Long.toHexString(slot.getId()) + ".frame");
+    }
+
+    private static byte[] frame(int length) {
+        byte[] frame = new byte[length];
+        new Random(length).nextBytes(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,177 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of suspending, pausing and checkpointing a
+ * <code>MigratableProcess</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigratableProcess
+ * @see edu.cmu.courses.ds.process.ProcessCheckpointer
+ */
+public class MigratableProcessTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void suspendAfterTheEndKeepsTheProcessFinished() throws Exception {
+        CountProcess process = new CountProcess(3);
+        process.run();
+        process.suspend();
+
+        assertTrue(process.isFinished());
+        assertEquals(3, process.count);
+    }
+
+    @Test
+    public void suspendStopsTheProcessUnfinished() throws Exception {
+        CountProcess process = new CountProcess(100000);
+        Thread thread = new Thread(process);
+        thread.start();
+        Thread.sleep(20);
+        process.suspend();
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+        assertFalse(process.isFinished());
+        assertTrue(process.count < 100000);
+    }
+
+    @Test
+    public void pauseContinuesOnTheSameThread() throws Exception {
+        CountProcess process = new CountProcess(200);
+        Thread thread = new Thread(process);
+        thread.start();
+        Thread.sleep(10);
+        int pauses = 0;
+        while (process.pause()) {
+            int count = process.count;
+            Thread.sleep(2);
+            assertEquals(count, process.count);
+            process.unpause();
+            pauses++;
+            Thread.sleep(5);
+        }
+        thread.join(5000);
+
+        assertTrue(pauses > 0);
+        assertTrue(process.isFinished());
+        assertEquals(200, process.count);
+        assertEquals(1, process.threads.size());
+        assertEquals(pauses, process.getMetrics().getPauseCount());
+        assertEquals(0, process.getMetrics().getSuspendCount());
+    }
+
+    @Test
+    public void streamsCountByTheValueOfTheirField() throws Exception {
+        File input = folder.newFile("input.txt");
+        Files.write(input.toPath(), "one\ntwo\n".getBytes(StandardCharsets.UTF_8));
+        ReadProcess process = new ReadProcess(input);
+        process.run();
+
+        assertEquals("one", process.first);
+        assertEquals("two", process.second);
+        assertEquals(3 + 8, process.getMetrics().getIO().getBytesRead());
+    }
+
+    @Test
+    public void checkpointKeepsTheProcessRunning() throws Exception {
+        ProcessManager manager = new ProcessManager("localhost", 0, folder.newFolder("manager"), folder.newFolder("cache"));
+        File directory = folder.newFolder("checkpoint");
+        ProcessCheckpointer checkpointer = new ProcessCheckpointer(manager, directory);
+        CountProcess process = new CountProcess(100000);
+        manager.startProcess(process);
+        Thread.sleep(20);
+        checkpointer.checkpoint(process);
+        checkpointer.checkpoint(process);
+
+        assertTrue(manager.getProcesses().contains(process));
+        assertEquals(1, process.threads.size());
+        process.suspend();
+        assertFalse(process.isFinished());
+
+        List<MigratableProcess> recovered = new ProcessCheckpointer(manager, directory).recover();
+        assertEquals(1, recovered.size());
+        CountProcess copy = (CountProcess) recovered.get(0);
+        assertTrue(copy.count > 0 && copy.count <= process.count);
+    }
+
+    /**
+     * A process which reads the first line of a file through a stream
+     * and a line reader in fields of other declared types
+     */
+    public static class ReadProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        InputStream in;
+        Object reader;
+        String first;
+        String second;
+
+        public ReadProcess(File input) {
+            in = new TransactionalFileInputStream(input);
+            reader = new TransactionalLineReader(new TransactionalFileInputStream(input));
+        }
+
+        @Override
+        public void processing() throws IOException {
+            byte[] line = new byte[3];
+            if (in.read(line, 0, 3) == 3) {
+                first = new String(line, StandardCharsets.UTF_8);
+            }
+            TransactionalLineReader lines = (TransactionalLineReader) reader;
+            lines.readLine();
+            second = lines.readLine();
+        }
+    }
+
+    /**
+     * A process which counts to a limit, one step per millisecond, and
+     * remembers the threads it ran on
+     */
+    public static class CountProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        volatile int count;
+        final int limit;
+        transient Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+
+        public CountProcess(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void processing() throws IOException {
+            threads.add(Thread.currentThread());
+            while (!suspending && count < limit) {
+                count++;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
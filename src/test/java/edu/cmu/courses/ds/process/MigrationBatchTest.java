@@ -0,0 +1,194 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the parallel migration of a <code>MigrationBatch</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationBatch
+ */
+public class MigrationBatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager target;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        target = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        target.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TickProcess.stopAll(source);
+        TickProcess.stopAll(target);
+        source.shutdown();
+        target.shutdown();
+        System.clearProperty("migration.local.handoff");
+    }
+
+    @Test
+    public void everyProcessOfTheBatchMigrates() throws Exception {
+        List<MigratableProcess> processes = start(source, 8);
+        MigrationBatch batch = source.migrate(processes, "127.0.0.1", target.getServerPort(), 4, false, false);
+
+        assertEquals(8, batch.getDowntimes().size());
+        assertTrue(source.getProcesses().isEmpty());
+        assertTrue(awaitProcesses(target, 8));
+        for (MigratableProcess process : target.getProcesses()) {
+            assertTrue(((TickProcess) process).awaitTicks(1));
+        }
+    }
+
+    @Test
+    public void refusedProcessesRestartLocally() throws Exception {
+        List<MigratableProcess> processes = start(source, 3);
+        target.setDraining(true);
+        MigrationBatch batch = source.migrate(processes, "127.0.0.1", target.getServerPort(), 2, false, false);
+
+        assertTrue(batch.getDowntimes().isEmpty());
+        assertTrue(target.getProcesses().isEmpty());
+        assertEquals(3, source.getProcesses().size());
+        for (MigratableProcess process : processes) {
+            assertTrue(source.getProcesses().contains(process));
+            assertTrue(process.running);
+            int ticks = ((TickProcess) process).ticks;
+            assertTrue(((TickProcess) process).awaitTicks(ticks + 1));
+        }
+    }
+
+    @Test
+    public void concurrentMigrationsOfAProcessLeaveOneCopy() throws Exception {
+        final ProcessManager other = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint2"),
+                folder.newFolder("cache2"));
+        other.startServer();
+        try {
+            final List<MigratableProcess> processes = start(source, 8);
+            final CountDownLatch ready = new CountDownLatch(1);
+            final AtomicInteger migrated = new AtomicInteger();
+            List<Thread> migrators = new ArrayList<Thread>();
+            for (final ProcessManager to : new ProcessManager[]{target, other}) {
+                Thread migrator = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            ready.await();
+                            for (MigratableProcess process : processes) {
+                                MigrationBatch batch = source.migrate(Collections.singletonList(process),
+                                        "127.0.0.1", to.getServerPort(), 1, false, false);
+                                migrated.addAndGet(batch.getDowntimes().size());
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                migrator.start();
+                migrators.add(migrator);
+            }
+            ready.countDown();
+            for (Thread migrator : migrators) {
+                migrator.join();
+            }
+
+            // the second migration of a process finds it suspended
+            assertEquals(8, migrated.get());
+            assertTrue(source.getProcesses().isEmpty());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (target.getProcesses().size() + other.getProcesses().size() < 8 &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(8, target.getProcesses().size() + other.getProcesses().size());
+        } finally {
+            TickProcess.stopAll(other);
+            other.shutdown();
+        }
+    }
+
+    /**
+     * Start processes which tick until they are suspended
+     */
+    static List<MigratableProcess> start(ProcessManager manager, int count) {
+        List<MigratableProcess> processes = new ArrayList<MigratableProcess>();
+        for (int i = 0; i < count; i++) {
+            TickProcess process = new TickProcess();
+            manager.startProcess(process);
+            processes.add(process);
+        }
+        return processes;
+    }
+
+    /**
+     * Wait until a manager runs a number of processes
+     */
+    static boolean awaitProcesses(ProcessManager manager, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (manager.getProcesses().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return manager.getProcesses().size() >= count;
+    }
+
+    /**
+     * A process which ticks every millisecond until it is suspended
+     */
+    public static class TickProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        volatile int ticks;
+
+        @Override
+        public void processing() throws IOException {
+            while (!suspending) {
+                ticks++;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Wait until the process ticked a number of times
+         */
+        boolean awaitTicks(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (ticks < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            return ticks >= count;
+        }
+
+        /**
+         * Suspend the processes of a manager at the end of a test
+         */
+        static void stopAll(ProcessManager manager) throws InterruptedException {
+            for (MigratableProcess process : new ArrayList<MigratableProcess>(manager.getProcesses())) {
+                process.suspend();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests of the rate and the lanes of <code>MigrationThrottle</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationThrottle
+ */
+public class MigrationThrottleTest {
+    private static final String PEER = "localhost:15440";
+
+    @Test
+    public void slicesAchieveTheRate() throws Exception {
+        MigrationThrottle throttle = new MigrationThrottle(1024 * 1024, 0, 64 * 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 32; i++) {
+            throttle.acquire(PEER, 32 * 1024, MigrationThrottle.Lane.BULK);
+        }
+        // The first 64KB are the burst, the other 960KB go at 1MB/s
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("took " + seconds + "s", seconds >= 0.85 && seconds < 1.5);
+    }
+
+    @Test
+    public void peerRatesApplyToEachPeer() throws Exception {
+        MigrationThrottle throttle = new MigrationThrottle(0, 512 * 1024, 16 * 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 16; i++) {
+            throttle.acquire(PEER, 16 * 1024, MigrationThrottle.Lane.NORMAL);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("took " + seconds + "s", seconds >= 0.4 && seconds < 1.0);
+
+        start = System.nanoTime();
+        throttle.acquire("localhost:15441", 16 * 1024, MigrationThrottle.Lane.NORMAL);
+        assertTrue((System.nanoTime() - start) / 1e9 < 0.1);
+    }
+
+    @Test
+    public void urgentTransfersGoBeforeTheNextBulkSlice() throws Exception {
+        final MigrationThrottle throttle = new MigrationThrottle(256 * 1024, 0, 16 * 1024);
+        final AtomicInteger slices = new AtomicInteger();
+        Thread bulk = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 64; i++) {
+                        throttle.acquire(PEER, 16 * 1024, MigrationThrottle.Lane.BULK);
+                        slices.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // interrupted by the test
+                }
+            }
+        });
+        bulk.start();
+        try {
+            while (slices.get() < 4) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 3; i++) {
+                int before = slices.get();
+                throttle.acquire(PEER, 16 * 1024, MigrationThrottle.Lane.URGENT);
+                assertTrue(slices.get() - before <= 1);
+            }
+            assertTrue(bulk.isAlive());
+        } finally {
+            bulk.interrupt();
+            bulk.join();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the phase histograms of <code>MigrationTrace</code>, their
+ * MBeans and their Flight Recorder events. The histograms belong to
+ * the JVM, so the tests compare counts before and after.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.MigrationTrace
+ * @see edu.cmu.courses.ds.process.PhaseLatency
+ */
+public class MigrationTraceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager target;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        target = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        target.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MigrationBatchTest.TickProcess.stopAll(source);
+        MigrationBatchTest.TickProcess.stopAll(target);
+        source.shutdown();
+        target.shutdown();
+        System.clearProperty("migration.local.handoff");
+    }
+
+    @Test
+    public void bucketsArePowersOfTwoMicroseconds() {
+        PhaseLatency latency = new PhaseLatency("sender");
+        latency.record(1500);
+        latency.record(3000);
+        latency.record(5000);
+        latency.record(1000000);
+
+        long[] histogram = latency.getHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[2]);
+        assertEquals(1, histogram[9]);
+        assertEquals(4, latency.getCount());
+        assertEquals(0.004, latency.getP50Millis(), 1e-9);
+        // the bound of the last bucket is capped at the maximum
+        assertEquals(1.0, latency.getP99Millis(), 1e-9);
+        assertEquals(1.0, latency.getMaxMillis(), 1e-9);
+
+        latency.reset();
+        assertEquals(0, latency.getCount());
+        assertEquals(0, latency.getP99Millis(), 0);
+    }
+
+    @Test
+    public void migrationsRecordEveryPhase() throws Exception {
+        Map<MigrationTrace.Phase, Long> before = counts();
+        migrate(2);
+        for (MigrationTrace.Phase phase : MigrationTrace.Phase.values()) {
+            assertTrue(phase.name(), MigrationTrace.getLatency(phase).getCount() >= before.get(phase) + 2);
+        }
+    }
+
+    @Test
+    public void phasesAreRegisteredAsMBeans() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (MigrationTrace.Phase phase : MigrationTrace.Phase.values()) {
+            // the MBeans are registered when the trace is loaded
+            assertEquals(phase.getSide(), MigrationTrace.getLatency(phase).getSide());
+            ObjectName name = new ObjectName("edu.cmu.courses.ds:type=MigrationPhase,side=" +
+                    phase.getSide() + ",name=" + phase.name().toLowerCase());
+            assertTrue(server.isRegistered(name));
+            assertEquals(phase.getSide(), server.getAttribute(name, "Side"));
+            assertTrue((Long) server.getAttribute(name, "Count") >= 0);
+        }
+    }
+
+    @Test
+    public void recordingsReceiveAnEventPerPhase() throws Exception {
+        File file = new File(folder.getRoot(), "migration.jfr");
+        Recording recording = new Recording();
+        recording.enable("edu.cmu.courses.ds.MigrationPhase");
+        recording.start();
+        migrate(1);
+        recording.stop();
+        recording.dump(file.toPath());
+        recording.close();
+
+        Map<MigrationTrace.Phase, Integer> events = new EnumMap<MigrationTrace.Phase, Integer>(MigrationTrace.Phase.class);
+        List<RecordedEvent> recorded = RecordingFile.readAllEvents(file.toPath());
+        for (RecordedEvent event : recorded) {
+            if (!event.getEventType().getName().equals("edu.cmu.courses.ds.MigrationPhase")) {
+                continue;
+            }
+            MigrationTrace.Phase phase = MigrationTrace.Phase.valueOf(event.getString("phase").toUpperCase());
+            assertEquals(phase.getSide(), event.getString("side"));
+            assertTrue(event.getLong("elapsed") >= 0);
+            events.put(phase, events.containsKey(phase) ? events.get(phase) + 1 : 1);
+        }
+        assertEquals(MigrationTrace.Phase.values().length, events.size());
+    }
+
+    /**
+     * Migrate new processes from the source to the target
+     */
+    private void migrate(int count) throws Exception {
+        List<MigratableProcess> processes = MigrationBatchTest.start(source, count);
+        MigrationBatch batch = source.migrate(processes, "127.0.0.1", target.getServerPort(), count, false, false);
+        assertEquals(count, batch.getDowntimes().size());
+        // the receiver phases may end after the acknowledgement
+        assertTrue(MigrationBatchTest.awaitProcesses(target, count));
+        Thread.sleep(50);
+    }
+
+    private static Map<MigrationTrace.Phase, Long> counts() {
+        Map<MigrationTrace.Phase, Long> counts = new EnumMap<MigrationTrace.Phase, Long>(MigrationTrace.Phase.class);
+        for (MigrationTrace.Phase phase : MigrationTrace.Phase.values()) {
+            counts.put(phase, MigrationTrace.getLatency(phase).getCount());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the evacuation of a manager by a <code>NodeDrain</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.NodeDrain
+ */
+public class NodeDrainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager target;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        System.setProperty("balancer.memory.max", "1.0");
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        target = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        target.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MigrationBatchTest.TickProcess.stopAll(source);
+        MigrationBatchTest.TickProcess.stopAll(target);
+        source.shutdown();
+        target.shutdown();
+        System.clearProperty("migration.local.handoff");
+        System.clearProperty("balancer.memory.max");
+    }
+
+    @Test
+    public void drainsMoveEveryProcess() throws Exception {
+        MigrationBatchTest.start(source, 4);
+        NodeDrain drain = new NodeDrain(source, Collections.singletonList(getNode(target)), 2, false, false, false);
+
+        assertEquals(4, drain.run());
+        assertTrue(drain.getFailed().isEmpty());
+        assertTrue(source.getProcesses().isEmpty());
+        assertTrue(MigrationBatchTest.awaitProcesses(target, 4));
+        assertFalse(source.isDraining());
+    }
+
+    @Test
+    public void processesWhichFailToMoveRestartLocally() throws Exception {
+        List<MigratableProcess> processes = MigrationBatchTest.start(source, 3);
+        // a manager which is drained itself refuses the processes
+        target.setDraining(true);
+        NodeDrain drain = new NodeDrain(source, Collections.singletonList(getNode(target)), 2, false, false, false);
+
+        assertEquals(0, drain.run());
+        assertEquals(3, drain.getFailed().size());
+        assertTrue(target.getProcesses().isEmpty());
+        for (MigratableProcess process : processes) {
+            assertTrue(source.getProcesses().contains(process));
+            assertTrue(process.running);
+            MigrationBatchTest.TickProcess tick = (MigrationBatchTest.TickProcess) process;
+            assertTrue(tick.awaitTicks(tick.ticks + 1));
+        }
+        assertFalse(source.isDraining());
+    }
+
+    @Test
+    public void processesStayWhenNoTargetAnswers() throws Exception {
+        List<MigratableProcess> processes = MigrationBatchTest.start(source, 2);
+        NodeDrain drain = new NodeDrain(source, Arrays.asList("127.0.0.1:1"), 2, false, false, false);
+
+        assertEquals(0, drain.run());
+        assertEquals(processes, drain.getFailed());
+        for (MigratableProcess process : processes) {
+            assertTrue(process.running);
+        }
+    }
+
+    private static String getNode(ProcessManager manager) {
+        return "127.0.0.1:" + manager.getServerPort();
+    }
+}
@@ -0,0 +1,163 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.codec.MigrationFrame;
+import edu.cmu.courses.ds.io.ContentChunker;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of migrations over a <code>PeerConnection</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PeerConnection
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
+ */
+public class PeerConnectionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager manager;
+    private PeerConnection peer;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        System.setProperty("migration.dedup.threshold", "65536");
+        manager = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint"), folder.newFolder("cache"));
+        manager.startServer();
+        peer = new PeerConnection("127.0.0.1", manager.getServerPort());
+    }
+
+    @After
+    public void tearDown() {
+        peer.close(null);
+        manager.shutdown();
+        System.clearProperty("migration.local.handoff");
+        System.clearProperty("migration.dedup.threshold");
+    }
+
+    @Test
+    public void smallFramesArrive() throws Exception {
+        StateProcess process = new StateProcess(1024);
+        assertTrue(peer.migrate(peer.build(process)));
+        assertArrayEquals(process.state, StateProcess.await());
+    }
+
+    @Test
+    public void largeFramesOnlySendChangedChunks() throws Exception {
+        StateProcess process = new StateProcess(2 * 1024 * 1024);
+        assertTrue(peer.migrate(peer.build(process)));
+        assertArrayEquals(process.state, StateProcess.await());
+
+        process.state[process.state.length / 2] ^= 1;
+        MigrationFrame frame = peer.build(process);
+        List<ContentChunker.Chunk> chunks = ContentChunker.split(frame.getBytes());
+        long sent = peer.shipChunks(frame.getBytes(), chunks);
+        assertTrue(sent > 0 && sent <= 2 * ContentChunker.MAX_SIZE);
+        assertEquals(0, peer.shipChunks(frame.getBytes(), chunks));
+        assertTrue(peer.migrate(frame));
+        assertArrayEquals(process.state, StateProcess.await());
+    }
+
+    @Test
+    public void urgentFramesGoBetweenTheSlicesOfBulkFrames() throws Exception {
+        System.setProperty("migration.dedup.threshold", "0");
+        peer.getThrottle().setGlobalRate(4 * 1024 * 1024);
+        try {
+            final MigrationFrame bulk = peer.build(new BulkProcess(8 * 1024 * 1024));
+            final long[] bulkDone = new long[1];
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if (peer.migrate(Collections.singletonList(bulk), MigrationThrottle.Lane.BULK)
+                                .get(0).isStarted()) {
+                            bulkDone[0] = System.nanoTime();
+                        }
+                    } catch (IOException e) {
+                        bulkDone[0] = -1;
+                    }
+                }
+            });
+            thread.start();
+            Thread.sleep(300);
+            MigrationFrame urgent = peer.build(new BulkProcess(1024));
+            assertTrue(peer.migrate(Collections.singletonList(urgent), MigrationThrottle.Lane.URGENT)
+                    .get(0).isStarted());
+            long urgentDone = System.nanoTime();
+            thread.join();
+            assertTrue(bulkDone[0] + " " + urgentDone, bulkDone[0] > urgentDone);
+        } finally {
+            peer.getThrottle().setGlobalRate(0);
+        }
+    }
+
+    /**
+     * A process which only carries its state
+     */
+    public static class BulkProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        byte[] state;
+
+        public BulkProcess(int size) {
+            state = new byte[size];
+        }
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+
+    /**
+     * A process which hands its state to the test when it runs
+     */
+    public static class StateProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        private static byte[] received;
+
+        byte[] state;
+
+        public StateProcess(int size) {
+            state = new byte[size];
+            new Random(size).nextBytes(state);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            synchronized (StateProcess.class) {
+                received = state;
+                StateProcess.class.notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the state of the next process which runs
+         */
+        static byte[] await() throws InterruptedException {
+            synchronized (StateProcess.class) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (received == null && System.currentTimeMillis() < deadline) {
+                    StateProcess.class.wait(100);
+                }
+                byte[] state = received;
+                received = null;
+                return state;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the export and fetch of <code>LazyState</code> fields by
+ * <code>PostCopy</code>. The prefetch is off, so states are fetched
+ * only when they are read.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PostCopy
+ * @see edu.cmu.courses.ds.process.LazyState
+ */
+public class PostCopyTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.postcopy.prefetch", "false");
+        manager = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint"), folder.newFolder("cache"));
+        manager.startServer();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        System.clearProperty("migration.postcopy.prefetch");
+    }
+
+    @Test
+    public void statesAreFetchedWhenTheyAreRead() throws Exception {
+        byte[] value = new byte[64 * 1024];
+        new Random(value.length).nextBytes(value);
+        PostCopy.Export export = PostCopy.beginExport("127.0.0.1", manager.getServerPort());
+        byte[] handle;
+        try {
+            handle = encode(new LazyState<byte[]>(value));
+        } finally {
+            PostCopy.endExport();
+        }
+        assertEquals(1, export.getCount());
+        assertTrue(handle.length < 1024);
+
+        LazyState<byte[]> state = decode(handle);
+        assertFalse(state.isLoaded());
+        long fetched = PostCopy.getFetchedCount();
+        assertArrayEquals(value, state.get());
+        assertTrue(state.isLoaded());
+        assertEquals(fetched + 1, PostCopy.getFetchedCount());
+
+        // each state is served once
+        try {
+            decode(handle).get();
+            fail("fetched a state twice");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void withdrawnStatesCanNotBeFetched() throws Exception {
+        PostCopy.Export export = PostCopy.beginExport("127.0.0.1", manager.getServerPort());
+        byte[] handle;
+        try {
+            handle = encode(new LazyState<String>("withdrawn"));
+        } finally {
+            PostCopy.endExport();
+        }
+        PostCopy.withdraw(export);
+
+        LazyState<String> state = decode(handle);
+        try {
+            state.get();
+            fail("fetched a withdrawn state");
+        } catch (IOException e) {
+            assertFalse(state.isLoaded());
+        }
+    }
+
+    @Test
+    public void statesAreInlineWithoutAnExport() throws Exception {
+        LazyState<String> state = decode(encode(new LazyState<String>("inline")));
+        assertTrue(state.isLoaded());
+        assertEquals("inline", state.get());
+    }
+
+    private static byte[] encode(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> LazyState<T> decode(byte[] data) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (LazyState<T>) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the stop-and-copy of a <code>PreCopyMigration</code>
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.PreCopyMigration
+ */
+public class PreCopyMigrationTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager manager;
+    private PeerConnection peer;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        System.setProperty("migration.precopy.block", "4096");
+        manager = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint"), folder.newFolder("cache"));
+        manager.startServer();
+        peer = new PeerConnection("127.0.0.1", manager.getServerPort());
+    }
+
+    @After
+    public void tearDown() {
+        peer.close(null);
+        manager.shutdown();
+        System.clearProperty("migration.local.handoff");
+        System.clearProperty("migration.precopy.block");
+    }
+
+    @Test
+    public void unchangedProcessesCommitNothing() throws Exception {
+        PeerConnectionTest.StateProcess process = new PeerConnectionTest.StateProcess(256 * 1024);
+        PreCopyMigration migration = new PreCopyMigration(peer, process);
+        migration.precopy();
+        assertTrue(migration.getPrecopiedBytes() >= process.state.length);
+        assertTrue(migration.commit().isStarted());
+        assertEquals(0, migration.getFinalBytes());
+        assertArrayEquals(process.state, PeerConnectionTest.StateProcess.await());
+    }
+
+    @Test
+    public void commitsSendOnlyWhatChangedSinceTheLastRound() throws Exception {
+        PeerConnectionTest.StateProcess process = new PeerConnectionTest.StateProcess(256 * 1024);
+        PreCopyMigration migration = new PreCopyMigration(peer, process);
+        migration.precopy();
+        process.state[process.state.length / 2] ^= 1;
+        assertTrue(migration.commit().isStarted());
+        assertTrue(migration.getFinalBytes() > 0 && migration.getFinalBytes() <= 4096);
+        assertArrayEquals(process.state, PeerConnectionTest.StateProcess.await());
+    }
+}
@@ -0,0 +1,228 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.codec.Compression;
+import edu.cmu.courses.ds.codec.MigrationCodecs;
+import edu.cmu.courses.ds.codec.MigrationFrame;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the connection handling of a <code>ProcessServer</code>. The
+ * server runs a single I/O loop, so every connection of a test shares
+ * it, and a broken connection must not disturb the others.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessServer
+ * @see edu.cmu.courses.ds.process.ProcessReceiver
+ */
+public class ProcessServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("server.io.threads", "1");
+        manager = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint"), folder.newFolder("cache"));
+        manager.startServer();
+        CountProcess.runs.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        System.clearProperty("server.io.threads");
+    }
+
+    @Test
+    public void concurrentConnectionsAreAllServed() throws Exception {
+        final int connections = 32;
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<Boolean>> replies = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < connections; i++) {
+                replies.add(clients.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return migrate();
+                    }
+                }));
+            }
+            for (Future<Boolean> reply : replies) {
+                assertTrue(reply.get());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertTrue(CountProcess.await(connections));
+    }
+
+    @Test
+    public void malformedFramesOnlyCloseTheirConnection() throws Exception {
+        Socket idle = connect();
+        DataOutputStream idleOut = new DataOutputStream(idle.getOutputStream());
+        MigrationHandshake.offer(new DataInputStream(idle.getInputStream()), idleOut);
+
+        Socket magic = connect();
+        DataOutputStream out = new DataOutputStream(magic.getOutputStream());
+        out.writeInt(0x12345678);
+        out.writeInt(MigrationHandshake.VERSION);
+        out.writeByte(0);
+        out.flush();
+        assertEquals(-1, magic.getInputStream().read());
+        magic.close();
+
+        Socket length = connect();
+        out = new DataOutputStream(length.getOutputStream());
+        DataInputStream in = new DataInputStream(length.getInputStream());
+        MigrationHandshake.offer(in, out);
+        writeFrameHeader(out, MigrationFrame.getMaxLength() + 1);
+        out.flush();
+        assertEquals(-1, in.read());
+        length.close();
+
+        assertTrue(migrate());
+        assertTrue(CountProcess.await(1));
+        idle.close();
+    }
+
+    @Test
+    public void disconnectsInTheMiddleOfFramesAreDropped() throws Exception {
+        Socket socket = connect();
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        MigrationHandshake.offer(new DataInputStream(socket.getInputStream()), out);
+        byte[] frame = build(new CountProcess());
+        out.write(frame, 0, frame.length / 2);
+        out.flush();
+        socket.close();
+
+        assertTrue(migrate());
+        assertTrue(CountProcess.await(1));
+    }
+
+    @Test
+    public void declaredLengthsAreNotAllocatedUpFront() throws Exception {
+        // Together the declared frames are far larger than the heap of
+        // the test, the server may only allocate what actually arrives
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 64; i++) {
+                Socket socket = connect();
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                MigrationHandshake.offer(new DataInputStream(socket.getInputStream()), out);
+                writeFrameHeader(out, MigrationFrame.getMaxLength());
+                out.write(new byte[1024]);
+                out.flush();
+                sockets.add(socket);
+            }
+            assertTrue(migrate());
+            assertTrue(CountProcess.await(1));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void stoppingTheServerClosesItsConnections() throws Exception {
+        Socket socket = connect();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        MigrationHandshake.offer(in, new DataOutputStream(socket.getOutputStream()));
+
+        manager.shutdown();
+        assertEquals(-1, in.read());
+        socket.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", manager.getServerPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    /**
+     * Migrate a new <code>CountProcess</code> over its own connection
+     *
+     * @return the status the server answered
+     */
+    private boolean migrate() throws IOException {
+        Socket socket = connect();
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            MigrationHandshake.offer(in, out);
+            out.write(build(new CountProcess()));
+            out.flush();
+            return in.readByte() == 1;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] build(MigratableProcess process) throws IOException {
+        return MigrationFrame.build(MigrationCodecs.getDefault(), process,
+                EnumSet.noneOf(Compression.class)).getBytes();
+    }
+
+    /**
+     * Write the header of an uncompressed frame of the default codec
+     */
+    private static void writeFrameHeader(DataOutputStream out, int length) throws IOException {
+        out.writeByte(MigrationCodecs.getDefault().getId());
+        out.writeByte(Compression.NONE.getId());
+        out.writeInt(length);
+        out.writeInt(length);
+    }
+
+    /**
+     * A process which counts its runs
+     */
+    public static class CountProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        private static final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public void processing() throws IOException {
+            synchronized (CountProcess.class) {
+                runs.incrementAndGet();
+                CountProcess.class.notifyAll();
+            }
+        }
+
+        /**
+         * Wait until at least a number of processes ran
+         */
+        static boolean await(int count) throws InterruptedException {
+            synchronized (CountProcess.class) {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (runs.get() < count && System.currentTimeMillis() < deadline) {
+                    CountProcess.class.wait(100);
+                }
+                return runs.get() >= count;
+            }
+        }
+    }
+}
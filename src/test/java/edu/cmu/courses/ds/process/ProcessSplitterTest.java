@@ -0,0 +1,236 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of splitting processes and merging the outputs of their parts
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessSplitter
+ */
+public class ProcessSplitterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("split.min", "2");
+        manager = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint"), folder.newFolder("cache"));
+        manager.startServer();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        System.clearProperty("split.min");
+    }
+
+    @Test
+    public void mergedOutputsEqualASingleRun() throws Exception {
+        File input = folder.newFile("input.txt");
+        ByteArrayOutputStream expected = writeInput(input);
+        File output = new File(folder.getRoot(), "output.txt");
+
+        LineProcess process = new LineProcess(new TransactionalFileInputStream(input), output);
+        manager.startProcess(process);
+        Thread.sleep(20);
+        ProcessSplitter splitter = manager.getSplitter();
+        MigratableProcess first = splitter.split(process, null, 0);
+        assertNotNull(first);
+        // split the original again and the part it split off
+        assertNotNull(splitter.split(process, null, 0));
+        assertNotNull(splitter.split(first, null, 0));
+
+        // the last part merges the outputs after it leaves the manager
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((!manager.getProcesses().isEmpty() || output.length() < expected.size()) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(manager.getProcesses().isEmpty());
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(output.toPath()));
+        // the part files are deleted once merged, only the checkpoint
+        // and cache directories, the input and the output are left
+        assertEquals(4, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void aFailedPartAbortsTheMerge() throws Exception {
+        File input = folder.newFile("input.txt");
+        ByteArrayOutputStream expected = writeInput(input);
+        File output = new File(folder.getRoot(), "output.txt");
+
+        LineProcess process = new LineProcess(new TransactionalFileInputStream(input), output);
+        manager.startProcess(process);
+        Thread.sleep(20);
+        ProcessSplitter splitter = manager.getSplitter();
+        LineProcess half = (LineProcess) splitter.split(process);
+        assertNotNull(half);
+        half.fail = true;
+        manager.startProcess(half);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((!manager.getProcesses().isEmpty() || splitter.getAborted().isEmpty()) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(output.getPath()), splitter.getAborted());
+        // nothing is appended, and the part file is kept
+        assertTrue(output.length() < expected.size());
+        assertTrue(new File(output.getPath() + ProcessSplitter.PART_SUFFIX + 0).isFile());
+    }
+
+    @Test
+    public void partsOnOtherManagersShipTheirOutputs() throws Exception {
+        System.setProperty("migration.files", "true");
+        ProcessManager other = new ProcessManager("127.0.0.1", 0, folder.newFolder("other"),
+                folder.newFolder("other-cache"));
+        other.startServer();
+        try {
+            File input = folder.newFile("input.txt");
+            ByteArrayOutputStream expected = writeInput(input);
+            File output = new File(folder.getRoot(), "output.txt");
+
+            LineProcess process = new LineProcess(new TransactionalFileInputStream(input), output);
+            manager.startProcess(process);
+            Thread.sleep(20);
+            assertNotNull(manager.getSplitter().split(process, "127.0.0.1", other.getServerPort()));
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((!manager.getProcesses().isEmpty() || !other.getProcesses().isEmpty() ||
+                    output.length() < expected.size()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(output.toPath()));
+            assertTrue(!new File(output.getPath() + ProcessSplitter.PART_SUFFIX + 0).exists());
+        } finally {
+            other.shutdown();
+            System.clearProperty("migration.files");
+        }
+    }
+
+    /**
+     * Write 400 random lines to an input file
+     *
+     * @return the expected output, the lines with sorted characters
+     */
+    private static ByteArrayOutputStream writeInput(File input) throws IOException {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Random random = new Random(5);
+        for (int i = 0; i < 400; i++) {
+            char[] chars = new char[1 + random.nextInt(30)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            lines.write((new String(chars) + "\n").getBytes(StandardCharsets.UTF_8));
+            Arrays.sort(chars);
+            expected.write((new String(chars) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(input.toPath(), lines.toByteArray());
+        return expected;
+    }
+
+    /**
+     * A process which sorts the characters of each line, a millisecond
+     * per line
+     */
+    public static class LineProcess extends MigratableProcess implements SplittableProcess {
+        private static final long serialVersionUID = 1L;
+
+        TransactionalFileInputStream input;
+        TransactionalFileOutputStream output;
+
+        /**
+         * Fail after the first line
+         */
+        boolean fail;
+
+        LineProcess(TransactionalFileInputStream input, File output) {
+            this.input = input;
+            this.output = new TransactionalFileOutputStream(output);
+        }
+
+        @Override
+        public void processing() throws IOException {
+            while (!suspending) {
+                String line = readLine();
+                if (line == null) {
+                    break;
+                }
+                char[] chars = line.toCharArray();
+                Arrays.sort(chars);
+                output.write((new String(chars) + "\n").getBytes(StandardCharsets.UTF_8));
+                if (fail) {
+                    throw new IOException("failure of the test");
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Read a line byte by byte, so nothing past the split point is
+         * ever read ahead
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = input.read()) >= 0 && b != '\n') {
+                line.write(b);
+            }
+            if (b < 0 && line.size() == 0) {
+                return null;
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        public long getRemaining() {
+            return input.getRemaining();
+        }
+
+        public TransactionalFileOutputStream getOutput() {
+            return output;
+        }
+
+        public MigratableProcess split(File out) throws IOException {
+            long offset = input.getOffset();
+            long end = offset + input.getRemaining();
+            long point = input.findLineStart(offset + (end - offset) / 2);
+            if (point <= offset || point >= end) {
+                return null;
+            }
+            LineProcess half = new LineProcess(new TransactionalFileInputStream(input.getSourceFile(), point, end),
+                    out);
+            input.setLimit(point);
+            return half;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the warm standby of replicated processes. A source manager
+ * replicates a process to a standby manager every 50ms, and the
+ * standby takes over after 300ms without heartbeats.
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ProcessReplicator
+ * @see edu.cmu.courses.ds.process.ProcessStandby
+ */
+public class ProcessStandbyTest {
+    private static final long TIMEOUT = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProcessManager source;
+    private ProcessManager standby;
+    private MigrationBatchTest.TickProcess process;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("migration.local.handoff", "false");
+        System.setProperty("replication.interval", "50");
+        System.setProperty("replication.timeout", String.valueOf(TIMEOUT));
+        source = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint0"), folder.newFolder("cache0"));
+        standby = new ProcessManager("127.0.0.1", 0, folder.newFolder("checkpoint1"), folder.newFolder("cache1"));
+        source.startServer();
+        standby.startServer();
+        process = (MigrationBatchTest.TickProcess) MigrationBatchTest.start(source, 1).get(0);
+        source.getReplicator().replicate(process, "127.0.0.1", standby.getServerPort());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (source.getReplicator().getLag(process) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(source.getReplicator().getLag(process) >= 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MigrationBatchTest.TickProcess.stopAll(source);
+        MigrationBatchTest.TickProcess.stopAll(standby);
+        source.shutdown();
+        standby.shutdown();
+        System.clearProperty("migration.local.handoff");
+        System.clearProperty("replication.interval");
+        System.clearProperty("replication.timeout");
+    }
+
+    @Test
+    public void standbysWaitWhileHeartbeatsArrive() throws Exception {
+        Thread.sleep(3 * TIMEOUT);
+        assertTrue(standby.getProcesses().isEmpty());
+        assertEquals(-1, standby.getStandby().getFailoverTime());
+        assertTrue(source.getProcesses().contains(process));
+    }
+
+    @Test
+    public void standbysTakeOverAfterTheHeartbeatTimeout() throws Exception {
+        // the source dies: its process stops, and so do its heartbeats
+        source.shutdown();
+        MigrationBatchTest.TickProcess.stopAll(source);
+        int ticks = process.ticks;
+
+        assertTrue(MigrationBatchTest.awaitProcesses(standby, 1));
+        // the replica continues from its last snapshot
+        MigrationBatchTest.TickProcess restarted =
+                (MigrationBatchTest.TickProcess) standby.getProcesses().iterator().next();
+        assertTrue(restarted.awaitTicks(ticks + 1));
+        assertTrue(standby.getStandby().getDownTime() >= TIMEOUT);
+    }
+
+    @Test
+    public void sourcesWhichWereTakenOverStopTheirCopies() throws Exception {
+        // the standby lost contact, though the source still runs
+        assertEquals(1, standby.getStandby().takeOver(source.getBalancer().getNode()));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!source.getProcesses().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(source.getProcesses().isEmpty());
+        assertFalse(process.running);
+        assertEquals(1, standby.getProcesses().size());
+    }
+}
@@ -0,0 +1,190 @@
+package edu.cmu.courses.ds.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.cmu.courses.ds.io.TransactionalFileInputStream;
+import edu.cmu.courses.ds.io.TransactionalFileOutputStream;
+import edu.cmu.courses.ds.io.TransactionalLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the hits of the <code>ResultCache</code> and of the links
+ * of its materialized outputs
+ *
+ * @author Jian Fang(jianf)
+ * @author Fangyu Gao(fangyug)
+ * @see edu.cmu.courses.ds.process.ResultCache
+ * @see edu.cmu.courses.ds.io.TransactionalFileOutputStream#breakLink(File)
+ */
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResultCache cache;
+    private File input;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ResultCache(folder.newFolder("resultcache"), 1024 * 1024, true);
+        input = folder.newFile("input.txt");
+        write(input, "some input\n");
+    }
+
+    @Test
+    public void sameInputsHitTheStoredOutputs() throws Exception {
+        String stored = store("first.txt", "result\n");
+
+        OutputProcess second = new OutputProcess(input, folder.getRoot() + "/second.txt");
+        String key = cache.key(second);
+        assertEquals(stored, key);
+        assertTrue(cache.materialize(key, second));
+        assertEquals("result\n", read(second.out.GetTargetFile()));
+
+        write(input, "other input\n");
+        OutputProcess third = new OutputProcess(input, folder.getRoot() + "/third.txt");
+        assertFalse(cache.materialize(cache.key(third), third));
+    }
+
+    @Test
+    public void writingALinkedOutputLeavesTheCacheAlone() throws Exception {
+        store("first.txt", "result\n");
+        OutputProcess second = new OutputProcess(input, folder.getRoot() + "/second.txt");
+        assertTrue(cache.materialize(cache.key(second), second));
+
+        TransactionalFileOutputStream out = new TransactionalFileOutputStream(second.out.GetTargetFile());
+        out.write("change".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertEquals("change\n", read(second.out.GetTargetFile()));
+
+        OutputProcess third = new OutputProcess(input, folder.getRoot() + "/third.txt");
+        assertTrue(cache.materialize(cache.key(third), third));
+        assertEquals("result\n", read(third.out.GetTargetFile()));
+    }
+
+    @Test
+    public void unlinkMakesOutputsWritableCopies() throws Exception {
+        store("first.txt", "result\n");
+        OutputProcess second = new OutputProcess(input, folder.getRoot() + "/second.txt");
+        assertTrue(cache.materialize(cache.key(second), second));
+
+        cache.unlink(second);
+        File target = second.out.GetTargetFile();
+        assertTrue(target.canWrite());
+        assertFalse(TransactionalFileOutputStream.breakLink(target));
+        assertEquals("result\n", read(target));
+    }
+
+    @Test
+    public void streamsCountByTheValueOfTheirField() throws Exception {
+        File other = folder.newFile("other.txt");
+        write(other, "more input\n");
+        ReaderProcess process = new ReaderProcess(input, other, folder.getRoot() + "/out.txt");
+        String key = cache.key(process);
+        assertNotNull(key);
+
+        write(other, "less input\n");
+        assertFalse(key.equals(cache.key(new ReaderProcess(input, other, folder.getRoot() + "/out.txt"))));
+    }
+
+    @Test
+    public void rewritesWithinTheTimeStepAreHashedAgain() throws Exception {
+        Files.write(input.toPath(), "aaaa\n".getBytes(StandardCharsets.UTF_8));
+        long modified = input.lastModified();
+        String key = cache.key(new OutputProcess(input, folder.getRoot() + "/out.txt"));
+
+        Files.write(input.toPath(), "bbbb\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(input.setLastModified(modified));
+        assertFalse(key.equals(cache.key(new OutputProcess(input, folder.getRoot() + "/out.txt"))));
+    }
+
+    @Test
+    public void unknownInputsAreNotCached() throws Exception {
+        OutputProcess process = new OutputProcess(input, folder.getRoot() + "/out.txt");
+        process.arguments.add(folder.newFile("hidden.txt").getPath());
+        assertNull(cache.key(process));
+    }
+
+    /**
+     * Run a process by hand and store its output
+     *
+     * @return the key of the process
+     */
+    private String store(String output, String content) throws IOException {
+        OutputProcess process = new OutputProcess(input, folder.getRoot() + "/" + output);
+        String key = cache.key(process);
+        assertNotNull(key);
+        process.out.write(content.getBytes(StandardCharsets.UTF_8));
+        process.out.close();
+        cache.store(key, process);
+        return key;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        // the manifest of a file is kept by length and modification time
+        if (!file.setLastModified(System.currentTimeMillis() + content.hashCode())) {
+            throw new IOException("touch " + file + " failed");
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A process with one input and one output
+     */
+    public static class OutputProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        TransactionalFileInputStream in;
+        TransactionalFileOutputStream out;
+
+        public OutputProcess(File input, String output) {
+            super(new String[]{input.getPath(), output});
+            in = new TransactionalFileInputStream(input);
+            out = new TransactionalFileOutputStream(new File(output));
+        }
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+
+    /**
+     * A process which holds one input through a supertype and one
+     * through a line reader
+     */
+    public static class ReaderProcess extends MigratableProcess {
+        private static final long serialVersionUID = 1L;
+
+        InputStream in;
+        TransactionalLineReader reader;
+        TransactionalFileOutputStream out;
+
+        public ReaderProcess(File input, File other, String output) {
+            super(new String[]{input.getPath(), other.getPath(), output});
+            in = new TransactionalFileInputStream(input);
+            reader = new TransactionalLineReader(new TransactionalFileInputStream(other));
+            out = new TransactionalFileOutputStream(new File(output));
+        }
+
+        @Override
+        public void processing() throws IOException {
+        }
+    }
+}